@@ -1,43 +1,136 @@
 package com.lilingyan.avl;
 
 import java.util.Iterator;
-import java.util.Stack;
+import java.util.NoSuchElementException;
 
 /**
  * 中序遍历
- * 从根节点开始
- * 按层递归 把所有左子节点压入栈中
- * 然后弹出一个(输出)，并把他的右子节点压入栈中
- * 重复操作 直到树为空(栈为空)
+ * 从(子)树的最小节点开始
+ * 每次返回当前节点，然后用AvlMap#successor()顺着父指针找到后继节点
+ * 直到没有后继节点
+ * 不需要栈，每一步都不分配内存，也没有锁(java.util.Stack继承自Vector，所有方法都是synchronized)
  * @Author: lilingyan
  * @Date 2019/2/17 10:40
  */
 public class AvlIterator<K,V> implements Iterator<AvlMap.AvlEntry<K,V>> {
 
-    private Stack<AvlMap.AvlEntry<K,V>> stack;
+    /**
+     * 下一个要返回的节点
+     */
+    private AvlMap.AvlEntry<K,V> next;
+    /**
+     * 遍历的终点(不包含)，null表示一直走到最大节点
+     */
+    private final AvlMap.AvlEntry<K,V> fence;
 
+    /**
+     * 遍历以root为根的(子)树
+     * @param root 根节点(可以是null)
+     */
     public AvlIterator(AvlMap.AvlEntry<K,V> root) {
-        this.stack = new Stack<>();
-        addLeftPath(root);
+        this(leftmost(root), root == null ? null : AvlMap.successor(rightmost(root)));
     }
 
-    private void addLeftPath(AvlMap.AvlEntry<K,V> p){
-        while (p!=null){
-            stack.push(p);
-            p=p.left;
-        }
+    /**
+     * 遍历[first, fence)之间的节点
+     * 终点是提前找好的节点，每一步只比较引用，不需要比较key
+     * @param first 遍历的起点
+     * @param fence 遍历的终点(不包含)，null表示一直走到最大节点
+     */
+    public AvlIterator(AvlMap.AvlEntry<K,V> first, AvlMap.AvlEntry<K,V> fence) {
+        this.next = first;
+        this.fence = fence;
+    }
+
+    private static <K,V> AvlMap.AvlEntry<K,V> leftmost(AvlMap.AvlEntry<K,V> p) {
+        if (p != null)
+            while (p.left != null)
+                p = p.left;
+        return p;
+    }
+
+    private static <K,V> AvlMap.AvlEntry<K,V> rightmost(AvlMap.AvlEntry<K,V> p) {
+        while (p.right != null)
+            p = p.right;
+        return p;
     }
 
     @Override
     public boolean hasNext() {
-        return !this.stack.isEmpty();
+        return this.next != fence;
     }
 
     @Override
     public AvlMap.AvlEntry<K, V> next() {
-        AvlMap.AvlEntry<K, V> p = this.stack.pop();
-        addLeftPath(p.right);
+        AvlMap.AvlEntry<K, V> p = this.next;
+        if (p == fence)
+            throw new NoSuchElementException();
+        this.next = AvlMap.successor(p);
         return p;
     }
 
+    /**
+     * 只返回key的迭代器
+     */
+    static final class KeyIterator<K,V> implements Iterator<K> {
+
+        private AvlMap.AvlEntry<K,V> next;
+        private final AvlMap.AvlEntry<K,V> fence;
+
+        KeyIterator(AvlMap.AvlEntry<K,V> first) {
+            this(first, null);
+        }
+
+        KeyIterator(AvlMap.AvlEntry<K,V> first, AvlMap.AvlEntry<K,V> fence) {
+            this.next = first;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != fence;
+        }
+
+        @Override
+        public K next() {
+            AvlMap.AvlEntry<K, V> p = this.next;
+            if (p == fence)
+                throw new NoSuchElementException();
+            this.next = AvlMap.successor(p);
+            return p.key;
+        }
+    }
+
+    /**
+     * 只返回value的迭代器
+     */
+    static final class ValueIterator<K,V> implements Iterator<V> {
+
+        private AvlMap.AvlEntry<K,V> next;
+        private final AvlMap.AvlEntry<K,V> fence;
+
+        ValueIterator(AvlMap.AvlEntry<K,V> first) {
+            this(first, null);
+        }
+
+        ValueIterator(AvlMap.AvlEntry<K,V> first, AvlMap.AvlEntry<K,V> fence) {
+            this.next = first;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != fence;
+        }
+
+        @Override
+        public V next() {
+            AvlMap.AvlEntry<K, V> p = this.next;
+            if (p == fence)
+                throw new NoSuchElementException();
+            this.next = AvlMap.successor(p);
+            return p.value;
+        }
+    }
+
 }
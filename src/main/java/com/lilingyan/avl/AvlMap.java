@@ -1,7 +1,15 @@
 package com.lilingyan.avl;
 
+import com.lilingyan.frozen.FrozenMap;
+import com.lilingyan.instrument.TreeStats;
+
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 平衡二叉搜索树
@@ -13,7 +21,7 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
     /**
      * 这颗树的根节点
      */
-    private transient AvlEntry<K,V> root;
+    transient AvlEntry<K,V> root;
     /**
      * 自定义的Comparator 作用于树节点的排序(可以没有)
      * 如果没有 则用树节点的key compare直接比较(如果不存在自定义的Comparator  则key必须实现Comparable接口)
@@ -21,9 +29,13 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
     protected final Comparator<? super K> comparator;
     /**
      * 在这个树中存在的节点数量
+     * split/join之后是UNKNOWN_SIZE(节点没有记录子树数量，不遍历的话不知道拆出来的两半各有多少个)，
+     * 等到调用size()时再数
      */
     private transient int size = 0;
 
+    private static final int UNKNOWN_SIZE = -1;
+
     //=========================构造器==========================
     public AvlMap() {
         comparator = null;
@@ -61,6 +73,8 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
         AvlEntry<K,V> parent;
         // split comparator and comparable paths
         Comparator<? super K> cpr = comparator;
+        //比较次数(TreeStats关闭时整个被jit去掉)
+        int comparisons = 0;
         //如果是有自定义比较器的
         if (cpr != null) {
             /**
@@ -72,14 +86,18 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
              */
             do {
                 parent = t;
+                comparisons++;
 //                stack.push(parent);
                 cmp = cpr.compare(key, t.key);
                 if (cmp < 0)
                     t = t.left;
                 else if (cmp > 0)
                     t = t.right;
-                else
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.AVL.put(comparisons);
                     return t.setValue(value);
+                }
             } while (t != null);
         }
         //如果没有自定义比较器
@@ -92,14 +110,18 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
             //比较过程与上同理
             do {
                 parent = t;
+                comparisons++;
 //                stack.push(parent);
                 cmp = k.compareTo(t.key);
                 if (cmp < 0)
                     t = t.left;
                 else if (cmp > 0)
                     t = t.right;
-                else
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.AVL.put(comparisons);
                     return t.setValue(value);
+                }
             } while (t != null);
         }
 
@@ -116,11 +138,341 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
         //插入后处理(插入后平衡)
         fixAfterInsertion(e);
         //树节点数量增加1
-        size++;
+        if (size != UNKNOWN_SIZE)
+            size++;
+        if (TreeStats.ENABLED)
+            TreeStats.AVL.put(comparisons);
         return null;
     }
     //=========================添加==========================
 
+    //=========================批量插入==========================
+    /**
+     * 插入m中的全部节点
+     * 当前树为空，并且m是比较器相同的SortedMap时，key已经严格递增，直接用buildFromSorted构建(O(n))
+     * 否则按m的遍历顺序用putAllSorted插入(m有序时每次插入都从上一个节点开始找)
+     * @param m
+     */
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (root == null && m instanceof SortedMap) {
+            Comparator<?> c = ((SortedMap<? extends K, ? extends V>) m).comparator();
+            if (c == comparator || (c != null && c.equals(comparator))) {
+                buildFromSorted(m.entrySet().iterator(), m.size());
+                return;
+            }
+        }
+        fingerPutAll(m.entrySet().iterator());
+    }
+    /**
+     * 按顺序插入全部节点，适合按key递增(或者基本递增)的数据，比如按时间排好的事件
+     *
+     * 普通的put每次都从根节点往下找，O(log n)
+     * 这里记住上一次插入的节点(finger)，如果新的key比它大，就从它往上爬，
+     * 爬到第一个"从左边上来"并且不小于key的祖先为止，key的位置一定在这个祖先的子树里，再从这里往下找
+     * 新key离上一个key越近，爬得越低，比较次数是O(log d)(d是两个key之间隔了多少个节点)
+     * 不是递增的key(比上一个小或相等)还是从根节点开始找，所以输入不要求严格有序
+     * @param it
+     */
+    public void putAllSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+        fingerPutAll(it);
+    }
+    private void fingerPutAll(Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+        AvlEntry<K,V> finger = null;
+        while (it.hasNext()) {
+            Map.Entry<? extends K, ? extends V> entry = it.next();
+            K key = entry.getKey();
+            AvlEntry<K,V> start = root;
+            if (finger != null && compare(key, finger.key) > 0)
+                start = climbForward(finger, key);
+            finger = putFrom(start, key, entry.getValue());
+        }
+    }
+    /**
+     * 从比key小的节点x往上爬，找到子树范围包含key的最低的节点
+     * x的子树里的key都小于"x往上第一个从左边上来的祖先"(上界)，而key又比x大
+     * 所以只要key小于这个上界，key的位置就在x的子树里
+     * x是父节点的右孩子时，父节点不是上界，直接往上爬(不需要比较)
+     * x是父节点的左孩子时，父节点就是上界，比较一次
+     * 一直没有找到比key大的上界，说明最后一个比较过的祖先(或者x本身)的子树没有上界，就从它开始
+     * 比如key比树里所有节点都大时，直接从x开始，往右走一步就插进去了
+     * @param x
+     * @param key
+     * @return 开始往下找的节点
+     */
+    private AvlEntry<K,V> climbForward(AvlEntry<K,V> x, Object key) {
+        AvlEntry<K,V> start = x;
+        for (AvlEntry<K,V> p = x.parent; p != null; x = p, p = p.parent) {
+            if (x == p.left) {
+                int cmp = compare(key, p.key);
+                if (cmp < 0)
+                    return x;
+                if (cmp == 0)
+                    return p;
+                start = p;
+            }
+        }
+        return start;
+    }
+    /**
+     * 从比key大的节点x往上爬，找到子树范围包含key的最低的节点
+     * 与@climbForward()同理(镜像)，下界是"x往上第一个从右边上来的祖先"
+     * @param x
+     * @param key
+     * @return 开始往下找的节点
+     */
+    private AvlEntry<K,V> climbBackward(AvlEntry<K,V> x, Object key) {
+        AvlEntry<K,V> start = x;
+        for (AvlEntry<K,V> p = x.parent; p != null; x = p, p = p.parent) {
+            if (x == p.right) {
+                int cmp = compare(key, p.key);
+                if (cmp > 0)
+                    return x;
+                if (cmp == 0)
+                    return p;
+                start = p;
+            }
+        }
+        return start;
+    }
+    /**
+     * 从t开始往下找，找到相同的key就覆盖值，否则插入新节点
+     * 逻辑和put一样，只是起点不一定是根节点
+     * @param t     起点，只有树为空时才是null
+     * @param key
+     * @param value
+     * @return key所在的节点
+     */
+    @SuppressWarnings("Duplicates")
+    private AvlEntry<K,V> putFrom(AvlEntry<K,V> t, K key, V value) {
+        if (t == null) {
+            //校验key类型(可能是null)
+            compare(key, key);
+            root = new AvlEntry<>(key, value, null);
+            size = 1;
+            return root;
+        }
+        int cmp;
+        AvlEntry<K,V> parent;
+        do {
+            parent = t;
+            cmp = compare(key, t.key);
+            if (cmp < 0)
+                t = t.left;
+            else if (cmp > 0)
+                t = t.right;
+            else {
+                t.value = value;
+                return t;
+            }
+        } while (t != null);
+
+        AvlEntry<K,V> e = new AvlEntry<>(key, value, parent);
+        if (cmp < 0)
+            parent.left = e;
+        else
+            parent.right = e;
+        fixAfterInsertion(e);
+        if (size != UNKNOWN_SIZE)
+            size++;
+        return e;
+    }
+    //=========================批量插入==========================
+
+    //=========================批量构建==========================
+    /**
+     * 用已经排好序的数据直接构建一颗完全平衡的树(原来的节点全部丢弃)
+     * 解释参照buildFromSorted(Iterator, int, boolean)
+     * @param it    按key严格递增的节点
+     * @param size  节点数量
+     */
+    public void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size) {
+        buildFromSorted(it, size, false);
+    }
+    /**
+     * 用已经排好序的数据直接构建一颗完全平衡的树(原来的节点全部丢弃)
+     * 参照jdk TreeMap#buildFromSorted
+     *
+     * 每次取区间的中点作为子树的根，先递归构建左子树，再从迭代器里取中点，最后构建右子树
+     * 迭代器正好按中序被消费，每个节点只创建一次，不需要比较和旋转，O(n)
+     * 左右子树节点数最多差1，所以高度直接就是max(左,右)+1
+     * @param it            按key严格递增的节点
+     * @param size          节点数量(迭代器里的数量不能少于它)
+     * @param checkOrder    是否校验key严格递增(会多做n-1次比较)
+     */
+    public void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size, boolean checkOrder) {
+        if (size < 0)
+            throw new IllegalArgumentException("size: " + size);
+        if (checkOrder)
+            it = new OrderCheckingIterator<>(it);
+        root = buildFromSorted(0, size - 1, it);
+        this.size = size;
+    }
+    @SuppressWarnings("Duplicates")
+    private AvlEntry<K,V> buildFromSorted(int lo, int hi, Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+        if (hi < lo)
+            return null;
+        int mid = (lo + hi) >>> 1;
+
+        AvlEntry<K,V> left = null;
+        if (lo < mid)
+            left = buildFromSorted(lo, mid - 1, it);
+
+        Map.Entry<? extends K, ? extends V> entry = it.next();
+        AvlEntry<K,V> middle = new AvlEntry<>(entry.getKey(), entry.getValue(), null);
+
+        if (left != null) {
+            middle.left = left;
+            left.parent = middle;
+        }
+        if (mid < hi) {
+            AvlEntry<K,V> right = buildFromSorted(mid + 1, hi, it);
+            middle.right = right;
+            right.parent = middle;
+        }
+        middle.height = Math.max(getHeight(middle.left), getHeight(middle.right)) + 1;
+        return middle;
+    }
+    /**
+     * 校验key严格递增的迭代器
+     */
+    private final class OrderCheckingIterator<E extends Map.Entry<? extends K, ? extends V>> implements Iterator<E> {
+        private final Iterator<E> it;
+        private K last;
+        private boolean first = true;
+
+        OrderCheckingIterator(Iterator<E> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public E next() {
+            E e = it.next();
+            K key = e.getKey();
+            if (first) {
+                //校验key类型(可能是null)
+                compare(key, key);
+                first = false;
+            } else if (compare(last, key) >= 0) {
+                throw new IllegalArgumentException("keys are not strictly ascending: " + last + " then " + key);
+            }
+            last = key;
+            return e;
+        }
+    }
+    //=========================批量构建==========================
+
+    //=========================并行构建==========================
+    /**
+     * 用没有排序的数据并行构建一颗avl树
+     * key相同的节点只保留后出现的(和按数组顺序put的结果一样)
+     * @see #parallelBuild(Map.Entry[], Comparator, BinaryOperator)
+     */
+    public static <K,V> AvlMap<K,V> parallelBuild(Map.Entry<K,V>[] entries, Comparator<? super K> comparator) {
+        return parallelBuild(entries, comparator, (oldValue, newValue) -> newValue);
+    }
+    /**
+     * 用没有排序的数据并行构建一颗avl树(ForkJoinPool.commonPool)
+     *
+     * 1. 复制一份数组按key并行排序(Arrays.parallelSort，稳定排序，key相同的节点保持原来的先后顺序)
+     * 2. 顺序扫一遍，key相同的用merge合并value(merge(先出现的, 后出现的))
+     * 3. 和buildFromSorted一样取中点作为子树的根，但左右子树直接按下标拆给不同的线程构建，最后把两边挂到中点下
+     *    两边都建好以后才计算中点的高度
+     * entries本身不会被修改
+     * @param entries       没有排序的节点(key不能为null，除非比较器支持)
+     * @param comparator    为null时用key的自然顺序
+     * @param merge         合并key相同的两个value
+     * @return
+     */
+    @SuppressWarnings({"unchecked", "Duplicates"})
+    public static <K,V> AvlMap<K,V> parallelBuild(Map.Entry<K,V>[] entries, Comparator<? super K> comparator,
+                                                   BinaryOperator<V> merge) {
+        AvlMap<K,V> map = new AvlMap<>(comparator);
+        Map.Entry<K,V>[] sorted = entries.clone();
+        Arrays.parallelSort(sorted, (a, b) -> map.compare(a.getKey(), b.getKey()));
+        //去重(key和value分开放，合并后的value不用再创建Entry)
+        Object[] keys = new Object[sorted.length];
+        Object[] values = new Object[sorted.length];
+        int n = 0;
+        for (Map.Entry<K,V> e : sorted) {
+            K key = e.getKey();
+            if (n == 0) {
+                //校验key类型(可能是null)
+                map.compare(key, key);
+            } else if (map.compare(keys[n - 1], key) == 0) {
+                values[n - 1] = merge.apply((V) values[n - 1], e.getValue());
+                continue;
+            }
+            keys[n] = key;
+            values[n] = e.getValue();
+            n++;
+        }
+        map.root = ForkJoinPool.commonPool().invoke(new BuildTask<>(keys, values, 0, n - 1));
+        map.size = n;
+        return map;
+    }
+    /**
+     * 并行构建[lo, hi]之间的子树
+     * 节点少于PARALLEL_BUILD_THRESHOLD时直接在当前线程递归
+     */
+    private static final class BuildTask<K,V> extends RecursiveTask<AvlEntry<K,V>> {
+
+        private static final long serialVersionUID = 1L;
+        private static final int PARALLEL_BUILD_THRESHOLD = 1 << 13;
+
+        private final Object[] keys;
+        private final Object[] values;
+        private final int lo;
+        private final int hi;
+
+        BuildTask(Object[] keys, Object[] values, int lo, int hi) {
+            this.keys = keys;
+            this.values = values;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected AvlEntry<K,V> compute() {
+            if (hi - lo + 1 < PARALLEL_BUILD_THRESHOLD)
+                return build(lo, hi);
+            int mid = (lo + hi) >>> 1;
+            BuildTask<K,V> leftTask = new BuildTask<>(keys, values, lo, mid - 1);
+            leftTask.fork();
+            AvlEntry<K,V> right = new BuildTask<K,V>(keys, values, mid + 1, hi).compute();
+            AvlEntry<K,V> left = leftTask.join();
+            return link(left, newEntry(mid), right);
+        }
+
+        private AvlEntry<K,V> build(int lo, int hi) {
+            if (hi < lo)
+                return null;
+            int mid = (lo + hi) >>> 1;
+            return link(build(lo, mid - 1), newEntry(mid), build(mid + 1, hi));
+        }
+
+        @SuppressWarnings("unchecked")
+        private AvlEntry<K,V> newEntry(int mid) {
+            return new AvlEntry<>((K) keys[mid], (V) values[mid], null);
+        }
+
+        private static <K,V> AvlEntry<K,V> link(AvlEntry<K,V> left, AvlEntry<K,V> middle, AvlEntry<K,V> right) {
+            middle.left = left;
+            middle.right = right;
+            if (left != null)
+                left.parent = middle;
+            if (right != null)
+                right.parent = middle;
+            middle.height = Math.max(left == null ? 0 : left.height, right == null ? 0 : right.height) + 1;
+            return middle;
+        }
+    }
+    //=========================并行构建==========================
+
     //=========================删除==========================
     /**
      * 删除节点
@@ -144,7 +496,8 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
      */
     @SuppressWarnings("Duplicates")
     private void deleteEntry(AvlEntry<K,V> p) {
-        size--;
+        if (size != UNKNOWN_SIZE)
+            size--;
 
         /**
          * 记录最终被删除的节点(只有删除的这个节点以上的节点，才可能不平衡)
@@ -228,111 +581,70 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
     //=========================插入删除后的调整==========================
     /**
      * 插入后处理(插入后平衡)
-     * @param x
+     *
+     * 从x的父节点开始向上重新计算高度:
+     * 1. 某个节点的高度没有变，它上面的节点都不受影响，直接结束
+     * 2. 某个节点的平衡因子变成了±2，旋转一次(或两次)以后这颗子树的高度恢复成插入前的高度，也直接结束
+     * 旋转方式由平衡因子决定:插入一定发生在"从下面上来的那个子节点"(child)那边，
+     * child的平衡因子和p同号就单旋，异号就先旋child再旋p，不需要比较key
+     * rotateLeft/rotateRight会自己把新的子树根挂到原来的父节点上(或者更新root)，并重新计算高度
+     * @param x 新插入的节点
      */
     @SuppressWarnings("Duplicates")
     private void fixAfterInsertion(AvlEntry<K,V> x) {
-        //记录调整次数(因为只插入了一个节点，所以最多只可能调整一次)
-        int bn = 0;
-        //记录循环比较中的父节点指针
-        AvlEntry<K,V> p;
-        /**
-         * 记录父节点的父节点指针信息
-         * 父节点被旋转后，原父节点的父节点的子节点需要重新指向新父节点
-         * 因为旋转后的新父节点不是原来的父节点
-         * 所以需要记录下最早的父节点的父节点指针
-         */
-        AvlEntry<K,V> op;
-        /**
-         * 一直向上回溯
-         * 直到根节点
-         */
-        p = x.parent;
-        while (p!=null){
-            //记录父节点的父节点
-            op=p.parent;
-            /**
-             * 判断是否已经调整过(只可能一次)
-             */
-            if(bn <1){
-                //重新计算高度
-                p.height = Math.max(getHeight(p.left),getHeight(p.right))+1;
-                //计算平衡因子
-                int cmp = getHeight(p.left)-getHeight(p.right);
-                /**
-                 * 如果平衡因子小于一
-                 * 说明此子树还是平衡的
-                 * 继续计算上层节点
-                 */
-                if(Math.abs(cmp) <= 1){
-                    p = op;
-                    continue;
-                }else{
-                    //刷新调整次数
-                    bn++;
-                    if(cmp == 2){
-                        //如果是左子树过高
-                        if(compare(x.key,p.left.key)<0){
-                            /**
-                             * 如果x插入在p的左节点上
-                             * 只需向右转一次
-                             */
-                            p = rotateRight(p);
-                        }else{
-                            /**
-                             * 如果x插入在p的左节点上
-                             * 则需要先把p的做节点左旋
-                             * 再把p右旋
-                             */
-                            p.left = rotateLeft(p.left);
-                            p = rotateRight(p);
-                        }
-                    }else{  //d==-2
-                        if(compare(x.key,p.right.key)>0){
-                            //如果是右子树过高
-                            /**
-                             * 与上面的左节点过高处理逻辑一样(镜像)
-                             */
-                            p = rotateLeft(p);
-                        }else{
-                            p.right = rotateRight(p.right);
-                            p = rotateLeft(p);
-                        }
-                    }
-                    /**
-                     * 父节点节点旋转完成之后
-                     * 需要把新父节点挂载到父节点的父节点上
-                     */
-                    if(op!=null){
-                        if(compare(x.key,op.key)<0){
-                            //直接把父节点的左节点指针指向p
-                            op.left=p;
-                        }else{
-                            //与上同理
-                            op.right=p;
-                        }
-                    }
+        AvlEntry<K,V> child = x;
+        for (AvlEntry<K,V> p = x.parent; p != null; child = p, p = p.parent) {
+            if (TreeStats.ENABLED)
+                TreeStats.AVL.fixupIteration();
+            //计算平衡因子
+            int balance = getHeight(p.left) - getHeight(p.right);
+            if (balance == 2) {
+                //左子树过高，child是p的左子节点
+                if (getHeight(child.left) > getHeight(child.right)) {
+                    //插入在child的左边，右旋一次
+                    rotateRight(p);
+                } else {
+                    //插入在child的右边，先把child左旋，再把p右旋
+                    rotateLeft(child);
+                    rotateRight(p);
+                }
+                return;
+            } else if (balance == -2) {
+                //与上面的左子树过高处理逻辑一样(镜像)
+                if (getHeight(child.right) > getHeight(child.left)) {
+                    rotateLeft(p);
+                } else {
+                    rotateRight(child);
+                    rotateLeft(p);
                 }
+                return;
             }
-            /**
-             * 记录新父节点(如果旋转)
-             * 直到回溯至根
-             */
-            root = p;
-            p = op;
+            //重新计算高度，没有变化说明上面的节点都不受影响
+            int height = Math.max(getHeight(p.left), getHeight(p.right)) + 1;
+            if (height == p.height)
+                return;
+            p.height = height;
         }
     }
     /**
      * 删除后处理(删除后平衡)
+     *
+     * 从被摘掉的节点的父节点开始向上:
+     * 平衡因子是±2就旋转(有三种情况，由较高的子节点的平衡因子决定，见下面)，否则只重新计算高度
+     * 这颗子树(旋转后是新的子树根)的高度和删除前一样时，上面的节点都不受影响，直接结束
+     * 和插入不同，旋转后子树高度可能还是比原来矮1，所以旋转以后不一定能结束
      * @param x
      */
-    private AvlEntry<K,V> fixAfterDeletion(AvlEntry<K,V> x) {
-        while(x!=null){
-            //重新计算高度
-            x.height = Math.max(getHeight(x.left),getHeight(x.right))+1;
+    @SuppressWarnings("Duplicates")
+    private void fixAfterDeletion(AvlEntry<K,V> x) {
+        while (x != null) {
+            if (TreeStats.ENABLED)
+                TreeStats.AVL.fixupIteration();
+            //删除前这颗子树的高度
+            int oldHeight = x.height;
             //计算平衡因子
-            int cmp = getHeight(x.left)-getHeight(x.right);
-            if(cmp==2){
+            int balance = getHeight(x.left) - getHeight(x.right);
+            if (balance == 2) {
                 //左子树高
                 /**
                  * 有三种情况
@@ -340,24 +652,30 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
                  * 左子树平衡因子=0        当前节点x右旋
                  * 左子树平衡因子=-1       当前节点x左子节点先左旋再当前节点右旋
                  */
-                if(getHeight(x.left.left)-getHeight(x.left.right)>=0){
+                AvlEntry<K,V> l = x.left;
+                if (getHeight(l.left) >= getHeight(l.right)) {
                     x = rotateRight(x);
-                }else{
-                    x.left = rotateLeft(x.left);
+                } else {
+                    rotateLeft(l);
                     x = rotateRight(x);
                 }
-            }else if(cmp==-2){
+            } else if (balance == -2) {
                 //同上(镜像)
-                if(getHeight(x.right.right)-getHeight(x.right.left)>=0){
+                AvlEntry<K,V> r = x.right;
+                if (getHeight(r.right) >= getHeight(r.left)) {
                     x = rotateLeft(x);
-                }else{
-                    x.right = rotateRight(x.right);
+                } else {
+                    rotateRight(r);
                     x = rotateLeft(x);
                 }
+            } else {
+                //重新计算高度
+                x.height = Math.max(getHeight(x.left), getHeight(x.right)) + 1;
             }
+            if (x.height == oldHeight)
+                return;
             x = x.parent;
         }
-        return x;
     }
     //=========================插入删除后的调整==========================
 
@@ -368,6 +686,8 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
      * @param p
      */
     private AvlEntry<K, V> rotateLeft(AvlEntry<K,V> p) {
+        if (TreeStats.ENABLED)
+            TreeStats.AVL.rotation();
         if (p != null) {
             //先获取p的右子节点(既然是左旋，右子节点必须有)
             AvlEntry<K,V> r = p.right;
@@ -413,6 +733,8 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
      * @param p
      */
     private AvlEntry<K, V> rotateRight(AvlEntry<K,V> p) {
+        if (TreeStats.ENABLED)
+            TreeStats.AVL.rotation();
         if (p != null) {
             AvlEntry<K,V> l = p.left;
             p.left = l.right;
@@ -461,18 +783,25 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
         @SuppressWarnings("unchecked")
         Comparable<? super K> k = (Comparable<? super K>) key;
         AvlEntry<K,V> p = root;
+        int comparisons = 0;
         /**
          * 比较逻辑与@getEntryUsingComparator()逻辑一致
          */
         while (p != null) {
+            comparisons++;
             int cmp = k.compareTo(p.key);
             if (cmp < 0)
                 p = p.left;
             else if (cmp > 0)
                 p = p.right;
-            else
+            else {
+                if (TreeStats.ENABLED)
+                    TreeStats.AVL.lookup(comparisons);
                 return p;
+            }
         }
+        if (TreeStats.ENABLED)
+            TreeStats.AVL.lookup(comparisons);
         return null;
     }
     /**
@@ -488,6 +817,7 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
         if (cpr != null) {
             //父节点指针
             AvlEntry<K,V> p = root;
+            int comparisons = 0;
             /**
              * 递归判断 需要查询的key和父节点指针所指的key大小
              * 如果小于 则把父节点指针向左子节点移动
@@ -495,17 +825,35 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
              * 如果等于 则父节点指针指向的对象就是需要查询的
              */
             while (p != null) {
+                comparisons++;
                 int cmp = cpr.compare(k, p.key);
                 if (cmp < 0)
                     p = p.left;
                 else if (cmp > 0)
                     p = p.right;
-                else
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.AVL.lookup(comparisons);
                     return p;
+                }
             }
+            if (TreeStats.ENABLED)
+                TreeStats.AVL.lookup(comparisons);
         }
         return null;
     }
+    /**
+     * 获取树中的最小节点
+     * 解释参照BstMap#getFirstEntry
+     * @return
+     */
+    final AvlEntry<K,V> getFirstEntry() {
+        AvlEntry<K,V> p = root;
+        if (p != null)
+            while (p.left != null)
+                p = p.left;
+        return p;
+    }
     /**
      * 获取后继节点
      * @param t
@@ -554,6 +902,519 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
     }
     //=========================查找==========================
 
+    //=========================导航==========================
+    /**
+     * 最小的节点
+     * @return 树为空时返回null
+     */
+    public Map.Entry<K,V> firstEntry() {
+        return getFirstEntry();
+    }
+    /**
+     * 最大的节点
+     * @return 树为空时返回null
+     */
+    public Map.Entry<K,V> lastEntry() {
+        return getLastEntry();
+    }
+    /**
+     * 小于等于key的最大节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> floorEntry(K key) {
+        return getFloorEntry(key);
+    }
+    /**
+     * 大于等于key的最小节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> ceilingEntry(K key) {
+        return getCeilingEntry(key);
+    }
+    /**
+     * 大于key的最小节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> higherEntry(K key) {
+        return getHigherEntry(key);
+    }
+    /**
+     * 小于key的最大节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> lowerEntry(K key) {
+        return getLowerEntry(key);
+    }
+    /**
+     * key在from和to之间的视图
+     * 不复制节点，只记录两端，对视图的读写直接作用在这颗树上
+     * 遍历时先找到两端的节点(O(log n))，之后顺着后继节点走到终点为止，每个元素不需要比较也不分配内存
+     * @param fromKey
+     * @param fromInclusive 是否包含fromKey
+     * @param toKey
+     * @param toInclusive   是否包含toKey
+     * @return
+     * @throws IllegalArgumentException fromKey大于toKey
+     */
+    public AvlSubMap<K,V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        if (compare(fromKey, toKey) > 0)
+            throw new IllegalArgumentException("fromKey > toKey");
+        return new AvlSubMap<>(this, fromKey, fromInclusive, toKey, toInclusive);
+    }
+    /**
+     * 获取树中的最大节点
+     * 与@getFirstEntry()同理(镜像操作)
+     * @return
+     */
+    final AvlEntry<K,V> getLastEntry() {
+        AvlEntry<K,V> p = root;
+        if (p != null)
+            while (p.right != null)
+                p = p.right;
+        return p;
+    }
+    /**
+     * 大于等于key的最小节点
+     * 参照jdk TreeMap#getCeilingEntry
+     *
+     * 和getEntry一样往下找，找到相等的直接返回
+     * key比当前节点小并且没有左子节点了，当前节点就是
+     * key比当前节点大并且没有右子节点了，向上回溯到第一个"从左边上来"的祖先(与successor()向上回溯的逻辑一致)
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final AvlEntry<K,V> getCeilingEntry(Object key) {
+        return ceilingFrom(root, key);
+    }
+    /**
+     * 从p开始往下找大于等于key的最小节点
+     * p的子树范围必须包含key(比如根节点)，找不到时会顺着父节点回溯到子树外面
+     * @param p
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final AvlEntry<K,V> ceilingFrom(AvlEntry<K,V> p, Object key) {
+        while (p != null) {
+            int cmp = compare(key, p.key);
+            if (cmp < 0) {
+                if (p.left != null)
+                    p = p.left;
+                else
+                    return p;
+            } else if (cmp > 0) {
+                if (p.right != null) {
+                    p = p.right;
+                } else {
+                    AvlEntry<K,V> parent = p.parent;
+                    AvlEntry<K,V> ch = p;
+                    while (parent != null && ch == parent.right) {
+                        ch = parent;
+                        parent = parent.parent;
+                    }
+                    return parent;
+                }
+            } else
+                return p;
+        }
+        return null;
+    }
+    /**
+     * 小于等于key的最大节点
+     * 与@getCeilingEntry()同理(镜像操作)
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final AvlEntry<K,V> getFloorEntry(Object key) {
+        AvlEntry<K,V> p = root;
+        while (p != null) {
+            int cmp = compare(key, p.key);
+            if (cmp > 0) {
+                if (p.right != null)
+                    p = p.right;
+                else
+                    return p;
+            } else if (cmp < 0) {
+                if (p.left != null) {
+                    p = p.left;
+                } else {
+                    AvlEntry<K,V> parent = p.parent;
+                    AvlEntry<K,V> ch = p;
+                    while (parent != null && ch == parent.left) {
+                        ch = parent;
+                        parent = parent.parent;
+                    }
+                    return parent;
+                }
+            } else
+                return p;
+        }
+        return null;
+    }
+    /**
+     * 大于key的最小节点
+     * 与@getCeilingEntry()一样，只是相等时继续往右找
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final AvlEntry<K,V> getHigherEntry(Object key) {
+        AvlEntry<K,V> p = root;
+        while (p != null) {
+            int cmp = compare(key, p.key);
+            if (cmp < 0) {
+                if (p.left != null)
+                    p = p.left;
+                else
+                    return p;
+            } else {
+                if (p.right != null) {
+                    p = p.right;
+                } else {
+                    AvlEntry<K,V> parent = p.parent;
+                    AvlEntry<K,V> ch = p;
+                    while (parent != null && ch == parent.right) {
+                        ch = parent;
+                        parent = parent.parent;
+                    }
+                    return parent;
+                }
+            }
+        }
+        return null;
+    }
+    /**
+     * 小于key的最大节点
+     * 与@getFloorEntry()一样，只是相等时继续往左找
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final AvlEntry<K,V> getLowerEntry(Object key) {
+        AvlEntry<K,V> p = root;
+        while (p != null) {
+            int cmp = compare(key, p.key);
+            if (cmp > 0) {
+                if (p.right != null)
+                    p = p.right;
+                else
+                    return p;
+            } else {
+                if (p.left != null) {
+                    p = p.left;
+                } else {
+                    AvlEntry<K,V> parent = p.parent;
+                    AvlEntry<K,V> ch = p;
+                    while (parent != null && ch == parent.left) {
+                        ch = parent;
+                        parent = parent.parent;
+                    }
+                    return parent;
+                }
+            }
+        }
+        return null;
+    }
+    /**
+     * 获取前驱节点
+     * 与@successor()同理(镜像操作)
+     * @param t
+     * @param <K>
+     * @param <V>
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    static <K,V> AvlEntry<K,V> predecessor(AvlEntry<K,V> t) {
+        if (t == null)
+            return null;
+        else if (t.left != null) {
+            AvlEntry<K,V> p = t.left;
+            while (p.right != null)
+                p = p.right;
+            return p;
+        } else {
+            AvlEntry<K,V> p = t.parent;
+            AvlEntry<K,V> ch = t;
+            while (p != null && ch == p.left) {
+                ch = p;
+                p = p.parent;
+            }
+            return p;
+        }
+    }
+    //=========================导航==========================
+
+    //=========================拆分连接==========================
+    /**
+     * 按key把树拆成两半(具体见AvlSetOps)
+     * 调用后这颗树只剩下比key小的节点，大于等于key的节点放到返回的新树里
+     * 直接复用原来的节点，O(log n)
+     * 两边的size()在第一次调用时要遍历一遍
+     * @param key
+     * @return key及比key大的部分
+     */
+    public AvlMap<K,V> split(K key) {
+        //校验key类型(可能是null)
+        compare(key, key);
+        AvlMap<K,V> high = new AvlMap<>(comparator);
+        if (root == null)
+            return high;
+        AvlSetOps<K,V> ops = new AvlSetOps<>(this);
+        ops.split(root, key);
+        AvlEntry<K,V> low = ops.left;
+        AvlEntry<K,V> right = ops.mid == null ? ops.right : AvlSetOps.join(null, ops.mid, ops.right);
+        resetRoot(low, low == null ? 0 : UNKNOWN_SIZE);
+        high.resetRoot(right, right == null ? 0 : UNKNOWN_SIZE);
+        return high;
+    }
+    /**
+     * 连接
+     * 这颗树中的key都要比key小，right中的key都要比key大
+     * 调用后这颗树包含原来的节点、key以及right中的全部节点，right变成空树
+     * O(|两棵树的高度差|)
+     * @param key
+     * @param value
+     * @param right
+     * @throws IllegalArgumentException 比较器不同，或者key的顺序不对
+     */
+    public void join(K key, V value, AvlMap<K,V> right) {
+        checkComparator(right);
+        if (right == this)
+            throw new IllegalArgumentException("join with itself");
+        compare(key, key);
+        AvlEntry<K,V> last = getLastEntry();
+        AvlEntry<K,V> first = right.getFirstEntry();
+        if ((last != null && compare(last.key, key) >= 0) || (first != null && compare(key, first.key) >= 0))
+            throw new IllegalArgumentException("keys out of order: " + key);
+        AvlEntry<K,V> m = new AvlEntry<>(key, value, null);
+        int newSize = (size == UNKNOWN_SIZE || right.size == UNKNOWN_SIZE) ? UNKNOWN_SIZE : size + right.size + 1;
+        resetRoot(AvlSetOps.join(root, m, right.root), newSize);
+        right.resetRoot(null, 0);
+    }
+    //=========================拆分连接==========================
+
+    //=========================集合运算==========================
+    /**
+     * 并集
+     * 调用后这颗树包含两棵树的全部节点，key相同时用other的value，other变成空树
+     * 较小的树有m个节点、较大的有n个时，O(m log(n/m + 1))
+     * @param other 比较器要相同
+     */
+    public void union(AvlMap<K,V> other) {
+        setOperation(AvlSetOps.UNION, other, false);
+    }
+    /**
+     * 交集
+     * 调用后这颗树只剩下other中也有的key(value不变)，other不变
+     * @param other 比较器要相同
+     */
+    public void intersection(AvlMap<K,V> other) {
+        setOperation(AvlSetOps.INTERSECTION, other, false);
+    }
+    /**
+     * 差集
+     * 调用后这颗树只剩下other中没有的key，other不变
+     * @param other 比较器要相同
+     */
+    public void difference(AvlMap<K,V> other) {
+        setOperation(AvlSetOps.DIFFERENCE, other, false);
+    }
+    /**
+     * 并集(fork/join并行)
+     * @see #union(AvlMap)
+     */
+    public void parallelUnion(AvlMap<K,V> other) {
+        setOperation(AvlSetOps.UNION, other, true);
+    }
+    /**
+     * 交集(fork/join并行)
+     * @see #intersection(AvlMap)
+     */
+    public void parallelIntersection(AvlMap<K,V> other) {
+        setOperation(AvlSetOps.INTERSECTION, other, true);
+    }
+    /**
+     * 差集(fork/join并行)
+     * @see #difference(AvlMap)
+     */
+    public void parallelDifference(AvlMap<K,V> other) {
+        setOperation(AvlSetOps.DIFFERENCE, other, true);
+    }
+    private void setOperation(int op, AvlMap<K,V> other, boolean parallel) {
+        checkComparator(other);
+        if (other == this) {
+            if (op == AvlSetOps.DIFFERENCE)
+                resetRoot(null, 0);
+            return;
+        }
+        AvlSetOps<K,V> ops = new AvlSetOps<>(this);
+        AvlEntry<K,V> result = parallel ? ops.parallelApply(op, root, other.root) : ops.apply(op, root, other.root);
+        int newSize;
+        if (op == AvlSetOps.INTERSECTION)
+            newSize = ops.common;
+        else if (size == UNKNOWN_SIZE || (op == AvlSetOps.UNION && other.size == UNKNOWN_SIZE))
+            newSize = UNKNOWN_SIZE;
+        else
+            newSize = op == AvlSetOps.UNION ? size + other.size - ops.common : size - ops.common;
+        resetRoot(result, newSize);
+        if (op == AvlSetOps.UNION)
+            other.resetRoot(null, 0);
+    }
+    private void checkComparator(AvlMap<K,V> other) {
+        Comparator<?> c = other.comparator;
+        if (c != comparator && (c == null || !c.equals(comparator)))
+            throw new IllegalArgumentException("comparators differ");
+    }
+    private void resetRoot(AvlEntry<K,V> p, int size) {
+        root = p;
+        if (p != null)
+            p.parent = null;
+        this.size = size;
+    }
+    //=========================集合运算==========================
+
+    //=========================游标==========================
+    /**
+     * 新建一个游标(还没有定位)
+     * @return
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * 游标
+     * 停在某个节点上，可以前后移动、读写当前节点的值、删除当前节点
+     * 访问相邻的key时不需要每次都从根节点开始找；定位和移动都不分配内存，游标本身可以一直重复使用
+     *
+     * 游标只记住当前节点，不是通过这个游标对树做的修改(put/remove等)之后需要重新定位
+     */
+    public final class Cursor {
+
+        /**
+         * 当前节点，null表示没有定位(或者已经移出了两端)
+         */
+        private AvlEntry<K,V> node;
+
+        private Cursor() {
+        }
+
+        /**
+         * 定位到大于等于key的最小节点
+         * 已经定位时从当前节点往上爬到子树范围包含key的节点，再从那里往下找，离当前节点越近爬得越少
+         * 没有定位时从根节点开始找
+         * @param key
+         * @return 是否存在这样的节点(不存在时游标变成没有定位)
+         */
+        public boolean seek(K key) {
+            AvlEntry<K,V> start = root;
+            AvlEntry<K,V> p = node;
+            if (p != null) {
+                int cmp = compare(key, p.key);
+                if (cmp == 0)
+                    return true;
+                start = cmp > 0 ? climbForward(p, key) : climbBackward(p, key);
+            }
+            node = ceilingFrom(start, key);
+            return node != null;
+        }
+
+        /**
+         * 定位到最小的节点
+         * @return 树是否不为空
+         */
+        public boolean first() {
+            node = getFirstEntry();
+            return node != null;
+        }
+
+        /**
+         * 定位到最大的节点
+         * @return 树是否不为空
+         */
+        public boolean last() {
+            node = getLastEntry();
+            return node != null;
+        }
+
+        /**
+         * 移到后继节点
+         * @return 是否还在树里(已经是最大的节点时移出去，游标变成没有定位)
+         */
+        public boolean next() {
+            if (node == null)
+                return false;
+            node = successor(node);
+            return node != null;
+        }
+
+        /**
+         * 移到前驱节点
+         * @return 是否还在树里(已经是最小的节点时移出去，游标变成没有定位)
+         */
+        public boolean prev() {
+            if (node == null)
+                return false;
+            node = predecessor(node);
+            return node != null;
+        }
+
+        /**
+         * 是否停在某个节点上
+         * @return
+         */
+        public boolean isValid() {
+            return node != null;
+        }
+
+        public K key() {
+            return current().key;
+        }
+
+        public V value() {
+            return current().value;
+        }
+
+        /**
+         * 修改当前节点的值
+         * @param value
+         * @return 原来的值
+         */
+        public V setValue(V value) {
+            AvlEntry<K,V> p = current();
+            V oldValue = p.value;
+            p.value = value;
+            return oldValue;
+        }
+
+        /**
+         * 删除当前节点，游标移到后继节点上
+         * deleteEntry删除有两个子节点的节点时，是把后继节点的key和值搬到当前节点上再删后继节点，
+         * 所以这时游标不用动；否则当前节点真的被摘掉了，提前记下它的后继节点
+         * @return 是否还停在某个节点上(删除的是最大的节点时为false)
+         */
+        public boolean remove() {
+            AvlEntry<K,V> p = current();
+            AvlEntry<K,V> next = (p.left != null && p.right != null) ? p : successor(p);
+            deleteEntry(p);
+            node = next;
+            return node != null;
+        }
+
+        private AvlEntry<K,V> current() {
+            if (node == null)
+                throw new NoSuchElementException();
+            return node;
+        }
+    }
+    //=========================游标==========================
+
     static final class AvlEntry<K,V> implements Map.Entry<K, V> {
 
         /**
@@ -680,6 +1541,10 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
             if(Math.abs(getHeight(p.left)-getHeight(p.right))>1){
                 throw new Exception("此树不平衡");
             }
+            //调整时遇到高度不变就提前结束了，所以这里顺便校验记录的高度是否正确
+            if(p.height != Math.max(getHeight(p.left),getHeight(p.right))+1){
+                throw new Exception("节点高度错误");
+            }
         }
     }
     /**
@@ -716,11 +1581,70 @@ public class AvlMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>>{
     //=========================一些常用方法封装==========================
 
     @Override
-    public Iterator iterator() {
-        return new AvlIterator<>(root);
+    public Iterator<AvlEntry<K, V>> iterator() {
+        return new AvlIterator<>(getFirstEntry(), null);
+    }
+
+    /**
+     * 按key从小到大遍历key
+     * @return
+     */
+    public Iterator<K> keyIterator() {
+        return new AvlIterator.KeyIterator<>(getFirstEntry());
+    }
+
+    /**
+     * 按key从小到大遍历value
+     * @return
+     */
+    public Iterator<V> valueIterator() {
+        return new AvlIterator.ValueIterator<>(getFirstEntry());
     }
 
+    /**
+     * 生成一份只读的拷贝(见FrozenMap)，之后对这颗树的修改不会影响它
+     * @return
+     */
+    public FrozenMap<K,V> freeze() {
+        return FrozenMap.fromSorted(iterator(), size(), comparator);
+    }
+
+    /**
+     * 按key从小到大遍历节点，可以拆分(见AvlSpliterator)
+     * @return
+     */
+    public Spliterator<Map.Entry<K,V>> entrySpliterator() {
+        return new AvlSpliterator<>(this, getFirstEntry(), null, 0, size());
+    }
+
+    /**
+     * 按key从小到大的节点流
+     * @return
+     */
+    public Stream<Map.Entry<K,V>> stream() {
+        return StreamSupport.stream(entrySpliterator(), false);
+    }
+
+    /**
+     * 并行的节点流，按子树的根拆分给ForkJoinPool
+     * @return
+     */
+    public Stream<Map.Entry<K,V>> parallelStream() {
+        return StreamSupport.stream(entrySpliterator(), true);
+    }
+
+    /**
+     * 节点数量
+     * split/join之后第一次调用时要遍历一遍，O(n)
+     * @return
+     */
     public int size() {
+        if (size == UNKNOWN_SIZE) {
+            int count = 0;
+            for (AvlEntry<K,V> e = getFirstEntry(); e != null; e = successor(e))
+                count++;
+            size = count;
+        }
         return this.size;
     }
 
@@ -0,0 +1,303 @@
+package com.lilingyan.avl;
+
+import com.lilingyan.avl.AvlMap.AvlEntry;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * AvlMap的join/split，以及基于它们的集合运算(并集/交集/差集)
+ * 参照 Blelloch, Ferizovic, Sun. Just Join for Parallel Ordered Sets
+ *
+ * 只有join需要关心平衡(用节点的height)，split和集合运算都只是递归地调用join
+ * 所有操作都直接复用两棵树原来的节点(只改指针和高度)，不创建新节点
+ * 较小的树有m个节点、较大的有n个时，集合运算是O(m log(n/m + 1))，比把一棵树逐个put进另一棵(O(m log n))少
+ *
+ * 中间结果的子树根的parent不一定是null(还指着原来的父节点)，挂到别的节点下面时会被改掉，
+ * 最后剩下的根由AvlMap负责把parent置空
+ * 一个实例只给一个线程用(split的结果放在字段里)，并行版本每个子任务用自己的实例
+ * @Author: lilingyan
+ */
+final class AvlSetOps<K,V> {
+
+    static final int UNION = 0;
+    static final int INTERSECTION = 1;
+    static final int DIFFERENCE = 2;
+
+    /**
+     * 两棵子树的高度都不小于这个值时才拆成并行子任务，否则直接串行算
+     * 高度10的avl树至少有143个节点
+     */
+    private static final int PARALLEL_HEIGHT = 10;
+
+    private final AvlMap<K,V> map;
+
+    /**
+     * split的结果
+     * left:比key小的部分  mid:和key相等的节点(没有就是null)  right:比key大的部分
+     */
+    AvlEntry<K,V> left;
+    AvlEntry<K,V> mid;
+    AvlEntry<K,V> right;
+    /**
+     * 集合运算过程中两棵树都有的key的数量
+     */
+    int common;
+
+    AvlSetOps(AvlMap<K,V> map) {
+        this.map = map;
+    }
+
+    //=========================连接==========================
+    /**
+     * 连接
+     * l中的key都比m小，r中的key都比m大，返回以它们为节点的平衡树
+     * 高度相差不超过1时m直接作为根，否则沿着高的那棵树的边(矮的在右边就沿右边)往下找，
+     * 找到高度和矮的那棵差不多的子树后把m挂上去，再在回来的路上旋转
+     * O(|h(l) - h(r)|)
+     * @param l
+     * @param m
+     * @param r
+     * @return 新的根
+     */
+    static <K,V> AvlEntry<K,V> join(AvlEntry<K,V> l, AvlEntry<K,V> m, AvlEntry<K,V> r) {
+        int hl = height(l);
+        int hr = height(r);
+        if (hl > hr + 1)
+            return joinRight(l, m, r);
+        if (hr > hl + 1)
+            return joinLeft(l, m, r);
+        return link(l, m, r);
+    }
+    /**
+     * l比r高，沿着l的右边往下找
+     */
+    private static <K,V> AvlEntry<K,V> joinRight(AvlEntry<K,V> l, AvlEntry<K,V> m, AvlEntry<K,V> r) {
+        AvlEntry<K,V> ll = l.left;
+        AvlEntry<K,V> lr = l.right;
+        if (height(lr) <= height(r) + 1) {
+            AvlEntry<K,V> t = link(lr, m, r);
+            if (height(t) <= height(ll) + 1)
+                return link(ll, l, t);
+            //t比l的左子树高2，先右旋t再左旋l(双旋)
+            return rotateLeft(link(ll, l, rotateRight(t)));
+        }
+        AvlEntry<K,V> t = joinRight(lr, m, r);
+        link(ll, l, t);
+        if (height(t) <= height(ll) + 1)
+            return l;
+        return rotateLeft(l);
+    }
+    /**
+     * 与@joinRight()同理(镜像)
+     */
+    private static <K,V> AvlEntry<K,V> joinLeft(AvlEntry<K,V> l, AvlEntry<K,V> m, AvlEntry<K,V> r) {
+        AvlEntry<K,V> rl = r.left;
+        AvlEntry<K,V> rr = r.right;
+        if (height(rl) <= height(l) + 1) {
+            AvlEntry<K,V> t = link(l, m, rl);
+            if (height(t) <= height(rr) + 1)
+                return link(t, r, rr);
+            return rotateRight(link(rotateLeft(t), r, rr));
+        }
+        AvlEntry<K,V> t = joinLeft(l, m, rl);
+        link(t, r, rr);
+        if (height(t) <= height(rr) + 1)
+            return r;
+        return rotateRight(r);
+    }
+    /**
+     * 连接，但是中间没有节点(l中的key都比r小)
+     * 把l中最大的节点摘下来当作中间节点
+     * @param l
+     * @param r
+     * @return
+     */
+    AvlEntry<K,V> join2(AvlEntry<K,V> l, AvlEntry<K,V> r) {
+        if (l == null)
+            return r;
+        if (r == null)
+            return l;
+        splitLast(l);
+        return join(left, mid, r);
+    }
+    /**
+     * 摘掉t中最大的节点
+     * 结果: left=剩下的树 mid=最大的节点
+     */
+    private void splitLast(AvlEntry<K,V> t) {
+        if (t.right == null) {
+            left = t.left;
+            mid = t;
+            return;
+        }
+        AvlEntry<K,V> tl = t.left;
+        splitLast(t.right);
+        left = join(tl, t, left);
+    }
+    //=========================连接==========================
+
+    //=========================拆分==========================
+    /**
+     * 按key把t拆成三部分，结果放在left/mid/right
+     * 沿着查找key的路径往下，回来的时候把路径上的节点和它另一边的子树join到对应的一侧
+     * O(log n)
+     * @param t
+     * @param key
+     */
+    void split(AvlEntry<K,V> t, Object key) {
+        if (t == null) {
+            left = mid = right = null;
+            return;
+        }
+        AvlEntry<K,V> l = t.left;
+        AvlEntry<K,V> r = t.right;
+        int cmp = map.compare(key, t.key);
+        if (cmp < 0) {
+            split(l, key);
+            right = join(right, t, r);
+        } else if (cmp > 0) {
+            split(r, key);
+            left = join(l, t, left);
+        } else {
+            left = l;
+            mid = t;
+            right = r;
+        }
+    }
+    //=========================拆分==========================
+
+    //=========================集合运算==========================
+    /**
+     * 集合运算
+     * 用t2的根把t1拆成两半，两边分别递归，再用t2的根(并集)或t1里相同key的节点(交集)连起来
+     * 并集时key相同的以t2的节点为准，交集时以t1的节点为准
+     * t2的节点只有并集时会被复用，交集和差集不会改动t2
+     * @param op    UNION/INTERSECTION/DIFFERENCE
+     * @param t1
+     * @param t2
+     * @return 结果的根
+     */
+    AvlEntry<K,V> apply(int op, AvlEntry<K,V> t1, AvlEntry<K,V> t2) {
+        if (t1 == null)
+            return op == UNION ? t2 : null;
+        if (t2 == null)
+            return op == INTERSECTION ? null : t1;
+        AvlEntry<K,V> l2 = t2.left;
+        AvlEntry<K,V> r2 = t2.right;
+        split(t1, t2.key);
+        AvlEntry<K,V> l1 = left;
+        AvlEntry<K,V> m = mid;
+        AvlEntry<K,V> r1 = right;
+        if (m != null)
+            common++;
+        AvlEntry<K,V> l = apply(op, l1, l2);
+        AvlEntry<K,V> r = apply(op, r1, r2);
+        return combine(op, l, t2, m, r);
+    }
+    /**
+     * 把两边的结果连起来
+     * @param t2    拆分用的t2的根
+     * @param m     t1中和t2的根key相同的节点
+     */
+    private AvlEntry<K,V> combine(int op, AvlEntry<K,V> l, AvlEntry<K,V> t2, AvlEntry<K,V> m, AvlEntry<K,V> r) {
+        if (op == UNION)
+            return join(l, t2, r);
+        if (op == INTERSECTION && m != null)
+            return join(l, m, r);
+        return join2(l, r);
+    }
+    /**
+     * 并行的集合运算(ForkJoinPool.commonPool)
+     * 拆分后两边的子树没有共同的节点，可以分别交给不同的线程
+     */
+    AvlEntry<K,V> parallelApply(int op, AvlEntry<K,V> t1, AvlEntry<K,V> t2) {
+        SetOpTask<K,V> task = new SetOpTask<>(map, op, t1, t2);
+        AvlEntry<K,V> result = ForkJoinPool.commonPool().invoke(task);
+        common += task.common;
+        return result;
+    }
+
+    private static final class SetOpTask<K,V> extends RecursiveTask<AvlEntry<K,V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AvlMap<K,V> map;
+        private final int op;
+        private final AvlEntry<K,V> t1;
+        private final AvlEntry<K,V> t2;
+        /**
+         * 这个子任务里两棵树都有的key的数量
+         */
+        int common;
+
+        SetOpTask(AvlMap<K,V> map, int op, AvlEntry<K,V> t1, AvlEntry<K,V> t2) {
+            this.map = map;
+            this.op = op;
+            this.t1 = t1;
+            this.t2 = t2;
+        }
+
+        @Override
+        protected AvlEntry<K,V> compute() {
+            AvlSetOps<K,V> ops = new AvlSetOps<>(map);
+            if (height(t1) < PARALLEL_HEIGHT || height(t2) < PARALLEL_HEIGHT) {
+                AvlEntry<K,V> result = ops.apply(op, t1, t2);
+                common = ops.common;
+                return result;
+            }
+            AvlEntry<K,V> l2 = t2.left;
+            AvlEntry<K,V> r2 = t2.right;
+            ops.split(t1, t2.key);
+            AvlEntry<K,V> m = ops.mid;
+            SetOpTask<K,V> leftTask = new SetOpTask<>(map, op, ops.left, l2);
+            SetOpTask<K,V> rightTask = new SetOpTask<>(map, op, ops.right, r2);
+            leftTask.fork();
+            AvlEntry<K,V> r = rightTask.compute();
+            AvlEntry<K,V> l = leftTask.join();
+            common = leftTask.common + rightTask.common + (m != null ? 1 : 0);
+            return ops.combine(op, l, t2, m, r);
+        }
+    }
+    //=========================集合运算==========================
+
+    //=========================一些常用方法封装==========================
+    static <K,V> int height(AvlEntry<K,V> p) {
+        return p == null ? 0 : p.height;
+    }
+    /**
+     * 把l、r挂到m下面，重新计算m的高度
+     * @return m(parent置空)
+     */
+    private static <K,V> AvlEntry<K,V> link(AvlEntry<K,V> l, AvlEntry<K,V> m, AvlEntry<K,V> r) {
+        m.left = l;
+        m.right = r;
+        m.parent = null;
+        if (l != null)
+            l.parent = m;
+        if (r != null)
+            r.parent = m;
+        m.height = Math.max(height(l), height(r)) + 1;
+        return m;
+    }
+    /**
+     * 子树左旋(不涉及AvlMap的root)
+     * @return 新的子树根
+     */
+    private static <K,V> AvlEntry<K,V> rotateLeft(AvlEntry<K,V> p) {
+        AvlEntry<K,V> r = p.right;
+        link(p.left, p, r.left);
+        return link(p, r, r.right);
+    }
+    /**
+     * 子树右旋(不涉及AvlMap的root)
+     * @return 新的子树根
+     */
+    private static <K,V> AvlEntry<K,V> rotateRight(AvlEntry<K,V> p) {
+        AvlEntry<K,V> l = p.left;
+        link(l.right, p, p.right);
+        return link(l.left, l, p);
+    }
+    //=========================一些常用方法封装==========================
+
+}
@@ -0,0 +1,111 @@
+package com.lilingyan.avl;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * 可以拆分的中序遍历(给并行stream用)
+ * 参照jdk TreeMap.EntrySpliterator
+ *
+ * 负责[current, fence)之间的节点
+ * 拆分时不复制节点，只找一个中间的节点s，把[current, s)交给新的Spliterator，自己留下[s, fence)
+ * s取子树的根: 第一次拆分取整棵树的根，之后拆出来的左半边取fence的左子节点，留下的右半边取current的右子节点
+ * avl树是平衡的，子树的根大致在范围的中间，拆出来的两半大小差不多
+ * 节点没有记录子树数量，拆分后的数量只是估计值(每次减半)，只有没拆过的时候是准确的(SIZED)
+ * 遍历过程中不能修改树
+ * @Author: lilingyan
+ */
+public class AvlSpliterator<K,V> implements Spliterator<Map.Entry<K,V>> {
+
+    private final AvlMap<K,V> tree;
+    /**
+     * 下一个要返回的节点
+     */
+    private AvlMap.AvlEntry<K,V> current;
+    /**
+     * 终点(不包含)，null表示一直走到最大节点
+     */
+    private final AvlMap.AvlEntry<K,V> fence;
+    /**
+     * 0:还没拆分过 -1:拆出来的左半边 1:留下的右半边
+     */
+    private int side;
+    /**
+     * 剩下的节点数量(拆分后是估计值)
+     */
+    private int est;
+
+    AvlSpliterator(AvlMap<K,V> tree, AvlMap.AvlEntry<K,V> current, AvlMap.AvlEntry<K,V> fence, int side, int est) {
+        this.tree = tree;
+        this.current = current;
+        this.fence = fence;
+        this.side = side;
+        this.est = est;
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K,V>> trySplit() {
+        AvlMap.AvlEntry<K,V> e = current;
+        AvlMap.AvlEntry<K,V> f = fence;
+        AvlMap.AvlEntry<K,V> s = (e == null || e == f) ? null :
+                (side == 0) ? tree.root :
+                (side > 0) ? e.right :
+                (f != null) ? f.left : null;
+        if (s == null || s == e || s == f)
+            return null;
+        //current可能已经往后走过了s
+        if (tree.compare(e.key, s.key) >= 0)
+            return null;
+        side = 1;
+        current = s;
+        return new AvlSpliterator<>(tree, e, s, -1, est >>>= 1);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<K,V>> action) {
+        Objects.requireNonNull(action);
+        AvlMap.AvlEntry<K,V> e = current;
+        if (e == null || e == fence)
+            return false;
+        current = AvlMap.successor(e);
+        if (est > 0)
+            est--;
+        action.accept(e);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Map.Entry<K,V>> action) {
+        Objects.requireNonNull(action);
+        AvlMap.AvlEntry<K,V> f = fence;
+        AvlMap.AvlEntry<K,V> e = current;
+        current = f;
+        est = 0;
+        for (; e != null && e != f; e = AvlMap.successor(e)) {
+            action.accept(e);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        return est;
+    }
+
+    @Override
+    public int characteristics() {
+        return (side == 0 ? Spliterator.SIZED : 0)
+                | Spliterator.DISTINCT | Spliterator.SORTED | Spliterator.ORDERED | Spliterator.NONNULL;
+    }
+
+    /**
+     * 元素是节点，按key的顺序排
+     */
+    @Override
+    public Comparator<? super Map.Entry<K,V>> getComparator() {
+        return (a, b) -> tree.compare(a.getKey(), b.getKey());
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.lilingyan.avl;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * AvlMap中key在[fromKey, toKey]之间(两端是否包含可选)的视图
+ * 参照jdk TreeMap.NavigableSubMap
+ *
+ * 只记录两端的key，不复制节点，读写都直接作用在原来的树上(原来的树修改后视图里也能看到)
+ * 遍历时先找到范围内的最小节点和范围外的第一个节点(终点)，之后只顺着后继节点走，直到碰到终点
+ * AvlMap的节点没有记录子树数量，size()只能把范围内的节点走一遍，O(log n + k)
+ * @Author: lilingyan
+ */
+public class AvlSubMap<K,V> implements Iterable<AvlMap.AvlEntry<K,V>> {
+
+    private final AvlMap<K,V> map;
+    private final K lo;
+    private final boolean loInclusive;
+    private final K hi;
+    private final boolean hiInclusive;
+
+    AvlSubMap(AvlMap<K,V> map, K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+        this.map = map;
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+    }
+
+    //=========================范围判断==========================
+    private boolean tooLow(Object key) {
+        int c = map.compare(key, lo);
+        return c < 0 || (c == 0 && !loInclusive);
+    }
+    private boolean tooHigh(Object key) {
+        int c = map.compare(key, hi);
+        return c > 0 || (c == 0 && !hiInclusive);
+    }
+    private boolean inRange(Object key) {
+        return !tooLow(key) && !tooHigh(key);
+    }
+    //=========================范围判断==========================
+
+    //=========================查找==========================
+    public V get(Object key) {
+        return inRange(key) ? map.get(key) : null;
+    }
+    public boolean containsKey(Object key) {
+        return inRange(key) && map.containsKey(key);
+    }
+    /**
+     * 范围内的最小节点
+     * @return 范围内没有节点时返回null
+     */
+    public Map.Entry<K,V> firstEntry() {
+        return absLowest();
+    }
+    /**
+     * 范围内的最大节点
+     * @return 范围内没有节点时返回null
+     */
+    public Map.Entry<K,V> lastEntry() {
+        return absHighest();
+    }
+    private AvlMap.AvlEntry<K,V> absLowest() {
+        AvlMap.AvlEntry<K,V> e = loInclusive ? map.getCeilingEntry(lo) : map.getHigherEntry(lo);
+        return (e == null || tooHigh(e.key)) ? null : e;
+    }
+    private AvlMap.AvlEntry<K,V> absHighest() {
+        AvlMap.AvlEntry<K,V> e = hiInclusive ? map.getFloorEntry(hi) : map.getLowerEntry(hi);
+        return (e == null || tooLow(e.key)) ? null : e;
+    }
+    /**
+     * 范围右边的第一个节点(遍历的终点)
+     * @return
+     */
+    private AvlMap.AvlEntry<K,V> absHighFence() {
+        return hiInclusive ? map.getHigherEntry(hi) : map.getCeilingEntry(hi);
+    }
+    //=========================查找==========================
+
+    //=========================修改==========================
+    /**
+     * 加入一个节点
+     * @throws IllegalArgumentException key不在范围内
+     */
+    public V put(K key, V value) {
+        if (!inRange(key))
+            throw new IllegalArgumentException("key out of range");
+        return map.put(key, value);
+    }
+    public V remove(Object key) {
+        return inRange(key) ? map.remove(key) : null;
+    }
+    //=========================修改==========================
+
+    /**
+     * 范围内的节点数量
+     * @return
+     */
+    public int size() {
+        AvlMap.AvlEntry<K,V> first = absLowest();
+        if (first == null)
+            return 0;
+        AvlMap.AvlEntry<K,V> fence = absHighFence();
+        int size = 0;
+        for (AvlMap.AvlEntry<K,V> e = first; e != fence; e = AvlMap.successor(e))
+            size++;
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return absLowest() == null;
+    }
+
+    /**
+     * 按key从小到大遍历范围内的节点
+     * @return
+     */
+    @Override
+    public Iterator<AvlMap.AvlEntry<K,V>> iterator() {
+        AvlMap.AvlEntry<K,V> first = absLowest();
+        return first == null ? new AvlIterator<>(null, null) : new AvlIterator<>(first, absHighFence());
+    }
+
+    /**
+     * 按key从小到大遍历范围内的key
+     * @return
+     */
+    public Iterator<K> keyIterator() {
+        AvlMap.AvlEntry<K,V> first = absLowest();
+        return first == null ? new AvlIterator.KeyIterator<>(null, null) : new AvlIterator.KeyIterator<>(first, absHighFence());
+    }
+
+    /**
+     * 按key从小到大遍历范围内的value
+     * @return
+     */
+    public Iterator<V> valueIterator() {
+        AvlMap.AvlEntry<K,V> first = absLowest();
+        return first == null ? new AvlIterator.ValueIterator<>(null, null) : new AvlIterator.ValueIterator<>(first, absHighFence());
+    }
+
+}
@@ -0,0 +1,911 @@
+package com.lilingyan.avl;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并发平衡二叉树
+ * 参照Bronson等人的"A Practical Concurrent Binary Search Tree"(PPoPP 2010，SnapTree)
+ *
+ * 和AvlMap一样每个节点记录高度，区别是:
+ * 1. 读不加锁
+ *    每个节点有一个版本号(changeOVL)，节点要"缩小"(旋转时被转下去，它子树的key范围变小)之前先把版本号置为shrinking，转完再加一
+ *    查找时一层一层往下走，每走一层都校验上一层的版本号没变(hand-over-hand)，变了就退回上一层重试
+ *    节点被转上去("增长")不会让正在它下面查找的线程走错，所以增长不影响读
+ * 2. 写只锁用到的节点
+ *    插入只锁新节点的父节点；旋转锁住父节点、当前节点和被转上来的子节点
+ * 3. 删除部分外部化(partially external)
+ *    有两个子节点的节点删除时不摘掉，只把value置为null，变成"路由节点"(没有值，只用来分路)
+ *    路由节点少于两个子节点时，在后续的平衡里被摘掉
+ *    这样删除永远不需要像AvlMap#deleteEntry那样去挪动后继节点
+ * 4. 平衡是宽松的
+ *    修改完以后顺着父节点向上修正高度和旋转(fixHeightAndRebalance)，
+ *    并发时某个时刻平衡因子可能超过1，但最终每个被破坏的节点都会由破坏它的线程修好
+ *
+ * 根节点挂在一个不会变的哨兵节点(rootHolder)的右边，这样根节点的旋转和普通节点一样处理
+ * value不能为null(null表示路由节点)
+ * @Author: lilingyan
+ */
+public class ConcurrentAvlMap<K,V> {
+
+    //=========================版本号(changeOVL)==========================
+    /**
+     * 节点已经从树上摘掉了
+     */
+    private static final long UNLINKED_OVL = 1L;
+    /**
+     * 节点正在缩小(旋转到下面去)
+     */
+    private static final long OVL_SHRINK_LOCK_MASK = 2L;
+    /**
+     * 节点正在增长(旋转到上面来)
+     */
+    private static final long OVL_GROW_LOCK_MASK = 4L;
+    private static final int OVL_GROW_COUNT_SHIFT = 3;
+    private static final int OVL_BITS_BEFORE_OVERFLOW = 8;
+    private static final long OVL_GROW_COUNT_MASK = ((1L << OVL_BITS_BEFORE_OVERFLOW) - 1) << OVL_GROW_COUNT_SHIFT;
+    /**
+     * 缩小的计数在增长计数的上面，增长计数溢出时会进位到缩小计数(只会让读多重试一次，不影响正确性)
+     */
+    private static final int OVL_SHRINK_COUNT_SHIFT = OVL_GROW_COUNT_SHIFT + OVL_BITS_BEFORE_OVERFLOW;
+
+    private static boolean isChanging(long ovl) {
+        return (ovl & (OVL_SHRINK_LOCK_MASK | OVL_GROW_LOCK_MASK)) != 0;
+    }
+    private static boolean isUnlinked(long ovl) {
+        return ovl == UNLINKED_OVL;
+    }
+    private static boolean isShrinkingOrUnlinked(long ovl) {
+        return (ovl & (OVL_SHRINK_LOCK_MASK | UNLINKED_OVL)) != 0;
+    }
+    /**
+     * 读的时候只关心节点有没有缩小或者被摘掉(增长不影响)
+     */
+    private static boolean hasShrunkOrUnlinked(long orig, long current) {
+        return ((orig ^ current) & ~(OVL_GROW_LOCK_MASK | OVL_GROW_COUNT_MASK)) != 0;
+    }
+    private static long beginGrow(long ovl) {
+        return ovl | OVL_GROW_LOCK_MASK;
+    }
+    private static long endGrow(long ovl) {
+        return ovl + (1L << OVL_GROW_COUNT_SHIFT);
+    }
+    private static long beginShrink(long ovl) {
+        return ovl | OVL_SHRINK_LOCK_MASK;
+    }
+    private static long endShrink(long ovl) {
+        return ovl + (1L << OVL_SHRINK_COUNT_SHIFT);
+    }
+    //=========================版本号(changeOVL)==========================
+
+    /**
+     * 乐观操作失败，需要回到上一层重试
+     */
+    private static final Object RETRY = new Object();
+    /**
+     * 等节点旋转完成时，先自旋这么多次再去抢锁
+     */
+    private static final int SPIN_COUNT = 100;
+
+    //=========================fixHeightAndRebalance的返回值==========================
+    private static final int UNLINK_REQUIRED = -1;
+    private static final int REBALANCE_REQUIRED = -2;
+    private static final int NOTHING_REQUIRED = -3;
+    //=========================fixHeightAndRebalance的返回值==========================
+
+    /**
+     * 自定义的Comparator 作用于树节点的排序(可以没有)
+     * 如果没有 则用树节点的key compare直接比较(如果不存在自定义的Comparator  则key必须实现Comparable接口)
+     */
+    protected final Comparator<? super K> comparator;
+    /**
+     * 哨兵节点，右子节点才是真正的根节点
+     */
+    private final Node<K,V> rootHolder = new Node<>(null, null, null, 0);
+    /**
+     * 存在的节点数量(不算路由节点)
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    //=========================构造器==========================
+    public ConcurrentAvlMap() {
+        comparator = null;
+    }
+    public ConcurrentAvlMap(Comparator<? super K> comparator) {
+        this.comparator = comparator;
+    }
+    //=========================构造器==========================
+
+    //=========================查找==========================
+    /**
+     * 使用key查询值
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        checkKey(key);
+        return (V) attemptGet(key, rootHolder, 1, 0L);
+    }
+    /**
+     * 判断key是否存在
+     * @param key
+     * @return
+     */
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+    /**
+     * 在node的dir方向上查找key
+     * 进入时node的版本号是nodeOVL，返回前必须保证node没有缩小过(否则要找的key可能已经不在这颗子树里了)
+     * @param key
+     * @param node      父节点
+     * @param dir       小于0往左，大于0往右
+     * @param nodeOVL   进入时父节点的版本号
+     * @return 找到的value/null，或者RETRY(父节点变了，调用方重试)
+     */
+    private Object attemptGet(Object key, Node<K,V> node, int dir, long nodeOVL) {
+        while (true) {
+            Node<K,V> child = node.child(dir);
+            if (child == null) {
+                if (hasShrunkOrUnlinked(nodeOVL, node.changeOVL))
+                    return RETRY;
+                //确实没有
+                return null;
+            }
+            int childCmp = compare(key, child.key);
+            if (childCmp == 0) {
+                //key是final的，读到value的那一刻就是线性化点(路由节点的value是null，相当于没有)
+                return child.value;
+            }
+            long childOVL = child.changeOVL;
+            if (isShrinkingOrUnlinked(childOVL)) {
+                //子节点正在被转下去，等它转完再重读
+                waitUntilChangeCompleted(child, childOVL);
+                if (hasShrunkOrUnlinked(nodeOVL, node.changeOVL))
+                    return RETRY;
+            } else if (child != node.child(dir)) {
+                //读子节点版本号的时候它已经不是子节点了
+                if (hasShrunkOrUnlinked(nodeOVL, node.changeOVL))
+                    return RETRY;
+            } else {
+                //到这里child和它的版本号是一致的，再确认一下父节点没变，就可以往下走了
+                if (hasShrunkOrUnlinked(nodeOVL, node.changeOVL))
+                    return RETRY;
+                Object result = attemptGet(key, child, childCmp, childOVL);
+                if (result != RETRY)
+                    return result;
+                //子节点那一层重试，从这一层重新读子节点
+            }
+        }
+    }
+    //=========================查找==========================
+
+    //=========================添加==========================
+    /**
+     * 加入一个节点
+     * @param key
+     * @param value 不能为null
+     * @return 原来的值
+     */
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        checkKey(key);
+        if (value == null)
+            throw new NullPointerException();
+        return (V) attemptPut(key, value, rootHolder, 1, 0L);
+    }
+    /**
+     * 下降过程和attemptGet一样
+     * 找到相同的key就更新(路由节点会被重新"复活")，找不到就在最后的空位置上插入
+     */
+    @SuppressWarnings("Duplicates")
+    private Object attemptPut(K key, V value, Node<K,V> node, int dir, long nodeOVL) {
+        while (true) {
+            Node<K,V> child = node.child(dir);
+            if (hasShrunkOrUnlinked(nodeOVL, node.changeOVL))
+                return RETRY;
+            if (child == null) {
+                if (attemptInsert(key, value, node, dir, nodeOVL))
+                    return null;
+                continue;
+            }
+            int childCmp = compare(key, child.key);
+            if (childCmp == 0) {
+                Object result = attemptUpdate(child, value);
+                if (result != RETRY)
+                    return result;
+                continue;
+            }
+            long childOVL = child.changeOVL;
+            if (isShrinkingOrUnlinked(childOVL)) {
+                waitUntilChangeCompleted(child, childOVL);
+            } else if (child == node.child(dir)) {
+                if (hasShrunkOrUnlinked(nodeOVL, node.changeOVL))
+                    return RETRY;
+                Object result = attemptPut(key, value, child, childCmp, childOVL);
+                if (result != RETRY)
+                    return result;
+            }
+        }
+    }
+    /**
+     * 在node的dir方向上挂一个新节点
+     * 锁住node以后再确认一次node没缩小、那个位置还是空的
+     * @return 是否插入成功(失败则重试)
+     */
+    private boolean attemptInsert(K key, V value, Node<K,V> node, int dir, long nodeOVL) {
+        synchronized (node) {
+            if (hasShrunkOrUnlinked(nodeOVL, node.changeOVL) || node.child(dir) != null)
+                return false;
+            node.setChild(dir, new Node<>(key, value, node, 1));
+        }
+        size.incrementAndGet();
+        //父节点的高度可能变了
+        fixHeightAndRebalance(node);
+        return true;
+    }
+    /**
+     * 更新已经存在的节点
+     * @return 原来的值(路由节点是null)，节点已被摘掉则RETRY
+     */
+    private Object attemptUpdate(Node<K,V> node, V value) {
+        synchronized (node) {
+            if (isUnlinked(node.changeOVL))
+                return RETRY;
+            Object prev = node.value;
+            node.value = value;
+            if (prev == null)
+                size.incrementAndGet();
+            return prev;
+        }
+    }
+    //=========================添加==========================
+
+    //=========================删除==========================
+    /**
+     * 删除节点
+     * @param key   需要删除的节点的key
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        checkKey(key);
+        return (V) attemptRemove(key, rootHolder, 1, 0L);
+    }
+    /**
+     * 下降过程和attemptGet一样
+     */
+    @SuppressWarnings("Duplicates")
+    private Object attemptRemove(Object key, Node<K,V> node, int dir, long nodeOVL) {
+        while (true) {
+            Node<K,V> child = node.child(dir);
+            if (hasShrunkOrUnlinked(nodeOVL, node.changeOVL))
+                return RETRY;
+            if (child == null)
+                return null;
+            int childCmp = compare(key, child.key);
+            if (childCmp == 0) {
+                Object result = attemptRemoveNode(node, child);
+                if (result != RETRY)
+                    return result;
+                continue;
+            }
+            long childOVL = child.changeOVL;
+            if (isShrinkingOrUnlinked(childOVL)) {
+                waitUntilChangeCompleted(child, childOVL);
+            } else if (child == node.child(dir)) {
+                if (hasShrunkOrUnlinked(nodeOVL, node.changeOVL))
+                    return RETRY;
+                Object result = attemptRemove(key, child, childCmp, childOVL);
+                if (result != RETRY)
+                    return result;
+            }
+        }
+    }
+    /**
+     * 删除parent下面的节点n
+     * 有两个子节点:只把value置空，变成路由节点
+     * 最多一个子节点:锁住parent和n，把n的子节点直接挂到parent上(和AvlMap#deleteEntry的单子节点情况一样)
+     * @return 原来的值，已经不存在是null，需要重试是RETRY
+     */
+    private Object attemptRemoveNode(Node<K,V> parent, Node<K,V> n) {
+        if (n.value == null)
+            return null;
+        Object prev;
+        if (!canUnlink(n)) {
+            synchronized (n) {
+                if (isUnlinked(n.changeOVL) || canUnlink(n))
+                    return RETRY;
+                prev = n.value;
+                n.value = null;
+            }
+        } else {
+            synchronized (parent) {
+                if (isUnlinked(parent.changeOVL) || n.parent != parent)
+                    return RETRY;
+                synchronized (n) {
+                    prev = n.value;
+                    if (prev == null)
+                        return null;
+                    if (!canUnlink(n))
+                        return RETRY;
+                    Node<K,V> c = (n.left == null) ? n.right : n.left;
+                    if (parent.left == n)
+                        parent.left = c;
+                    else
+                        parent.right = c;
+                    if (c != null)
+                        c.parent = parent;
+                    n.changeOVL = UNLINKED_OVL;
+                    n.value = null;
+                }
+            }
+            fixHeightAndRebalance(parent);
+        }
+        if (prev != null)
+            size.decrementAndGet();
+        return prev;
+    }
+    private static boolean canUnlink(Node<?,?> n) {
+        return n.left == null || n.right == null;
+    }
+    //=========================删除==========================
+
+    //=========================平衡==========================
+    /**
+     * 判断节点需要做什么
+     * 不加锁读，如果读到的状态不一致，那么改动它的线程会负责修好它
+     * @return UNLINK_REQUIRED/REBALANCE_REQUIRED/NOTHING_REQUIRED 或者应该修正成的高度
+     */
+    private static int nodeCondition(Node<?,?> node) {
+        Node<?,?> nL = node.left;
+        Node<?,?> nR = node.right;
+        if ((nL == null || nR == null) && node.value == null)
+            return UNLINK_REQUIRED;
+
+        int hN = node.height;
+        int hL0 = height(nL);
+        int hR0 = height(nR);
+
+        int hNRepl = 1 + Math.max(hL0, hR0);
+        int bal = hL0 - hR0;
+
+        if (bal < -1 || bal > 1)
+            return REBALANCE_REQUIRED;
+
+        return hN != hNRepl ? hNRepl : NOTHING_REQUIRED;
+    }
+    /**
+     * 从node开始向上修正高度/旋转/摘掉多余的路由节点
+     * 作用相当于AvlMap#fixAfterInsertion和fixAfterDeletion
+     *
+     * 旋转以后如果下面的节点还需要修，会先返回下面的节点，这时旋转处的父节点高度可能还没更新
+     * 下面修完以后高度不一定继续往上变，所以把这些父节点记下来，修完再回去检查
+     * @param node
+     */
+    private void fixHeightAndRebalance(Node<K,V> node) {
+        ArrayDeque<Node<K,V>> pending = null;
+        while (true) {
+            int condition = NOTHING_REQUIRED;
+            if (node != null && node.parent != null && !isUnlinked(node.changeOVL))
+                condition = nodeCondition(node);
+            if (condition == NOTHING_REQUIRED) {
+                if (pending == null || pending.isEmpty())
+                    return;
+                node = pending.pop();
+                continue;
+            }
+
+            if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+                //只需要改高度，锁自己就够了
+                synchronized (node) {
+                    node = fixHeight(node);
+                }
+            } else {
+                //旋转或摘除需要锁父节点
+                Node<K,V> nParent = node.parent;
+                synchronized (nParent) {
+                    if (!isUnlinked(nParent.changeOVL) && node.parent == nParent) {
+                        Node<K,V> grandParent = nParent.parent;
+                        synchronized (node) {
+                            node = rebalance(nParent, node);
+                        }
+                        if (node != null && node != nParent && node != grandParent) {
+                            //返回的是下面的节点
+                            if (pending == null)
+                                pending = new ArrayDeque<>();
+                            pending.push(nParent);
+                        }
+                    }
+                    //否则父节点变了，用新的父节点重试
+                }
+            }
+        }
+    }
+    /**
+     * 修正已加锁节点的高度
+     * @return 下一个需要修的节点(没有则是null)
+     */
+    private Node<K,V> fixHeight(Node<K,V> node) {
+        int c = nodeCondition(node);
+        switch (c) {
+            case REBALANCE_REQUIRED:
+            case UNLINK_REQUIRED:
+                //自己修不了，返回自己，由调用方锁住父节点再修
+                return node;
+            case NOTHING_REQUIRED:
+                return null;
+            default:
+                node.height = c;
+                //高度变了，父节点可能也要修
+                return node.parent;
+        }
+    }
+    /**
+     * nParent和n都已加锁
+     * @return 下一个需要修的节点(没有则是null)
+     */
+    private Node<K,V> rebalance(Node<K,V> nParent, Node<K,V> n) {
+        Node<K,V> nL = n.left;
+        Node<K,V> nR = n.right;
+
+        if ((nL == null || nR == null) && n.value == null) {
+            if (attemptUnlink(nParent, n)) {
+                //顺便修一下父节点的高度
+                return fixHeight(nParent);
+            } else {
+                return n;
+            }
+        }
+
+        int hN = n.height;
+        int hL0 = height(nL);
+        int hR0 = height(nR);
+        int hNRepl = 1 + Math.max(hL0, hR0);
+        int bal = hL0 - hR0;
+
+        if (bal > 1) {
+            return rebalanceToRight(nParent, n, nL, hR0);
+        } else if (bal < -1) {
+            return rebalanceToLeft(nParent, n, nR, hL0);
+        } else if (hNRepl != hN) {
+            n.height = hNRepl;
+            return fixHeight(nParent);
+        } else {
+            return null;
+        }
+    }
+    /**
+     * 左子树过高，右旋(如果左子节点的右子树更高，则先左旋左子节点，和AvlMap#fixAfterInsertion的两种情况一样)
+     */
+    @SuppressWarnings("Duplicates")
+    private Node<K,V> rebalanceToRight(Node<K,V> nParent, Node<K,V> n, Node<K,V> nL, int hR0) {
+        synchronized (nL) {
+            int hL = nL.height;
+            if (hL - hR0 <= 1) {
+                //加锁前读到的高度已经过时了，重新判断
+                return n;
+            }
+            Node<K,V> nLR = nL.right;
+            int hLL0 = height(nL.left);
+            int hLR0 = height(nLR);
+            if (hLL0 >= hLR0) {
+                return rotateRight(nParent, n, nL, hR0, hLL0, nLR, hLR0);
+            }
+            synchronized (nLR) {
+                int hLR = nLR.height;
+                if (hLL0 >= hLR) {
+                    return rotateRight(nParent, n, nL, hR0, hLL0, nLR, hLR);
+                }
+                int hLRL = height(nLR.left);
+                int b = hLL0 - hLRL;
+                if (b >= -1 && b <= 1) {
+                    if (!((hLL0 == 0 || hLRL == 0) && nL.value == null)) {
+                        //双旋以后nL是平衡的，可以一次做完
+                        return rotateRightOverLeft(nParent, n, nL, hR0, hLL0, nLR, hLRL);
+                    }
+                    //nL是路由节点，双旋以后会只剩一个子节点
+                    //先只做下面那次左旋，nL转下去以后会被当成需要摘除的节点返回，摘完再回来修n
+                    return rotateLeft(n, nL, hLL0, nLR, nLR.left, hLRL, height(nLR.right));
+                }
+            }
+            //双旋会让nL不平衡，先单独处理nL，n留给之后再修
+            return rebalanceToLeft(n, nL, nLR, hLL0);
+        }
+    }
+    /**
+     * 右子树过高(与rebalanceToRight镜像)
+     */
+    @SuppressWarnings("Duplicates")
+    private Node<K,V> rebalanceToLeft(Node<K,V> nParent, Node<K,V> n, Node<K,V> nR, int hL0) {
+        synchronized (nR) {
+            int hR = nR.height;
+            if (hL0 - hR >= -1) {
+                return n;
+            }
+            Node<K,V> nRL = nR.left;
+            int hRL0 = height(nRL);
+            int hRR0 = height(nR.right);
+            if (hRR0 >= hRL0) {
+                return rotateLeft(nParent, n, hL0, nR, nRL, hRL0, hRR0);
+            }
+            synchronized (nRL) {
+                int hRL = nRL.height;
+                if (hRR0 >= hRL) {
+                    return rotateLeft(nParent, n, hL0, nR, nRL, hRL, hRR0);
+                }
+                int hRLR = height(nRL.right);
+                int b = hRR0 - hRLR;
+                if (b >= -1 && b <= 1) {
+                    if (!((hRR0 == 0 || hRLR == 0) && nR.value == null)) {
+                        return rotateLeftOverRight(nParent, n, hL0, nR, nRL, hRR0, hRLR);
+                    }
+                    return rotateRight(n, nR, nRL, hRR0, height(nRL.left), nRL.right, hRLR);
+                }
+            }
+            return rebalanceToRight(n, nR, nRL, hRR0);
+        }
+    }
+    /**
+     * 右旋n(nParent、n、nL都已加锁)
+     * n缩小，nL增长
+     * 指向缩小节点的向下指针最后改，从缩小节点出发的向下指针最先改，
+     * 这样读线程要么走旧路径要么看到shrinking的版本号
+     */
+    @SuppressWarnings("Duplicates")
+    private Node<K,V> rotateRight(Node<K,V> nParent, Node<K,V> n, Node<K,V> nL,
+                                  int hR, int hLL, Node<K,V> nLR, int hLR) {
+        long nodeOVL = n.changeOVL;
+        long leftOVL = nL.changeOVL;
+
+        Node<K,V> nPL = nParent.left;
+
+        n.changeOVL = beginShrink(nodeOVL);
+        nL.changeOVL = beginGrow(leftOVL);
+
+        n.left = nLR;
+        if (nLR != null)
+            nLR.parent = n;
+
+        nL.right = n;
+        n.parent = nL;
+
+        if (nPL == n)
+            nParent.left = nL;
+        else
+            nParent.right = nL;
+        nL.parent = nParent;
+
+        //重新计算高度
+        int hNRepl = 1 + Math.max(hLR, hR);
+        n.height = hNRepl;
+        nL.height = 1 + Math.max(hLL, hNRepl);
+
+        nL.changeOVL = endGrow(leftOVL);
+        n.changeOVL = endShrink(nodeOVL);
+
+        //n在最下面，先看n还要不要再旋转或摘除
+        int balN = hLR - hR;
+        if (balN < -1 || balN > 1)
+            return n;
+        if ((nLR == null || hR == 0) && n.value == null)
+            return n;
+
+        //再看nL
+        int balL = hLL - hNRepl;
+        if (balL < -1 || balL > 1)
+            return nL;
+        if (hLL == 0 && nL.value == null)
+            return nL;
+
+        //都好了，顺便修一下父节点的高度
+        return fixHeight(nParent);
+    }
+    /**
+     * 左旋n(与rotateRight镜像)
+     */
+    @SuppressWarnings("Duplicates")
+    private Node<K,V> rotateLeft(Node<K,V> nParent, Node<K,V> n, int hL, Node<K,V> nR,
+                                 Node<K,V> nRL, int hRL, int hRR) {
+        long nodeOVL = n.changeOVL;
+        long rightOVL = nR.changeOVL;
+
+        Node<K,V> nPL = nParent.left;
+
+        n.changeOVL = beginShrink(nodeOVL);
+        nR.changeOVL = beginGrow(rightOVL);
+
+        n.right = nRL;
+        if (nRL != null)
+            nRL.parent = n;
+
+        nR.left = n;
+        n.parent = nR;
+
+        if (nPL == n)
+            nParent.left = nR;
+        else
+            nParent.right = nR;
+        nR.parent = nParent;
+
+        int hNRepl = 1 + Math.max(hL, hRL);
+        n.height = hNRepl;
+        nR.height = 1 + Math.max(hNRepl, hRR);
+
+        nR.changeOVL = endGrow(rightOVL);
+        n.changeOVL = endShrink(nodeOVL);
+
+        int balN = hRL - hL;
+        if (balN < -1 || balN > 1)
+            return n;
+        if ((nRL == null || hL == 0) && n.value == null)
+            return n;
+
+        int balR = hRR - hNRepl;
+        if (balR < -1 || balR > 1)
+            return nR;
+        if (hRR == 0 && nR.value == null)
+            return nR;
+
+        return fixHeight(nParent);
+    }
+    /**
+     * 先左旋nL再右旋n(nParent、n、nL、nLR都已加锁)
+     * n和nL缩小，nLR增长
+     */
+    @SuppressWarnings("Duplicates")
+    private Node<K,V> rotateRightOverLeft(Node<K,V> nParent, Node<K,V> n, Node<K,V> nL,
+                                          int hR, int hLL, Node<K,V> nLR, int hLRL) {
+        long nodeOVL = n.changeOVL;
+        long leftOVL = nL.changeOVL;
+        long leftROVL = nLR.changeOVL;
+
+        Node<K,V> nPL = nParent.left;
+        Node<K,V> nLRL = nLR.left;
+        Node<K,V> nLRR = nLR.right;
+        int hLRR = height(nLRR);
+
+        n.changeOVL = beginShrink(nodeOVL);
+        nL.changeOVL = beginShrink(leftOVL);
+        nLR.changeOVL = beginGrow(leftROVL);
+
+        n.left = nLRR;
+        if (nLRR != null)
+            nLRR.parent = n;
+
+        nL.right = nLRL;
+        if (nLRL != null)
+            nLRL.parent = nL;
+
+        nLR.left = nL;
+        nL.parent = nLR;
+        nLR.right = n;
+        n.parent = nLR;
+
+        if (nPL == n)
+            nParent.left = nLR;
+        else
+            nParent.right = nLR;
+        nLR.parent = nParent;
+
+        int hNRepl = 1 + Math.max(hLRR, hR);
+        n.height = hNRepl;
+        int hLRepl = 1 + Math.max(hLL, hLRL);
+        nL.height = hLRepl;
+        nLR.height = 1 + Math.max(hLRepl, hNRepl);
+
+        nLR.changeOVL = endGrow(leftROVL);
+        nL.changeOVL = endShrink(leftOVL);
+        n.changeOVL = endShrink(nodeOVL);
+
+        int balN = hLRR - hR;
+        if (balN < -1 || balN > 1)
+            return n;
+        if ((nLRR == null || hR == 0) && n.value == null)
+            return n;
+
+        int balLR = hLRepl - hNRepl;
+        if (balLR < -1 || balLR > 1)
+            return nLR;
+
+        return fixHeight(nParent);
+    }
+    /**
+     * 先右旋nR再左旋n(与rotateRightOverLeft镜像)
+     */
+    @SuppressWarnings("Duplicates")
+    private Node<K,V> rotateLeftOverRight(Node<K,V> nParent, Node<K,V> n, int hL, Node<K,V> nR,
+                                          Node<K,V> nRL, int hRR, int hRLR) {
+        long nodeOVL = n.changeOVL;
+        long rightOVL = nR.changeOVL;
+        long rightLOVL = nRL.changeOVL;
+
+        Node<K,V> nPL = nParent.left;
+        Node<K,V> nRLL = nRL.left;
+        int hRLL = height(nRLL);
+        Node<K,V> nRLR = nRL.right;
+
+        n.changeOVL = beginShrink(nodeOVL);
+        nR.changeOVL = beginShrink(rightOVL);
+        nRL.changeOVL = beginGrow(rightLOVL);
+
+        n.right = nRLL;
+        if (nRLL != null)
+            nRLL.parent = n;
+
+        nR.left = nRLR;
+        if (nRLR != null)
+            nRLR.parent = nR;
+
+        nRL.right = nR;
+        nR.parent = nRL;
+        nRL.left = n;
+        n.parent = nRL;
+
+        if (nPL == n)
+            nParent.left = nRL;
+        else
+            nParent.right = nRL;
+        nRL.parent = nParent;
+
+        int hNRepl = 1 + Math.max(hL, hRLL);
+        n.height = hNRepl;
+        int hRRepl = 1 + Math.max(hRLR, hRR);
+        nR.height = hRRepl;
+        nRL.height = 1 + Math.max(hNRepl, hRRepl);
+
+        nRL.changeOVL = endGrow(rightLOVL);
+        nR.changeOVL = endShrink(rightOVL);
+        n.changeOVL = endShrink(nodeOVL);
+
+        int balN = hRLL - hL;
+        if (balN < -1 || balN > 1)
+            return n;
+        if ((nRLL == null || hL == 0) && n.value == null)
+            return n;
+
+        int balRL = hRRepl - hNRepl;
+        if (balRL < -1 || balRL > 1)
+            return nRL;
+
+        return fixHeight(nParent);
+    }
+    /**
+     * 摘掉多余的路由节点(parent和node都已加锁)
+     * @return 是否摘掉了
+     */
+    private boolean attemptUnlink(Node<K,V> parent, Node<K,V> node) {
+        Node<K,V> parentL = parent.left;
+        Node<K,V> parentR = parent.right;
+        if (parentL != node && parentR != node)
+            return false;
+
+        Node<K,V> left = node.left;
+        Node<K,V> right = node.right;
+        if (left != null && right != null)
+            return false;
+        Node<K,V> splice = left != null ? left : right;
+
+        if (parentL == node)
+            parent.left = splice;
+        else
+            parent.right = splice;
+        if (splice != null)
+            splice.parent = parent;
+
+        node.changeOVL = UNLINKED_OVL;
+        node.value = null;
+        return true;
+    }
+    /**
+     * 等待节点的旋转完成
+     * 旋转期间一直持有节点的锁，所以自旋一会儿还没好就直接抢一下锁
+     */
+    private static void waitUntilChangeCompleted(Node<?,?> node, long ovl) {
+        if (!isChanging(ovl))
+            return;
+        for (int tries = 0; tries < SPIN_COUNT; ++tries) {
+            if (node.changeOVL != ovl)
+                return;
+        }
+        synchronized (node) {
+            //旋转结束前不会释放锁，拿到锁说明已经转完了
+        }
+    }
+    //=========================平衡==========================
+
+    /**
+     * 树中的节点对象
+     * 除了key以外都是volatile的，读线程不加锁直接读
+     */
+    static final class Node<K,V> {
+        final K key;
+        volatile V value;
+        volatile Node<K,V> left;
+        volatile Node<K,V> right;
+        volatile Node<K,V> parent;
+        volatile int height;
+        volatile long changeOVL;
+
+        Node(K key, V value, Node<K,V> parent, int height) {
+            this.key = key;
+            this.value = value;
+            this.parent = parent;
+            this.height = height;
+        }
+
+        Node<K,V> child(int dir) {
+            return dir < 0 ? left : right;
+        }
+
+        void setChild(int dir, Node<K,V> node) {
+            if (dir < 0)
+                left = node;
+            else
+                right = node;
+        }
+
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    //=========================一些常用方法封装==========================
+    private static int height(Node<?,?> node) {
+        return node == null ? 0 : node.height;
+    }
+    /**
+     * 树节点的比较方法
+     * 解释参照AvlMap#compare
+     */
+    @SuppressWarnings("unchecked")
+    final int compare(Object k1, Object k2) {
+        return comparator==null ? ((Comparable<? super K>)k1).compareTo((K)k2)
+                : comparator.compare((K)k1, (K)k2);
+    }
+    private void checkKey(Object key) {
+        if (key == null && comparator == null)
+            throw new NullPointerException();
+    }
+    /**
+     * map平衡校验(只能在没有并发修改时调用)
+     * 平衡因子不超过1、高度正确、父子指针对应、没有多余的路由节点、key有序
+     * @throws Exception
+     */
+    public void checkBalance() throws Exception {
+        postOrderCheckBalance(rootHolder.right, rootHolder);
+    }
+    private int postOrderCheckBalance(Node<K,V> p, Node<K,V> parent) throws Exception {
+        if (p == null)
+            return 0;
+        if (p.parent != parent)
+            throw new Exception("父子指针不对应 " + p);
+        if (p.left != null && compare(p.left.key, p.key) >= 0 || p.right != null && compare(p.right.key, p.key) <= 0)
+            throw new Exception("key无序 " + p);
+        if (p.value == null && canUnlink(p))
+            throw new Exception("多余的路由节点 " + p);
+        int hL = postOrderCheckBalance(p.left, p);
+        int hR = postOrderCheckBalance(p.right, p);
+        if (Math.abs(hL - hR) > 1)
+            throw new Exception("此树不平衡");
+        if (p.height != Math.max(hL, hR) + 1)
+            throw new Exception("高度不对 " + p);
+        return p.height;
+    }
+    //=========================一些常用方法封装==========================
+
+    /**
+     * 存在的key数量(并发修改时是一个近似值)
+     * @return
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+}
@@ -1,8 +1,14 @@
 package com.lilingyan.bst;
 
+import com.lilingyan.frozen.FrozenMap;
+import com.lilingyan.instrument.TreeStats;
+
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 二叉搜索树
@@ -19,7 +25,7 @@ public class BstMap<K,V> implements Iterable<BstMap.BstEntry<K,V>>{
     /**
      * 这颗树的根节点
      */
-    private transient BstEntry<K,V> root;
+    transient BstEntry<K,V> root;
 
     /**
      * 自定义的Comparator 作用于树节点的排序(可以没有)
@@ -63,6 +69,8 @@ public class BstMap<K,V> implements Iterable<BstMap.BstEntry<K,V>>{
         BstEntry<K,V> parent;
         // split comparator and comparable paths
         Comparator<? super K> cpr = comparator;
+        //比较次数(TreeStats关闭时整个被jit去掉)
+        int comparisons = 0;
         //如果是有自定义比较器的
         if (cpr != null) {
             /**
@@ -74,13 +82,17 @@ public class BstMap<K,V> implements Iterable<BstMap.BstEntry<K,V>>{
              */
             do {
                 parent = t;
+                comparisons++;
                 cmp = cpr.compare(key, t.key);
                 if (cmp < 0)
                     t = t.left;
                 else if (cmp > 0)
                     t = t.right;
-                else
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.BST.put(comparisons);
                     return t.setValue(value);
+                }
             } while (t != null);
         }
         //如果没有自定义比较器
@@ -93,13 +105,17 @@ public class BstMap<K,V> implements Iterable<BstMap.BstEntry<K,V>>{
             //比较过程与上同理
             do {
                 parent = t;
+                comparisons++;
                 cmp = k.compareTo(t.key);
                 if (cmp < 0)
                     t = t.left;
                 else if (cmp > 0)
                     t = t.right;
-                else
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.BST.put(comparisons);
                     return t.setValue(value);
+                }
             } while (t != null);
         }
 
@@ -115,9 +131,99 @@ public class BstMap<K,V> implements Iterable<BstMap.BstEntry<K,V>>{
             parent.right = e;
         //树节点数量增加1
         size++;
+        if (TreeStats.ENABLED)
+            TreeStats.BST.put(comparisons);
         return null;
     }
 
+    //=========================批量构建==========================
+    /**
+     * 用已经排好序的数据直接构建一颗平衡的树(原来的节点全部丢弃)
+     * 解释参照buildFromSorted(Iterator, int, boolean)
+     * @param it    按key严格递增的节点
+     * @param size  节点数量
+     */
+    public void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size) {
+        buildFromSorted(it, size, false);
+    }
+    /**
+     * 用已经排好序的数据直接构建一颗平衡的树(原来的节点全部丢弃)
+     * 参照jdk TreeMap#buildFromSorted
+     *
+     * 每次取区间的中点作为子树的根，先递归构建左子树，再从迭代器里取中点，最后构建右子树
+     * 迭代器正好按中序被消费，每个节点只创建一次，不需要比较，O(n)
+     * 二叉搜索树本身不会保持平衡，但这样建出来的高度是log(n)，之后的插入删除才可能让它变歪
+     * @param it            按key严格递增的节点
+     * @param size          节点数量(迭代器里的数量不能少于它)
+     * @param checkOrder    是否校验key严格递增(会多做n-1次比较)
+     */
+    public void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size, boolean checkOrder) {
+        if (size < 0)
+            throw new IllegalArgumentException("size: " + size);
+        if (checkOrder)
+            it = new OrderCheckingIterator<>(it);
+        root = buildFromSorted(0, size - 1, it);
+        this.size = size;
+    }
+    @SuppressWarnings("Duplicates")
+    private BstEntry<K,V> buildFromSorted(int lo, int hi, Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+        if (hi < lo)
+            return null;
+        int mid = (lo + hi) >>> 1;
+
+        BstEntry<K,V> left = null;
+        if (lo < mid)
+            left = buildFromSorted(lo, mid - 1, it);
+
+        Map.Entry<? extends K, ? extends V> entry = it.next();
+        BstEntry<K,V> middle = new BstEntry<>(entry.getKey(), entry.getValue(), null);
+
+        if (left != null) {
+            middle.left = left;
+            left.parent = middle;
+        }
+        if (mid < hi) {
+            BstEntry<K,V> right = buildFromSorted(mid + 1, hi, it);
+            middle.right = right;
+            right.parent = middle;
+        }
+        return middle;
+    }
+    /**
+     * 校验key严格递增的迭代器
+     */
+    @SuppressWarnings("Duplicates")
+    private final class OrderCheckingIterator<E extends Map.Entry<? extends K, ? extends V>> implements Iterator<E> {
+        private final Iterator<E> it;
+        private K last;
+        private boolean first = true;
+
+        OrderCheckingIterator(Iterator<E> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public E next() {
+            E e = it.next();
+            K key = e.getKey();
+            if (first) {
+                //校验key类型(可能是null)
+                compare(key, key);
+                first = false;
+            } else if (compare(last, key) >= 0) {
+                throw new IllegalArgumentException("keys are not strictly ascending: " + last + " then " + key);
+            }
+            last = key;
+            return e;
+        }
+    }
+    //=========================批量构建==========================
+
     //=========================删除==========================
     /**
      * 删除节点
@@ -234,18 +340,25 @@ public class BstMap<K,V> implements Iterable<BstMap.BstEntry<K,V>>{
         @SuppressWarnings("unchecked")
         Comparable<? super K> k = (Comparable<? super K>) key;
         BstEntry<K,V> p = root;
+        int comparisons = 0;
         /**
          * 比较逻辑与@getEntryUsingComparator()逻辑一致
          */
         while (p != null) {
+            comparisons++;
             int cmp = k.compareTo(p.key);
             if (cmp < 0)
                 p = p.left;
             else if (cmp > 0)
                 p = p.right;
-            else
+            else {
+                if (TreeStats.ENABLED)
+                    TreeStats.BST.lookup(comparisons);
                 return p;
+            }
         }
+        if (TreeStats.ENABLED)
+            TreeStats.BST.lookup(comparisons);
         return null;
     }
     /**
@@ -261,6 +374,7 @@ public class BstMap<K,V> implements Iterable<BstMap.BstEntry<K,V>>{
         if (cpr != null) {
             //父节点指针
             BstEntry<K,V> p = root;
+            int comparisons = 0;
             /**
              * 递归判断 需要查询的key和父节点指针所指的key大小
              * 如果小于 则把父节点指针向左子节点移动
@@ -268,14 +382,20 @@ public class BstMap<K,V> implements Iterable<BstMap.BstEntry<K,V>>{
              * 如果等于 则父节点指针指向的对象就是需要查询的
              */
             while (p != null) {
+                comparisons++;
                 int cmp = cpr.compare(k, p.key);
                 if (cmp < 0)
                     p = p.left;
                 else if (cmp > 0)
                     p = p.right;
-                else
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.BST.lookup(comparisons);
                     return p;
+                }
             }
+            if (TreeStats.ENABLED)
+                TreeStats.BST.lookup(comparisons);
         }
         return null;
     }
@@ -488,7 +608,55 @@ public class BstMap<K,V> implements Iterable<BstMap.BstEntry<K,V>>{
      */
     @Override
     public Iterator<BstEntry<K, V>> iterator() {
-        return new BstIterator<>(root);
+        return new BstIterator<>(getFirstEntry(), null);
+    }
+
+    /**
+     * 按key从小到大遍历key
+     * @return
+     */
+    public Iterator<K> keyIterator() {
+        return new BstIterator.KeyIterator<>(getFirstEntry());
+    }
+
+    /**
+     * 按key从小到大遍历value
+     * @return
+     */
+    public Iterator<V> valueIterator() {
+        return new BstIterator.ValueIterator<>(getFirstEntry());
+    }
+
+    /**
+     * 生成一份只读的拷贝(见FrozenMap)，之后对这颗树的修改不会影响它
+     * @return
+     */
+    public FrozenMap<K,V> freeze() {
+        return FrozenMap.fromSorted(iterator(), size, comparator);
+    }
+
+    /**
+     * 按key从小到大遍历节点，可以拆分(见BstSpliterator)
+     * @return
+     */
+    public Spliterator<Map.Entry<K,V>> entrySpliterator() {
+        return new BstSpliterator<>(this, getFirstEntry(), null, 0, size);
+    }
+
+    /**
+     * 按key从小到大的节点流
+     * @return
+     */
+    public Stream<Map.Entry<K,V>> stream() {
+        return StreamSupport.stream(entrySpliterator(), false);
+    }
+
+    /**
+     * 并行的节点流，按子树的根拆分给ForkJoinPool
+     * @return
+     */
+    public Stream<Map.Entry<K,V>> parallelStream() {
+        return StreamSupport.stream(entrySpliterator(), true);
     }
 
     public int size() {
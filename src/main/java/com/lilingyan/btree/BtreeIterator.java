@@ -0,0 +1,97 @@
+package com.lilingyan.btree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 中序遍历
+ * 从最左边的叶子节点开始，在叶子节点的数组里按下标往后走，走完了顺着next换到下一个叶子节点
+ * 除了根节点，叶子节点都不是空的，换过去之后一定有下一个key
+ * @Author: lilingyan
+ */
+abstract class BtreeIterator<K,V,T> implements Iterator<T> {
+
+    /**
+     * 当前叶子节点，null表示已经遍历完
+     */
+    private BtreeMap.BtreeNode<K,V> leaf;
+    private int index;
+
+    /**
+     * @param first 最左边的叶子节点(空树时是null)
+     */
+    BtreeIterator(BtreeMap.BtreeNode<K,V> first) {
+        this.leaf = first;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return leaf != null;
+    }
+
+    @Override
+    public T next() {
+        BtreeMap.BtreeNode<K,V> p = leaf;
+        if (p == null)
+            throw new NoSuchElementException();
+        int i = index;
+        if (++index == p.n) {
+            leaf = p.next;
+            index = 0;
+        }
+        return get(p, i);
+    }
+
+    abstract T get(BtreeMap.BtreeNode<K,V> leaf, int index);
+
+    /**
+     * 返回key-value(每次新建一个Map.Entry)
+     */
+    static final class EntryIterator<K,V> extends BtreeIterator<K,V,Map.Entry<K,V>> {
+
+        EntryIterator(BtreeMap.BtreeNode<K,V> first) {
+            super(first);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        Map.Entry<K,V> get(BtreeMap.BtreeNode<K,V> leaf, int index) {
+            return new AbstractMap.SimpleImmutableEntry<>((K) leaf.keys[index], (V) leaf.values[index]);
+        }
+    }
+
+    /**
+     * 只返回key的迭代器
+     */
+    static final class KeyIterator<K,V> extends BtreeIterator<K,V,K> {
+
+        KeyIterator(BtreeMap.BtreeNode<K,V> first) {
+            super(first);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        K get(BtreeMap.BtreeNode<K,V> leaf, int index) {
+            return (K) leaf.keys[index];
+        }
+    }
+
+    /**
+     * 只返回value的迭代器
+     */
+    static final class ValueIterator<K,V> extends BtreeIterator<K,V,V> {
+
+        ValueIterator(BtreeMap.BtreeNode<K,V> first) {
+            super(first);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V get(BtreeMap.BtreeNode<K,V> leaf, int index) {
+            return (V) leaf.values[index];
+        }
+    }
+
+}
@@ -0,0 +1,899 @@
+package com.lilingyan.btree;
+
+import com.lilingyan.frozen.FrozenMap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * B+树
+ *
+ * 二叉树每个节点只有一个key，1000万个节点的红黑树要走20多层，每层都是一次指针跳转(大概率cache miss)
+ * B+树每个节点放一组key(连续的数组)，节点内二分查找，层数是log(fanout)(n)，fanout=64时1000万个key只有4~5层
+ *
+ * 1. 内部节点只有key(分隔键)和子节点，key[i]是children[i+1]里最小的key的下界:
+ *    children[i]里的key < keys[i] <= children[i+1]里的key
+ * 2. key和value都放在叶子节点里，叶子节点用prev/next串成双向链表，范围扫描(Cursor)直接顺着链表走，不用回到内部节点
+ * 3. 所有叶子节点在同一层
+ * 4. 除了根节点，叶子节点至少有fanout/2个key，内部节点至少有(fanout+1)/2个子节点
+ *
+ * 插入: 找到叶子节点插进去，超过fanout个key就分成两半，右半的第一个key作为分隔键插到父节点，父节点满了继续往上分
+ * 删除: 从叶子节点删掉，太少了先向左右兄弟借一个，兄弟也不够就和兄弟合并，父节点少了一个子节点，继续往上检查
+ *       删除后内部节点里的分隔键可能已经不在树里了，但它仍然满足1.的大小关系，不需要修改
+ * @Author: lilingyan
+ */
+public class BtreeMap<K,V> implements Iterable<Map.Entry<K,V>> {
+
+    static final int DEFAULT_FANOUT = 64;
+    /**
+     * 最小的fanout(再小分裂/合并后节点数量的下限就没有意义了)
+     */
+    static final int MIN_FANOUT = 4;
+
+    /**
+     * 自定义的Comparator 作用于树节点的排序(可以没有)
+     * 如果没有 则用树节点的key compare直接比较(如果不存在自定义的Comparator  则key必须实现Comparable接口)
+     */
+    protected final Comparator<? super K> comparator;
+    /**
+     * 内部节点最多的子节点数量，也是叶子节点最多的key数量
+     */
+    private final int fanout;
+    /**
+     * 叶子节点最少的key数量(根节点除外)
+     */
+    private final int minLeafKeys;
+    /**
+     * 内部节点最少的子节点数量(根节点除外)
+     */
+    private final int minChildren;
+
+    /**
+     * 这颗树的根节点，空树是一个没有key的叶子节点
+     */
+    BtreeNode<K,V> root;
+    /**
+     * 内部节点的层数(只有一个叶子节点时是0)
+     */
+    private int height = 0;
+    /**
+     * 在这个树中存在的key数量
+     */
+    private int size = 0;
+
+    /**
+     * put/remove从根节点往下走时经过的内部节点，以及走的是第几个子节点
+     * 分裂/合并时沿着它往上修改父节点，节点里不用存父指针
+     * (只在一次put/remove里有效，不是线程安全的)
+     */
+    private BtreeNode<K,V>[] pathNodes;
+    private int[] pathIndex;
+
+    //=========================构造器==========================
+    public BtreeMap() {
+        this(null, DEFAULT_FANOUT);
+    }
+    public BtreeMap(Comparator<? super K> comparator) {
+        this(comparator, DEFAULT_FANOUT);
+    }
+    /**
+     * @param comparator    为null时用key的自然顺序
+     * @param fanout        内部节点最多的子节点数量，也是叶子节点最多的key数量(不小于4)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BtreeMap(Comparator<? super K> comparator, int fanout) {
+        if (fanout < MIN_FANOUT)
+            throw new IllegalArgumentException("fanout: " + fanout);
+        this.comparator = comparator;
+        this.fanout = fanout;
+        this.minLeafKeys = fanout / 2;
+        this.minChildren = (fanout + 1) / 2;
+        this.root = newLeaf();
+        this.pathNodes = new BtreeNode[8];
+        this.pathIndex = new int[8];
+    }
+    //=========================构造器==========================
+
+    //=========================添加==========================
+    /**
+     * 插入，已经存在时覆盖值
+     * @param key
+     * @param value
+     * @return 原来的值
+     */
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (key == null && comparator == null)
+            throw new NullPointerException();
+        BtreeNode<K,V> leaf = descend(key);
+        int i = search(leaf.keys, leaf.n, key);
+        if (i >= 0) {
+            V oldValue = (V) leaf.values[i];
+            leaf.values[i] = value;
+            return oldValue;
+        }
+        if (size == 0) {
+            //校验key类型(可能是null)
+            compare(key, key);
+        }
+        i = -(i + 1);
+        insertAt(leaf.keys, leaf.n, i, key);
+        insertAt(leaf.values, leaf.n, i, value);
+        leaf.n++;
+        size++;
+        if (leaf.n > fanout)
+            splitLeaf(leaf);
+        return null;
+    }
+    /**
+     * 叶子节点有fanout+1个key，分成两半(右边多一个)，右半的第一个key作为分隔键插到父节点
+     * @param leaf
+     */
+    private void splitLeaf(BtreeNode<K,V> leaf) {
+        int n = leaf.n;
+        int half = n >>> 1;
+        BtreeNode<K,V> right = newLeaf();
+        System.arraycopy(leaf.keys, half, right.keys, 0, n - half);
+        System.arraycopy(leaf.values, half, right.values, 0, n - half);
+        clearRange(leaf.keys, half, n);
+        clearRange(leaf.values, half, n);
+        leaf.n = half;
+        right.n = n - half;
+
+        right.next = leaf.next;
+        if (right.next != null)
+            right.next.prev = right;
+        right.prev = leaf;
+        leaf.next = right;
+
+        insertChild(right.keys[0], right);
+    }
+    /**
+     * 把分裂出来的右节点child和分隔键key插到路径上最下面的内部节点里(child在原来节点的右边)
+     * 内部节点满了(fanout+1个子节点)就把中间的key提上去，左右分成两个节点，继续往上插
+     * 根节点分裂时树长高一层
+     * @param key
+     * @param child
+     */
+    private void insertChild(Object key, BtreeNode<K,V> child) {
+        for (int d = height - 1; d >= 0; d--) {
+            BtreeNode<K,V> parent = pathNodes[d];
+            int i = pathIndex[d];
+            insertAt(parent.keys, parent.n, i, key);
+            insertAt(parent.children, parent.n + 1, i + 1, child);
+            parent.n++;
+            if (parent.n < fanout)
+                return;
+
+            //分裂内部节点: 左边留mid个key，keys[mid]提到上一层，右边是剩下的
+            int n = parent.n;
+            int mid = n >>> 1;
+            BtreeNode<K,V> right = newInner();
+            right.n = n - mid - 1;
+            System.arraycopy(parent.keys, mid + 1, right.keys, 0, right.n);
+            System.arraycopy(parent.children, mid + 1, right.children, 0, right.n + 1);
+            key = parent.keys[mid];
+            clearRange(parent.keys, mid, n);
+            clearRange(parent.children, mid + 1, n + 1);
+            parent.n = mid;
+            child = right;
+        }
+        //根节点分裂了
+        BtreeNode<K,V> newRoot = newInner();
+        newRoot.keys[0] = key;
+        newRoot.children[0] = root;
+        newRoot.children[1] = child;
+        newRoot.n = 1;
+        root = newRoot;
+        height++;
+        if (height > pathNodes.length) {
+            pathNodes = Arrays.copyOf(pathNodes, height * 2);
+            pathIndex = Arrays.copyOf(pathIndex, height * 2);
+        }
+    }
+    //=========================添加==========================
+
+    //=========================批量构建==========================
+    /**
+     * 用已经排好序的数据直接构建(原来的数据全部丢弃)
+     * 解释参照buildFromSorted(Iterator, int, boolean)
+     * @param it    按key严格递增的节点
+     * @param size  节点数量
+     */
+    public void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size) {
+        buildFromSorted(it, size, false);
+    }
+    /**
+     * 用已经排好序的数据直接构建(原来的数据全部丢弃)
+     *
+     * 从下往上一层一层建，不需要比较和分裂，O(n):
+     * 叶子节点的数量是size/fanout向上取整，数据平均分给每个叶子节点(相差最多1个)，按顺序串成链表
+     * 再把这一层的节点平均分给上一层的内部节点，每个子节点(除了第一个)的最小key作为分隔键，直到只剩一个节点
+     * 个数是向上取整的，所以平均分下来每个节点(除了根节点)都不少于下限
+     * @param it            按key严格递增的节点
+     * @param size          节点数量(迭代器里的数量不能少于它)
+     * @param checkOrder    是否校验key严格递增(会多做n-1次比较)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size, boolean checkOrder) {
+        if (size < 0)
+            throw new IllegalArgumentException("size: " + size);
+        if (checkOrder)
+            it = new OrderCheckingIterator<>(it);
+        clear();
+        if (size == 0)
+            return;
+
+        int count = ceilDiv(size, fanout);
+        BtreeNode<K,V>[] level = new BtreeNode[count];
+        //每个节点子树里最小的key
+        Object[] mins = new Object[count];
+        BtreeNode<K,V> prev = null;
+        for (int i = 0; i < count; i++) {
+            BtreeNode<K,V> leaf = newLeaf();
+            int n = share(size, count, i);
+            for (int j = 0; j < n; j++) {
+                Map.Entry<? extends K, ? extends V> e = it.next();
+                leaf.keys[j] = e.getKey();
+                leaf.values[j] = e.getValue();
+            }
+            leaf.n = n;
+            leaf.prev = prev;
+            if (prev != null)
+                prev.next = leaf;
+            prev = leaf;
+            level[i] = leaf;
+            mins[i] = leaf.keys[0];
+        }
+
+        int h = 0;
+        while (count > 1) {
+            int parents = ceilDiv(count, fanout);
+            BtreeNode<K,V>[] upper = new BtreeNode[parents];
+            Object[] upperMins = new Object[parents];
+            int c = 0;
+            for (int i = 0; i < parents; i++) {
+                BtreeNode<K,V> inner = newInner();
+                int n = share(count, parents, i);
+                upperMins[i] = mins[c];
+                for (int j = 0; j < n; j++, c++) {
+                    inner.children[j] = level[c];
+                    if (j > 0)
+                        inner.keys[j - 1] = mins[c];
+                }
+                inner.n = n - 1;
+                upper[i] = inner;
+            }
+            level = upper;
+            mins = upperMins;
+            count = parents;
+            h++;
+        }
+        root = level[0];
+        height = h;
+        this.size = size;
+        if (height > pathNodes.length) {
+            pathNodes = Arrays.copyOf(pathNodes, height * 2);
+            pathIndex = Arrays.copyOf(pathIndex, height * 2);
+        }
+    }
+    /**
+     * total个平均分成parts份，第i份的数量(前面的多1个)
+     */
+    private static int share(int total, int parts, int i) {
+        return total / parts + (i < total % parts ? 1 : 0);
+    }
+    private static int ceilDiv(int x, int y) {
+        return x / y + (x % y == 0 ? 0 : 1);
+    }
+    /**
+     * 校验key严格递增的迭代器
+     */
+    @SuppressWarnings("Duplicates")
+    private final class OrderCheckingIterator<E extends Map.Entry<? extends K, ? extends V>> implements Iterator<E> {
+        private final Iterator<E> it;
+        private K last;
+        private boolean first = true;
+
+        OrderCheckingIterator(Iterator<E> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public E next() {
+            E e = it.next();
+            K key = e.getKey();
+            if (first) {
+                //校验key类型(可能是null)
+                compare(key, key);
+                first = false;
+            } else if (compare(last, key) >= 0) {
+                throw new IllegalArgumentException("keys are not strictly ascending: " + last + " then " + key);
+            }
+            last = key;
+            return e;
+        }
+    }
+    //=========================批量构建==========================
+
+    //=========================删除==========================
+    /**
+     * 删除
+     * @param key
+     * @return 原来的值(不存在时是null)
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (key == null && comparator == null)
+            throw new NullPointerException();
+        BtreeNode<K,V> leaf = descend(key);
+        int i = search(leaf.keys, leaf.n, key);
+        if (i < 0)
+            return null;
+        V oldValue = (V) leaf.values[i];
+        removeAt(leaf.keys, leaf.n, i);
+        removeAt(leaf.values, leaf.n, i);
+        leaf.n--;
+        size--;
+        if (height > 0 && leaf.n < minLeafKeys)
+            fixLeafUnderflow(leaf);
+        return oldValue;
+    }
+    /**
+     * 叶子节点的key不够了
+     * 左兄弟或右兄弟多的话借一个过来(同时修改父节点里的分隔键)，都不多就合并(右边的并到左边)
+     * @param leaf
+     */
+    private void fixLeafUnderflow(BtreeNode<K,V> leaf) {
+        BtreeNode<K,V> parent = pathNodes[height - 1];
+        int i = pathIndex[height - 1];
+        BtreeNode<K,V> left = i > 0 ? parent.children[i - 1] : null;
+        BtreeNode<K,V> right = i < parent.n ? parent.children[i + 1] : null;
+        if (left != null && left.n > minLeafKeys) {
+            //左兄弟最大的移到最前面
+            int last = left.n - 1;
+            insertAt(leaf.keys, leaf.n, 0, left.keys[last]);
+            insertAt(leaf.values, leaf.n, 0, left.values[last]);
+            leaf.n++;
+            left.keys[last] = null;
+            left.values[last] = null;
+            left.n--;
+            parent.keys[i - 1] = leaf.keys[0];
+        } else if (right != null && right.n > minLeafKeys) {
+            //右兄弟最小的移到最后面
+            leaf.keys[leaf.n] = right.keys[0];
+            leaf.values[leaf.n] = right.values[0];
+            leaf.n++;
+            removeAt(right.keys, right.n, 0);
+            removeAt(right.values, right.n, 0);
+            right.n--;
+            parent.keys[i] = right.keys[0];
+        } else if (left != null) {
+            mergeLeaves(left, leaf);
+            removeChild(i - 1);
+        } else {
+            mergeLeaves(leaf, right);
+            removeChild(i);
+        }
+    }
+    /**
+     * right的全部key并到left后面，right从链表上摘掉
+     */
+    private static <K,V> void mergeLeaves(BtreeNode<K,V> left, BtreeNode<K,V> right) {
+        System.arraycopy(right.keys, 0, left.keys, left.n, right.n);
+        System.arraycopy(right.values, 0, left.values, left.n, right.n);
+        left.n += right.n;
+        left.next = right.next;
+        if (left.next != null)
+            left.next.prev = left;
+    }
+    /**
+     * 两个子节点合并后，从路径上最下面的内部节点里删掉keys[k]和children[k+1]
+     * 内部节点的子节点不够了，和叶子节点一样先借后合并(借的时候分隔键要经过父节点转一下)，合并后继续往上
+     * 根节点只剩一个子节点时，那个子节点变成根节点，树矮一层
+     * @param k
+     */
+    private void removeChild(int k) {
+        for (int d = height - 1; ; d--) {
+            BtreeNode<K,V> node = pathNodes[d];
+            removeAt(node.keys, node.n, k);
+            removeAt(node.children, node.n + 1, k + 1);
+            node.n--;
+            if (d == 0) {
+                if (node.n == 0) {
+                    root = node.children[0];
+                    height--;
+                }
+                return;
+            }
+            if (node.n + 1 >= minChildren)
+                return;
+
+            BtreeNode<K,V> parent = pathNodes[d - 1];
+            int i = pathIndex[d - 1];
+            BtreeNode<K,V> left = i > 0 ? parent.children[i - 1] : null;
+            BtreeNode<K,V> right = i < parent.n ? parent.children[i + 1] : null;
+            if (left != null && left.n + 1 > minChildren) {
+                //左兄弟最右边的子节点移过来，分隔键下来，左兄弟最大的key上去
+                insertAt(node.keys, node.n, 0, parent.keys[i - 1]);
+                insertAt(node.children, node.n + 1, 0, left.children[left.n]);
+                node.n++;
+                parent.keys[i - 1] = left.keys[left.n - 1];
+                left.keys[left.n - 1] = null;
+                left.children[left.n] = null;
+                left.n--;
+                return;
+            }
+            if (right != null && right.n + 1 > minChildren) {
+                //右兄弟最左边的子节点移过来，分隔键下来，右兄弟最小的key上去
+                node.keys[node.n] = parent.keys[i];
+                node.children[node.n + 1] = right.children[0];
+                node.n++;
+                parent.keys[i] = right.keys[0];
+                removeAt(right.keys, right.n, 0);
+                removeAt(right.children, right.n + 1, 0);
+                right.n--;
+                return;
+            }
+            if (left != null) {
+                mergeInner(left, parent.keys[i - 1], node);
+                k = i - 1;
+            } else {
+                mergeInner(node, parent.keys[i], right);
+                k = i;
+            }
+        }
+    }
+    /**
+     * 分隔键下来，和right的全部key、子节点一起并到left后面
+     */
+    private static <K,V> void mergeInner(BtreeNode<K,V> left, Object key, BtreeNode<K,V> right) {
+        left.keys[left.n] = key;
+        System.arraycopy(right.keys, 0, left.keys, left.n + 1, right.n);
+        System.arraycopy(right.children, 0, left.children, left.n + 1, right.n + 1);
+        left.n += right.n + 1;
+    }
+    /**
+     * 清空
+     */
+    public void clear() {
+        root = newLeaf();
+        height = 0;
+        size = 0;
+    }
+    //=========================删除==========================
+
+    //=========================查询==========================
+    /**
+     * 使用key查询value
+     * @param key
+     * @return 不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        BtreeNode<K,V> leaf = getLeaf(key);
+        int i = search(leaf.keys, leaf.n, key);
+        return i >= 0 ? (V) leaf.values[i] : null;
+    }
+    public boolean containsKey(Object key) {
+        BtreeNode<K,V> leaf = getLeaf(key);
+        return search(leaf.keys, leaf.n, key) >= 0;
+    }
+    /**
+     * key所在(或者应该在)的叶子节点
+     */
+    private BtreeNode<K,V> getLeaf(Object key) {
+        if (key == null && comparator == null)
+            throw new NullPointerException();
+        BtreeNode<K,V> node = root;
+        while (node.children != null)
+            node = node.children[childIndex(node, key)];
+        return node;
+    }
+    /**
+     * 和getLeaf一样，同时把经过的内部节点记到pathNodes/pathIndex里
+     */
+    private BtreeNode<K,V> descend(Object key) {
+        BtreeNode<K,V> node = root;
+        for (int d = 0; node.children != null; d++) {
+            int i = childIndex(node, key);
+            pathNodes[d] = node;
+            pathIndex[d] = i;
+            node = node.children[i];
+        }
+        return node;
+    }
+    /**
+     * key应该在内部节点的第几个子节点里(分隔键小于等于key的数量)
+     */
+    private int childIndex(BtreeNode<K,V> node, Object key) {
+        int i = search(node.keys, node.n, key);
+        return i >= 0 ? i + 1 : -(i + 1);
+    }
+    /**
+     * 在keys[0, n)里二分查找
+     * 和Arrays.binarySearch一样，找到返回下标，找不到返回-(插入位置+1)
+     */
+    @SuppressWarnings({"unchecked", "Duplicates"})
+    private int search(Object[] keys, int n, Object key) {
+        int lo = 0;
+        int hi = n - 1;
+        Comparator<? super K> cpr = comparator;
+        if (cpr != null) {
+            K k = (K) key;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = cpr.compare(k, (K) keys[mid]);
+                if (cmp > 0)
+                    lo = mid + 1;
+                else if (cmp < 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+        } else {
+            Comparable<? super K> k = (Comparable<? super K>) key;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = k.compareTo((K) keys[mid]);
+                if (cmp > 0)
+                    lo = mid + 1;
+                else if (cmp < 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+    /**
+     * 最左边的叶子节点
+     */
+    BtreeNode<K,V> firstLeaf() {
+        BtreeNode<K,V> node = root;
+        while (node.children != null)
+            node = node.children[0];
+        return node;
+    }
+    /**
+     * 最右边的叶子节点
+     */
+    BtreeNode<K,V> lastLeaf() {
+        BtreeNode<K,V> node = root;
+        while (node.children != null)
+            node = node.children[node.n];
+        return node;
+    }
+    //=========================查询==========================
+
+    //=========================游标==========================
+    /**
+     * 新建一个游标(还没有定位)
+     * @return
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * 游标
+     * 停在某个叶子节点的某个key上，前后移动就是在叶子节点的数组里移动下标，走到头了顺着链表换到相邻的叶子节点
+     * 范围扫描: seek(from)之后一直next()到key大于to为止，只有seek时从根节点往下找一次
+     * 定位和移动都不分配内存，游标本身可以一直重复使用
+     *
+     * 游标只记住当前叶子节点和下标，对树做了put/remove之后需要重新定位
+     */
+    public final class Cursor {
+
+        /**
+         * 当前叶子节点，null表示没有定位(或者已经移出了两端)
+         */
+        private BtreeNode<K,V> leaf;
+        private int index;
+
+        private Cursor() {
+        }
+
+        /**
+         * 定位到大于等于key的最小的key
+         * @param key
+         * @return 是否存在这样的key(不存在时游标变成没有定位)
+         */
+        public boolean seek(K key) {
+            BtreeNode<K,V> node = getLeaf(key);
+            int i = search(node.keys, node.n, key);
+            if (i < 0)
+                i = -(i + 1);
+            leaf = node;
+            index = i;
+            //比这个叶子节点里的key都大，在下一个叶子节点的第一个(除了根节点，叶子节点不会是空的)
+            if (i == node.n) {
+                leaf = node.next;
+                index = 0;
+            }
+            return leaf != null;
+        }
+
+        /**
+         * 定位到最小的key
+         * @return 树是否不为空
+         */
+        public boolean first() {
+            leaf = size == 0 ? null : firstLeaf();
+            index = 0;
+            return leaf != null;
+        }
+
+        /**
+         * 定位到最大的key
+         * @return 树是否不为空
+         */
+        public boolean last() {
+            leaf = size == 0 ? null : lastLeaf();
+            index = leaf == null ? 0 : leaf.n - 1;
+            return leaf != null;
+        }
+
+        /**
+         * 移到下一个key
+         * @return 是否还在树里(已经是最大的key时移出去，游标变成没有定位)
+         */
+        public boolean next() {
+            if (leaf == null)
+                return false;
+            if (++index == leaf.n) {
+                leaf = leaf.next;
+                index = 0;
+            }
+            return leaf != null;
+        }
+
+        /**
+         * 移到上一个key
+         * @return 是否还在树里(已经是最小的key时移出去，游标变成没有定位)
+         */
+        public boolean prev() {
+            if (leaf == null)
+                return false;
+            if (--index < 0) {
+                leaf = leaf.prev;
+                index = leaf == null ? 0 : leaf.n - 1;
+            }
+            return leaf != null;
+        }
+
+        /**
+         * 是否停在某个key上
+         * @return
+         */
+        public boolean isValid() {
+            return leaf != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public K key() {
+            return (K) current().keys[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        public V value() {
+            return (V) current().values[index];
+        }
+
+        /**
+         * 修改当前key的值
+         * @param value
+         * @return 原来的值
+         */
+        @SuppressWarnings("unchecked")
+        public V setValue(V value) {
+            BtreeNode<K,V> node = current();
+            V oldValue = (V) node.values[index];
+            node.values[index] = value;
+            return oldValue;
+        }
+
+        private BtreeNode<K,V> current() {
+            if (leaf == null)
+                throw new NoSuchElementException();
+            return leaf;
+        }
+    }
+    //=========================游标==========================
+
+    //=========================一些常用方法封装==========================
+    private BtreeNode<K,V> newLeaf() {
+        return new BtreeNode<>(new Object[fanout + 1], new Object[fanout + 1], null);
+    }
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BtreeNode<K,V> newInner() {
+        //多留一个位置，满了之后先插进去再分裂
+        return new BtreeNode<>(new Object[fanout], null, new BtreeNode[fanout + 1]);
+    }
+    /**
+     * 把x插到a[i]，a[i, n)往后移一位
+     */
+    private static void insertAt(Object[] a, int n, int i, Object x) {
+        System.arraycopy(a, i, a, i + 1, n - i);
+        a[i] = x;
+    }
+    /**
+     * 删掉a[i]，a[i + 1, n)往前移一位
+     */
+    private static void removeAt(Object[] a, int n, int i) {
+        System.arraycopy(a, i + 1, a, i, n - i - 1);
+        a[n - 1] = null;
+    }
+    /**
+     * 不用的位置置空(help gc)
+     */
+    private static void clearRange(Object[] a, int from, int to) {
+        for (int i = from; i < to; i++)
+            a[i] = null;
+    }
+    @SuppressWarnings("unchecked")
+    final int compare(Object k1, Object k2) {
+        return comparator==null ? ((Comparable<? super K>)k1).compareTo((K)k2)
+                : comparator.compare((K)k1, (K)k2);
+    }
+
+    /**
+     * B+树性质校验
+     * 所有叶子节点在同一层、节点的key数量在范围内、key严格递增并且在父节点分隔键的范围内、
+     * 叶子链表按顺序串起了所有叶子节点、key总数正确
+     * @throws Exception
+     */
+    public void checkBalance() throws Exception {
+        int count = checkNode(root, 0, null, null);
+        if (count != size)
+            throw new Exception("数量不对 " + count + " != " + size);
+        int linked = 0;
+        Object last = null;
+        BtreeNode<K,V> prev = null;
+        for (BtreeNode<K,V> leaf = firstLeaf(); leaf != null; leaf = leaf.next) {
+            if (leaf.prev != prev)
+                throw new Exception("叶子链表前后指针不对应 " + leaf);
+            for (int i = 0; i < leaf.n; i++) {
+                if (last != null && compare(last, leaf.keys[i]) >= 0)
+                    throw new Exception("叶子链表顺序不对 " + leaf);
+                last = leaf.keys[i];
+            }
+            linked += leaf.n;
+            prev = leaf;
+        }
+        if (prev != lastLeaf())
+            throw new Exception("叶子链表没有到最后一个叶子节点");
+        if (linked != size)
+            throw new Exception("叶子链表数量不对 " + linked + " != " + size);
+    }
+    /**
+     * 节点校验
+     * @param node
+     * @param level 第几层(根节点是0)
+     * @param lo    下界(包括)，null表示没有
+     * @param hi    上界(不包括)，null表示没有
+     * @return 子树里的key数量
+     * @throws Exception
+     */
+    private int checkNode(BtreeNode<K,V> node, int level, Object lo, Object hi) throws Exception {
+        boolean isRoot = node == root;
+        for (int i = 0; i < node.n; i++) {
+            if (i > 0 && compare(node.keys[i - 1], node.keys[i]) >= 0)
+                throw new Exception("节点内key不是严格递增 " + node);
+            if (lo != null && compare(node.keys[i], lo) < 0 || hi != null && compare(node.keys[i], hi) >= 0)
+                throw new Exception("key超出了分隔键的范围 " + node);
+        }
+        if (node.children == null) {
+            if (level != height)
+                throw new Exception("叶子节点不在同一层 " + node);
+            if (node.n > fanout || !isRoot && node.n < minLeafKeys)
+                throw new Exception("叶子节点key数量不对 " + node);
+            return node.n;
+        }
+        if (node.n + 1 > fanout || node.n < (isRoot ? 1 : minChildren - 1))
+            throw new Exception("内部节点子节点数量不对 " + node);
+        int count = 0;
+        for (int i = 0; i <= node.n; i++) {
+            count += checkNode(node.children[i], level + 1,
+                    i == 0 ? lo : node.keys[i - 1], i == node.n ? hi : node.keys[i]);
+        }
+        return count;
+    }
+    //=========================一些常用方法封装==========================
+
+    /**
+     * 按key从小到大遍历(每个节点返回一个新的Map.Entry)
+     * 不想分配对象时用keyIterator/valueIterator/cursor
+     * @return
+     */
+    @Override
+    public Iterator<Map.Entry<K,V>> iterator() {
+        return new BtreeIterator.EntryIterator<>(size == 0 ? null : firstLeaf());
+    }
+
+    /**
+     * 按key从小到大遍历key
+     * @return
+     */
+    public Iterator<K> keyIterator() {
+        return new BtreeIterator.KeyIterator<>(size == 0 ? null : firstLeaf());
+    }
+
+    /**
+     * 按key从小到大遍历value
+     * @return
+     */
+    public Iterator<V> valueIterator() {
+        return new BtreeIterator.ValueIterator<>(size == 0 ? null : firstLeaf());
+    }
+
+    /**
+     * 生成一份只读的拷贝(见FrozenMap)，之后对这颗树的修改不会影响它
+     * @return
+     */
+    public FrozenMap<K,V> freeze() {
+        return FrozenMap.fromSorted(iterator(), size, comparator);
+    }
+
+    /**
+     * 树的高度(层数，只有一个叶子节点时是1)
+     * @return
+     */
+    public int height() {
+        return height + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 节点
+     * 叶子节点: keys/values各有n个，children是null，用prev/next串起来
+     * 内部节点: n个key，n+1个children，values是null
+     * 数组都多留了一个位置，插入后超出上限了再分裂
+     * @param <K>
+     * @param <V>
+     */
+    static final class BtreeNode<K,V> {
+        final Object[] keys;
+        final Object[] values;
+        final BtreeNode<K,V>[] children;
+        /**
+         * key的数量
+         */
+        int n;
+        BtreeNode<K,V> prev;
+        BtreeNode<K,V> next;
+
+        BtreeNode(Object[] keys, Object[] values, BtreeNode<K,V>[] children) {
+            this.keys = keys;
+            this.values = values;
+            this.children = children;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(children == null ? "leaf[" : "inner[");
+            for (int i = 0; i < n; i++) {
+                if (i > 0)
+                    sb.append(", ");
+                sb.append(keys[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+}
@@ -0,0 +1,336 @@
+package com.lilingyan.frozen;
+
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 只读的有序map(各个树的freeze()返回它)
+ *
+ * key按Eytzinger顺序(层序，也就是完全二叉树按层从左到右编号)放在一个数组里，value放在下标相同的另一个数组里
+ * 下标从1开始，k的左孩子是2k，右孩子是2k+1，没有节点对象，也没有指针
+ * 1. 查找的前几层都在数组开头，总是在缓存里；往下每一层的位置是2k或2k+1，相邻的两个孩子在同一个缓存行里
+ *    (排好序的数组二分查找时，前几次比较跳得很远，每次都是不同的缓存行)
+ * 2. 往下走只需要算下一个下标，比较结果直接变成下标的最低位 k = 2k + (keys[k] < key)，循环里没有分支，
+ *    jit不需要猜走左边还是右边，循环次数总是树高(log n)
+ * 3. 循环结束时k走出了数组，最后一次往左走的位置就是结果:
+ *    往左走是在k的末尾添一个0，之后往右走添的都是1，去掉末尾的1和一个0就回到了那个位置，没有往左走过时是0(不存在)
+ *
+ * 中序遍历就是排好的顺序，后继/前驱同样只需要算下标
+ * @Author: lilingyan
+ */
+public final class FrozenMap<K,V> implements Iterable<Map.Entry<K,V>> {
+
+    /**
+     * 为null时用key的自然顺序
+     */
+    private final Comparator<? super K> comparator;
+    /**
+     * Eytzinger顺序的key/value，下标0不用
+     */
+    private final Object[] keys;
+    private final Object[] values;
+    private final int size;
+
+    private FrozenMap(Comparator<? super K> comparator, Object[] keys, Object[] values, int size) {
+        this.comparator = comparator;
+        this.keys = keys;
+        this.values = values;
+        this.size = size;
+    }
+
+    //=========================构建==========================
+    /**
+     * 用已经排好序的数据构建
+     * 按中序把数据依次填进完全二叉树的每个位置，O(n)
+     * @param it            按key严格递增的节点(不校验)
+     * @param size          节点数量(迭代器里的数量不能少于它)
+     * @param comparator    和数据的顺序一致，为null时用key的自然顺序
+     * @return
+     */
+    public static <K,V> FrozenMap<K,V> fromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size,
+                                                 Comparator<? super K> comparator) {
+        if (size < 0)
+            throw new IllegalArgumentException("size: " + size);
+        Object[] keys = new Object[size + 1];
+        Object[] values = new Object[size + 1];
+        //从最左边(最小)的位置开始，每次移到中序的后继
+        int k = first(size);
+        for (int i = 0; i < size; i++) {
+            Map.Entry<? extends K, ? extends V> e = it.next();
+            keys[k] = e.getKey();
+            values[k] = e.getValue();
+            k = successor(k, size);
+        }
+        return new FrozenMap<>(comparator, keys, values, size);
+    }
+    //=========================构建==========================
+
+    //=========================查询==========================
+    /**
+     * 使用key查询value
+     * @param key
+     * @return 不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int k = lowerBound(key);
+        return k != 0 && compare(keys[k], key) == 0 ? (V) values[k] : null;
+    }
+
+    public boolean containsKey(Object key) {
+        int k = lowerBound(key);
+        return k != 0 && compare(keys[k], key) == 0;
+    }
+
+    /**
+     * 大于等于key的最小key的位置
+     * 比较结果的符号位就是往右走的那一位: keys[k] < key 时 compare < 0，无符号右移31位是1
+     * @param key
+     * @return 不存在时返回0
+     */
+    @SuppressWarnings("unchecked")
+    private int lowerBound(Object key) {
+        if (key == null && comparator == null)
+            throw new NullPointerException();
+        Object[] keys = this.keys;
+        int n = size;
+        int k = 1;
+        Comparator<? super K> cpr = comparator;
+        if (cpr != null) {
+            K x = (K) key;
+            while (k <= n)
+                k = (k << 1) | (cpr.compare((K) keys[k], x) >>> 31);
+        } else {
+            Comparable<? super K> x = (Comparable<? super K>) key;
+            //这里是key和keys[k]比，key > keys[k] 时往右走: signum是1，取负后符号位是1(直接取负在MIN_VALUE时会溢出)
+            while (k <= n)
+                k = (k << 1) | (-Integer.signum(x.compareTo((K) keys[k])) >>> 31);
+        }
+        return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+
+    /**
+     * 大于key的最小key的位置
+     * keys[k] <= key 时往右走: compare(key, keys[k]) >= 0，取反后符号位是1
+     * @param key
+     * @return 不存在时返回0
+     */
+    @SuppressWarnings("unchecked")
+    private int upperBound(Object key) {
+        if (key == null && comparator == null)
+            throw new NullPointerException();
+        Object[] keys = this.keys;
+        int n = size;
+        int k = 1;
+        Comparator<? super K> cpr = comparator;
+        if (cpr != null) {
+            K x = (K) key;
+            while (k <= n)
+                k = (k << 1) | (~cpr.compare(x, (K) keys[k]) >>> 31);
+        } else {
+            Comparable<? super K> x = (Comparable<? super K>) key;
+            while (k <= n)
+                k = (k << 1) | (~x.compareTo((K) keys[k]) >>> 31);
+        }
+        return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+
+    /**
+     * 小于等于key的最大节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> floorEntry(K key) {
+        int k = upperBound(key);
+        return entry(k == 0 ? last(size) : predecessor(k, size));
+    }
+    /**
+     * 大于等于key的最小节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> ceilingEntry(K key) {
+        return entry(lowerBound(key));
+    }
+    /**
+     * 大于key的最小节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> higherEntry(K key) {
+        return entry(upperBound(key));
+    }
+    /**
+     * 小于key的最大节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> lowerEntry(K key) {
+        int k = lowerBound(key);
+        return entry(k == 0 ? last(size) : predecessor(k, size));
+    }
+    public K floorKey(K key) {
+        int k = upperBound(key);
+        return key(k == 0 ? last(size) : predecessor(k, size));
+    }
+    public K ceilingKey(K key) {
+        return key(lowerBound(key));
+    }
+    public Map.Entry<K,V> firstEntry() {
+        return entry(first(size));
+    }
+    public Map.Entry<K,V> lastEntry() {
+        return entry(last(size));
+    }
+    //=========================查询==========================
+
+    //=========================下标计算==========================
+    /**
+     * 最小的位置(一直往左走)
+     * @return 空的时候是0
+     */
+    static int first(int n) {
+        if (n == 0)
+            return 0;
+        int k = 1;
+        while (k <= n >>> 1)
+            k <<= 1;
+        return k;
+    }
+    /**
+     * 最大的位置(一直往右走)
+     * @return 空的时候是0
+     */
+    static int last(int n) {
+        if (n == 0)
+            return 0;
+        int k = 1;
+        while (k <= (n - 1) >>> 1)
+            k = k << 1 | 1;
+        return k;
+    }
+    /**
+     * 中序后继
+     * 有右子树时是右子树最左边的位置，否则往上走，直到从左孩子上来(去掉末尾的1和一个0)
+     * @return 没有后继时是0
+     */
+    static int successor(int k, int n) {
+        if (k <= (n - 1) >>> 1) {
+            k = k << 1 | 1;
+            while (k <= n >>> 1)
+                k <<= 1;
+            return k;
+        }
+        return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+    /**
+     * 中序前驱
+     * 有左子树时是左子树最右边的位置，否则往上走，直到从右孩子上来(去掉末尾的0和一个1)
+     * @return 没有前驱时是0
+     */
+    static int predecessor(int k, int n) {
+        if (k <= n >>> 1) {
+            k <<= 1;
+            while (k <= (n - 1) >>> 1)
+                k = k << 1 | 1;
+            return k;
+        }
+        return k >>> (Integer.numberOfTrailingZeros(k) + 1);
+    }
+    //=========================下标计算==========================
+
+    //=========================一些常用方法封装==========================
+    @SuppressWarnings("unchecked")
+    private Map.Entry<K,V> entry(int k) {
+        return k == 0 ? null : new AbstractMap.SimpleImmutableEntry<>((K) keys[k], (V) values[k]);
+    }
+    @SuppressWarnings("unchecked")
+    private K key(int k) {
+        return k == 0 ? null : (K) keys[k];
+    }
+    @SuppressWarnings("unchecked")
+    final int compare(Object k1, Object k2) {
+        return comparator==null ? ((Comparable<? super K>)k1).compareTo((K)k2)
+                : comparator.compare((K)k1, (K)k2);
+    }
+
+    /**
+     * 按key从小到大遍历(每个节点返回一个新的Map.Entry)
+     * @return
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<Map.Entry<K,V>> iterator() {
+        return new FrozenIterator<Map.Entry<K,V>>() {
+            @Override
+            Map.Entry<K,V> get(int k) {
+                return new AbstractMap.SimpleImmutableEntry<>((K) keys[k], (V) values[k]);
+            }
+        };
+    }
+
+    /**
+     * 按key从小到大遍历key
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public Iterator<K> keyIterator() {
+        return new FrozenIterator<K>() {
+            @Override
+            K get(int k) {
+                return (K) keys[k];
+            }
+        };
+    }
+
+    /**
+     * 按key从小到大遍历value
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public Iterator<V> valueIterator() {
+        return new FrozenIterator<V>() {
+            @Override
+            V get(int k) {
+                return (V) values[k];
+            }
+        };
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 中序遍历，每次用successor算下一个位置
+     */
+    private abstract class FrozenIterator<T> implements Iterator<T> {
+
+        private int next = first(size);
+
+        @Override
+        public boolean hasNext() {
+            return next != 0;
+        }
+
+        @Override
+        public T next() {
+            int k = next;
+            if (k == 0)
+                throw new NoSuchElementException();
+            next = successor(k, size);
+            return get(k);
+        }
+
+        abstract T get(int k);
+    }
+    //=========================一些常用方法封装==========================
+
+}
@@ -0,0 +1,300 @@
+package com.lilingyan.instrument;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 树操作的统计: 比较次数、旋转次数、调整循环次数、查找深度的分布
+ * 用来区分变慢是因为比较器太贵、旋转太多，还是树太深
+ *
+ * 默认关闭，启动时加 -Dcom.lilingyan.instrument=true 打开
+ * 开关是static final，关闭时各个树里的 if (TreeStats.ENABLED) 会被jit当作死代码整个去掉，
+ * 查找循环里多出来的计数局部变量也没人用，一起被去掉，几乎没有开销
+ * 打开时每个计数是一个LongAdder，多线程一起写也不会互相争抢
+ *
+ * 同一种树的所有实例共用一份统计(BST/AVL/RBT)，打开时注册成MBean:
+ * com.lilingyan.instrument:type=TreeStats,name=RbtMap
+ * @Author: lilingyan
+ */
+public final class TreeStats implements TreeStatsMXBean {
+
+    /**
+     * 是否打开统计
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("com.lilingyan.instrument");
+
+    public static final TreeStats BST = create("BstMap");
+    public static final TreeStats AVL = create("AvlMap");
+    public static final TreeStats RBT = create("RbtMap");
+
+    /**
+     * 深度分布的格数，平衡树就算有几十亿个节点也不会超过这个深度
+     */
+    static final int MAX_DEPTH = 64;
+
+    private final String name;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder lookupComparisons = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder putComparisons = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder fixupIterations = new LongAdder();
+    private final LongAdder[] depthHistogram = new LongAdder[MAX_DEPTH];
+
+    TreeStats(String name) {
+        this.name = name;
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            depthHistogram[i] = new LongAdder();
+        }
+    }
+
+    private static TreeStats create(String name) {
+        TreeStats stats = new TreeStats(name);
+        if (ENABLED)
+            stats.register();
+        return stats;
+    }
+
+    /**
+     * 注册到platform MBeanServer
+     * 注册失败(比如同名的已经存在)只是看不到JMX，不影响统计本身
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName();
+            if (!server.isRegistered(objectName))
+                server.registerMBean(this, objectName);
+        } catch (JMException | SecurityException e) {
+            System.err.println("TreeStats " + name + " not registered: " + e);
+        }
+    }
+
+    ObjectName objectName() throws JMException {
+        return new ObjectName("com.lilingyan.instrument:type=TreeStats,name=" + name);
+    }
+
+    //=========================记录==========================
+    /**
+     * 一次查找
+     * @param comparisons 比较次数(也就是查找的深度)
+     */
+    public void lookup(int comparisons) {
+        lookups.increment();
+        lookupComparisons.add(comparisons);
+        depthHistogram[Math.min(comparisons, MAX_DEPTH - 1)].increment();
+    }
+
+    /**
+     * 一次put
+     * @param comparisons 比较次数
+     */
+    public void put(int comparisons) {
+        puts.increment();
+        putComparisons.add(comparisons);
+    }
+
+    /**
+     * 一次旋转
+     */
+    public void rotation() {
+        rotations.increment();
+    }
+
+    /**
+     * 调整循环走了一次
+     */
+    public void fixupIteration() {
+        fixupIterations.increment();
+    }
+    //=========================记录==========================
+
+    //=========================读取==========================
+    @Override
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    @Override
+    public long getLookupComparisons() {
+        return lookupComparisons.sum();
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getPutComparisons() {
+        return putComparisons.sum();
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations.sum();
+    }
+
+    @Override
+    public long getFixupIterations() {
+        return fixupIterations.sum();
+    }
+
+    @Override
+    public long[] getDepthHistogram() {
+        long[] histogram = new long[MAX_DEPTH];
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            histogram[i] = depthHistogram[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public double getAverageLookupDepth() {
+        long n = lookups.sum();
+        return n == 0 ? 0 : (double) lookupComparisons.sum() / n;
+    }
+
+    @Override
+    public void reset() {
+        lookups.reset();
+        lookupComparisons.reset();
+        puts.reset();
+        putComparisons.reset();
+        rotations.reset();
+        fixupIterations.reset();
+        for (LongAdder bucket : depthHistogram) {
+            bucket.reset();
+        }
+    }
+
+    /**
+     * 当前所有计数的一份拷贝
+     * 各个计数是分别读的，并发写的时候它们之间不保证是同一时刻的值
+     * @return
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(name, getLookups(), getLookupComparisons(), getPuts(), getPutComparisons(),
+                getRotations(), getFixupIterations(), getDepthHistogram());
+    }
+    //=========================读取==========================
+
+    /**
+     * 某一时刻的统计(不可变)
+     */
+    public static final class Snapshot {
+
+        private final String name;
+        private final long lookups;
+        private final long lookupComparisons;
+        private final long puts;
+        private final long putComparisons;
+        private final long rotations;
+        private final long fixupIterations;
+        private final long[] depthHistogram;
+
+        Snapshot(String name, long lookups, long lookupComparisons, long puts, long putComparisons,
+                 long rotations, long fixupIterations, long[] depthHistogram) {
+            this.name = name;
+            this.lookups = lookups;
+            this.lookupComparisons = lookupComparisons;
+            this.puts = puts;
+            this.putComparisons = putComparisons;
+            this.rotations = rotations;
+            this.fixupIterations = fixupIterations;
+            this.depthHistogram = depthHistogram;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLookups() {
+            return lookups;
+        }
+
+        public long getLookupComparisons() {
+            return lookupComparisons;
+        }
+
+        public long getPuts() {
+            return puts;
+        }
+
+        public long getPutComparisons() {
+            return putComparisons;
+        }
+
+        public long getRotations() {
+            return rotations;
+        }
+
+        public long getFixupIterations() {
+            return fixupIterations;
+        }
+
+        /**
+         * 下标是查找深度
+         * @return 拷贝
+         */
+        public long[] getDepthHistogram() {
+            return depthHistogram.clone();
+        }
+
+        /**
+         * 查找深度的百分位数(nearest-rank)
+         * @param percent [0, 100]
+         * @return 没有查找时返回0
+         */
+        public int depthPercentile(double percent) {
+            if (!(percent >= 0 && percent <= 100))
+                throw new IllegalArgumentException("percent: " + percent);
+            long total = 0;
+            for (long count : depthHistogram) {
+                total += count;
+            }
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+            long seen = 0;
+            for (int depth = 0; depth < depthHistogram.length; depth++) {
+                seen += depthHistogram[depth];
+                if (seen >= rank)
+                    return depth;
+            }
+            return depthHistogram.length - 1;
+        }
+
+        /**
+         * 两次快照之间的增量(this - earlier)
+         * @param earlier 更早的快照
+         * @return
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] histogram = new long[depthHistogram.length];
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = depthHistogram[i] - earlier.depthHistogram[i];
+            }
+            return new Snapshot(name, lookups - earlier.lookups, lookupComparisons - earlier.lookupComparisons,
+                    puts - earlier.puts, putComparisons - earlier.putComparisons,
+                    rotations - earlier.rotations, fixupIterations - earlier.fixupIterations, histogram);
+        }
+
+        @Override
+        public String toString() {
+            //去掉最后面全是0的格
+            int last = depthHistogram.length;
+            while (last > 0 && depthHistogram[last - 1] == 0)
+                last--;
+            return name + "{lookups=" + lookups + ", lookupComparisons=" + lookupComparisons
+                    + ", puts=" + puts + ", putComparisons=" + putComparisons
+                    + ", rotations=" + rotations + ", fixupIterations=" + fixupIterations
+                    + ", depthHistogram=" + Arrays.toString(Arrays.copyOf(depthHistogram, last)) + "}";
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.lilingyan.instrument;
+
+/**
+ * TreeStats通过JMX暴露的属性(jconsole/jvisualvm里在com.lilingyan.instrument下面)
+ * @Author: lilingyan
+ */
+public interface TreeStatsMXBean {
+
+    /**
+     * getEntry(get/containsKey/remove)的次数
+     */
+    long getLookups();
+
+    /**
+     * getEntry里key比较的总次数
+     */
+    long getLookupComparisons();
+
+    /**
+     * put的次数(不包括空树时插入根节点)
+     */
+    long getPuts();
+
+    /**
+     * put里key比较的总次数
+     */
+    long getPutComparisons();
+
+    /**
+     * 左旋/右旋的次数
+     */
+    long getRotations();
+
+    /**
+     * 插入/删除后调整时循环的次数
+     */
+    long getFixupIterations();
+
+    /**
+     * 查找深度的分布，下标是比较次数(找到的节点或者最后一个比较过的节点的深度，根为1)
+     * 最后一格包括所有更深的
+     */
+    long[] getDepthHistogram();
+
+    /**
+     * 平均每次查找的比较次数
+     */
+    double getAverageLookupDepth();
+
+    /**
+     * 全部清零
+     */
+    void reset();
+
+}
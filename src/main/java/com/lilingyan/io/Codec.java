@@ -0,0 +1,39 @@
+package com.lilingyan.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * key/value和字节之间的转换(SortedMapFile用)
+ * 定长的(fixedSize() >= 0)文件里直接放内容，变长的在内容前面多放4字节长度
+ * 常用的几种见Codecs
+ * @Author: lilingyan
+ */
+public interface Codec<T> {
+
+    /**
+     * @return 定长时是每个值的字节数，变长时是-1
+     */
+    int fixedSize();
+
+    /**
+     * @param value
+     * @return 编码后的字节数(定长时就是fixedSize())
+     */
+    int sizeOf(T value);
+
+    /**
+     * 从buffer当前位置开始写入，写完后position正好前进sizeOf(value)
+     * @param value
+     * @param buffer    剩余空间不少于sizeOf(value)
+     */
+    void encode(T value, ByteBuffer buffer);
+
+    /**
+     * 从buffer当前位置开始读出，读完后position正好前进length
+     * @param buffer    剩余数据不少于length
+     * @param length    字节数(定长时就是fixedSize())
+     * @return
+     */
+    T decode(ByteBuffer buffer, int length);
+
+}
@@ -0,0 +1,155 @@
+package com.lilingyan.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 常用的Codec
+ * 数字都是大端(ByteBuffer默认的字节序)
+ * @Author: lilingyan
+ */
+public final class Codecs {
+
+    private Codecs() {
+    }
+
+    /**
+     * long，8字节
+     */
+    public static final Codec<Long> LONG = new Codec<Long>() {
+        @Override
+        public int fixedSize() {
+            return 8;
+        }
+
+        @Override
+        public int sizeOf(Long value) {
+            return 8;
+        }
+
+        @Override
+        public void encode(Long value, ByteBuffer buffer) {
+            buffer.putLong(value);
+        }
+
+        @Override
+        public Long decode(ByteBuffer buffer, int length) {
+            return buffer.getLong();
+        }
+    };
+
+    /**
+     * int，4字节
+     */
+    public static final Codec<Integer> INTEGER = new Codec<Integer>() {
+        @Override
+        public int fixedSize() {
+            return 4;
+        }
+
+        @Override
+        public int sizeOf(Integer value) {
+            return 4;
+        }
+
+        @Override
+        public void encode(Integer value, ByteBuffer buffer) {
+            buffer.putInt(value);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer buffer, int length) {
+            return buffer.getInt();
+        }
+    };
+
+    /**
+     * String，UTF-8变长
+     * ASCII字符直接逐个字节写进buffer，不用先转成byte[]
+     */
+    public static final Codec<String> STRING = new Codec<String>() {
+        @Override
+        public int fixedSize() {
+            return -1;
+        }
+
+        @Override
+        public int sizeOf(String value) {
+            return utf8Length(value);
+        }
+
+        @Override
+        public void encode(String value, ByteBuffer buffer) {
+            int n = value.length();
+            for (int i = 0; i < n; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    //前面都是ASCII，从第一个不是ASCII的字符开始交给jdk编码
+                    buffer.put(value.substring(i).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                buffer.put((byte) c);
+            }
+        }
+
+        @Override
+        public String decode(ByteBuffer buffer, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * byte[]，变长，原样写入
+     */
+    public static final Codec<byte[]> BYTES = new Codec<byte[]>() {
+        @Override
+        public int fixedSize() {
+            return -1;
+        }
+
+        @Override
+        public int sizeOf(byte[] value) {
+            return value.length;
+        }
+
+        @Override
+        public void encode(byte[] value, ByteBuffer buffer) {
+            buffer.put(value);
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer buffer, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return bytes;
+        }
+    };
+
+    /**
+     * 编码成UTF-8后的字节数(和String#getBytes(UTF_8)一致，落单的代理字符算作'?'，1个字节)
+     */
+    static int utf8Length(String s) {
+        int n = s.length();
+        int length = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                continue;
+            if (c < 0x800) {
+                length += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                //一对代理字符是一个4字节的码点
+                length += 2;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                //落单的代理字符
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+}
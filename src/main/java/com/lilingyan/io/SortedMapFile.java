@@ -0,0 +1,370 @@
+package com.lilingyan.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 有序map的二进制文件
+ *
+ * 格式(大端):
+ * 头部24字节: magic(4) 版本(4) key定长字节数(4，变长是-1) value定长字节数(4) 数量(8)
+ * 之后按key从小到大一条一条放: [key长度(4，只有变长才有)] key [value长度(4)] value
+ *
+ * 写: 按顺序把节点编码进一块大的direct buffer，满了整块写到FileChannel里(direct buffer写文件不用再拷贝一次)
+ *     数量最后才知道，先在头部写-1，close时补上再force，没有正常close的文件读的时候会报错
+ * 读: Reader按顺序解码，本身就是一个Iterator<Map.Entry>，可以直接交给各个树的buildFromSorted，
+ *     读出来已经是有序的，线性时间建好树，不需要一个一个put和旋转:
+ * <pre>
+ * try (SortedMapFile.Reader&lt;Long,String&gt; reader = SortedMapFile.open(path, Codecs.LONG, Codecs.STRING)) {
+ *     map.buildFromSorted(reader, reader.size());
+ * }
+ * </pre>
+ * 稀疏索引: 写的时候每隔一些记录用Writer#position()记下当前记录的偏移，读的时候Reader#seek()直接跳过去，
+ *          或者自己把两个偏移之间的记录整块读进内存，用decode()/skip()解码
+ * @Author: lilingyan
+ */
+public final class SortedMapFile {
+
+    static final int MAGIC = 0x534D4150;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private SortedMapFile() {
+    }
+
+    /**
+     * 按顺序写入全部节点(覆盖原来的文件)
+     * @param path
+     * @param entries       按key严格递增(不校验)，各个树本身的迭代器就是这个顺序
+     * @param keyCodec
+     * @param valueCodec
+     * @return 写入的数量
+     * @throws IOException
+     */
+    public static <K,V> long save(Path path, Iterable<? extends Map.Entry<? extends K, ? extends V>> entries,
+                                  Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (Writer<K,V> writer = new Writer<>(path, keyCodec, valueCodec, DEFAULT_BUFFER_SIZE)) {
+            for (Map.Entry<? extends K, ? extends V> e : entries) {
+                writer.append(e.getKey(), e.getValue());
+            }
+            return writer.count();
+        }
+    }
+
+    /**
+     * 打开文件准备读
+     * @param path
+     * @param keyCodec      要和写的时候一致
+     * @param valueCodec    要和写的时候一致
+     * @return
+     * @throws IOException  不是这种文件、没有写完、或者编码的定长字节数对不上
+     */
+    public static <K,V> Reader<K,V> open(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        return new Reader<>(path, keyCodec, valueCodec, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * 从内存里的记录解码一个key或者value
+     * @param in    当前位置是它的开头(变长时是长度)，解码后移到它后面
+     * @param codec
+     * @throws IOException  长度不对(文件坏了)
+     */
+    public static <T> T decode(ByteBuffer in, Codec<T> codec) throws IOException {
+        return codec.decode(in, length(in, codec));
+    }
+    /**
+     * 跳过一个key或者value，不解码
+     * @see #decode(ByteBuffer, Codec)
+     */
+    public static void skip(ByteBuffer in, Codec<?> codec) throws IOException {
+        int length = length(in, codec);
+        in.position(in.position() + length);
+    }
+    private static int length(ByteBuffer in, Codec<?> codec) throws IOException {
+        int length = codec.fixedSize();
+        if (length < 0) {
+            if (in.remaining() < 4)
+                throw new EOFException();
+            length = in.getInt();
+            if (length < 0)
+                throw new IOException("corrupted record length: " + length);
+        }
+        if (in.remaining() < length)
+            throw new EOFException();
+        return length;
+    }
+
+    /**
+     * 顺序写
+     */
+    public static final class Writer<K,V> implements Closeable {
+
+        private final FileChannel channel;
+        private final Codec<K> keyCodec;
+        private final Codec<V> valueCodec;
+        private final ByteBuffer buffer;
+        private long count = 0;
+        /**
+         * 已经写进文件的字节数
+         */
+        private long flushed = 0;
+        private boolean closed = false;
+
+        /**
+         * @param path
+         * @param keyCodec
+         * @param valueCodec
+         * @param bufferSize    direct buffer的大小，比它还大的单条记录单独写
+         * @throws IOException
+         */
+        public Writer(Path path, Codec<K> keyCodec, Codec<V> valueCodec, int bufferSize) throws IOException {
+            if (bufferSize < HEADER_SIZE)
+                throw new IllegalArgumentException("bufferSize: " + bufferSize);
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            this.buffer = ByteBuffer.allocateDirect(bufferSize);
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            putHeader(buffer, -1);
+        }
+
+        /**
+         * 追加一条(key要比上一条大)
+         * @param key
+         * @param value
+         * @throws IOException
+         */
+        public void append(K key, V value) throws IOException {
+            if (closed)
+                throw new IllegalStateException("closed");
+            int keySize = keyCodec.sizeOf(key);
+            int valueSize = valueCodec.sizeOf(value);
+            int length = keySize + valueSize
+                    + (keyCodec.fixedSize() < 0 ? 4 : 0) + (valueCodec.fixedSize() < 0 ? 4 : 0);
+            ByteBuffer out = buffer;
+            if (out.remaining() < length) {
+                flush();
+                //一条就放不下，单独用一块heap buffer
+                if (out.capacity() < length)
+                    out = ByteBuffer.allocate(length);
+            }
+            put(out, keyCodec, key, keySize);
+            put(out, valueCodec, value, valueSize);
+            if (out != buffer) {
+                out.flip();
+                writeFully(out);
+            }
+            count++;
+        }
+
+        private static <T> void put(ByteBuffer out, Codec<T> codec, T value, int size) {
+            if (codec.fixedSize() < 0)
+                out.putInt(size);
+            codec.encode(value, out);
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return 下一条记录在文件里的偏移(可以交给Reader#seek)
+         */
+        public long position() {
+            return flushed + buffer.position();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer b) throws IOException {
+            while (b.hasRemaining())
+                flushed += channel.write(b);
+        }
+
+        private void putHeader(ByteBuffer b, long count) {
+            b.putInt(MAGIC);
+            b.putInt(VERSION);
+            b.putInt(keyCodec.fixedSize());
+            b.putInt(valueCodec.fixedSize());
+            b.putLong(count);
+        }
+
+        /**
+         * 写完剩下的数据，在头部补上数量，刷到磁盘
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                flush();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                putHeader(header, count);
+                header.flip();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * 顺序读
+     * next()读文件出错时抛UncheckedIOException(Iterator的方法不能抛IOException)
+     */
+    public static final class Reader<K,V> implements Iterator<Map.Entry<K,V>>, Closeable {
+
+        private final FileChannel channel;
+        private final Codec<K> keyCodec;
+        private final Codec<V> valueCodec;
+        private final ByteBuffer buffer;
+        private final long count;
+        private long read = 0;
+
+        /**
+         * @param path
+         * @param keyCodec
+         * @param valueCodec
+         * @param bufferSize    direct buffer的大小，比它还大的单条记录单独读
+         * @throws IOException
+         */
+        public Reader(Path path, Codec<K> keyCodec, Codec<V> valueCodec, int bufferSize) throws IOException {
+            if (bufferSize < HEADER_SIZE)
+                throw new IllegalArgumentException("bufferSize: " + bufferSize);
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            this.buffer = ByteBuffer.allocateDirect(bufferSize);
+            buffer.flip();
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ensure(HEADER_SIZE);
+                if (header.getInt() != MAGIC)
+                    throw new IOException("not a sorted map file: " + path);
+                int version = header.getInt();
+                if (version != VERSION)
+                    throw new IOException("unsupported version " + version + ": " + path);
+                int keySize = header.getInt();
+                int valueSize = header.getInt();
+                if (keySize != keyCodec.fixedSize() || valueSize != valueCodec.fixedSize())
+                    throw new IOException("codec mismatch: file has key/value size " + keySize + "/" + valueSize);
+                count = header.getLong();
+                if (count < 0)
+                    throw new IOException("incomplete file: " + path);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return 文件里的数量
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return 文件里的数量(buildFromSorted要的是int)
+         */
+        public int size() {
+            if (count > Integer.MAX_VALUE)
+                throw new IllegalStateException("too many entries: " + count);
+            return (int) count;
+        }
+
+        /**
+         * 跳到某条记录，下一次next()从这条开始读
+         * @param offset    这条记录的偏移(写的时候Writer#position()返回的)
+         * @param index     这是第几条记录(从0开始)
+         * @throws IOException
+         */
+        public void seek(long offset, long index) throws IOException {
+            if (offset < HEADER_SIZE || index < 0 || index > count)
+                throw new IllegalArgumentException("offset " + offset + ", index " + index);
+            channel.position(offset);
+            buffer.clear();
+            buffer.flip();
+            read = index;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return read < count;
+        }
+
+        @Override
+        public Map.Entry<K,V> next() {
+            if (read >= count)
+                throw new NoSuchElementException();
+            try {
+                K key = get(keyCodec);
+                V value = get(valueCodec);
+                read++;
+                return new AbstractMap.SimpleImmutableEntry<>(key, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private <T> T get(Codec<T> codec) throws IOException {
+            int length = codec.fixedSize();
+            if (length < 0) {
+                length = ensure(4).getInt();
+                if (length < 0)
+                    throw new IOException("corrupted record length: " + length);
+            }
+            return codec.decode(ensure(length), length);
+        }
+
+        /**
+         * 保证返回的buffer从当前位置起至少有n个字节
+         * 不够时把剩下的移到开头，再从文件里读满；n比整个buffer还大时单独用一块heap buffer
+         */
+        private ByteBuffer ensure(int n) throws IOException {
+            if (buffer.remaining() >= n)
+                return buffer;
+            if (n > buffer.capacity()) {
+                ByteBuffer big = ByteBuffer.allocate(n);
+                big.put(buffer);
+                while (big.hasRemaining()) {
+                    if (channel.read(big) < 0)
+                        throw new EOFException();
+                }
+                big.flip();
+                return big;
+            }
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0)
+                    throw new EOFException();
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,730 @@
+package com.lilingyan.lsm;
+
+import com.lilingyan.io.Codec;
+import com.lilingyan.io.SortedMapFile;
+import com.lilingyan.rbt.ConcurrentRbtMap;
+import com.lilingyan.rbt.RbtMap;
+import com.lilingyan.wal.SyncPolicy;
+import com.lilingyan.wal.WriteAheadLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LSM存储
+ *
+ * 写: 先写预写日志，按SyncPolicy提交之后再写内存里的红黑树(memtable)，插入还是O(log n)
+ *     提交在锁外面(多个线程的提交可以合并成一次fsync)，提交完按日志里的顺序应用，所以读到的都是已经提交了的
+ *     提交失败后之后的写都报错，这个memtable也不会再写成段(下次打开时以日志里实际有的为准)
+ *     memtable攒到memtableBytes(按编码后的大小估算)就冻结成只读的，换一个新的接着写，
+ *     后台线程把冻结的memtable按顺序写成磁盘上的有序段(SortedRun，带稀疏索引)，写完删掉它的日志
+ *     冻结的memtable太多(后台来不及写)时，写操作等待
+ * 删: 写一个墓碑(TOMBSTONE)，遮住更老的数据，合并到最老的段时才真正丢掉
+ * 读: 按从新到老的顺序查 当前memtable -> 冻结的memtable -> 各个段，第一个找到的就是结果
+ * 合并: 另一个后台线程把连续几个大小相近的段归并成一个(段太多时全部合并)，控制段的数量
+ *
+ * 目录里的文件:
+ * MANIFEST: 第一行是已经写成段的最大的日志id，之后是现在所有段的id(从新到老)，每次改都是写一个新的再改名
+ * run-id.sst/run-id.idx: 段，见SortedRun
+ * wal-id.log: 还没写成段的memtable的日志，重新打开时replay并直接写成段
+ * 不在MANIFEST里的段、.tmp都是崩溃时没做完的，打开时删掉
+ *
+ * 读的时候拿的是State快照，不加锁，memtable是ConcurrentRbtMap
+ * 查某个段时它正好被合并掉关闭了的话，用新的State重试
+ * 线程安全
+ * @Author: lilingyan
+ */
+public class LsmStore<K,V> implements Closeable {
+
+    /**
+     * 删除标记
+     */
+    static final Object TOMBSTONE = new Object();
+
+    public static final long DEFAULT_MEMTABLE_BYTES = 4 << 20;
+    /**
+     * 冻结了还没写到磁盘的memtable最多几个
+     */
+    static final int MAX_IMMUTABLES = 2;
+    /**
+     * 连续这么多个大小相近(最大的不超过最小的SIZE_RATIO倍)的段合并成一个
+     */
+    static final int COMPACTION_RUNS = 4;
+    static final int SIZE_RATIO = 4;
+    /**
+     * 段的数量到了这么多就全部合并
+     */
+    static final int MAX_RUNS = 16;
+    private static final String MANIFEST = "MANIFEST";
+
+    /**
+     * 追加了日志还没应用到memtable的写
+     */
+    private static final class Op<K> {
+        final long lsn;
+        final K key;
+        /**
+         * value或者墓碑
+         */
+        final Object value;
+
+        Op(long lsn, K key, Object value) {
+            this.lsn = lsn;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * 一个memtable和它的日志
+     */
+    private static final class Memtable<K,V> {
+        final long id;
+        final ConcurrentRbtMap<K,Object> map;
+        final WriteAheadLog<K,V> wal;
+        /**
+         * 按lsn从小到大(在LsmStore的锁里改)
+         */
+        final ArrayDeque<Op<K>> pending = new ArrayDeque<>();
+        /**
+         * 编码后的大小(估算，覆盖的也算)
+         */
+        long bytes = 0;
+
+        Memtable(long id, ConcurrentRbtMap<K,Object> map, WriteAheadLog<K,V> wal) {
+            this.id = id;
+            this.map = map;
+            this.wal = wal;
+        }
+    }
+
+    /**
+     * 读用的快照，不修改，每次变化整个换掉
+     */
+    private static final class State<K,V> {
+        final Memtable<K,V> active;
+        /**
+         * 从新到老
+         */
+        final List<Memtable<K,V>> immutables;
+        /**
+         * 从新到老
+         */
+        final List<SortedRun<K>> runs;
+
+        State(Memtable<K,V> active, List<Memtable<K,V>> immutables, List<SortedRun<K>> runs) {
+            this.active = active;
+            this.immutables = immutables;
+            this.runs = runs;
+        }
+    }
+
+    private final Path dir;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    /**
+     * 段里的value(带墓碑标记)
+     */
+    private final Codec<Object> runValueCodec;
+    private final Comparator<? super K> comparator;
+    private final long memtableBytes;
+    private final SyncPolicy syncPolicy;
+    private final ExecutorService flusher;
+    private final ExecutorService compactor;
+
+    private volatile State<K,V> state;
+    //=========================下面的都在this的锁里改==========================
+    private long nextId;
+    /**
+     * 已经写成段的最大的memtable(日志)id
+     */
+    private long flushedWal = 0;
+    private boolean compactionScheduled = false;
+    /**
+     * 提交日志、后台写段或者合并失败了，之后的写都直接报错
+     */
+    private IOException backgroundError;
+    private volatile boolean closed = false;
+
+    //=========================构造器==========================
+    /**
+     * 自然顺序，memtable 4MB，日志INTERVAL刷盘
+     * @see #LsmStore(Path, Codec, Codec, Comparator, long, SyncPolicy)
+     */
+    public LsmStore(Path dir, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        this(dir, keyCodec, valueCodec, null, DEFAULT_MEMTABLE_BYTES, SyncPolicy.INTERVAL);
+    }
+    /**
+     * 打开目录(不存在时新建)，replay上次没写成段的日志
+     * @param dir
+     * @param keyCodec
+     * @param valueCodec
+     * @param comparator    为null时用key的自然顺序，重新打开时要一致
+     * @param memtableBytes memtable攒到多大冻结
+     * @param syncPolicy    预写日志的刷盘策略
+     * @throws IOException
+     */
+    public LsmStore(Path dir, Codec<K> keyCodec, Codec<V> valueCodec, Comparator<? super K> comparator,
+                    long memtableBytes, SyncPolicy syncPolicy) throws IOException {
+        if (memtableBytes <= 0)
+            throw new IllegalArgumentException("memtableBytes: " + memtableBytes);
+        this.dir = dir;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.runValueCodec = SortedRun.valueCodec(valueCodec);
+        this.comparator = comparator;
+        this.memtableBytes = memtableBytes;
+        this.syncPolicy = syncPolicy;
+        Files.createDirectories(dir);
+        List<SortedRun<K>> runs = recover();
+        this.state = new State<>(newMemtable(), Collections.emptyList(), runs);
+        this.flusher = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-flush-" + dir.getFileName()));
+        this.compactor = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-compact-" + dir.getFileName()));
+        scheduleCompaction();
+    }
+    //=========================构造器==========================
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    //=========================恢复==========================
+    /**
+     * 读MANIFEST打开所有段，删掉没做完的文件，把剩下的日志replay写成段
+     * @return 所有段(从新到老)
+     */
+    private synchronized List<SortedRun<K>> recover() throws IOException {
+        List<Long> runIds = new ArrayList<>();
+        Path manifest = dir.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            if (lines.isEmpty())
+                throw new IOException("corrupted manifest: " + manifest);
+            flushedWal = Long.parseLong(lines.get(0).trim());
+            for (String line : lines.subList(1, lines.size())) {
+                if (!line.trim().isEmpty())
+                    runIds.add(Long.parseLong(line.trim()));
+            }
+        }
+        long maxId = 0;
+        List<Long> walIds = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                    continue;
+                }
+                long id = parseId(name);
+                if (id < 0)
+                    continue;
+                maxId = Math.max(maxId, id);
+                if (name.startsWith("wal-")) {
+                    if (id > flushedWal) {
+                        walIds.add(id);
+                    } else {
+                        //已经写成段了，只是还没来得及删
+                        Files.delete(file);
+                    }
+                } else if (!runIds.contains(id)) {
+                    //合并或者写段到一半
+                    Files.delete(file);
+                }
+            }
+        }
+        nextId = maxId + 1;
+        List<SortedRun<K>> runs = new ArrayList<>();
+        for (long id : runIds) {
+            runs.add(SortedRun.open(dir, id, keyCodec, runValueCodec, comparator));
+        }
+        Collections.sort(walIds);
+        for (long walId : walIds) {
+            RbtMap<K,Object> map = new RbtMap<>(comparator);
+            try (WriteAheadLog<K,V> wal = new WriteAheadLog<>(walPath(walId), keyCodec, valueCodec, SyncPolicy.NEVER)) {
+                wal.replay(new WriteAheadLog.Handler<K,V>() {
+                    @Override
+                    public void put(K key, V value) {
+                        map.put(key, value);
+                    }
+                    @Override
+                    public void remove(K key) {
+                        map.put(key, TOMBSTONE);
+                    }
+                });
+            }
+            if (map.size() > 0)
+                runs.add(0, SortedRun.write(dir, nextId++, map.iterator(), keyCodec, runValueCodec, comparator));
+            flushedWal = walId;
+            writeManifest(runs);
+            Files.delete(walPath(walId));
+        }
+        return runs;
+    }
+
+    /**
+     * run-id.sst、run-id.idx、wal-id.log里的id，别的文件返回-1
+     */
+    private static long parseId(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0)
+            return -1;
+        String prefix;
+        String suffix = name.substring(dot);
+        if (suffix.equals(".sst") || suffix.equals(".idx")) {
+            prefix = "run-";
+        } else if (suffix.equals(".log")) {
+            prefix = "wal-";
+        } else {
+            return -1;
+        }
+        if (!name.startsWith(prefix))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(prefix.length(), dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Path walPath(long id) {
+        return dir.resolve("wal-" + id + ".log");
+    }
+
+    /**
+     * 写一个新的MANIFEST.tmp，刷盘后改名替换
+     */
+    private void writeManifest(List<SortedRun<K>> runs) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(flushedWal).append('\n');
+        for (SortedRun<K> run : runs) {
+            sb.append(run.id).append('\n');
+        }
+        Path tmp = dir.resolve(MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    //=========================恢复==========================
+
+    //=========================写==========================
+    /**
+     * @param key
+     * @param value 不能是null
+     */
+    public void put(K key, V value) throws IOException {
+        if (value == null)
+            throw new NullPointerException("value");
+        write(key, value);
+    }
+    /**
+     * 写一个墓碑(不管原来有没有)
+     * @param key
+     */
+    public void remove(K key) throws IOException {
+        write(key, TOMBSTONE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(K key, Object value) throws IOException {
+        Memtable<K,V> memtable;
+        long lsn;
+        synchronized (this) {
+            checkWritable();
+            while (state.immutables.size() >= MAX_IMMUTABLES) {
+                await();
+                checkWritable();
+            }
+            memtable = state.active;
+            if (value == TOMBSTONE) {
+                lsn = memtable.wal.appendRemove(key);
+                memtable.bytes += keyCodec.sizeOf(key) + 1;
+            } else {
+                lsn = memtable.wal.appendPut(key, (V) value);
+                memtable.bytes += keyCodec.sizeOf(key) + valueCodec.sizeOf((V) value) + 1;
+            }
+            memtable.pending.add(new Op<>(lsn, key, value));
+            if (memtable.bytes >= memtableBytes)
+                freeze();
+        }
+        try {
+            memtable.wal.commit(lsn);
+        } catch (IOException | RuntimeException e) {
+            //还没应用的写留在pending里，这个memtable不会再写成段
+            fail(e);
+            throw e;
+        }
+        synchronized (this) {
+            //日志是顺序写的，lsn提交了，它前面的也都提交了；可能已经被别的线程应用过了
+            ArrayDeque<Op<K>> pending = memtable.pending;
+            while (!pending.isEmpty() && pending.peek().lsn <= lsn) {
+                Op<K> op = pending.poll();
+                memtable.map.put(op.key, op.value);
+            }
+            //冻结了的memtable要等都应用完才能写成段
+            if (pending.isEmpty() && memtable != state.active)
+                notifyAll();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed)
+            throw new IllegalStateException("closed");
+        if (backgroundError != null)
+            throw new IOException("log commit, background flush or compaction failed", backgroundError);
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private Memtable<K,V> newMemtable() throws IOException {
+        long id = nextId++;
+        return new Memtable<>(id, new ConcurrentRbtMap<>(comparator),
+                new WriteAheadLog<>(walPath(id), keyCodec, valueCodec, syncPolicy));
+    }
+
+    /**
+     * 冻结当前的memtable，交给后台写成段(在this的锁里调用)
+     */
+    private void freeze() throws IOException {
+        State<K,V> s = state;
+        Memtable<K,V> frozen = s.active;
+        List<Memtable<K,V>> immutables = new ArrayList<>(s.immutables.size() + 1);
+        immutables.add(frozen);
+        immutables.addAll(s.immutables);
+        state = new State<>(newMemtable(), immutables, s.runs);
+        flusher.execute(() -> flush(frozen));
+    }
+
+    /**
+     * 把冻结的memtable写成段(后台线程，按冻结的顺序一个一个写)
+     */
+    private void flush(Memtable<K,V> frozen) {
+        try {
+            long id;
+            synchronized (this) {
+                //等冻结前追加的写都提交、应用完；提交失败了就不写
+                while (!frozen.pending.isEmpty() && backgroundError == null)
+                    wait();
+                if (backgroundError != null)
+                    return;
+                id = nextId++;
+            }
+            SortedRun<K> run = SortedRun.write(dir, id, frozen.map.iterator(), keyCodec, runValueCodec, comparator);
+            synchronized (this) {
+                State<K,V> s = state;
+                List<Memtable<K,V>> immutables = new ArrayList<>(s.immutables);
+                immutables.remove(frozen);
+                List<SortedRun<K>> runs = new ArrayList<>(s.runs.size() + 1);
+                runs.add(run);
+                runs.addAll(s.runs);
+                flushedWal = frozen.id;
+                writeManifest(runs);
+                state = new State<>(s.active, immutables, runs);
+                notifyAll();
+            }
+            frozen.wal.close();
+            Files.deleteIfExists(walPath(frozen.id));
+            scheduleCompaction();
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException());
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void fail(Exception e) {
+        if (backgroundError == null)
+            backgroundError = e instanceof IOException ? (IOException) e : new IOException(e);
+        notifyAll();
+    }
+
+    /**
+     * 把当前memtable写成段，等所有冻结的memtable都写完
+     */
+    public synchronized void flush() throws IOException {
+        checkWritable();
+        if (state.active.map.size() > 0)
+            freeze();
+        while (!state.immutables.isEmpty()) {
+            await();
+            checkWritable();
+        }
+    }
+
+    /**
+     * 把当前memtable的日志刷盘(不管是什么SyncPolicy)
+     */
+    public void sync() throws IOException {
+        state.active.wal.sync();
+    }
+    //=========================写==========================
+
+    //=========================合并==========================
+    private void scheduleCompaction() {
+        synchronized (this) {
+            if (compactionScheduled || closed)
+                return;
+            compactionScheduled = true;
+        }
+        compactor.execute(() -> {
+            try {
+                while (true) {
+                    List<SortedRun<K>> window;
+                    synchronized (this) {
+                        window = closed ? null : pickCompaction(state.runs);
+                        if (window == null) {
+                            compactionScheduled = false;
+                            return;
+                        }
+                    }
+                    merge(window);
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    compactionScheduled = false;
+                }
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * 从新到老找连续COMPACTION_RUNS个大小相近的段，段太多时全部合并
+     * @return 要合并的段，不需要合并时返回null
+     */
+    private static <K> List<SortedRun<K>> pickCompaction(List<SortedRun<K>> runs) {
+        int n = runs.size();
+        if (n >= MAX_RUNS)
+            return new ArrayList<>(runs);
+        for (int i = 0; i + COMPACTION_RUNS <= n; i++) {
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int j = i; j < i + COMPACTION_RUNS; j++) {
+                long bytes = runs.get(j).bytes();
+                min = Math.min(min, bytes);
+                max = Math.max(max, bytes);
+            }
+            if (max <= SIZE_RATIO * min)
+                return new ArrayList<>(runs.subList(i, i + COMPACTION_RUNS));
+        }
+        return null;
+    }
+
+    /**
+     * 把连续的几个段归并成一个，替换掉原来的位置(后台线程)
+     * 包括最老的段时丢掉墓碑
+     * @param window    从新到老，在state.runs里是连续的
+     */
+    private void merge(List<SortedRun<K>> window) throws IOException {
+        long id;
+        boolean dropTombstones;
+        synchronized (this) {
+            id = nextId++;
+            List<SortedRun<K>> runs = state.runs;
+            dropTombstones = window.get(window.size() - 1) == runs.get(runs.size() - 1);
+        }
+        List<SortedMapFile.Reader<K,Object>> readers = new ArrayList<>(window.size());
+        try {
+            for (SortedRun<K> run : window) {
+                readers.add(run.openReader(keyCodec));
+            }
+            SortedRun<K> merged = SortedRun.write(dir, id, new MergeIterator<>(readers, comparator, dropTombstones),
+                    keyCodec, runValueCodec, comparator);
+            if (merged.count() == 0) {
+                //全是墓碑
+                merged.delete();
+                merged = null;
+            }
+            synchronized (this) {
+                State<K,V> s = state;
+                List<SortedRun<K>> runs = new ArrayList<>(s.runs);
+                //写段只会加在最前面，合并只有这一个线程，所以还是连续的
+                int at = runs.indexOf(window.get(0));
+                runs.subList(at, at + window.size()).clear();
+                if (merged != null)
+                    runs.add(at, merged);
+                writeManifest(runs);
+                state = new State<>(s.active, s.immutables, runs);
+            }
+        } finally {
+            for (SortedMapFile.Reader<K,Object> reader : readers) {
+                reader.close();
+            }
+        }
+        //正在查这些段的读会拿到ClosedChannelException，然后用新的state重试
+        for (SortedRun<K> run : window) {
+            run.delete();
+        }
+    }
+
+    /**
+     * 把所有段合并成一个(在合并线程里做，等它完成)
+     */
+    public void compact() throws IOException {
+        if (closed)
+            throw new IllegalStateException("closed");
+        try {
+            compactor.submit(() -> {
+                List<SortedRun<K>> runs = state.runs;
+                if (runs.size() > 1)
+                    merge(new ArrayList<>(runs));
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+    //=========================合并==========================
+
+    //=========================读==========================
+    /**
+     * @param key
+     * @return 没有或者已经删除时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) throws IOException {
+        while (true) {
+            if (closed)
+                throw new IllegalStateException("closed");
+            State<K,V> s = state;
+            try {
+                Object value = find(s, key);
+                return value == TOMBSTONE ? null : (V) value;
+            } catch (ClosedByInterruptException e) {
+                //当前线程被中断了，段还能用(已经重新打开了)
+                throw e;
+            } catch (ClosedChannelException e) {
+                //查的段被合并掉了，用新的state重试
+                if (state == s)
+                    throw e;
+            }
+        }
+    }
+
+    public boolean containsKey(K key) throws IOException {
+        return get(key) != null;
+    }
+
+    /**
+     * 从新到老查，第一个找到的(可能是墓碑)就是结果
+     */
+    private Object find(State<K,V> s, K key) throws IOException {
+        Object value = s.active.map.get(key);
+        if (value != null)
+            return value;
+        for (Memtable<K,V> memtable : s.immutables) {
+            value = memtable.map.get(key);
+            if (value != null)
+                return value;
+        }
+        for (SortedRun<K> run : s.runs) {
+            value = run.get(key);
+            if (value != null)
+                return value;
+        }
+        return null;
+    }
+    //=========================读==========================
+
+    /**
+     * @return 磁盘上段的数量
+     */
+    public int runCount() {
+        return state.runs.size();
+    }
+
+    /**
+     * @return 磁盘上所有段的记录数之和(包括墓碑和被遮住的旧版本)
+     */
+    public long runEntries() {
+        long count = 0;
+        for (SortedRun<K> run : state.runs) {
+            count += run.count();
+        }
+        return count;
+    }
+
+    /**
+     * 等后台写段和合并做完，关闭日志和所有段
+     * 当前memtable不写成段，下次打开时从日志恢复
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        flusher.shutdown();
+        compactor.shutdown();
+        try {
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        State<K,V> s = state;
+        List<WriteAheadLog<K,V>> wals = new ArrayList<>();
+        wals.add(s.active.wal);
+        for (Memtable<K,V> memtable : s.immutables) {
+            //写段失败时还留在这里
+            wals.add(memtable.wal);
+        }
+        //提交失败过的日志close时会报错，其他的也要关掉
+        IOException error = null;
+        for (WriteAheadLog<K,V> wal : wals) {
+            try {
+                wal.close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        for (SortedRun<K> run : s.runs) {
+            run.close();
+        }
+        if (error != null)
+            throw error;
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.lilingyan.lsm;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * 多路归并几个有序的迭代器
+ * 同一个key只留最新的(sources里下标小的是新的)
+ * @Author: lilingyan
+ */
+final class MergeIterator<K> implements Iterator<Map.Entry<K,Object>> {
+
+    /**
+     * 每一路当前的记录
+     */
+    private static final class Head<K> {
+        final Iterator<? extends Map.Entry<K,Object>> source;
+        final int age;
+        Map.Entry<K,Object> entry;
+
+        Head(Iterator<? extends Map.Entry<K,Object>> source, int age) {
+            this.source = source;
+            this.age = age;
+        }
+    }
+
+    private final PriorityQueue<Head<K>> heads;
+    private final Comparator<? super K> comparator;
+    /**
+     * 是否丢掉墓碑(合并了最老的段，没有更老的数据需要被它遮住了)
+     */
+    private final boolean dropTombstones;
+    private Map.Entry<K,Object> next;
+
+    /**
+     * @param sources           从新到老
+     * @param comparator        null时用key的自然顺序
+     * @param dropTombstones
+     */
+    MergeIterator(List<? extends Iterator<? extends Map.Entry<K,Object>>> sources, Comparator<? super K> comparator,
+                  boolean dropTombstones) {
+        this.comparator = comparator;
+        this.dropTombstones = dropTombstones;
+        this.heads = new PriorityQueue<>(Math.max(1, sources.size()), (h1, h2) -> {
+            int c = compare(h1.entry.getKey(), h2.entry.getKey());
+            return c != 0 ? c : Integer.compare(h1.age, h2.age);
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            advance(new Head<>(sources.get(i), i));
+        }
+        next = fetch();
+    }
+
+    private void advance(Head<K> head) {
+        if (head.source.hasNext()) {
+            head.entry = head.source.next();
+            heads.add(head);
+        }
+    }
+
+    private Map.Entry<K,Object> fetch() {
+        while (!heads.isEmpty()) {
+            Head<K> head = heads.poll();
+            Map.Entry<K,Object> entry = head.entry;
+            advance(head);
+            //同一个key更老的版本跳过
+            while (!heads.isEmpty() && compare(heads.peek().entry.getKey(), entry.getKey()) == 0) {
+                advance(heads.poll());
+            }
+            if (dropTombstones && entry.getValue() == LsmStore.TOMBSTONE)
+                continue;
+            return entry;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(K k1, K k2) {
+        return comparator == null ? ((Comparable<? super K>) k1).compareTo(k2) : comparator.compare(k1, k2);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Map.Entry<K,Object> next() {
+        if (next == null)
+            throw new NoSuchElementException();
+        Map.Entry<K,Object> entry = next;
+        next = fetch();
+        return entry;
+    }
+
+}
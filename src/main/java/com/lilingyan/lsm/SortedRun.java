@@ -0,0 +1,314 @@
+package com.lilingyan.lsm;
+
+import com.lilingyan.io.Codec;
+import com.lilingyan.io.Codecs;
+import com.lilingyan.io.SortedMapFile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 磁盘上一个不可变的有序段
+ *
+ * 两个文件:
+ * run-id.sst: SortedMapFile，value前面多一个字节标记是不是删除(墓碑)
+ * run-id.idx: 稀疏索引，也是SortedMapFile，每隔INDEX_INTERVAL条记一条(key -> 偏移)，最后再记一条(最大的key -> 文件结尾)
+ * 索引整个读进内存，查找时二分找到所在的块，把整块(最多INDEX_INTERVAL条)一次读进当前线程的buffer里再解码
+ *
+ * 先写成.tmp，写完再改名，索引先改名，所以有.sst的段一定是完整的
+ * 查找用指定位置的读(FileChannel#read(ByteBuffer, long))，不改channel的位置，多个线程同时查不用加锁
+ * close()之后查找抛ClosedChannelException
+ * 查找的线程被中断时FileChannel会被关掉(ClosedByInterruptException)，这时重新打开一个，
+ * 被中断的线程拿到ClosedByInterruptException，同时在读被影响的线程重试
+ * @Author: lilingyan
+ */
+final class SortedRun<K> {
+
+    /**
+     * 稀疏索引的间隔(也是查找时最多顺序读的记录数)
+     */
+    static final int INDEX_INTERVAL = 64;
+    /**
+     * 每个线程查找时读块用的buffer，初始差不多能放下一个块，不够时换大的
+     */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(READ_BUFFER_SIZE));
+
+    final long id;
+    final Path path;
+    final Path indexPath;
+    private final Comparator<? super K> comparator;
+    private final Codec<K> keyCodec;
+    private final Codec<Object> valueCodec;
+    /**
+     * 稀疏索引，最后一个是最大的key和文件结尾
+     */
+    private final K[] indexKeys;
+    private final long[] indexOffsets;
+    private final long count;
+    private final long bytes;
+    /**
+     * 被中断关掉时换成新的
+     */
+    private volatile FileChannel channel;
+    private volatile boolean closed = false;
+
+    @SuppressWarnings("unchecked")
+    private SortedRun(long id, Path path, Path indexPath, Codec<K> keyCodec, Codec<Object> valueCodec,
+                      Comparator<? super K> comparator) throws IOException {
+        this.id = id;
+        this.path = path;
+        this.indexPath = indexPath;
+        this.comparator = comparator;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        List<K> keys = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        try (SortedMapFile.Reader<K,Long> index = SortedMapFile.open(indexPath, keyCodec, Codecs.LONG)) {
+            while (index.hasNext()) {
+                Map.Entry<K,Long> e = index.next();
+                keys.add(e.getKey());
+                offsets.add(e.getValue());
+            }
+        }
+        this.indexKeys = (K[]) keys.toArray();
+        this.indexOffsets = new long[offsets.size()];
+        for (int i = 0; i < indexOffsets.length; i++) {
+            indexOffsets[i] = offsets.get(i);
+        }
+        //只用来校验头部、拿到数量
+        try (SortedMapFile.Reader<K,Object> reader = new SortedMapFile.Reader<>(path, keyCodec, valueCodec, READ_BUFFER_SIZE)) {
+            this.count = reader.count();
+        }
+        this.bytes = Files.size(path);
+        if (count > 0 && indexKeys.length < 2)
+            throw new IOException("corrupted index: " + indexPath);
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    //=========================文件==========================
+    static Path runPath(Path dir, long id) {
+        return dir.resolve("run-" + id + ".sst");
+    }
+    static Path indexPath(Path dir, long id) {
+        return dir.resolve("run-" + id + ".idx");
+    }
+
+    /**
+     * 打开已有的段
+     */
+    static <K> SortedRun<K> open(Path dir, long id, Codec<K> keyCodec, Codec<Object> valueCodec,
+                                 Comparator<? super K> comparator) throws IOException {
+        return new SortedRun<>(id, runPath(dir, id), indexPath(dir, id), keyCodec, valueCodec, comparator);
+    }
+
+    /**
+     * 把有序的记录写成一个新的段并打开
+     * @param entries   按key严格递增，value是LsmStore.TOMBSTONE表示删除
+     */
+    static <K> SortedRun<K> write(Path dir, long id, Iterator<? extends Map.Entry<K,Object>> entries,
+                                  Codec<K> keyCodec, Codec<Object> valueCodec,
+                                  Comparator<? super K> comparator) throws IOException {
+        Path path = runPath(dir, id);
+        Path indexPath = indexPath(dir, id);
+        Path tmp = dir.resolve(path.getFileName() + ".tmp");
+        Path indexTmp = dir.resolve(indexPath.getFileName() + ".tmp");
+        List<Map.Entry<K,Long>> index = new ArrayList<>();
+        try (SortedMapFile.Writer<K,Object> writer = new SortedMapFile.Writer<>(tmp, keyCodec, valueCodec,
+                SortedMapFile.DEFAULT_BUFFER_SIZE)) {
+            K last = null;
+            while (entries.hasNext()) {
+                Map.Entry<K,Object> e = entries.next();
+                if (writer.count() % INDEX_INTERVAL == 0)
+                    index.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), writer.position()));
+                writer.append(e.getKey(), e.getValue());
+                last = e.getKey();
+            }
+            if (last != null)
+                index.add(new AbstractMap.SimpleImmutableEntry<>(last, writer.position()));
+        }
+        SortedMapFile.save(indexTmp, index, keyCodec, Codecs.LONG);
+        Files.move(indexTmp, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return new SortedRun<>(id, path, indexPath, keyCodec, valueCodec, comparator);
+    }
+    //=========================文件==========================
+
+    //=========================查找==========================
+    /**
+     * @param key
+     * @return value，删除了是LsmStore.TOMBSTONE，这个段里没有是null
+     * @throws ClosedChannelException   已经被合并掉关闭了
+     */
+    Object get(K key) throws IOException {
+        int last = indexKeys.length - 1;
+        if (count == 0 || compare(key, indexKeys[0]) < 0 || compare(key, indexKeys[last]) > 0)
+            return null;
+        //最后一个块里key不大于key的索引(不包括末尾的哨兵)
+        int lo = 0;
+        int hi = last - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (compare(indexKeys[mid], key) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long n = Math.min(INDEX_INTERVAL, count - (long) lo * INDEX_INTERVAL);
+        ByteBuffer block = readBlock(indexOffsets[lo], (int) (indexOffsets[lo + 1] - indexOffsets[lo]));
+        for (long i = 0; i < n; i++) {
+            int c = compare(SortedMapFile.decode(block, keyCodec), key);
+            if (c == 0)
+                return SortedMapFile.decode(block, valueCodec);
+            if (c > 0)
+                return null;
+            SortedMapFile.skip(block, valueCodec);
+        }
+        return null;
+    }
+
+    /**
+     * 把[offset, offset + length)读进当前线程的buffer
+     * @throws ClosedChannelException       已经被合并掉关闭了
+     * @throws ClosedByInterruptException   当前线程被中断了
+     */
+    private ByteBuffer readBlock(long offset, int length) throws IOException {
+        ByteBuffer block = READ_BUFFER.get();
+        if (block.capacity() < length) {
+            block = ByteBuffer.allocate(length);
+            READ_BUFFER.set(block);
+        }
+        while (true) {
+            if (closed)
+                throw new ClosedChannelException();
+            FileChannel ch = channel;
+            block.clear();
+            block.limit(length);
+            try {
+                while (block.hasRemaining()) {
+                    if (ch.read(block, offset + block.position()) < 0)
+                        throw new EOFException();
+                }
+                block.flip();
+                return block;
+            } catch (ClosedByInterruptException e) {
+                reopen(ch);
+                throw e;
+            } catch (ClosedChannelException e) {
+                //别的线程被中断时关掉的(close()关的话下一轮抛出去)
+                reopen(ch);
+            }
+        }
+    }
+
+    /**
+     * ch被中断关掉了，换一个新的(别的线程已经换过了就不用了)
+     */
+    private synchronized void reopen(FileChannel ch) throws IOException {
+        if (!closed && channel == ch && !ch.isOpen())
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(K k1, K k2) {
+        return comparator == null ? ((Comparable<? super K>) k1).compareTo(k2) : comparator.compare(k1, k2);
+    }
+    //=========================查找==========================
+
+    /**
+     * 从头顺序读(合并用)，用完要关闭
+     */
+    SortedMapFile.Reader<K,Object> openReader(Codec<K> keyCodec) throws IOException {
+        return SortedMapFile.open(path, keyCodec, valueCodec);
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * @return 文件大小
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        channel.close();
+    }
+
+    /**
+     * 关闭并删除两个文件
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(indexPath);
+    }
+
+    //=========================value编码==========================
+    /**
+     * 在value前面加一个字节: 1是正常的value，0是墓碑
+     * 定长的value墓碑后面补0，保持定长
+     */
+    static <V> Codec<Object> valueCodec(Codec<V> codec) {
+        return new Codec<Object>() {
+            @Override
+            public int fixedSize() {
+                return codec.fixedSize() < 0 ? -1 : codec.fixedSize() + 1;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public int sizeOf(Object value) {
+                if (value == LsmStore.TOMBSTONE)
+                    return codec.fixedSize() < 0 ? 1 : codec.fixedSize() + 1;
+                return codec.sizeOf((V) value) + 1;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public void encode(Object value, ByteBuffer buffer) {
+                if (value == LsmStore.TOMBSTONE) {
+                    buffer.put((byte) 0);
+                    for (int i = 0; i < codec.fixedSize(); i++) {
+                        buffer.put((byte) 0);
+                    }
+                    return;
+                }
+                buffer.put((byte) 1);
+                codec.encode((V) value, buffer);
+            }
+
+            @Override
+            public Object decode(ByteBuffer buffer, int length) {
+                if (buffer.get() == 0) {
+                    buffer.position(buffer.position() + length - 1);
+                    return LsmStore.TOMBSTONE;
+                }
+                return codec.decode(buffer, length - 1);
+            }
+        };
+    }
+    //=========================value编码==========================
+
+}
@@ -0,0 +1,548 @@
+package com.lilingyan.rbt;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 数组存储的红黑树
+ * 算法与RbtMap完全一样，区别是没有RbtEntry对象
+ * 每个节点只是一个int下标(slot)，key/value/左右父指针/颜色分别放在几个平行数组里
+ *
+ * 好处:
+ * 1. 指针变成了int下标，父子节点在数组里大概率挨得近，缓存命中率高
+ * 2. 整棵树只有几个大数组，gc标记时不需要遍历几百万个小对象
+ * 3. 省掉了每个节点的对象头和引用的开销
+ *
+ * 删除的slot挂到空闲链表上(用left数组串起来)，下次插入优先复用
+ * @Author: lilingyan
+ */
+public class ArrayRbtMap<K,V> {
+
+    /**
+     * 空节点(相当于RbtMap里的null)
+     */
+    static final int NIL = -1;
+
+    private static final boolean RED   = false;
+    private static final boolean BLACK = true;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * 自定义的Comparator 作用于树节点的排序(可以没有)
+     * 如果没有 则用树节点的key compare直接比较(如果不存在自定义的Comparator  则key必须实现Comparable接口)
+     */
+    protected final Comparator<? super K> comparator;
+
+    //=========================节点存储(下标相同的是同一个节点)==========================
+    private Object[] keys;
+    private Object[] values;
+    private int[] left;
+    private int[] right;
+    private int[] parent;
+    private boolean[] color;
+    //=========================节点存储==========================
+
+    /**
+     * 这颗树的根节点
+     */
+    private int root = NIL;
+    /**
+     * 在这个树中存在的节点数量
+     */
+    private int size = 0;
+    /**
+     * 从没被用过的slot从这里开始分配
+     */
+    private int nextSlot = 0;
+    /**
+     * 空闲链表的头(被删除的slot)，用left数组指向下一个空闲slot
+     */
+    private int freeHead = NIL;
+
+    //=========================构造器==========================
+    public ArrayRbtMap() {
+        this(null, DEFAULT_CAPACITY);
+    }
+    public ArrayRbtMap(Comparator<? super K> comparator) {
+        this(comparator, DEFAULT_CAPACITY);
+    }
+    public ArrayRbtMap(Comparator<? super K> comparator, int initialCapacity) {
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException("initialCapacity: " + initialCapacity);
+        this.comparator = comparator;
+        keys = new Object[initialCapacity];
+        values = new Object[initialCapacity];
+        left = new int[initialCapacity];
+        right = new int[initialCapacity];
+        parent = new int[initialCapacity];
+        color = new boolean[initialCapacity];
+    }
+    //=========================构造器==========================
+
+    //=========================slot分配==========================
+    /**
+     * 分配一个slot(优先从空闲链表里拿)
+     * 新节点默认黑色，没有子节点
+     */
+    private int allocate(K key, V value, int p) {
+        int x;
+        if (freeHead != NIL) {
+            x = freeHead;
+            freeHead = left[x];
+        } else {
+            if (nextSlot == keys.length)
+                grow();
+            x = nextSlot++;
+        }
+        keys[x] = key;
+        values[x] = value;
+        left[x] = NIL;
+        right[x] = NIL;
+        parent[x] = p;
+        color[x] = BLACK;
+        return x;
+    }
+    /**
+     * 释放slot，挂到空闲链表头上
+     * key和value要置空，否则对象会一直被数组引用着
+     */
+    private void free(int x) {
+        keys[x] = null;
+        values[x] = null;
+        right[x] = NIL;
+        parent[x] = NIL;
+        left[x] = freeHead;
+        freeHead = x;
+    }
+    /**
+     * 所有数组扩容1.5倍
+     */
+    private void grow() {
+        int oldCapacity = keys.length;
+        int newCapacity = oldCapacity + (oldCapacity >> 1) + 1;
+        if (newCapacity < 0)
+            throw new OutOfMemoryError("ArrayRbtMap too large");
+        keys = Arrays.copyOf(keys, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+        left = Arrays.copyOf(left, newCapacity);
+        right = Arrays.copyOf(right, newCapacity);
+        parent = Arrays.copyOf(parent, newCapacity);
+        color = Arrays.copyOf(color, newCapacity);
+    }
+    //=========================slot分配==========================
+
+    //=========================添加==========================
+    /**
+     * 加入一个节点
+     * 解释参照RbtMap#put
+     * @param key
+     * @param value
+     * @return
+     */
+    @SuppressWarnings({"Duplicates", "unchecked"})
+    public V put(K key, V value) {
+        int t = root;
+        if (t == NIL) {
+            //校验key类型(可能是null)
+            compare(key, key);
+
+            root = allocate(key, value, NIL);
+            size = 1;
+            return null;
+        }
+        int cmp;
+        int p;
+        Comparator<? super K> cpr = comparator;
+        if (cpr != null) {
+            do {
+                p = t;
+                cmp = cpr.compare(key, (K) keys[t]);
+                if (cmp < 0)
+                    t = left[t];
+                else if (cmp > 0)
+                    t = right[t];
+                else
+                    return setValue(t, value);
+            } while (t != NIL);
+        } else {
+            if (key == null)
+                throw new NullPointerException();
+            Comparable<? super K> k = (Comparable<? super K>) key;
+            do {
+                p = t;
+                cmp = k.compareTo((K) keys[t]);
+                if (cmp < 0)
+                    t = left[t];
+                else if (cmp > 0)
+                    t = right[t];
+                else
+                    return setValue(t, value);
+            } while (t != NIL);
+        }
+
+        int e = allocate(key, value, p);
+        if (cmp < 0)
+            left[p] = e;
+        else
+            right[p] = e;
+        fixAfterInsertion(e);
+        size++;
+        return null;
+    }
+    @SuppressWarnings("unchecked")
+    private V setValue(int x, V value) {
+        V oldValue = (V) values[x];
+        values[x] = value;
+        return oldValue;
+    }
+    //=========================添加==========================
+
+    //=========================删除==========================
+    /**
+     * 删除节点
+     * @param key   需要删除的节点的key
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        int p = getEntry(key);
+        if (p == NIL)
+            return null;
+
+        V oldValue = (V) values[p];
+        deleteEntry(p);
+        return oldValue;
+    }
+    /**
+     * 删除节点
+     * 解释参照RbtMap#deleteEntry
+     * 最终被摘掉的slot放回空闲链表
+     * @param p 需要删除的节点
+     */
+    @SuppressWarnings("Duplicates")
+    private void deleteEntry(int p) {
+        size--;
+
+        if (left[p] != NIL && right[p] != NIL) {
+            int s = successor(p);
+            keys[p] = keys[s];
+            values[p] = values[s];
+            p = s;
+        }
+
+        int replacement = (left[p] != NIL ? left[p] : right[p]);
+
+        if (replacement != NIL) {
+            parent[replacement] = parent[p];
+            if (parent[p] == NIL)
+                root = replacement;
+            else if (p == left[parent[p]])
+                left[parent[p]] = replacement;
+            else
+                right[parent[p]] = replacement;
+
+            boolean removedColor = color[p];
+            free(p);
+
+            if (removedColor == BLACK)
+                fixAfterDeletion(replacement);
+        } else if (parent[p] == NIL) {
+            root = NIL;
+            free(p);
+        } else {
+            if (color[p] == BLACK)
+                fixAfterDeletion(p);
+
+            if (parent[p] != NIL) {
+                if (p == left[parent[p]])
+                    left[parent[p]] = NIL;
+                else if (p == right[parent[p]])
+                    right[parent[p]] = NIL;
+            }
+            free(p);
+        }
+    }
+    //=========================删除==========================
+
+    //=========================插入删除后的调整==========================
+    /**
+     * 插入后的调整
+     * 解释参照RbtMap#fixAfterInsertion
+     * @param x
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterInsertion(int x) {
+        color[x] = RED;
+
+        while (x != NIL && x != root && color[parent[x]] == RED) {
+            if (parentOf(x) == leftOf(parentOf(parentOf(x)))) {
+                int y = rightOf(parentOf(parentOf(x)));
+                if (colorOf(y) == RED) {
+                    setColor(parentOf(x), BLACK);
+                    setColor(y, BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    x = parentOf(parentOf(x));
+                } else {
+                    if (x == rightOf(parentOf(x))) {
+                        x = parentOf(x);
+                        rotateLeft(x);
+                    }
+                    setColor(parentOf(x), BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    rotateRight(parentOf(parentOf(x)));
+                }
+            } else {
+                int y = leftOf(parentOf(parentOf(x)));
+                if (colorOf(y) == RED) {
+                    setColor(parentOf(x), BLACK);
+                    setColor(y, BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    x = parentOf(parentOf(x));
+                } else {
+                    if (x == leftOf(parentOf(x))) {
+                        x = parentOf(x);
+                        rotateRight(x);
+                    }
+                    setColor(parentOf(x), BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    rotateLeft(parentOf(parentOf(x)));
+                }
+            }
+        }
+        color[root] = BLACK;
+    }
+    /**
+     * 删除后调整
+     * 解释参照RbtMap#fixAfterDeletion
+     * @param x
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterDeletion(int x) {
+        while (x != root && colorOf(x) == BLACK) {
+            if (x == leftOf(parentOf(x))) {
+                int sib = rightOf(parentOf(x));
+
+                if (colorOf(sib) == RED) {
+                    setColor(sib, BLACK);
+                    setColor(parentOf(x), RED);
+                    rotateLeft(parentOf(x));
+                    sib = rightOf(parentOf(x));
+                }
+
+                if (colorOf(leftOf(sib))  == BLACK &&
+                        colorOf(rightOf(sib)) == BLACK) {
+                    setColor(sib, RED);
+                    x = parentOf(x);
+                } else {
+                    if (colorOf(rightOf(sib)) == BLACK) {
+                        setColor(leftOf(sib), BLACK);
+                        setColor(sib, RED);
+                        rotateRight(sib);
+                        sib = rightOf(parentOf(x));
+                    }
+                    setColor(sib, colorOf(parentOf(x)));
+                    setColor(parentOf(x), BLACK);
+                    setColor(rightOf(sib), BLACK);
+                    rotateLeft(parentOf(x));
+                    x = root;
+                }
+            } else {
+                int sib = leftOf(parentOf(x));
+
+                if (colorOf(sib) == RED) {
+                    setColor(sib, BLACK);
+                    setColor(parentOf(x), RED);
+                    rotateRight(parentOf(x));
+                    sib = leftOf(parentOf(x));
+                }
+
+                if (colorOf(rightOf(sib)) == BLACK &&
+                        colorOf(leftOf(sib)) == BLACK) {
+                    setColor(sib, RED);
+                    x = parentOf(x);
+                } else {
+                    if (colorOf(leftOf(sib)) == BLACK) {
+                        setColor(rightOf(sib), BLACK);
+                        setColor(sib, RED);
+                        rotateLeft(sib);
+                        sib = leftOf(parentOf(x));
+                    }
+                    setColor(sib, colorOf(parentOf(x)));
+                    setColor(parentOf(x), BLACK);
+                    setColor(leftOf(sib), BLACK);
+                    rotateRight(parentOf(x));
+                    x = root;
+                }
+            }
+        }
+
+        setColor(x, BLACK);
+    }
+    //=========================插入删除后的调整==========================
+
+    //=========================左右旋转==========================
+    @SuppressWarnings("Duplicates")
+    private void rotateLeft(int p) {
+        if (p != NIL) {
+            int r = right[p];
+            right[p] = left[r];
+            if (left[r] != NIL)
+                parent[left[r]] = p;
+            parent[r] = parent[p];
+            if (parent[p] == NIL)
+                root = r;
+            else if (left[parent[p]] == p)
+                left[parent[p]] = r;
+            else
+                right[parent[p]] = r;
+            left[r] = p;
+            parent[p] = r;
+        }
+    }
+    @SuppressWarnings("Duplicates")
+    private void rotateRight(int p) {
+        if (p != NIL) {
+            int l = left[p];
+            left[p] = right[l];
+            if (right[l] != NIL) parent[right[l]] = p;
+            parent[l] = parent[p];
+            if (parent[p] == NIL)
+                root = l;
+            else if (right[parent[p]] == p)
+                right[parent[p]] = l;
+            else left[parent[p]] = l;
+            right[l] = p;
+            parent[p] = l;
+        }
+    }
+    //=========================左右旋转==========================
+
+    //=========================查找==========================
+    /**
+     * 使用key查询节点对象的值
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int p = getEntry(key);
+        return (p == NIL ? null : (V) values[p]);
+    }
+    /**
+     * 使用key查询节点
+     * @param key
+     * @return 节点的slot，没有则是NIL
+     */
+    @SuppressWarnings({"Duplicates", "unchecked"})
+    final int getEntry(Object key) {
+        if (comparator != null)
+            return getEntryUsingComparator(key);
+        if (key == null)
+            throw new NullPointerException();
+        Comparable<? super K> k = (Comparable<? super K>) key;
+        int p = root;
+        while (p != NIL) {
+            int cmp = k.compareTo((K) keys[p]);
+            if (cmp < 0)
+                p = left[p];
+            else if (cmp > 0)
+                p = right[p];
+            else
+                return p;
+        }
+        return NIL;
+    }
+    /**
+     * 使用比较器查找
+     * @param key   需要查找的key
+     * @return
+     */
+    @SuppressWarnings({"Duplicates", "unchecked"})
+    final int getEntryUsingComparator(Object key) {
+        K k = (K) key;
+        Comparator<? super K> cpr = comparator;
+        int p = root;
+        while (p != NIL) {
+            int cmp = cpr.compare(k, (K) keys[p]);
+            if (cmp < 0)
+                p = left[p];
+            else if (cmp > 0)
+                p = right[p];
+            else
+                return p;
+        }
+        return NIL;
+    }
+    /**
+     * 获取后继节点
+     * 解释参照RbtMap#successor
+     * @param t
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final int successor(int t) {
+        if (t == NIL)
+            return NIL;
+        else if (right[t] != NIL) {
+            int p = right[t];
+            while (left[p] != NIL)
+                p = left[p];
+            return p;
+        } else {
+            int p = parent[t];
+            int ch = t;
+            while (p != NIL && ch == right[p]) {
+                ch = p;
+                p = parent[p];
+            }
+            return p;
+        }
+    }
+    /**
+     * 判断key是否存在
+     * @param key
+     * @return
+     */
+    public boolean containsKey(Object key) {
+        return getEntry(key) != NIL;
+    }
+    //=========================查找==========================
+
+    //=========================一些常用方法封装==========================
+    private boolean colorOf(int p) {
+        return (p == NIL ? BLACK : color[p]);
+    }
+    private int parentOf(int p) {
+        return (p == NIL ? NIL : parent[p]);
+    }
+    private void setColor(int p, boolean c) {
+        if (p != NIL)
+            color[p] = c;
+    }
+    private int leftOf(int p) {
+        return (p == NIL) ? NIL : left[p];
+    }
+    private int rightOf(int p) {
+        return (p == NIL) ? NIL : right[p];
+    }
+    @SuppressWarnings("unchecked")
+    final int compare(Object k1, Object k2) {
+        return comparator==null ? ((Comparable<? super K>)k1).compareTo((K)k2)
+                : comparator.compare((K)k1, (K)k2);
+    }
+    //=========================一些常用方法封装==========================
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * 当前数组的容量(已分配的slot数)
+     * @return
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+}
@@ -0,0 +1,442 @@
+package com.lilingyan.rbt;
+
+import com.lilingyan.frozen.FrozenMap;
+
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 线程安全的红黑树(读多写少)
+ * 写(put/remove)拿StampedLock的写锁，和RbtMap的逻辑完全一样
+ * 读(get/containsKey)先不加锁直接查(乐观读)，查完校验这期间有没有写锁被拿过
+ * 没有就直接返回，有就重试，重试几次还不行再老老实实拿读锁
+ *
+ * 乐观读的时候树可能正在被旋转，看到的指针不一定一致:
+ * 1. 可能看到还没初始化完的节点(key为null)，比较时抛异常 -> 捕获后重试
+ * 2. 可能在几个节点之间绕圈 -> 限制查找的步数，红黑树高度不会超过2log(n+1)，超过MAX_DEPTH就肯定是读乱了
+ *
+ * 只有get/containsKey/put/remove/size/buildFromSorted/putAll/putAllSorted、排名(rank/select/countInRange/percentile)
+ * 和导航(first/last/floor/ceiling/higher/lowerEntry)是线程安全的，排名和导航直接拿读锁
+ * select/percentile和导航返回的是持锁时拷贝出来的不可变Entry，不是树里的节点(节点解锁后可能被删掉或者改值)
+ * split/join/集合运算只锁这颗树，作为参数的另一棵树需要调用方自己保证没有并发读写
+ * 游标的remove/setValue拿写锁，不会让并发的乐观读读错；游标的定位和移动不加锁，需要调用方自己保证没有并发写
+ * 遍历等其他方法需要调用方自己保证没有并发写
+ * @Author: lilingyan
+ */
+public class ConcurrentRbtMap<K,V> extends RbtMap<K,V> {
+
+    /**
+     * 乐观读最多重试的次数
+     */
+    private static final int OPTIMISTIC_RETRIES = 2;
+    /**
+     * size是int，红黑树高度最多2*31=62，超过这个步数一定是读到了不一致的指针
+     */
+    private static final int MAX_DEPTH = 64;
+    /**
+     * 乐观读失败的标记
+     */
+    private static final Object RETRY = new Object();
+
+    private final StampedLock lock = new StampedLock();
+
+    //=========================构造器==========================
+    public ConcurrentRbtMap() {
+        super();
+    }
+    public ConcurrentRbtMap(Comparator<? super K> comparator) {
+        super(comparator);
+    }
+    //=========================构造器==========================
+
+    //=========================写==========================
+    @Override
+    public V put(K key, V value) {
+        long stamp = lock.writeLock();
+        try {
+            return super.put(key, value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        long stamp = lock.writeLock();
+        try {
+            return super.remove(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size, boolean checkOrder) {
+        long stamp = lock.writeLock();
+        try {
+            super.buildFromSorted(it, size, checkOrder);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        long stamp = lock.writeLock();
+        try {
+            super.putAll(m);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void putAllSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+        long stamp = lock.writeLock();
+        try {
+            super.putAllSorted(it);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 游标的删除和改值也拿写锁，否则乐观读校验不出这期间树被改过
+     */
+    @Override
+    V cursorSetValue(RbtEntry<K,V> p, V value) {
+        long stamp = lock.writeLock();
+        try {
+            return super.cursorSetValue(p, value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    RbtEntry<K,V> cursorRemove(RbtEntry<K,V> p) {
+        long stamp = lock.writeLock();
+        try {
+            return super.cursorRemove(p);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 返回的新树是普通的RbtMap(不是线程安全的)
+     */
+    @Override
+    public RbtMap<K,V> split(K key) {
+        long stamp = lock.writeLock();
+        try {
+            return super.split(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void join(K key, V value, RbtMap<K,V> right) {
+        long stamp = lock.writeLock();
+        try {
+            super.join(key, value, right);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void union(RbtMap<K,V> other) {
+        long stamp = lock.writeLock();
+        try {
+            super.union(other);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void intersection(RbtMap<K,V> other) {
+        long stamp = lock.writeLock();
+        try {
+            super.intersection(other);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void difference(RbtMap<K,V> other) {
+        long stamp = lock.writeLock();
+        try {
+            super.difference(other);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void parallelUnion(RbtMap<K,V> other) {
+        long stamp = lock.writeLock();
+        try {
+            super.parallelUnion(other);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void parallelIntersection(RbtMap<K,V> other) {
+        long stamp = lock.writeLock();
+        try {
+            super.parallelIntersection(other);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void parallelDifference(RbtMap<K,V> other) {
+        long stamp = lock.writeLock();
+        try {
+            super.parallelDifference(other);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    //=========================写==========================
+
+    //=========================读==========================
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0)
+                break;
+            Object result;
+            try {
+                result = find(key, true);
+            } catch (RuntimeException e) {
+                //读到了不一致的节点，如果校验通过说明是真的异常(比如key类型不对)
+                if (lock.validate(stamp))
+                    throw e;
+                continue;
+            }
+            if (lock.validate(stamp) && result != RETRY)
+                return (V) result;
+        }
+        long stamp = lock.readLock();
+        try {
+            return super.get(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0)
+                break;
+            Object result;
+            try {
+                result = find(key, false);
+            } catch (RuntimeException e) {
+                if (lock.validate(stamp))
+                    throw e;
+                continue;
+            }
+            if (lock.validate(stamp) && result != RETRY)
+                return result != null;
+        }
+        long stamp = lock.readLock();
+        try {
+            return super.containsKey(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = super.size();
+        if (lock.validate(stamp))
+            return size;
+        stamp = lock.readLock();
+        try {
+            return super.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int rank(K key) {
+        long stamp = lock.readLock();
+        try {
+            return super.rank(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> select(int index) {
+        long stamp = lock.readLock();
+        try {
+            return snapshot(super.select(index));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int countInRange(K lo, K hi) {
+        long stamp = lock.readLock();
+        try {
+            return super.countInRange(lo, hi);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> percentile(double percent) {
+        long stamp = lock.readLock();
+        try {
+            return snapshot(super.percentile(percent));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> firstEntry() {
+        long stamp = lock.readLock();
+        try {
+            return snapshot(super.firstEntry());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> lastEntry() {
+        long stamp = lock.readLock();
+        try {
+            return snapshot(super.lastEntry());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> floorEntry(K key) {
+        long stamp = lock.readLock();
+        try {
+            return snapshot(super.floorEntry(key));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> ceilingEntry(K key) {
+        long stamp = lock.readLock();
+        try {
+            return snapshot(super.ceilingEntry(key));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> higherEntry(K key) {
+        long stamp = lock.readLock();
+        try {
+            return snapshot(super.higherEntry(key));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> lowerEntry(K key) {
+        long stamp = lock.readLock();
+        try {
+            return snapshot(super.lowerEntry(key));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 持锁时把节点拷贝出来，解锁后节点可能被并发的写删掉、改值
+     */
+    private static <K,V> Map.Entry<K,V> snapshot(Map.Entry<K,V> e) {
+        return e == null ? null : new AbstractMap.SimpleImmutableEntry<>(e);
+    }
+
+    @Override
+    public FrozenMap<K,V> freeze() {
+        long stamp = lock.readLock();
+        try {
+            return super.freeze();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 不加锁的查找(限制步数)
+     * 查找逻辑参照RbtMap#getEntry/getEntryUsingComparator
+     * @param key
+     * @param value 找到时返回value还是节点本身
+     * @return 找到的value或节点，没有则是null，步数超过MAX_DEPTH返回RETRY
+     */
+    @SuppressWarnings({"Duplicates", "unchecked"})
+    private Object find(Object key, boolean value) {
+        RbtEntry<K,V> p = root;
+        int depth = 0;
+        Comparator<? super K> cpr = comparator;
+        if (cpr != null) {
+            K k = (K) key;
+            while (p != null) {
+                if (++depth > MAX_DEPTH)
+                    return RETRY;
+                int cmp = cpr.compare(k, p.key);
+                if (cmp < 0)
+                    p = p.left;
+                else if (cmp > 0)
+                    p = p.right;
+                else
+                    return value ? p.value : p;
+            }
+        } else {
+            if (key == null)
+                throw new NullPointerException();
+            Comparable<? super K> k = (Comparable<? super K>) key;
+            while (p != null) {
+                if (++depth > MAX_DEPTH)
+                    return RETRY;
+                int cmp = k.compareTo(p.key);
+                if (cmp < 0)
+                    p = p.left;
+                else if (cmp > 0)
+                    p = p.right;
+                else
+                    return value ? p.value : p;
+            }
+        }
+        return null;
+    }
+    //=========================读==========================
+
+}
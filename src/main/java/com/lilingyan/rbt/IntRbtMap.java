@@ -0,0 +1,403 @@
+package com.lilingyan.rbt;
+
+/**
+ * key为int的红黑树
+ * 算法与RbtMap完全一样，只是key直接存成int
+ * 查找时直接比较int，不需要装箱，也没有Comparable的强转和compareTo调用
+ * 每个节点少了一个Integer对象(16字节)和一个引用
+ * @Author: lilingyan
+ */
+public class IntRbtMap<V> {
+
+    /**
+     * 这颗树的根节点
+     */
+    private transient IntRbtEntry<V> root;
+    /**
+     * 在这个树中存在的节点数量
+     */
+    private transient int size = 0;
+
+    private static final boolean RED   = false;
+    private static final boolean BLACK = true;
+
+    //=========================添加==========================
+    /**
+     * 加入一个节点
+     * 解释参照RbtMap#put
+     * @param key
+     * @param value
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    public V put(int key, V value) {
+        IntRbtEntry<V> t = root;
+        if (t == null) {
+            root = new IntRbtEntry<>(key, value, null);
+            size = 1;
+            return null;
+        }
+        IntRbtEntry<V> parent;
+        do {
+            parent = t;
+            if (key < t.key)
+                t = t.left;
+            else if (key > t.key)
+                t = t.right;
+            else
+                return t.setValue(value);
+        } while (t != null);
+
+        IntRbtEntry<V> e = new IntRbtEntry<>(key, value, parent);
+        if (key < parent.key)
+            parent.left = e;
+        else
+            parent.right = e;
+        fixAfterInsertion(e);
+        size++;
+        return null;
+    }
+    //=========================添加==========================
+
+    //=========================删除==========================
+    /**
+     * 删除节点
+     * @param key   需要删除的节点的key
+     * @return
+     */
+    public V remove(int key) {
+        IntRbtEntry<V> p = getEntry(key);
+        if (p == null)
+            return null;
+
+        V oldValue = p.value;
+        deleteEntry(p);
+        return oldValue;
+    }
+    /**
+     * 删除节点
+     * 解释参照RbtMap#deleteEntry
+     * @param p 需要删除的节点对象
+     */
+    @SuppressWarnings("Duplicates")
+    private void deleteEntry(IntRbtEntry<V> p) {
+        size--;
+
+        if (p.left != null && p.right != null) {
+            IntRbtEntry<V> s = successor(p);
+            p.key = s.key;
+            p.value = s.value;
+            p = s;
+        }
+
+        IntRbtEntry<V> replacement = (p.left != null ? p.left : p.right);
+
+        if (replacement != null) {
+            replacement.parent = p.parent;
+            if (p.parent == null)
+                root = replacement;
+            else if (p == p.parent.left)
+                p.parent.left  = replacement;
+            else
+                p.parent.right = replacement;
+
+            p.left = p.right = p.parent = null;
+
+            if (p.color == BLACK)
+                fixAfterDeletion(replacement);
+        } else if (p.parent == null) {
+            root = null;
+        } else {
+            if (p.color == BLACK)
+                fixAfterDeletion(p);
+
+            if (p.parent != null) {
+                if (p == p.parent.left)
+                    p.parent.left = null;
+                else if (p == p.parent.right)
+                    p.parent.right = null;
+                p.parent = null;
+            }
+        }
+    }
+    //=========================删除==========================
+
+    //=========================插入删除后的调整==========================
+    /**
+     * 插入后的调整
+     * 解释参照RbtMap#fixAfterInsertion
+     * @param x
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterInsertion(IntRbtEntry<V> x) {
+        x.color = RED;
+
+        while (x != null && x != root && x.parent.color == RED) {
+            if (parentOf(x) == leftOf(parentOf(parentOf(x)))) {
+                IntRbtEntry<V> y = rightOf(parentOf(parentOf(x)));
+                if (colorOf(y) == RED) {
+                    setColor(parentOf(x), BLACK);
+                    setColor(y, BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    x = parentOf(parentOf(x));
+                } else {
+                    if (x == rightOf(parentOf(x))) {
+                        x = parentOf(x);
+                        rotateLeft(x);
+                    }
+                    setColor(parentOf(x), BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    rotateRight(parentOf(parentOf(x)));
+                }
+            } else {
+                IntRbtEntry<V> y = leftOf(parentOf(parentOf(x)));
+                if (colorOf(y) == RED) {
+                    setColor(parentOf(x), BLACK);
+                    setColor(y, BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    x = parentOf(parentOf(x));
+                } else {
+                    if (x == leftOf(parentOf(x))) {
+                        x = parentOf(x);
+                        rotateRight(x);
+                    }
+                    setColor(parentOf(x), BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    rotateLeft(parentOf(parentOf(x)));
+                }
+            }
+        }
+        root.color = BLACK;
+    }
+    /**
+     * 删除后调整
+     * 解释参照RbtMap#fixAfterDeletion
+     * @param x
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterDeletion(IntRbtEntry<V> x) {
+        while (x != root && colorOf(x) == BLACK) {
+            if (x == leftOf(parentOf(x))) {
+                IntRbtEntry<V> sib = rightOf(parentOf(x));
+
+                if (colorOf(sib) == RED) {
+                    setColor(sib, BLACK);
+                    setColor(parentOf(x), RED);
+                    rotateLeft(parentOf(x));
+                    sib = rightOf(parentOf(x));
+                }
+
+                if (colorOf(leftOf(sib))  == BLACK &&
+                        colorOf(rightOf(sib)) == BLACK) {
+                    setColor(sib, RED);
+                    x = parentOf(x);
+                } else {
+                    if (colorOf(rightOf(sib)) == BLACK) {
+                        setColor(leftOf(sib), BLACK);
+                        setColor(sib, RED);
+                        rotateRight(sib);
+                        sib = rightOf(parentOf(x));
+                    }
+                    setColor(sib, colorOf(parentOf(x)));
+                    setColor(parentOf(x), BLACK);
+                    setColor(rightOf(sib), BLACK);
+                    rotateLeft(parentOf(x));
+                    x = root;
+                }
+            } else {
+                IntRbtEntry<V> sib = leftOf(parentOf(x));
+
+                if (colorOf(sib) == RED) {
+                    setColor(sib, BLACK);
+                    setColor(parentOf(x), RED);
+                    rotateRight(parentOf(x));
+                    sib = leftOf(parentOf(x));
+                }
+
+                if (colorOf(rightOf(sib)) == BLACK &&
+                        colorOf(leftOf(sib)) == BLACK) {
+                    setColor(sib, RED);
+                    x = parentOf(x);
+                } else {
+                    if (colorOf(leftOf(sib)) == BLACK) {
+                        setColor(rightOf(sib), BLACK);
+                        setColor(sib, RED);
+                        rotateLeft(sib);
+                        sib = leftOf(parentOf(x));
+                    }
+                    setColor(sib, colorOf(parentOf(x)));
+                    setColor(parentOf(x), BLACK);
+                    setColor(leftOf(sib), BLACK);
+                    rotateRight(parentOf(x));
+                    x = root;
+                }
+            }
+        }
+
+        setColor(x, BLACK);
+    }
+    //=========================插入删除后的调整==========================
+
+    //=========================左右旋转==========================
+    @SuppressWarnings("Duplicates")
+    private void rotateLeft(IntRbtEntry<V> p) {
+        if (p != null) {
+            IntRbtEntry<V> r = p.right;
+            p.right = r.left;
+            if (r.left != null)
+                r.left.parent = p;
+            r.parent = p.parent;
+            if (p.parent == null)
+                root = r;
+            else if (p.parent.left == p)
+                p.parent.left = r;
+            else
+                p.parent.right = r;
+            r.left = p;
+            p.parent = r;
+        }
+    }
+    @SuppressWarnings("Duplicates")
+    private void rotateRight(IntRbtEntry<V> p) {
+        if (p != null) {
+            IntRbtEntry<V> l = p.left;
+            p.left = l.right;
+            if (l.right != null) l.right.parent = p;
+            l.parent = p.parent;
+            if (p.parent == null)
+                root = l;
+            else if (p.parent.right == p)
+                p.parent.right = l;
+            else p.parent.left = l;
+            l.right = p;
+            p.parent = l;
+        }
+    }
+    //=========================左右旋转==========================
+
+    //=========================查找==========================
+    /**
+     * 使用key查询节点对象的值
+     * @param key
+     * @return
+     */
+    public V get(int key) {
+        IntRbtEntry<V> p = getEntry(key);
+        return (p==null ? null : p.value);
+    }
+    /**
+     * 使用key查询节点对象
+     * 直接比较int 不需要区分comparator和Comparable两条路径
+     * @param key
+     * @return
+     */
+    final IntRbtEntry<V> getEntry(int key) {
+        IntRbtEntry<V> p = root;
+        while (p != null) {
+            if (key < p.key)
+                p = p.left;
+            else if (key > p.key)
+                p = p.right;
+            else
+                return p;
+        }
+        return null;
+    }
+    /**
+     * 获取后继节点
+     * 解释参照RbtMap#successor
+     * @param t
+     * @param <V>
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    static <V> IntRbtEntry<V> successor(IntRbtEntry<V> t) {
+        if (t == null)
+            return null;
+        else if (t.right != null) {
+            IntRbtEntry<V> p = t.right;
+            while (p.left != null)
+                p = p.left;
+            return p;
+        } else {
+            IntRbtEntry<V> p = t.parent;
+            IntRbtEntry<V> ch = t;
+            while (p != null && ch == p.right) {
+                ch = p;
+                p = p.parent;
+            }
+            return p;
+        }
+    }
+    /**
+     * 判断key是否存在
+     * @param key
+     * @return
+     */
+    public boolean containsKey(int key) {
+        return getEntry(key) != null;
+    }
+    //=========================查找==========================
+
+    /**
+     * 节点类
+     * key是int，不再实现Map.Entry(否则getKey()又要装箱)
+     * @param <V>
+     */
+    static final class IntRbtEntry<V> {
+        int key;
+        V value;
+        IntRbtEntry<V> left;
+        IntRbtEntry<V> right;
+        IntRbtEntry<V> parent;
+        boolean color = BLACK;
+
+        IntRbtEntry(int key, V value, IntRbtEntry<V> parent) {
+            this.key = key;
+            this.value = value;
+            this.parent = parent;
+        }
+
+        public int getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            V oldValue = this.value;
+            this.value = value;
+            return oldValue;
+        }
+
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    //=========================一些常用方法封装==========================
+    private static <V> boolean colorOf(IntRbtEntry<V> p) {
+        return (p == null ? BLACK : p.color);
+    }
+    private static <V> IntRbtEntry<V> parentOf(IntRbtEntry<V> p) {
+        return (p == null ? null: p.parent);
+    }
+    private static <V> void setColor(IntRbtEntry<V> p, boolean c) {
+        if (p != null)
+            p.color = c;
+    }
+    private static <V> IntRbtEntry<V> leftOf(IntRbtEntry<V> p) {
+        return (p == null) ? null: p.left;
+    }
+    private static <V> IntRbtEntry<V> rightOf(IntRbtEntry<V> p) {
+        return (p == null) ? null: p.right;
+    }
+    //=========================一些常用方法封装==========================
+
+    public int size() {
+        return this.size;
+    }
+
+}
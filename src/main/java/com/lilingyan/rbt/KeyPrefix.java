@@ -0,0 +1,90 @@
+package com.lilingyan.rbt;
+
+import java.util.Comparator;
+
+/**
+ * 把key压缩成一个long(前缀)，存在节点里，查找时先比较前缀(见RbtMap(Comparator, KeyPrefix))
+ *
+ * 必须和树的排序一致(保序):
+ * 按无符号比较，key1 < key2 则 prefix(key1) <= prefix(key2)
+ * 所以前缀不相等时直接就是key的大小关系，只有前缀相等时才需要调用比较器(要去读key对象)
+ * 前缀区分度越高(相等得越少)，比较器调用得越少
+ * @Author: lilingyan
+ */
+@FunctionalInterface
+public interface KeyPrefix<K> {
+
+    /**
+     * @param key
+     * @return 前缀(按无符号比较)
+     */
+    long prefix(K key);
+
+    /**
+     * String(自然顺序)的前8个char，每个char占1个字节
+     * 大于0xFF的char截成0xFF，并且后面全部补0(这两个key在这里以后的顺序交给比较器)，不够8个也补0
+     * 英文/数字组成的key前8个字符都能区分开
+     * key有很长的公共前缀(比如"tenant/region/")时前8个字符全都一样，要用stringAfter(String)跳过公共前缀
+     */
+    KeyPrefix<String> STRING = key -> pack(key, 0);
+
+    /**
+     * byte[]的前8个字节(按无符号字节比较)，不够的补0
+     * 要和BYTES_ORDER(或者其他按无符号字节逐个比较的比较器)一起用
+     */
+    KeyPrefix<byte[]> BYTES = key -> {
+        long prefix = 0;
+        int n = Math.min(key.length, 8);
+        for (int i = 0; i < n; i++) {
+            prefix |= (key[i] & 0xFFL) << (56 - 8 * i);
+        }
+        return prefix;
+    };
+
+    /**
+     * byte[]按无符号字节逐个比较，前面都相同时短的小
+     */
+    Comparator<byte[]> BYTES_ORDER = (a, b) -> {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return a.length - b.length;
+    };
+
+    /**
+     * 跳过所有key共有的前缀commonPrefix，取后面的8个char(规则同STRING)
+     * 不以commonPrefix开头的key也可以放进来，只是区分不了:
+     * 比commonPrefix小的前缀是0，比它大的前缀是最大值(-1L)，仍然保序
+     * @param commonPrefix
+     * @return
+     */
+    static KeyPrefix<String> stringAfter(String commonPrefix) {
+        int offset = commonPrefix.length();
+        return key -> {
+            if (key.startsWith(commonPrefix))
+                return pack(key, offset);
+            return key.compareTo(commonPrefix) < 0 ? 0 : -1L;
+        };
+    }
+
+    /**
+     * 从offset开始的8个char，每个占1个字节
+     */
+    static long pack(String key, int offset) {
+        long prefix = 0;
+        int n = Math.min(key.length() - offset, 8);
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(offset + i);
+            if (c >= 0xFF) {
+                prefix |= 0xFFL << (56 - 8 * i);
+                break;
+            }
+            prefix |= (long) c << (56 - 8 * i);
+        }
+        return prefix;
+    }
+
+}
@@ -0,0 +1,403 @@
+package com.lilingyan.rbt;
+
+/**
+ * key为long的红黑树
+ * 算法与RbtMap完全一样，只是key直接存成long
+ * 查找时直接比较long，不需要装箱，也没有Comparable的强转和compareTo调用
+ * 每个节点少了一个Long对象(24字节)和一个引用
+ * @Author: lilingyan
+ */
+public class LongRbtMap<V> {
+
+    /**
+     * 这颗树的根节点
+     */
+    private transient LongRbtEntry<V> root;
+    /**
+     * 在这个树中存在的节点数量
+     */
+    private transient int size = 0;
+
+    private static final boolean RED   = false;
+    private static final boolean BLACK = true;
+
+    //=========================添加==========================
+    /**
+     * 加入一个节点
+     * 解释参照RbtMap#put
+     * @param key
+     * @param value
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    public V put(long key, V value) {
+        LongRbtEntry<V> t = root;
+        if (t == null) {
+            root = new LongRbtEntry<>(key, value, null);
+            size = 1;
+            return null;
+        }
+        LongRbtEntry<V> parent;
+        do {
+            parent = t;
+            if (key < t.key)
+                t = t.left;
+            else if (key > t.key)
+                t = t.right;
+            else
+                return t.setValue(value);
+        } while (t != null);
+
+        LongRbtEntry<V> e = new LongRbtEntry<>(key, value, parent);
+        if (key < parent.key)
+            parent.left = e;
+        else
+            parent.right = e;
+        fixAfterInsertion(e);
+        size++;
+        return null;
+    }
+    //=========================添加==========================
+
+    //=========================删除==========================
+    /**
+     * 删除节点
+     * @param key   需要删除的节点的key
+     * @return
+     */
+    public V remove(long key) {
+        LongRbtEntry<V> p = getEntry(key);
+        if (p == null)
+            return null;
+
+        V oldValue = p.value;
+        deleteEntry(p);
+        return oldValue;
+    }
+    /**
+     * 删除节点
+     * 解释参照RbtMap#deleteEntry
+     * @param p 需要删除的节点对象
+     */
+    @SuppressWarnings("Duplicates")
+    private void deleteEntry(LongRbtEntry<V> p) {
+        size--;
+
+        if (p.left != null && p.right != null) {
+            LongRbtEntry<V> s = successor(p);
+            p.key = s.key;
+            p.value = s.value;
+            p = s;
+        }
+
+        LongRbtEntry<V> replacement = (p.left != null ? p.left : p.right);
+
+        if (replacement != null) {
+            replacement.parent = p.parent;
+            if (p.parent == null)
+                root = replacement;
+            else if (p == p.parent.left)
+                p.parent.left  = replacement;
+            else
+                p.parent.right = replacement;
+
+            p.left = p.right = p.parent = null;
+
+            if (p.color == BLACK)
+                fixAfterDeletion(replacement);
+        } else if (p.parent == null) {
+            root = null;
+        } else {
+            if (p.color == BLACK)
+                fixAfterDeletion(p);
+
+            if (p.parent != null) {
+                if (p == p.parent.left)
+                    p.parent.left = null;
+                else if (p == p.parent.right)
+                    p.parent.right = null;
+                p.parent = null;
+            }
+        }
+    }
+    //=========================删除==========================
+
+    //=========================插入删除后的调整==========================
+    /**
+     * 插入后的调整
+     * 解释参照RbtMap#fixAfterInsertion
+     * @param x
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterInsertion(LongRbtEntry<V> x) {
+        x.color = RED;
+
+        while (x != null && x != root && x.parent.color == RED) {
+            if (parentOf(x) == leftOf(parentOf(parentOf(x)))) {
+                LongRbtEntry<V> y = rightOf(parentOf(parentOf(x)));
+                if (colorOf(y) == RED) {
+                    setColor(parentOf(x), BLACK);
+                    setColor(y, BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    x = parentOf(parentOf(x));
+                } else {
+                    if (x == rightOf(parentOf(x))) {
+                        x = parentOf(x);
+                        rotateLeft(x);
+                    }
+                    setColor(parentOf(x), BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    rotateRight(parentOf(parentOf(x)));
+                }
+            } else {
+                LongRbtEntry<V> y = leftOf(parentOf(parentOf(x)));
+                if (colorOf(y) == RED) {
+                    setColor(parentOf(x), BLACK);
+                    setColor(y, BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    x = parentOf(parentOf(x));
+                } else {
+                    if (x == leftOf(parentOf(x))) {
+                        x = parentOf(x);
+                        rotateRight(x);
+                    }
+                    setColor(parentOf(x), BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    rotateLeft(parentOf(parentOf(x)));
+                }
+            }
+        }
+        root.color = BLACK;
+    }
+    /**
+     * 删除后调整
+     * 解释参照RbtMap#fixAfterDeletion
+     * @param x
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterDeletion(LongRbtEntry<V> x) {
+        while (x != root && colorOf(x) == BLACK) {
+            if (x == leftOf(parentOf(x))) {
+                LongRbtEntry<V> sib = rightOf(parentOf(x));
+
+                if (colorOf(sib) == RED) {
+                    setColor(sib, BLACK);
+                    setColor(parentOf(x), RED);
+                    rotateLeft(parentOf(x));
+                    sib = rightOf(parentOf(x));
+                }
+
+                if (colorOf(leftOf(sib))  == BLACK &&
+                        colorOf(rightOf(sib)) == BLACK) {
+                    setColor(sib, RED);
+                    x = parentOf(x);
+                } else {
+                    if (colorOf(rightOf(sib)) == BLACK) {
+                        setColor(leftOf(sib), BLACK);
+                        setColor(sib, RED);
+                        rotateRight(sib);
+                        sib = rightOf(parentOf(x));
+                    }
+                    setColor(sib, colorOf(parentOf(x)));
+                    setColor(parentOf(x), BLACK);
+                    setColor(rightOf(sib), BLACK);
+                    rotateLeft(parentOf(x));
+                    x = root;
+                }
+            } else {
+                LongRbtEntry<V> sib = leftOf(parentOf(x));
+
+                if (colorOf(sib) == RED) {
+                    setColor(sib, BLACK);
+                    setColor(parentOf(x), RED);
+                    rotateRight(parentOf(x));
+                    sib = leftOf(parentOf(x));
+                }
+
+                if (colorOf(rightOf(sib)) == BLACK &&
+                        colorOf(leftOf(sib)) == BLACK) {
+                    setColor(sib, RED);
+                    x = parentOf(x);
+                } else {
+                    if (colorOf(leftOf(sib)) == BLACK) {
+                        setColor(rightOf(sib), BLACK);
+                        setColor(sib, RED);
+                        rotateLeft(sib);
+                        sib = leftOf(parentOf(x));
+                    }
+                    setColor(sib, colorOf(parentOf(x)));
+                    setColor(parentOf(x), BLACK);
+                    setColor(leftOf(sib), BLACK);
+                    rotateRight(parentOf(x));
+                    x = root;
+                }
+            }
+        }
+
+        setColor(x, BLACK);
+    }
+    //=========================插入删除后的调整==========================
+
+    //=========================左右旋转==========================
+    @SuppressWarnings("Duplicates")
+    private void rotateLeft(LongRbtEntry<V> p) {
+        if (p != null) {
+            LongRbtEntry<V> r = p.right;
+            p.right = r.left;
+            if (r.left != null)
+                r.left.parent = p;
+            r.parent = p.parent;
+            if (p.parent == null)
+                root = r;
+            else if (p.parent.left == p)
+                p.parent.left = r;
+            else
+                p.parent.right = r;
+            r.left = p;
+            p.parent = r;
+        }
+    }
+    @SuppressWarnings("Duplicates")
+    private void rotateRight(LongRbtEntry<V> p) {
+        if (p != null) {
+            LongRbtEntry<V> l = p.left;
+            p.left = l.right;
+            if (l.right != null) l.right.parent = p;
+            l.parent = p.parent;
+            if (p.parent == null)
+                root = l;
+            else if (p.parent.right == p)
+                p.parent.right = l;
+            else p.parent.left = l;
+            l.right = p;
+            p.parent = l;
+        }
+    }
+    //=========================左右旋转==========================
+
+    //=========================查找==========================
+    /**
+     * 使用key查询节点对象的值
+     * @param key
+     * @return
+     */
+    public V get(long key) {
+        LongRbtEntry<V> p = getEntry(key);
+        return (p==null ? null : p.value);
+    }
+    /**
+     * 使用key查询节点对象
+     * 直接比较long 不需要区分comparator和Comparable两条路径
+     * @param key
+     * @return
+     */
+    final LongRbtEntry<V> getEntry(long key) {
+        LongRbtEntry<V> p = root;
+        while (p != null) {
+            if (key < p.key)
+                p = p.left;
+            else if (key > p.key)
+                p = p.right;
+            else
+                return p;
+        }
+        return null;
+    }
+    /**
+     * 获取后继节点
+     * 解释参照RbtMap#successor
+     * @param t
+     * @param <V>
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    static <V> LongRbtEntry<V> successor(LongRbtEntry<V> t) {
+        if (t == null)
+            return null;
+        else if (t.right != null) {
+            LongRbtEntry<V> p = t.right;
+            while (p.left != null)
+                p = p.left;
+            return p;
+        } else {
+            LongRbtEntry<V> p = t.parent;
+            LongRbtEntry<V> ch = t;
+            while (p != null && ch == p.right) {
+                ch = p;
+                p = p.parent;
+            }
+            return p;
+        }
+    }
+    /**
+     * 判断key是否存在
+     * @param key
+     * @return
+     */
+    public boolean containsKey(long key) {
+        return getEntry(key) != null;
+    }
+    //=========================查找==========================
+
+    /**
+     * 节点类
+     * key是long，不再实现Map.Entry(否则getKey()又要装箱)
+     * @param <V>
+     */
+    static final class LongRbtEntry<V> {
+        long key;
+        V value;
+        LongRbtEntry<V> left;
+        LongRbtEntry<V> right;
+        LongRbtEntry<V> parent;
+        boolean color = BLACK;
+
+        LongRbtEntry(long key, V value, LongRbtEntry<V> parent) {
+            this.key = key;
+            this.value = value;
+            this.parent = parent;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            V oldValue = this.value;
+            this.value = value;
+            return oldValue;
+        }
+
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    //=========================一些常用方法封装==========================
+    private static <V> boolean colorOf(LongRbtEntry<V> p) {
+        return (p == null ? BLACK : p.color);
+    }
+    private static <V> LongRbtEntry<V> parentOf(LongRbtEntry<V> p) {
+        return (p == null ? null: p.parent);
+    }
+    private static <V> void setColor(LongRbtEntry<V> p, boolean c) {
+        if (p != null)
+            p.color = c;
+    }
+    private static <V> LongRbtEntry<V> leftOf(LongRbtEntry<V> p) {
+        return (p == null) ? null: p.left;
+    }
+    private static <V> LongRbtEntry<V> rightOf(LongRbtEntry<V> p) {
+        return (p == null) ? null: p.right;
+    }
+    //=========================一些常用方法封装==========================
+
+    public int size() {
+        return this.size;
+    }
+
+}
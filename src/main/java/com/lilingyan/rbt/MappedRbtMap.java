@@ -0,0 +1,397 @@
+package com.lilingyan.rbt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 放在文件里的红黑树
+ * 算法和节点记录与OffHeapRbtMap完全一样，只是每个chunk不是direct buffer，而是文件里的一段(MappedByteBuffer)
+ * 读写节点就是读写文件映射的内存，缓存交给操作系统的page cache，java堆上只有几个chunk的引用，
+ * 数据比堆(甚至比物理内存)大也可以，查找不分配任何堆内存
+ *
+ * 文件布局:
+ * | 头部(4096字节) | chunk 0 | chunk 1 | ...
+ * 头部(大端): magic(4) 版本(4) 字节序(4) valueBytes(4) root(4) size(4) nextSlot(4) freeHead(4) epoch(8)
+ * chunk i 从 4096 + i * chunk字节数 开始，chunk的数量由nextSlot算出来，空闲链表本身就在节点记录里(left字段)
+ * 头部只在force()时写，所以它一直是上次force()时的状态
+ *
+ * 持久化(undo日志):
+ * 映射的内存什么时候写回磁盘由操作系统决定，所以force()之后第一次修改某一页(4096字节)之前，
+ * 先把这一页原来的内容追加到 文件名.undo 并刷盘，再改
+ * undo日志: magic(4) epoch(8)，之后每条是 页的偏移(8) epoch(8) crc(4) 页的内容(4096)
+ * (每条都带epoch，清空失败时留下的旧记录不会被当成这次的)
+ * force()先把所有chunk刷到磁盘，再把epoch加一写进头部并刷盘，这时文件就是一个完整的树，然后清空undo日志
+ * 打开时undo日志的epoch和头部一样，说明上次force()之后崩溃了，把记下的页写回去，文件就回到上次force()时的样子
+ * (epoch不一样是force()做完了、还没来得及清空undo日志，直接丢掉)
+ * 上次force()时已经有的节点才需要记，之后新分配的slot不会被旧的树用到
+ * 所以两次force()之间每一页第一次被修改时多一次fsync，force()得越勤，undo日志越小
+ * 要逐条恢复force()之后的修改的话配合预写日志使用
+ * close()会先force()
+ * 打开时会锁住文件，同一个文件不能同时被打开两次
+ *
+ * 每个chunk是一次mmap，chunk的节点数固定(CHUNK_RECORDS)，节点很多时要注意操作系统对映射数量的限制(linux的vm.max_map_count)
+ * 非线程安全
+ * @Author: lilingyan
+ */
+public class MappedRbtMap extends OffHeapRbtMap {
+
+    static final int MAGIC = 0x4D524254;
+    static final int VERSION = 2;
+    /**
+     * 头部占一页，chunk从页边界开始
+     */
+    static final int HEADER_SIZE = 4096;
+    /**
+     * undo日志按页记录(chunk的字节数是页的整数倍，一页不会跨chunk)
+     */
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int UNDO_MAGIC = 0x4D525544;
+    private static final int UNDO_HEADER = 12;
+    private static final int UNDO_RECORD = 20 + PAGE_SIZE;
+
+    //=========================头部布局==========================
+    private static final int H_MAGIC       = 0;
+    private static final int H_VERSION     = 4;
+    private static final int H_ORDER       = 8;
+    private static final int H_VALUE_BYTES = 12;
+    private static final int H_ROOT        = 16;
+    private static final int H_SIZE        = 20;
+    private static final int H_NEXT_SLOT   = 24;
+    private static final int H_FREE_HEAD   = 28;
+    private static final int H_EPOCH       = 32;
+    //=========================头部布局==========================
+
+    private final Path undoPath;
+    private final FileChannel channel;
+    private final FileChannel undoChannel;
+    private final MappedByteBuffer header;
+    /**
+     * 已经映射的chunk(force时要逐个刷)，按chunk下标排列
+     */
+    private final List<MappedByteBuffer> mapped = new ArrayList<>();
+    /**
+     * 上次force()的序号
+     */
+    private long epoch = 0;
+    /**
+     * 上次force()时nextSlot之前的节点占的字节数，后面的不用记undo
+     */
+    private long forcedBytes = 0;
+    /**
+     * 上次force()之后已经记过undo的页(从chunk 0开始数)
+     */
+    private final BitSet logged = new BitSet();
+    /**
+     * undo日志写到哪了，0表示还是空的
+     */
+    private long undoSize = 0;
+    private final ByteBuffer undoBuffer = ByteBuffer.allocate(UNDO_HEADER + UNDO_RECORD);
+    private final CRC32 crc = new CRC32();
+    /**
+     * 写undo日志失败了，内存里的树可能改了一半，不能再force()，重新打开时回滚
+     */
+    private boolean failed = false;
+    private boolean closed = false;
+
+    //=========================构造器==========================
+    /**
+     * value是8字节(long)
+     * @see #MappedRbtMap(Path, int)
+     */
+    public MappedRbtMap(Path path) throws IOException {
+        this(path, 8);
+    }
+    /**
+     * 打开文件，不存在(或者是空文件)时新建
+     * @param path
+     * @param valueBytes    每个value的字节数(定长)，打开已有的文件时要和创建时一致
+     * 上次force()之后崩溃了的话，先回滚到上次force()时的样子
+     * @param path
+     * @param valueBytes    每个value的字节数(定长)，打开已有的文件时要和创建时一致
+     * @throws IOException  不是这种文件、valueBytes或字节序对不上、已经被打开了
+     */
+    public MappedRbtMap(Path path, int valueBytes) throws IOException {
+        super(valueBytes);
+        undoPath = path.resolveSibling(path.getFileName() + ".undo");
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel u = null;
+        MappedByteBuffer h = null;
+        try {
+            lock(path);
+            u = FileChannel.open(undoPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean exists = channel.size() > 0;
+            h = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header = h;
+            undoChannel = u;
+            if (exists)
+                load(path);
+            else
+                init();
+        } catch (IOException | RuntimeException e) {
+            super.close();
+            if (h != null)
+                release(h);
+            if (u != null)
+                u.close();
+            channel.close();
+            throw e;
+        }
+    }
+    private void lock(Path path) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null)
+            throw new IOException("already opened: " + path);
+    }
+    //=========================构造器==========================
+
+    //=========================头部==========================
+    private void init() throws IOException {
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putInt(H_ORDER, orderFlag());
+        header.putInt(H_VALUE_BYTES, valueBytes);
+        writeState();
+        header.force();
+        //同名的旧文件留下的
+        undoChannel.truncate(0);
+    }
+    private void load(Path path) throws IOException {
+        if (header.getInt(H_MAGIC) != MAGIC)
+            throw new IOException("not a mapped rbt file: " + path);
+        int version = header.getInt(H_VERSION);
+        if (version != VERSION)
+            throw new IOException("unsupported version " + version + ": " + path);
+        if (header.getInt(H_ORDER) != orderFlag())
+            throw new IOException("file was written with a different byte order: " + path);
+        int fileValueBytes = header.getInt(H_VALUE_BYTES);
+        if (fileValueBytes != valueBytes)
+            throw new IOException("value is " + fileValueBytes + " bytes in file, not " + valueBytes);
+        root = header.getInt(H_ROOT);
+        size = header.getInt(H_SIZE);
+        nextSlot = header.getInt(H_NEXT_SLOT);
+        freeHead = header.getInt(H_FREE_HEAD);
+        epoch = header.getLong(H_EPOCH);
+        rollback();
+        forcedBytes = (long) nextSlot * recordSize;
+        attachChunks((nextSlot + CHUNK_MASK) >>> CHUNK_SHIFT);
+    }
+    private void writeState() {
+        header.putInt(H_ROOT, root);
+        header.putInt(H_SIZE, size);
+        header.putInt(H_NEXT_SLOT, nextSlot);
+        header.putInt(H_FREE_HEAD, freeHead);
+        header.putLong(H_EPOCH, epoch);
+    }
+    /**
+     * 节点记录按本机字节序存放，换了字节序的机器不能直接打开
+     */
+    private static int orderFlag() {
+        return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0;
+    }
+    //=========================头部==========================
+
+    //=========================undo日志==========================
+    /**
+     * undo日志是这个epoch的话，把记下的页写回文件(最后一条可能没写完，crc对不上就停)，然后清空
+     */
+    private void rollback() throws IOException {
+        ByteBuffer b = undoBuffer;
+        b.clear();
+        b.limit(UNDO_HEADER);
+        if (readFully(b, 0) && b.getInt(0) == UNDO_MAGIC && b.getLong(4) == epoch) {
+            boolean restored = false;
+            for (long position = UNDO_HEADER; ; position += UNDO_RECORD) {
+                b.clear();
+                b.limit(UNDO_RECORD);
+                if (!readFully(b, position))
+                    break;
+                crc.reset();
+                crc.update(b.array(), 0, 16);
+                crc.update(b.array(), 20, PAGE_SIZE);
+                if (b.getLong(8) != epoch || (int) crc.getValue() != b.getInt(16))
+                    break;
+                b.position(20);
+                long offset = b.getLong(0);
+                while (b.hasRemaining())
+                    offset += channel.write(b, offset);
+                restored = true;
+            }
+            if (restored)
+                channel.force(false);
+        }
+        undoChannel.truncate(0);
+    }
+    private boolean readFully(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            int n = undoChannel.read(b, position);
+            if (n < 0)
+                return false;
+            position += n;
+        }
+        return true;
+    }
+
+    /**
+     * 上次force()时已经有的节点，所在的页第一次被修改之前，把原来的内容记到undo日志里并刷盘
+     */
+    @Override
+    protected void beforeWrite(int x) {
+        long start = (long) x * recordSize;
+        if (start >= forcedBytes)
+            return;
+        int first = (int) (start >>> PAGE_SHIFT);
+        int last = (int) ((start + recordSize - 1) >>> PAGE_SHIFT);
+        for (int page = first; page <= last; page++) {
+            if (!logged.get(page))
+                logPage(page);
+        }
+    }
+    private void logPage(int page) {
+        long chunkBytes = (long) CHUNK_RECORDS * recordSize;
+        long start = (long) page << PAGE_SHIFT;
+        ByteBuffer src = mapped.get((int) (start / chunkBytes)).duplicate();
+        int at = (int) (start % chunkBytes);
+        src.limit(at + PAGE_SIZE);
+        src.position(at);
+        ByteBuffer b = undoBuffer;
+        b.clear();
+        if (undoSize == 0) {
+            b.putInt(UNDO_MAGIC);
+            b.putLong(epoch);
+        }
+        int record = b.position();
+        b.putLong(HEADER_SIZE + start);
+        b.putLong(epoch);
+        b.putInt(0);
+        b.put(src);
+        crc.reset();
+        crc.update(b.array(), record, 16);
+        crc.update(b.array(), record + 20, PAGE_SIZE);
+        b.putInt(record + 16, (int) crc.getValue());
+        b.flip();
+        try {
+            long position = undoSize;
+            while (b.hasRemaining())
+                position += undoChannel.write(b, position);
+            undoChannel.force(false);
+            undoSize = position;
+        } catch (IOException e) {
+            //这一页还没改，但是这次修改可能已经改了别的节点
+            failed = true;
+            throw new UncheckedIOException(e);
+        }
+        logged.set(page);
+    }
+    //=========================undo日志==========================
+
+    //=========================存储==========================
+    /**
+     * 映射文件里第index个chunk的位置(超出文件长度时文件会自动变长)
+     */
+    @Override
+    protected ByteBuffer newChunk(int index, int bytes) {
+        try {
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) index * bytes, bytes);
+            mapped.add(chunk);
+            chunk.order(ByteOrder.nativeOrder());
+            return chunk;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    //=========================存储==========================
+
+    //=========================修改==========================
+    @Override
+    public boolean put(long key, long value) {
+        checkWritable();
+        return super.put(key, value);
+    }
+    @Override
+    public boolean put(long key, byte[] value) {
+        checkWritable();
+        return super.put(key, value);
+    }
+    @Override
+    public boolean remove(long key) {
+        checkWritable();
+        return super.remove(key);
+    }
+    private void checkWritable() {
+        checkOpen();
+        if (failed)
+            throw new IllegalStateException("undo log write failed, reopen to roll back to the last force()");
+    }
+    //=========================修改==========================
+
+    /**
+     * 把所有修改刷到磁盘
+     * 返回之后就算进程崩溃或者断电，重新打开也是现在这颗树
+     */
+    public void force() {
+        checkWritable();
+        for (MappedByteBuffer chunk : mapped) {
+            chunk.force();
+        }
+        epoch++;
+        writeState();
+        header.force();
+        //头部的epoch已经变了，undo日志清不掉也不会再被用到
+        logged.clear();
+        forcedBytes = (long) nextSlot * recordSize;
+        undoSize = 0;
+        try {
+            undoChannel.truncate(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * force()后解除映射、关闭文件，删掉undo日志
+     * 写undo日志失败过的话不force()，留着undo日志，下次打开时回滚
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (!failed)
+                force();
+        } finally {
+            mapped.clear();
+            super.close();
+            release(header);
+            try {
+                undoChannel.close();
+                channel.close();
+                if (!failed)
+                    Files.deleteIfExists(undoPath);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,717 @@
+package com.lilingyan.rbt;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 堆外红黑树
+ * 算法与RbtMap/ArrayRbtMap一样，节点放在直接内存(direct ByteBuffer)里，java堆上只有几个chunk的引用
+ * key固定是long，value是定长的字节(默认8字节，可以直接当long用)
+ * 父子指针是int的slot编号
+ *
+ * 每个节点一条定长记录:
+ * | key(8) | left(4) | right(4) | parent(4) | color(1) | 填充(3) | value(valueBytes，按8对齐) |
+ *
+ * 节点按chunk分配(每个chunk放CHUNK_RECORDS个节点)，slot的高位是chunk下标，低位是chunk内的序号
+ * 删除的slot挂到空闲链表上(用left字段串起来)，下次插入优先复用
+ *
+ * 用完必须close()，否则直接内存要等gc回收ByteBuffer对象时才释放
+ * 非线程安全
+ * @Author: lilingyan
+ */
+public class OffHeapRbtMap implements Closeable {
+
+    /**
+     * 空节点(相当于RbtMap里的null)
+     */
+    static final int NIL = -1;
+
+    private static final byte RED   = 0;
+    private static final byte BLACK = 1;
+
+    //=========================记录布局==========================
+    static final int KEY    = 0;
+    static final int LEFT   = 8;
+    static final int RIGHT  = 12;
+    static final int PARENT = 16;
+    static final int COLOR  = 20;
+    static final int VALUE  = 24;
+    //=========================记录布局==========================
+
+    /**
+     * 每个chunk里的节点数(2^16)
+     */
+    static final int CHUNK_SHIFT = 16;
+    static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_RECORDS - 1;
+    /**
+     * value最多的字节数，保证一个chunk(CHUNK_RECORDS * recordSize)不超过int
+     */
+    public static final int MAX_VALUE_BYTES = ((Integer.MAX_VALUE / CHUNK_RECORDS) & ~7) - VALUE;
+
+    /**
+     * value的字节数
+     */
+    protected final int valueBytes;
+    /**
+     * 每条记录的字节数
+     */
+    protected final int recordSize;
+
+    private ByteBuffer[] chunks = new ByteBuffer[8];
+    private int chunkCount = 0;
+
+    /**
+     * 这颗树的根节点
+     */
+    protected int root = NIL;
+    /**
+     * 在这个树中存在的节点数量
+     */
+    protected int size = 0;
+    /**
+     * 从没被用过的slot从这里开始分配
+     */
+    protected int nextSlot = 0;
+    /**
+     * 空闲链表的头(被删除的slot)
+     */
+    protected int freeHead = NIL;
+
+    private boolean closed = false;
+
+    //=========================构造器==========================
+    /**
+     * value是8字节(long)
+     */
+    public OffHeapRbtMap() {
+        this(8);
+    }
+    /**
+     * @param valueBytes    每个value的字节数(定长，不超过MAX_VALUE_BYTES)
+     */
+    public OffHeapRbtMap(int valueBytes) {
+        if (valueBytes < 0 || valueBytes > MAX_VALUE_BYTES)
+            throw new IllegalArgumentException("valueBytes: " + valueBytes);
+        this.valueBytes = valueBytes;
+        this.recordSize = VALUE + ((valueBytes + 7) & ~7);
+    }
+    //=========================构造器==========================
+
+    //=========================存储==========================
+    /**
+     * 申请一个新的chunk
+     * 子类可以换成别的存储(比如文件映射)
+     * @param index chunk的下标
+     * @param bytes chunk的字节数
+     * @return
+     */
+    protected ByteBuffer newChunk(int index, int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+    /**
+     * 保证第index个chunk已经分配
+     */
+    private void ensureChunk(int index) {
+        while (chunkCount <= index) {
+            if (chunkCount == chunks.length)
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            chunks[chunkCount] = newChunk(chunkCount, CHUNK_RECORDS * recordSize);
+            chunkCount++;
+        }
+    }
+    /**
+     * 启动时把已经存在的chunk都挂上(子类从文件恢复时用)
+     * @param count
+     */
+    protected final void attachChunks(int count) {
+        ensureChunk(count - 1);
+    }
+    /**
+     * 节点x的记录被修改之前调用
+     * 子类可以在这里记下修改前的内容(MappedRbtMap的undo日志)
+     */
+    protected void beforeWrite(int x) {
+    }
+    private ByteBuffer chunk(int x) {
+        return chunks[x >>> CHUNK_SHIFT];
+    }
+    private int offset(int x) {
+        return (x & CHUNK_MASK) * recordSize;
+    }
+    /**
+     * 分配一个slot(优先从空闲链表里拿)
+     * 新节点默认黑色，没有子节点
+     */
+    private int allocate(long key, int p) {
+        int x;
+        if (freeHead != NIL) {
+            x = freeHead;
+            freeHead = left(x);
+        } else {
+            if (nextSlot == Integer.MAX_VALUE)
+                throw new IllegalStateException("OffHeapRbtMap is full");
+            x = nextSlot++;
+            ensureChunk(x >>> CHUNK_SHIFT);
+        }
+        beforeWrite(x);
+        ByteBuffer b = chunk(x);
+        int o = offset(x);
+        b.putLong(o + KEY, key);
+        b.putInt(o + LEFT, NIL);
+        b.putInt(o + RIGHT, NIL);
+        b.putInt(o + PARENT, p);
+        b.put(o + COLOR, BLACK);
+        return x;
+    }
+    /**
+     * 释放slot，挂到空闲链表头上
+     */
+    private void free(int x) {
+        setRight(x, NIL);
+        setParent(x, NIL);
+        setLeft(x, freeHead);
+        freeHead = x;
+    }
+    //=========================存储==========================
+
+    //=========================添加==========================
+    /**
+     * 加入一个节点(value是long)
+     * @param key
+     * @param value
+     * @return 原来是否已经存在这个key
+     */
+    public boolean put(long key, long value) {
+        checkLongValue();
+        int before = size;
+        int x = insert(key);
+        beforeWrite(x);
+        chunk(x).putLong(offset(x) + VALUE, value);
+        return size == before;
+    }
+    /**
+     * 加入一个节点(value是定长字节)
+     * @param key
+     * @param value 长度必须是valueBytes
+     * @return 原来是否已经存在这个key
+     */
+    public boolean put(long key, byte[] value) {
+        if (value.length != valueBytes)
+            throw new IllegalArgumentException("value length " + value.length + " != " + valueBytes);
+        int before = size;
+        int x = insert(key);
+        beforeWrite(x);
+        ByteBuffer b = chunk(x);
+        int o = offset(x) + VALUE;
+        for (int i = 0; i < valueBytes; i++) {
+            b.put(o + i, value[i]);
+        }
+        return size == before;
+    }
+    /**
+     * 找到或者插入key对应的节点
+     * 解释参照RbtMap#put
+     * @param key
+     * @return 节点slot
+     */
+    @SuppressWarnings("Duplicates")
+    private int insert(long key) {
+        checkOpen();
+        int t = root;
+        if (t == NIL) {
+            root = allocate(key, NIL);
+            size = 1;
+            return root;
+        }
+        int p;
+        long pk;
+        do {
+            p = t;
+            pk = key(t);
+            if (key < pk)
+                t = left(t);
+            else if (key > pk)
+                t = right(t);
+            else
+                return t;
+        } while (t != NIL);
+
+        int e = allocate(key, p);
+        if (key < pk)
+            setLeft(p, e);
+        else
+            setRight(p, e);
+        fixAfterInsertion(e);
+        size++;
+        return e;
+    }
+    //=========================添加==========================
+
+    //=========================删除==========================
+    /**
+     * 删除节点
+     * @param key   需要删除的节点的key
+     * @return 是否删除了
+     */
+    public boolean remove(long key) {
+        int p = getEntry(key);
+        if (p == NIL)
+            return false;
+        deleteEntry(p);
+        return true;
+    }
+    /**
+     * 删除节点
+     * 解释参照RbtMap#deleteEntry
+     * @param p 需要删除的节点
+     */
+    @SuppressWarnings("Duplicates")
+    private void deleteEntry(int p) {
+        size--;
+
+        if (left(p) != NIL && right(p) != NIL) {
+            int s = successor(p);
+            copyPayload(s, p);
+            p = s;
+        }
+
+        int replacement = (left(p) != NIL ? left(p) : right(p));
+
+        if (replacement != NIL) {
+            setParent(replacement, parent(p));
+            if (parent(p) == NIL)
+                root = replacement;
+            else if (p == left(parent(p)))
+                setLeft(parent(p), replacement);
+            else
+                setRight(parent(p), replacement);
+
+            byte removedColor = color(p);
+            free(p);
+
+            if (removedColor == BLACK)
+                fixAfterDeletion(replacement);
+        } else if (parent(p) == NIL) {
+            root = NIL;
+            free(p);
+        } else {
+            if (color(p) == BLACK)
+                fixAfterDeletion(p);
+
+            if (parent(p) != NIL) {
+                if (p == left(parent(p)))
+                    setLeft(parent(p), NIL);
+                else if (p == right(parent(p)))
+                    setRight(parent(p), NIL);
+            }
+            free(p);
+        }
+    }
+    /**
+     * 把from的key和value复制到to
+     */
+    private void copyPayload(int from, int to) {
+        beforeWrite(to);
+        ByteBuffer fb = chunk(from);
+        int fo = offset(from);
+        ByteBuffer tb = chunk(to);
+        int to_ = offset(to);
+        tb.putLong(to_ + KEY, fb.getLong(fo + KEY));
+        int n = recordSize - VALUE;
+        for (int i = 0; i < n; i += 8) {
+            tb.putLong(to_ + VALUE + i, fb.getLong(fo + VALUE + i));
+        }
+    }
+    //=========================删除==========================
+
+    //=========================插入删除后的调整==========================
+    /**
+     * 插入后的调整
+     * 解释参照RbtMap#fixAfterInsertion
+     * @param x
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterInsertion(int x) {
+        setColor(x, RED);
+
+        while (x != NIL && x != root && color(parent(x)) == RED) {
+            if (parentOf(x) == leftOf(parentOf(parentOf(x)))) {
+                int y = rightOf(parentOf(parentOf(x)));
+                if (colorOf(y) == RED) {
+                    setColor(parentOf(x), BLACK);
+                    setColor(y, BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    x = parentOf(parentOf(x));
+                } else {
+                    if (x == rightOf(parentOf(x))) {
+                        x = parentOf(x);
+                        rotateLeft(x);
+                    }
+                    setColor(parentOf(x), BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    rotateRight(parentOf(parentOf(x)));
+                }
+            } else {
+                int y = leftOf(parentOf(parentOf(x)));
+                if (colorOf(y) == RED) {
+                    setColor(parentOf(x), BLACK);
+                    setColor(y, BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    x = parentOf(parentOf(x));
+                } else {
+                    if (x == leftOf(parentOf(x))) {
+                        x = parentOf(x);
+                        rotateRight(x);
+                    }
+                    setColor(parentOf(x), BLACK);
+                    setColor(parentOf(parentOf(x)), RED);
+                    rotateLeft(parentOf(parentOf(x)));
+                }
+            }
+        }
+        setColor(root, BLACK);
+    }
+    /**
+     * 删除后调整
+     * 解释参照RbtMap#fixAfterDeletion
+     * @param x
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterDeletion(int x) {
+        while (x != root && colorOf(x) == BLACK) {
+            if (x == leftOf(parentOf(x))) {
+                int sib = rightOf(parentOf(x));
+
+                if (colorOf(sib) == RED) {
+                    setColor(sib, BLACK);
+                    setColor(parentOf(x), RED);
+                    rotateLeft(parentOf(x));
+                    sib = rightOf(parentOf(x));
+                }
+
+                if (colorOf(leftOf(sib))  == BLACK &&
+                        colorOf(rightOf(sib)) == BLACK) {
+                    setColor(sib, RED);
+                    x = parentOf(x);
+                } else {
+                    if (colorOf(rightOf(sib)) == BLACK) {
+                        setColor(leftOf(sib), BLACK);
+                        setColor(sib, RED);
+                        rotateRight(sib);
+                        sib = rightOf(parentOf(x));
+                    }
+                    setColor(sib, colorOf(parentOf(x)));
+                    setColor(parentOf(x), BLACK);
+                    setColor(rightOf(sib), BLACK);
+                    rotateLeft(parentOf(x));
+                    x = root;
+                }
+            } else {
+                int sib = leftOf(parentOf(x));
+
+                if (colorOf(sib) == RED) {
+                    setColor(sib, BLACK);
+                    setColor(parentOf(x), RED);
+                    rotateRight(parentOf(x));
+                    sib = leftOf(parentOf(x));
+                }
+
+                if (colorOf(rightOf(sib)) == BLACK &&
+                        colorOf(leftOf(sib)) == BLACK) {
+                    setColor(sib, RED);
+                    x = parentOf(x);
+                } else {
+                    if (colorOf(leftOf(sib)) == BLACK) {
+                        setColor(rightOf(sib), BLACK);
+                        setColor(sib, RED);
+                        rotateLeft(sib);
+                        sib = leftOf(parentOf(x));
+                    }
+                    setColor(sib, colorOf(parentOf(x)));
+                    setColor(parentOf(x), BLACK);
+                    setColor(leftOf(sib), BLACK);
+                    rotateRight(parentOf(x));
+                    x = root;
+                }
+            }
+        }
+
+        setColor(x, BLACK);
+    }
+    //=========================插入删除后的调整==========================
+
+    //=========================左右旋转==========================
+    @SuppressWarnings("Duplicates")
+    private void rotateLeft(int p) {
+        if (p != NIL) {
+            int r = right(p);
+            int rl = left(r);
+            setRight(p, rl);
+            if (rl != NIL)
+                setParent(rl, p);
+            int pp = parent(p);
+            setParent(r, pp);
+            if (pp == NIL)
+                root = r;
+            else if (left(pp) == p)
+                setLeft(pp, r);
+            else
+                setRight(pp, r);
+            setLeft(r, p);
+            setParent(p, r);
+        }
+    }
+    @SuppressWarnings("Duplicates")
+    private void rotateRight(int p) {
+        if (p != NIL) {
+            int l = left(p);
+            int lr = right(l);
+            setLeft(p, lr);
+            if (lr != NIL)
+                setParent(lr, p);
+            int pp = parent(p);
+            setParent(l, pp);
+            if (pp == NIL)
+                root = l;
+            else if (right(pp) == p)
+                setRight(pp, l);
+            else
+                setLeft(pp, l);
+            setRight(l, p);
+            setParent(p, l);
+        }
+    }
+    //=========================左右旋转==========================
+
+    //=========================查找==========================
+    /**
+     * 查询long类型的value
+     * @param key
+     * @param defaultValue  不存在时返回的值
+     * @return
+     */
+    public long get(long key, long defaultValue) {
+        checkLongValue();
+        int p = getEntry(key);
+        return p == NIL ? defaultValue : chunk(p).getLong(offset(p) + VALUE);
+    }
+    /**
+     * 查询定长字节的value，复制到dst里(不分配新数组)
+     * @param key
+     * @param dst   长度至少是valueBytes
+     * @return 是否存在这个key
+     */
+    public boolean get(long key, byte[] dst) {
+        int p = getEntry(key);
+        if (p == NIL)
+            return false;
+        ByteBuffer b = chunk(p);
+        int o = offset(p) + VALUE;
+        for (int i = 0; i < valueBytes; i++) {
+            dst[i] = b.get(o + i);
+        }
+        return true;
+    }
+    /**
+     * 查询定长字节的value
+     * @param key
+     * @return 不存在则是null
+     */
+    public byte[] get(long key) {
+        byte[] dst = new byte[valueBytes];
+        return get(key, dst) ? dst : null;
+    }
+    /**
+     * 使用key查询节点
+     * @param key
+     * @return 节点的slot，没有则是NIL
+     */
+    final int getEntry(long key) {
+        checkOpen();
+        int p = root;
+        while (p != NIL) {
+            long pk = key(p);
+            if (key < pk)
+                p = left(p);
+            else if (key > pk)
+                p = right(p);
+            else
+                return p;
+        }
+        return NIL;
+    }
+    /**
+     * 获取后继节点
+     * 解释参照RbtMap#successor
+     * @param t
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final int successor(int t) {
+        if (t == NIL)
+            return NIL;
+        else if (right(t) != NIL) {
+            int p = right(t);
+            while (left(p) != NIL)
+                p = left(p);
+            return p;
+        } else {
+            int p = parent(t);
+            int ch = t;
+            while (p != NIL && ch == right(p)) {
+                ch = p;
+                p = parent(p);
+            }
+            return p;
+        }
+    }
+    /**
+     * 判断key是否存在
+     * @param key
+     * @return
+     */
+    public boolean containsKey(long key) {
+        return getEntry(key) != NIL;
+    }
+    //=========================查找==========================
+
+    //=========================字段读写==========================
+    final long key(int x) {
+        return chunk(x).getLong(offset(x) + KEY);
+    }
+    final int left(int x) {
+        return chunk(x).getInt(offset(x) + LEFT);
+    }
+    final int right(int x) {
+        return chunk(x).getInt(offset(x) + RIGHT);
+    }
+    final int parent(int x) {
+        return chunk(x).getInt(offset(x) + PARENT);
+    }
+    final byte color(int x) {
+        return chunk(x).get(offset(x) + COLOR);
+    }
+    private void setLeft(int x, int v) {
+        beforeWrite(x);
+        chunk(x).putInt(offset(x) + LEFT, v);
+    }
+    private void setRight(int x, int v) {
+        beforeWrite(x);
+        chunk(x).putInt(offset(x) + RIGHT, v);
+    }
+    private void setParent(int x, int v) {
+        beforeWrite(x);
+        chunk(x).putInt(offset(x) + PARENT, v);
+    }
+    //=========================字段读写==========================
+
+    //=========================一些常用方法封装==========================
+    private byte colorOf(int p) {
+        return (p == NIL ? BLACK : color(p));
+    }
+    private int parentOf(int p) {
+        return (p == NIL ? NIL : parent(p));
+    }
+    private void setColor(int p, byte c) {
+        if (p != NIL) {
+            beforeWrite(p);
+            chunk(p).put(offset(p) + COLOR, c);
+        }
+    }
+    private int leftOf(int p) {
+        return (p == NIL) ? NIL : left(p);
+    }
+    private int rightOf(int p) {
+        return (p == NIL) ? NIL : right(p);
+    }
+    private void checkLongValue() {
+        if (valueBytes != 8)
+            throw new IllegalStateException("value is " + valueBytes + " bytes, not a long");
+    }
+    protected final void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("OffHeapRbtMap is closed");
+    }
+    //=========================一些常用方法封装==========================
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * 存活节点占用的字节数
+     * @return
+     */
+    public long bytesUsed() {
+        return (long) size * recordSize;
+    }
+
+    /**
+     * 已经向系统申请的字节数(整个chunk都算)
+     * @return
+     */
+    public long bytesAllocated() {
+        return (long) chunkCount * CHUNK_RECORDS * recordSize;
+    }
+
+    /**
+     * 释放所有chunk
+     * 之后再调用任何读写方法都会抛IllegalStateException
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (int i = 0; i < chunkCount; i++) {
+            release(chunks[i]);
+            chunks[i] = null;
+        }
+        chunkCount = 0;
+        root = NIL;
+        size = 0;
+    }
+
+    //=========================直接内存释放==========================
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            //jdk9+ 可以用Unsafe#invokeCleaner立即释放
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            //jdk8没有这个方法，只能等gc
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+    /**
+     * 立即释放direct(或者mapped)ByteBuffer占用的内存
+     * 不支持的jvm上什么都不做，等gc回收
+     * @param buffer
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || INVOKE_CLEANER == null)
+            return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception ignored) {
+            //duplicate/slice出来的buffer不能释放，交给gc
+        }
+    }
+    //=========================直接内存释放==========================
+
+}
@@ -0,0 +1,654 @@
+package com.lilingyan.rbt;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 可持久化(写时复制)的红黑树
+ *
+ * snapshot()在O(1)内返回当前树的一个只读快照，快照和这颗树共享所有节点
+ * 之后这颗树再修改时，只复制根节点到修改位置这条路径上的节点(O(log n))，快照看到的节点永远不会再变
+ * 读快照不需要加锁，也不需要复制
+ *
+ * 怎么知道一个节点能不能直接改:
+ * 每个节点记录创建它的"所有者"(owner)，这颗树自己也有一个owner
+ * owner相同说明这个节点是上次快照以后新建/复制的，没有被任何快照引用，可以直接改
+ * 不同就先复制一份(新节点的owner是当前的)，再把父节点指向复制出来的节点
+ * snapshot()只需要把这颗树的owner换成一个新对象，之前的节点就全都不能直接改了
+ * 所以没有快照时修改和普通红黑树一样不会复制
+ *
+ * 节点之间共享，所以节点没有父节点指针(一个节点可能同时是几个版本里不同节点的子节点)
+ * 修改时把根节点到当前位置的路径记在数组里，插入删除后的调整逻辑和RbtMap#fixAfterInsertion/fixAfterDeletion一样，
+ * 只是"父节点""祖父节点"从路径数组里取，旋转以后同时更新路径数组
+ *
+ * 修改(put/remove)不是线程安全的，需要调用方保证只有一个线程在写
+ * 快照可以发布给任何线程读
+ * @Author: lilingyan
+ */
+public class PersistentRbtMap<K,V> implements Iterable<Map.Entry<K,V>> {
+
+    private static final boolean RED   = false;
+    private static final boolean BLACK = true;
+
+    /**
+     * 路径数组的长度
+     * size是int，红黑树高度最多2*log(n+1) <= 62
+     */
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * 自定义的Comparator 作用于树节点的排序(可以没有)
+     * 如果没有 则用树节点的key compare直接比较(如果不存在自定义的Comparator  则key必须实现Comparable接口)
+     */
+    protected final Comparator<? super K> comparator;
+    /**
+     * 这颗树的根节点
+     */
+    private Node<K,V> root;
+    /**
+     * 在这个树中存在的节点数量
+     */
+    private int size = 0;
+    /**
+     * 当前的所有者，owner和它相同的节点可以直接修改
+     */
+    private Object owner = new Object();
+    /**
+     * 修改时记录根节点到当前节点的路径(path[0]是根节点)
+     * 只有写线程用，重复使用避免每次修改都分配
+     */
+    private final Node<K,V>[] path = newPath();
+
+    //=========================构造器==========================
+    public PersistentRbtMap() {
+        comparator = null;
+    }
+    public PersistentRbtMap(Comparator<? super K> comparator) {
+        this.comparator = comparator;
+    }
+    //=========================构造器==========================
+
+    //=========================快照==========================
+    /**
+     * 当前树的只读快照，O(1)
+     * 之后对这颗树的修改不会影响快照
+     * @return
+     */
+    public Snapshot<K,V> snapshot() {
+        Snapshot<K,V> snapshot = new Snapshot<>(root, size, comparator);
+        //之前的节点都属于快照了，以后要改就得先复制
+        owner = new Object();
+        return snapshot;
+    }
+    //=========================快照==========================
+
+    //=========================添加==========================
+    /**
+     * 加入一个节点
+     * @param key
+     * @param value
+     * @return 原来的值
+     */
+    public V put(K key, V value) {
+        if (root == null) {
+            //校验key类型(可能是null)
+            compare(comparator, key, key);
+            root = new Node<>(key, value, BLACK, owner);
+            size = 1;
+            return null;
+        }
+        /**
+         * 和RbtMap#put一样从根节点往下找，区别是每经过一个节点都先确保它可以修改(必要时复制)
+         * 找到相同的key直接覆盖值，否则在最后的空位置上挂新节点
+         */
+        Node<K,V>[] path = this.path;
+        Node<K,V> p = root = own(root);
+        int depth = 0;
+        path[0] = p;
+        int cmp;
+        while (true) {
+            cmp = compare(comparator, key, p.key);
+            if (cmp == 0) {
+                V oldValue = p.value;
+                p.value = value;
+                return oldValue;
+            }
+            Node<K,V> child = cmp < 0 ? p.left : p.right;
+            if (child == null)
+                break;
+            p = ownChild(p, cmp < 0);
+            path[++depth] = p;
+        }
+        Node<K,V> e = new Node<>(key, value, RED, owner);
+        if (cmp < 0)
+            p.left = e;
+        else
+            p.right = e;
+        path[++depth] = e;
+        fixAfterInsertion(depth);
+        size++;
+        return null;
+    }
+    //=========================添加==========================
+
+    //=========================删除==========================
+    /**
+     * 删除节点
+     * @param key   需要删除的节点的key
+     * @return
+     */
+    public V remove(Object key) {
+        //先确认key存在，不存在就不用复制路径
+        Node<K,V> found = getNode(root, key, comparator);
+        if (found == null)
+            return null;
+        V oldValue = found.value;
+
+        Node<K,V>[] path = this.path;
+        Node<K,V> p = root = own(root);
+        int depth = 0;
+        path[0] = p;
+        while (true) {
+            int cmp = compare(comparator, key, p.key);
+            if (cmp == 0)
+                break;
+            p = ownChild(p, cmp < 0);
+            path[++depth] = p;
+        }
+        deleteEntry(depth);
+        return oldValue;
+    }
+    /**
+     * 删除path[depth]上的节点
+     * 逻辑和RbtMap#deleteEntry一样
+     * 区别是没有父节点指针，不需要把要删除的叶子节点当作调整时的占位节点:
+     * 直接先摘掉，调整时当前节点是null(null的颜色就是黑色)，位置由路径数组确定
+     * @param depth
+     */
+    private void deleteEntry(int depth) {
+        Node<K,V>[] path = this.path;
+        size--;
+        Node<K,V> p = path[depth];
+
+        //有两个子节点，用后继节点的值覆盖p，然后删除后继节点(后继节点在右子树的最左边)
+        if (p.left != null && p.right != null) {
+            Node<K,V> s = ownChild(p, false);
+            path[++depth] = s;
+            while (s.left != null) {
+                s = ownChild(s, true);
+                path[++depth] = s;
+            }
+            p.key = s.key;
+            p.value = s.value;
+            p = s;
+        }
+
+        //p最多一个子节点，用它替代p的位置
+        Node<K,V> replacement = p.left != null ? ownChild(p, true) : (p.right != null ? ownChild(p, false) : null);
+        Node<K,V> parent = depth == 0 ? null : path[depth - 1];
+        if (parent == null)
+            root = replacement;
+        else if (parent.left == p)
+            parent.left = replacement;
+        else
+            parent.right = replacement;
+        path[depth] = replacement;
+
+        //只有删除的是黑节点，才需要调整
+        if (p.color == BLACK)
+            fixAfterDeletion(depth);
+    }
+    //=========================删除==========================
+
+    //=========================插入删除后的调整==========================
+    /**
+     * 插入后的调整
+     * 解释参照RbtMap#fixAfterInsertion
+     * 当前节点是path[depth]，父节点path[depth-1]，祖父节点path[depth-2]
+     * @param depth 新节点在路径中的位置
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterInsertion(int depth) {
+        Node<K,V>[] path = this.path;
+        //父节点是红色时它一定不是根节点，所以祖父节点一定存在
+        while (depth > 0 && path[depth - 1].color == RED) {
+            Node<K,V> x = path[depth];
+            Node<K,V> parent = path[depth - 1];
+            Node<K,V> grand = path[depth - 2];
+            if (parent == grand.left) {
+                Node<K,V> y = grand.right;
+                if (colorOf(y) == RED) {    //case1
+                    y = ownChild(grand, false);
+                    parent.color = BLACK;
+                    y.color = BLACK;
+                    grand.color = RED;
+                    depth -= 2;
+                } else {
+                    if (x == parent.right) {    //case2
+                        //左旋父节点，x和父节点在路径上交换位置
+                        rotateLeft(parent, grand);
+                        path[depth - 1] = x;
+                        path[depth] = parent;
+                        parent = x;
+                    }
+                    //case3
+                    parent.color = BLACK;
+                    grand.color = RED;
+                    rotateRight(grand, nodeAt(depth - 3));
+                    //父节点已经是黑色，结束
+                    break;
+                }
+            } else {    //与上同理(镜像)
+                Node<K,V> y = grand.left;
+                if (colorOf(y) == RED) {
+                    y = ownChild(grand, true);
+                    parent.color = BLACK;
+                    y.color = BLACK;
+                    grand.color = RED;
+                    depth -= 2;
+                } else {
+                    if (x == parent.left) {
+                        rotateRight(parent, grand);
+                        path[depth - 1] = x;
+                        path[depth] = parent;
+                        parent = x;
+                    }
+                    parent.color = BLACK;
+                    grand.color = RED;
+                    rotateLeft(grand, nodeAt(depth - 3));
+                    break;
+                }
+            }
+        }
+        //根节点必须是黑色(根节点在路径上，已经可以修改)
+        root.color = BLACK;
+    }
+    /**
+     * 删除后的调整
+     * 解释参照RbtMap#fixAfterDeletion
+     * 当前节点是path[depth](可能是null，表示删掉的叶子节点原来的位置)，父节点是path[depth-1]
+     * @param depth
+     */
+    @SuppressWarnings("Duplicates")
+    private void fixAfterDeletion(int depth) {
+        Node<K,V>[] path = this.path;
+        Node<K,V> x = path[depth];
+        while (depth > 0 && colorOf(x) == BLACK) {
+            Node<K,V> parent = path[depth - 1];
+            /**
+             * x是null时用parent.left == null判断它在左边还是右边
+             * 删掉的是黑色叶子节点，所以兄弟那边的黑高至少是1，兄弟节点一定存在，不会两边都是null
+             */
+            if (x == parent.left) {
+                Node<K,V> sib = ownChild(parent, false);
+
+                if (colorOf(sib) == RED) {  //case1
+                    sib.color = BLACK;
+                    parent.color = RED;
+                    rotateLeft(parent, nodeAt(depth - 2));
+                    //sib转到了parent原来的位置，x和parent都往下一层
+                    path[depth - 1] = sib;
+                    path[depth] = parent;
+                    path[++depth] = x;
+                    sib = ownChild(parent, false);
+                }
+
+                if (colorOf(sib.left) == BLACK && colorOf(sib.right) == BLACK) {   //case2
+                    sib.color = RED;
+                    x = parent;
+                    depth--;
+                } else {
+                    if (colorOf(sib.right) == BLACK) {   //case3
+                        ownChild(sib, true).color = BLACK;
+                        sib.color = RED;
+                        rotateRight(sib, parent);
+                        sib = parent.right;
+                    }
+                    //case4
+                    sib.color = parent.color;
+                    parent.color = BLACK;
+                    ownChild(sib, false).color = BLACK;
+                    rotateLeft(parent, nodeAt(depth - 2));
+                    //直接结束
+                    x = root;
+                    break;
+                }
+            } else { // symmetric
+                //与上面逻辑相等(镜像)
+                Node<K,V> sib = ownChild(parent, true);
+
+                if (colorOf(sib) == RED) {
+                    sib.color = BLACK;
+                    parent.color = RED;
+                    rotateRight(parent, nodeAt(depth - 2));
+                    path[depth - 1] = sib;
+                    path[depth] = parent;
+                    path[++depth] = x;
+                    sib = ownChild(parent, true);
+                }
+
+                if (colorOf(sib.right) == BLACK && colorOf(sib.left) == BLACK) {
+                    sib.color = RED;
+                    x = parent;
+                    depth--;
+                } else {
+                    if (colorOf(sib.left) == BLACK) {
+                        ownChild(sib, false).color = BLACK;
+                        sib.color = RED;
+                        rotateLeft(sib, parent);
+                        sib = parent.left;
+                    }
+                    sib.color = parent.color;
+                    parent.color = BLACK;
+                    ownChild(sib, true).color = BLACK;
+                    rotateRight(parent, nodeAt(depth - 2));
+                    x = root;
+                    break;
+                }
+            }
+        }
+
+        //x已经可以修改(路径上的节点或者复制过的替代节点)
+        if (x != null)
+            x.color = BLACK;
+    }
+    //=========================插入删除后的调整==========================
+
+    //=========================左右旋转==========================
+    /**
+     * 节点左旋
+     * 解释参照RbtMap#rotateLeft
+     * 会修改p、p的右子节点和p的父节点，三个都必须已经可以修改(右子节点在这里确保)
+     * @param p
+     * @param parent    p的父节点，p是根节点时为null
+     */
+    private void rotateLeft(Node<K,V> p, Node<K,V> parent) {
+        Node<K,V> r = ownChild(p, false);
+        p.right = r.left;
+        replaceChild(parent, p, r);
+        r.left = p;
+    }
+    /**
+     * 节点右旋
+     * 与@rotateLeft()同理(镜像)
+     * @param p
+     * @param parent    p的父节点，p是根节点时为null
+     */
+    private void rotateRight(Node<K,V> p, Node<K,V> parent) {
+        Node<K,V> l = ownChild(p, true);
+        p.left = l.right;
+        replaceChild(parent, p, l);
+        l.right = p;
+    }
+    private void replaceChild(Node<K,V> parent, Node<K,V> oldChild, Node<K,V> newChild) {
+        if (parent == null)
+            root = newChild;
+        else if (parent.left == oldChild)
+            parent.left = newChild;
+        else
+            parent.right = newChild;
+    }
+    //=========================左右旋转==========================
+
+    //=========================写时复制==========================
+    /**
+     * 返回可以修改的节点(属于当前owner就是它自己，否则复制一份)
+     * @param p
+     * @return
+     */
+    private Node<K,V> own(Node<K,V> p) {
+        return p.owner == owner ? p : new Node<>(p, owner);
+    }
+    /**
+     * 返回parent可以修改的子节点，复制了就把parent指向复制出来的节点
+     * parent必须已经可以修改
+     * @param parent
+     * @param left  左子节点还是右子节点
+     * @return
+     */
+    private Node<K,V> ownChild(Node<K,V> parent, boolean left) {
+        Node<K,V> child = left ? parent.left : parent.right;
+        if (child.owner == owner)
+            return child;
+        Node<K,V> copy = new Node<>(child, owner);
+        if (left)
+            parent.left = copy;
+        else
+            parent.right = copy;
+        return copy;
+    }
+    private Node<K,V> nodeAt(int depth) {
+        return depth < 0 ? null : path[depth];
+    }
+    //=========================写时复制==========================
+
+    //=========================查找==========================
+    /**
+     * 使用key查询值
+     * @param key
+     * @return
+     */
+    public V get(Object key) {
+        Node<K,V> p = getNode(root, key, comparator);
+        return p == null ? null : p.value;
+    }
+    /**
+     * 判断key是否存在
+     * @param key
+     * @return
+     */
+    public boolean containsKey(Object key) {
+        return getNode(root, key, comparator) != null;
+    }
+    /**
+     * 从root往下查找key
+     * 逻辑和RbtMap#getEntry一样，树和快照共用
+     */
+    static <K,V> Node<K,V> getNode(Node<K,V> root, Object key, Comparator<? super K> comparator) {
+        Node<K,V> p = root;
+        while (p != null) {
+            int cmp = compare(comparator, key, p.key);
+            if (cmp < 0)
+                p = p.left;
+            else if (cmp > 0)
+                p = p.right;
+            else
+                return p;
+        }
+        return null;
+    }
+    //=========================查找==========================
+
+    /**
+     * 节点类
+     * 节点可能被几个版本共享，所以作为Map.Entry时是只读的
+     */
+    static final class Node<K,V> implements Map.Entry<K,V> {
+        K key;
+        V value;
+        Node<K,V> left;
+        Node<K,V> right;
+        boolean color;
+        /**
+         * 创建这个节点的所有者
+         */
+        final Object owner;
+
+        Node(K key, V value, boolean color, Object owner) {
+            this.key = key;
+            this.value = value;
+            this.color = color;
+            this.owner = owner;
+        }
+
+        /**
+         * 复制节点(子节点指针也复制，子节点本身继续共享)
+         */
+        Node(Node<K,V> node, Object owner) {
+            this.key = node.key;
+            this.value = node.value;
+            this.left = node.left;
+            this.right = node.right;
+            this.color = node.color;
+            this.owner = owner;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+
+            return RbtMap.valEquals(key,e.getKey()) && RbtMap.valEquals(value,e.getValue());
+        }
+
+        public int hashCode() {
+            int keyHash = (key==null ? 0 : key.hashCode());
+            int valueHash = (value==null ? 0 : value.hashCode());
+            return keyHash ^ valueHash;
+        }
+
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * 只读快照
+     * 所有字段都是final的，引用到的节点以后也不会再被修改，所以可以不加锁地发布给其他线程
+     */
+    public static final class Snapshot<K,V> implements Iterable<Map.Entry<K,V>> {
+        private final Node<K,V> root;
+        private final int size;
+        private final Comparator<? super K> comparator;
+
+        Snapshot(Node<K,V> root, int size, Comparator<? super K> comparator) {
+            this.root = root;
+            this.size = size;
+            this.comparator = comparator;
+        }
+
+        public V get(Object key) {
+            Node<K,V> p = getNode(root, key, comparator);
+            return p == null ? null : p.value;
+        }
+
+        public boolean containsKey(Object key) {
+            return getNode(root, key, comparator) != null;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * 按key从小到大遍历
+         * @return
+         */
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator<>(root);
+        }
+    }
+
+    /**
+     * 中序遍历
+     * 节点没有父指针，只能用栈(固定长度的数组，整个遍历只分配一次)
+     * 栈里放的是还没有访问的祖先节点(都是从左边下去的)
+     */
+    static final class EntryIterator<K,V> implements Iterator<Map.Entry<K,V>> {
+        private final Node<K,V>[] stack = newPath();
+        private int top = 0;
+
+        EntryIterator(Node<K,V> root) {
+            pushLeft(root);
+        }
+
+        private void pushLeft(Node<K,V> p) {
+            while (p != null) {
+                stack[top++] = p;
+                p = p.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return top > 0;
+        }
+
+        @Override
+        public Map.Entry<K,V> next() {
+            if (top == 0)
+                throw new NoSuchElementException();
+            Node<K,V> p = stack[--top];
+            pushLeft(p.right);
+            return p;
+        }
+    }
+
+    //=========================一些常用方法封装==========================
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K,V> Node<K,V>[] newPath() {
+        return (Node<K,V>[]) new Node[MAX_DEPTH];
+    }
+    private static <K,V> boolean colorOf(Node<K,V> p) {
+        return (p == null ? BLACK : p.color);
+    }
+    @SuppressWarnings("unchecked")
+    static <K> int compare(Comparator<? super K> comparator, Object k1, Object k2) {
+        return comparator==null ? ((Comparable<? super K>)k1).compareTo((K)k2)
+                : comparator.compare((K)k1, (K)k2);
+    }
+    /**
+     * 红黑树性质校验
+     * 解释参照RbtMap#checkBalance
+     * @throws Exception
+     */
+    public void checkBalance() throws Exception {
+        if (colorOf(root) != BLACK)
+            throw new Exception("根节点不是黑色");
+        postOrderCheckBalance(root);
+    }
+    private int postOrderCheckBalance(Node<K,V> p) throws Exception {
+        if (p == null)
+            return 0;
+        if (p.color == RED && (colorOf(p.left) == RED || colorOf(p.right) == RED))
+            throw new Exception("连续的红色节点 " + p);
+        int bh = postOrderCheckBalance(p.left);
+        if (bh != postOrderCheckBalance(p.right))
+            throw new Exception("黑高不相等 " + p);
+        return bh + (p.color == BLACK ? 1 : 0);
+    }
+    //=========================一些常用方法封装==========================
+
+    /**
+     * 按key从小到大遍历(遍历时不能修改)
+     * @return
+     */
+    @Override
+    public Iterator<Map.Entry<K,V>> iterator() {
+        return new EntryIterator<>(root);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+}
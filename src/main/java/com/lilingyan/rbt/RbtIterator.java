@@ -0,0 +1,135 @@
+package com.lilingyan.rbt;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 中序遍历
+ * 从(子)树的最小节点开始
+ * 每次返回当前节点，然后用RbtMap#successor()顺着父指针找到后继节点
+ * 直到没有后继节点
+ * 不需要栈，每一步都不分配内存，也没有锁(java.util.Stack继承自Vector，所有方法都是synchronized)
+ * @Author: lilingyan
+ */
+public class RbtIterator<K,V> implements Iterator<RbtMap.RbtEntry<K,V>> {
+
+    /**
+     * 下一个要返回的节点
+     */
+    private RbtMap.RbtEntry<K,V> next;
+    /**
+     * 遍历的终点(不包含)，null表示一直走到最大节点
+     */
+    private final RbtMap.RbtEntry<K,V> fence;
+
+    /**
+     * 遍历以root为根的(子)树
+     * @param root 根节点(可以是null)
+     */
+    public RbtIterator(RbtMap.RbtEntry<K,V> root) {
+        this(leftmost(root), root == null ? null : RbtMap.successor(rightmost(root)));
+    }
+
+    /**
+     * 遍历[first, fence)之间的节点
+     * 终点是提前找好的节点，每一步只比较引用，不需要比较key
+     * @param first 遍历的起点
+     * @param fence 遍历的终点(不包含)，null表示一直走到最大节点
+     */
+    public RbtIterator(RbtMap.RbtEntry<K,V> first, RbtMap.RbtEntry<K,V> fence) {
+        this.next = first;
+        this.fence = fence;
+    }
+
+    private static <K,V> RbtMap.RbtEntry<K,V> leftmost(RbtMap.RbtEntry<K,V> p) {
+        if (p != null)
+            while (p.left != null)
+                p = p.left;
+        return p;
+    }
+
+    private static <K,V> RbtMap.RbtEntry<K,V> rightmost(RbtMap.RbtEntry<K,V> p) {
+        while (p.right != null)
+            p = p.right;
+        return p;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.next != fence;
+    }
+
+    @Override
+    public RbtMap.RbtEntry<K, V> next() {
+        RbtMap.RbtEntry<K, V> p = this.next;
+        if (p == fence)
+            throw new NoSuchElementException();
+        this.next = RbtMap.successor(p);
+        return p;
+    }
+
+    /**
+     * 只返回key的迭代器
+     */
+    static final class KeyIterator<K,V> implements Iterator<K> {
+
+        private RbtMap.RbtEntry<K,V> next;
+        private final RbtMap.RbtEntry<K,V> fence;
+
+        KeyIterator(RbtMap.RbtEntry<K,V> first) {
+            this(first, null);
+        }
+
+        KeyIterator(RbtMap.RbtEntry<K,V> first, RbtMap.RbtEntry<K,V> fence) {
+            this.next = first;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != fence;
+        }
+
+        @Override
+        public K next() {
+            RbtMap.RbtEntry<K, V> p = this.next;
+            if (p == fence)
+                throw new NoSuchElementException();
+            this.next = RbtMap.successor(p);
+            return p.key;
+        }
+    }
+
+    /**
+     * 只返回value的迭代器
+     */
+    static final class ValueIterator<K,V> implements Iterator<V> {
+
+        private RbtMap.RbtEntry<K,V> next;
+        private final RbtMap.RbtEntry<K,V> fence;
+
+        ValueIterator(RbtMap.RbtEntry<K,V> first) {
+            this(first, null);
+        }
+
+        ValueIterator(RbtMap.RbtEntry<K,V> first, RbtMap.RbtEntry<K,V> fence) {
+            this.next = first;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != fence;
+        }
+
+        @Override
+        public V next() {
+            RbtMap.RbtEntry<K, V> p = this.next;
+            if (p == fence)
+                throw new NoSuchElementException();
+            this.next = RbtMap.successor(p);
+            return p.value;
+        }
+    }
+
+}
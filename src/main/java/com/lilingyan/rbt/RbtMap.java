@@ -1,38 +1,69 @@
 package com.lilingyan.rbt;
 
+import com.lilingyan.frozen.FrozenMap;
+import com.lilingyan.instrument.TreeStats;
+
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 红黑树
+ *
+ * 每个节点额外记录以它为根的子树的节点数量(size)，用来在O(log n)内求排名(rank)、第k小(select)
+ * 插入/删除时沿父节点链修正，旋转时只有旋转的两个节点需要重新计算
  * @Author: lilingyan
  * @Date 2019/2/22 11:15
  */
-public class RbtMap<K,V> {
+public class RbtMap<K,V> implements Iterable<RbtMap.RbtEntry<K,V>> {
 
     /**
      * 自定义的Comparator 作用于树节点的排序(可以没有)
      * 如果没有 则用树节点的key compare直接比较(如果不存在自定义的Comparator  则key必须实现Comparable接口)
      */
     protected final Comparator<? super K> comparator;
+    /**
+     * key的前缀(可以没有)，有的话每个节点存一份，getEntry/put时先比较前缀，相等了才用比较器
+     * String/byte[]这种比较要读另一个对象、逐个字符比的key，大部分比较只用比两个long
+     */
+    final KeyPrefix<? super K> keyPrefix;
     /**
      * 这颗树的根节点
      */
-    private transient RbtEntry<K,V> root;
+    transient RbtEntry<K,V> root;
     /**
      * 在这个树中存在的节点数量
      */
     private transient int size = 0;
 
-    private static final boolean RED   = false;
-    private static final boolean BLACK = true;
+    static final boolean RED   = false;
+    static final boolean BLACK = true;
 
     //=========================构造器==========================
     public RbtMap() {
         comparator = null;
+        keyPrefix = null;
     }
     public RbtMap(Comparator<? super K> comparator) {
         this.comparator = comparator;
+        this.keyPrefix = null;
+    }
+    /**
+     * @param comparator    为null时用key的自然顺序
+     * @param keyPrefix     必须和排序一致(见KeyPrefix)，为null时就是普通的红黑树
+     */
+    public RbtMap(Comparator<? super K> comparator, KeyPrefix<? super K> keyPrefix) {
+        this.comparator = comparator;
+        this.keyPrefix = keyPrefix;
     }
     //=========================构造器==========================
 
@@ -46,7 +77,7 @@ public class RbtMap<K,V> {
             //校验key类型(可能是null)
             compare(key, key);
 
-            root = new RbtEntry<>(key, value, null);
+            root = newEntry(key, value, null);
             //树的节点数量置为1
             size = 1;
             return null;
@@ -57,8 +88,32 @@ public class RbtMap<K,V> {
         RbtEntry<K,V> parent;
         // split comparator and comparable paths
         Comparator<? super K> cpr = comparator;
+        //比较次数(TreeStats关闭时整个被jit去掉)
+        int comparisons = 0;
+        //有前缀的先比较前缀，相等了再用比较器
+        if (keyPrefix != null) {
+            if (key == null && cpr == null)
+                throw new NullPointerException();
+            long prefix = keyPrefix.prefix(key);
+            do {
+                parent = t;
+                comparisons++;
+                cmp = Long.compareUnsigned(prefix, ((PrefixedEntry<K,V>) t).prefix);
+                if (cmp == 0)
+                    cmp = compare(key, t.key);
+                if (cmp < 0)
+                    t = t.left;
+                else if (cmp > 0)
+                    t = t.right;
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.RBT.put(comparisons);
+                    return t.setValue(value);
+                }
+            } while (t != null);
+        }
         //如果是有自定义比较器的
-        if (cpr != null) {
+        else if (cpr != null) {
             /**
              * 父节点指针从头开始(根节点开始)
              * 拿插入的key与父节点指针相比
@@ -68,14 +123,18 @@ public class RbtMap<K,V> {
              */
             do {
                 parent = t;
+                comparisons++;
 //                stack.push(parent);
                 cmp = cpr.compare(key, t.key);
                 if (cmp < 0)
                     t = t.left;
                 else if (cmp > 0)
                     t = t.right;
-                else
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.RBT.put(comparisons);
                     return t.setValue(value);
+                }
             } while (t != null);
         }
         //如果没有自定义比较器
@@ -88,14 +147,18 @@ public class RbtMap<K,V> {
             //比较过程与上同理
             do {
                 parent = t;
+                comparisons++;
 //                stack.push(parent);
                 cmp = k.compareTo(t.key);
                 if (cmp < 0)
                     t = t.left;
                 else if (cmp > 0)
                     t = t.right;
-                else
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.RBT.put(comparisons);
                     return t.setValue(value);
+                }
             } while (t != null);
         }
 
@@ -103,20 +166,381 @@ public class RbtMap<K,V> {
          * 如果走到这里，说明原树中没有相同的key，并且父节点指针也指向了叶子节点
          * 直接判断cmp(当前父节点指针)大小 小就新建一个左叶子节点插入 大就新建一个右叶子节点插入
          */
-        RbtEntry<K,V> e = new RbtEntry<>(key, value, parent);
+        RbtEntry<K,V> e = newEntry(key, value, parent);
         //只可能大或者小  不可能存在等于
         if (cmp < 0)
             parent.left = e;
         else
             parent.right = e;
+        //路径上所有祖先的子树多了一个节点(之后的旋转会自己修正涉及到的两个节点)
+        for (RbtEntry<K,V> a = parent; a != null; a = a.parent)
+            a.size++;
         //插入后处理(插入后平衡)
         fixAfterInsertion(e);
         //树节点数量增加1
         size++;
+        if (TreeStats.ENABLED)
+            TreeStats.RBT.put(comparisons);
         return null;
     }
     //=========================添加==========================
 
+    //=========================批量插入==========================
+    /**
+     * 插入m中的全部节点
+     * 当前树为空，并且m是比较器相同的SortedMap时，key已经严格递增，直接用buildFromSorted构建(O(n))
+     * 否则按m的遍历顺序用putAllSorted插入(m有序时每次插入都从上一个节点开始找)
+     * @param m
+     */
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (size == 0 && m instanceof SortedMap) {
+            Comparator<?> c = ((SortedMap<? extends K, ? extends V>) m).comparator();
+            if (c == comparator || (c != null && c.equals(comparator))) {
+                buildSorted(m.entrySet().iterator(), m.size(), false);
+                return;
+            }
+        }
+        fingerPutAll(m.entrySet().iterator());
+    }
+    /**
+     * 按顺序插入全部节点，适合按key递增(或者基本递增)的数据，比如按时间排好的事件
+     *
+     * 普通的put每次都从根节点往下找，O(log n)
+     * 这里记住上一次插入的节点(finger)，如果新的key比它大，就从它往上爬，
+     * 爬到第一个"从左边上来"并且不小于key的祖先为止，key的位置一定在这个祖先的子树里，再从这里往下找
+     * 新key离上一个key越近，爬得越低，比较次数是O(log d)(d是两个key之间隔了多少个节点)
+     * 不是递增的key(比上一个小或相等)还是从根节点开始找，所以输入不要求严格有序
+     *
+     * 每个节点还要顺着父节点把祖先的子树数量加1，这一步不需要比较
+     * @param it
+     */
+    public void putAllSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+        fingerPutAll(it);
+    }
+    private void fingerPutAll(Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+        RbtEntry<K,V> finger = null;
+        while (it.hasNext()) {
+            Map.Entry<? extends K, ? extends V> entry = it.next();
+            K key = entry.getKey();
+            RbtEntry<K,V> start = root;
+            if (finger != null && compare(key, finger.key) > 0)
+                start = climbForward(finger, key);
+            finger = putFrom(start, key, entry.getValue());
+        }
+    }
+    /**
+     * 从比key小的节点x往上爬，找到子树范围包含key的最低的节点
+     * x的子树里的key都小于"x往上第一个从左边上来的祖先"(上界)，而key又比x大
+     * 所以只要key小于这个上界，key的位置就在x的子树里
+     * x是父节点的右孩子时，父节点不是上界，直接往上爬(不需要比较)
+     * x是父节点的左孩子时，父节点就是上界，比较一次
+     * 一直没有找到比key大的上界，说明最后一个比较过的祖先(或者x本身)的子树没有上界，就从它开始
+     * 比如key比树里所有节点都大时，直接从x开始，往右走一步就插进去了
+     * @param x
+     * @param key
+     * @return 开始往下找的节点
+     */
+    private RbtEntry<K,V> climbForward(RbtEntry<K,V> x, Object key) {
+        RbtEntry<K,V> start = x;
+        for (RbtEntry<K,V> p = x.parent; p != null; x = p, p = p.parent) {
+            if (x == p.left) {
+                int cmp = compare(key, p.key);
+                if (cmp < 0)
+                    return x;
+                if (cmp == 0)
+                    return p;
+                start = p;
+            }
+        }
+        return start;
+    }
+    /**
+     * 从比key大的节点x往上爬，找到子树范围包含key的最低的节点
+     * 与@climbForward()同理(镜像)，下界是"x往上第一个从右边上来的祖先"
+     * @param x
+     * @param key
+     * @return 开始往下找的节点
+     */
+    private RbtEntry<K,V> climbBackward(RbtEntry<K,V> x, Object key) {
+        RbtEntry<K,V> start = x;
+        for (RbtEntry<K,V> p = x.parent; p != null; x = p, p = p.parent) {
+            if (x == p.right) {
+                int cmp = compare(key, p.key);
+                if (cmp > 0)
+                    return x;
+                if (cmp == 0)
+                    return p;
+                start = p;
+            }
+        }
+        return start;
+    }
+    /**
+     * 从t开始往下找，找到相同的key就覆盖值，否则插入新节点
+     * 逻辑和put一样，只是起点不一定是根节点
+     * @param t     起点，只有树为空时才是null
+     * @param key
+     * @param value
+     * @return key所在的节点
+     */
+    @SuppressWarnings("Duplicates")
+    private RbtEntry<K,V> putFrom(RbtEntry<K,V> t, K key, V value) {
+        if (t == null) {
+            //校验key类型(可能是null)
+            compare(key, key);
+            root = newEntry(key, value, null);
+            size = 1;
+            return root;
+        }
+        int cmp;
+        RbtEntry<K,V> parent;
+        do {
+            parent = t;
+            cmp = compare(key, t.key);
+            if (cmp < 0)
+                t = t.left;
+            else if (cmp > 0)
+                t = t.right;
+            else {
+                t.value = value;
+                return t;
+            }
+        } while (t != null);
+
+        RbtEntry<K,V> e = newEntry(key, value, parent);
+        if (cmp < 0)
+            parent.left = e;
+        else
+            parent.right = e;
+        for (RbtEntry<K,V> a = parent; a != null; a = a.parent)
+            a.size++;
+        fixAfterInsertion(e);
+        size++;
+        return e;
+    }
+    //=========================批量插入==========================
+
+    //=========================批量构建==========================
+    /**
+     * 用已经排好序的数据直接构建一颗完全平衡的树(原来的节点全部丢弃)
+     * 解释参照buildFromSorted(Iterator, int, boolean)
+     * @param it    按key严格递增的节点
+     * @param size  节点数量
+     */
+    public void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size) {
+        buildFromSorted(it, size, false);
+    }
+    /**
+     * 用已经排好序的数据直接构建一颗完全平衡的树(原来的节点全部丢弃)
+     * 参照jdk TreeMap#buildFromSorted
+     *
+     * 每次取区间的中点作为子树的根，先递归构建左子树，再从迭代器里取中点，最后构建右子树
+     * 迭代器正好按中序被消费，每个节点只创建一次，不需要比较和旋转，O(n)
+     * 左右子树节点数最多差1，只有最底下一层可能不满
+     * 所以除了最底层(不满的那层)染红，其他全是黑色，就满足红黑树的性质
+     * @param it            按key严格递增的节点
+     * @param size          节点数量(迭代器里的数量不能少于它)
+     * @param checkOrder    是否校验key严格递增(会多做n-1次比较)
+     */
+    public void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size, boolean checkOrder) {
+        buildSorted(it, size, checkOrder);
+    }
+    /**
+     * buildFromSorted的实现(putAll也会用到，子类覆盖buildFromSorted时不影响这里)
+     */
+    private void buildSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it, int size, boolean checkOrder) {
+        if (size < 0)
+            throw new IllegalArgumentException("size: " + size);
+        if (checkOrder)
+            it = new OrderCheckingIterator<>(it);
+        root = buildFromSorted(0, 0, size - 1, computeRedLevel(size), it);
+        this.size = size;
+    }
+    @SuppressWarnings("Duplicates")
+    private RbtEntry<K,V> buildFromSorted(int level, int lo, int hi, int redLevel,
+                                          Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+        if (hi < lo)
+            return null;
+        int mid = (lo + hi) >>> 1;
+
+        RbtEntry<K,V> left = null;
+        if (lo < mid)
+            left = buildFromSorted(level + 1, lo, mid - 1, redLevel, it);
+
+        Map.Entry<? extends K, ? extends V> entry = it.next();
+        RbtEntry<K,V> middle = newEntry(entry.getKey(), entry.getValue(), null);
+        middle.size = hi - lo + 1;
+        if (level == redLevel)
+            middle.color = RED;
+
+        if (left != null) {
+            middle.left = left;
+            left.parent = middle;
+        }
+        if (mid < hi) {
+            RbtEntry<K,V> right = buildFromSorted(level + 1, mid + 1, hi, redLevel, it);
+            middle.right = right;
+            right.parent = middle;
+        }
+        return middle;
+    }
+    /**
+     * 最底层(可能不满)的层号，这一层的节点染红
+     * 满二叉树(size=2^k-1)时这一层不存在
+     * @param size
+     * @return
+     */
+    private static int computeRedLevel(int size) {
+        return 31 - Integer.numberOfLeadingZeros(size + 1);
+    }
+    /**
+     * 校验key严格递增的迭代器
+     */
+    private final class OrderCheckingIterator<E extends Map.Entry<? extends K, ? extends V>> implements Iterator<E> {
+        private final Iterator<E> it;
+        private K last;
+        private boolean first = true;
+
+        OrderCheckingIterator(Iterator<E> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public E next() {
+            E e = it.next();
+            K key = e.getKey();
+            if (first) {
+                //校验key类型(可能是null)
+                compare(key, key);
+                first = false;
+            } else if (compare(last, key) >= 0) {
+                throw new IllegalArgumentException("keys are not strictly ascending: " + last + " then " + key);
+            }
+            last = key;
+            return e;
+        }
+    }
+    //=========================批量构建==========================
+
+    //=========================并行构建==========================
+    /**
+     * 用没有排序的数据并行构建一颗红黑树
+     * key相同的节点只保留后出现的(和按数组顺序put的结果一样)
+     * @see #parallelBuild(Map.Entry[], Comparator, BinaryOperator)
+     */
+    public static <K,V> RbtMap<K,V> parallelBuild(Map.Entry<K,V>[] entries, Comparator<? super K> comparator) {
+        return parallelBuild(entries, comparator, (oldValue, newValue) -> newValue);
+    }
+    /**
+     * 用没有排序的数据并行构建一颗红黑树(ForkJoinPool.commonPool)
+     *
+     * 1. 复制一份数组按key并行排序(Arrays.parallelSort，稳定排序，key相同的节点保持原来的先后顺序)
+     * 2. 顺序扫一遍，key相同的用merge合并value(merge(先出现的, 后出现的))
+     * 3. 和buildFromSorted一样取中点作为子树的根，但左右子树直接按下标拆给不同的线程构建，最后把两边挂到中点下
+     *    节点颜色(最底层染红)和子树数量只取决于下标，各线程不需要互相协调
+     * entries本身不会被修改
+     * @param entries       没有排序的节点(key不能为null，除非比较器支持)
+     * @param comparator    为null时用key的自然顺序
+     * @param merge         合并key相同的两个value
+     * @return
+     */
+    @SuppressWarnings({"unchecked", "Duplicates"})
+    public static <K,V> RbtMap<K,V> parallelBuild(Map.Entry<K,V>[] entries, Comparator<? super K> comparator,
+                                                   BinaryOperator<V> merge) {
+        RbtMap<K,V> map = new RbtMap<>(comparator);
+        Map.Entry<K,V>[] sorted = entries.clone();
+        Arrays.parallelSort(sorted, (a, b) -> map.compare(a.getKey(), b.getKey()));
+        //去重(key和value分开放，合并后的value不用再创建Entry)
+        Object[] keys = new Object[sorted.length];
+        Object[] values = new Object[sorted.length];
+        int n = 0;
+        for (Map.Entry<K,V> e : sorted) {
+            K key = e.getKey();
+            if (n == 0) {
+                //校验key类型(可能是null)
+                map.compare(key, key);
+            } else if (map.compare(keys[n - 1], key) == 0) {
+                values[n - 1] = merge.apply((V) values[n - 1], e.getValue());
+                continue;
+            }
+            keys[n] = key;
+            values[n] = e.getValue();
+            n++;
+        }
+        map.root = ForkJoinPool.commonPool().invoke(new BuildTask<>(keys, values, 0, 0, n - 1, computeRedLevel(n)));
+        map.size = n;
+        return map;
+    }
+    /**
+     * 并行构建[lo, hi]之间的子树
+     * 节点少于PARALLEL_BUILD_THRESHOLD时直接在当前线程递归
+     */
+    private static final class BuildTask<K,V> extends RecursiveTask<RbtEntry<K,V>> {
+
+        private static final long serialVersionUID = 1L;
+        private static final int PARALLEL_BUILD_THRESHOLD = 1 << 13;
+
+        private final Object[] keys;
+        private final Object[] values;
+        private final int level;
+        private final int lo;
+        private final int hi;
+        private final int redLevel;
+
+        BuildTask(Object[] keys, Object[] values, int level, int lo, int hi, int redLevel) {
+            this.keys = keys;
+            this.values = values;
+            this.level = level;
+            this.lo = lo;
+            this.hi = hi;
+            this.redLevel = redLevel;
+        }
+
+        @Override
+        protected RbtEntry<K,V> compute() {
+            if (hi - lo + 1 < PARALLEL_BUILD_THRESHOLD)
+                return build(level, lo, hi);
+            int mid = (lo + hi) >>> 1;
+            BuildTask<K,V> leftTask = new BuildTask<>(keys, values, level + 1, lo, mid - 1, redLevel);
+            leftTask.fork();
+            RbtEntry<K,V> right = new BuildTask<K,V>(keys, values, level + 1, mid + 1, hi, redLevel).compute();
+            RbtEntry<K,V> left = leftTask.join();
+            return link(left, newEntry(level, lo, mid, hi), right);
+        }
+
+        private RbtEntry<K,V> build(int level, int lo, int hi) {
+            if (hi < lo)
+                return null;
+            int mid = (lo + hi) >>> 1;
+            return link(build(level + 1, lo, mid - 1), newEntry(level, lo, mid, hi), build(level + 1, mid + 1, hi));
+        }
+
+        @SuppressWarnings("unchecked")
+        private RbtEntry<K,V> newEntry(int level, int lo, int mid, int hi) {
+            RbtEntry<K,V> middle = new RbtEntry<>((K) keys[mid], (V) values[mid], null);
+            middle.size = hi - lo + 1;
+            if (level == redLevel)
+                middle.color = RED;
+            return middle;
+        }
+
+        private static <K,V> RbtEntry<K,V> link(RbtEntry<K,V> left, RbtEntry<K,V> middle, RbtEntry<K,V> right) {
+            middle.left = left;
+            middle.right = right;
+            if (left != null)
+                left.parent = middle;
+            if (right != null)
+                right.parent = middle;
+            return middle;
+        }
+    }
+    //=========================并行构建==========================
+
     //=========================删除==========================
     /**
      * 删除节点
@@ -152,10 +576,19 @@ public class RbtMap<K,V> {
         if (p.left != null && p.right != null) {
             RbtEntry<K,V> s = successor(p);
             p.key = s.key;
+            if (keyPrefix != null)
+                ((PrefixedEntry<K,V>) p).prefix = ((PrefixedEntry<K,V>) s).prefix;
             p.value = s.value;
             p = s;
         } // p has 2 children
 
+        /**
+         * 到这里p就是真正要从树上摘掉的节点(最多一个子节点)
+         * 先把它所有祖先的子树数量减1，之后的旋转都基于正确的数量
+         */
+        for (RbtEntry<K,V> a = p.parent; a != null; a = a.parent)
+            a.size--;
+
         // Start fixup at replacement node, if it exists.
         RbtEntry<K,V> replacement = (p.left != null ? p.left : p.right);
 
@@ -198,7 +631,10 @@ public class RbtMap<K,V> {
             /**
              * 如果p没有子节点，说明p是叶子节点
              * 直接把p的父节点指向p的指针置空
+             *
+             * 调整时p还挂在树上(当作占位节点)，旋转会把它算进子树数量里，所以先把它的数量置0
              */
+            p.size = 0;
             if (p.color == BLACK)
                 /**
                  * 只有删除的是黑节点，才需要调整
@@ -229,6 +665,8 @@ public class RbtMap<K,V> {
          * 只有根节点以下，并且父节点是红色的节点才需要调整
          */
         while (x != null && x != root && x.parent.color == RED) {
+            if (TreeStats.ENABLED)
+                TreeStats.RBT.fixupIteration();
             if (parentOf(x) == leftOf(parentOf(parentOf(x)))) {
                 //·父节点·是·祖父节点·的左孩子(为了知道·叔叔节点·(当前节点的祖父节点的另一个子节点)在·祖父节点·的左边还是右边)
                 //获取·叔叔节点·
@@ -294,6 +732,8 @@ public class RbtMap<K,V> {
     private void fixAfterDeletion(RbtEntry<K,V> x) {
         //只有非根的黑色节点才需要调整(指针回溯时用)
         while (x != root && colorOf(x) == BLACK) {
+            if (TreeStats.ENABLED)
+                TreeStats.RBT.fixupIteration();
             if (x == leftOf(parentOf(x))) {
                 //删除节点为·父节点·的左孩子情况
                 //获取兄弟节点(sib,sibling 当前节点的父节点的另一个子节点)
@@ -394,6 +834,8 @@ public class RbtMap<K,V> {
      * @param p
      */
     private void rotateLeft(RbtEntry<K,V> p) {
+        if (TreeStats.ENABLED)
+            TreeStats.RBT.rotation();
         if (p != null) {
             //先获取p的右子节点(既然是左旋，右子节点必须有)
             RbtEntry<K,V> r = p.right;
@@ -416,6 +858,9 @@ public class RbtMap<K,V> {
             //最后把p挂载到p右子节点的左子节点上
             r.left = p;
             p.parent = r;
+            //r接替了p的位置，子树数量就是原来p的；p重新按子节点计算
+            r.size = p.size;
+            p.size = sizeOf(p.left) + sizeOf(p.right) + 1;
         }
     }
     /**
@@ -425,6 +870,8 @@ public class RbtMap<K,V> {
      * @param p
      */
     private void rotateRight(RbtEntry<K,V> p) {
+        if (TreeStats.ENABLED)
+            TreeStats.RBT.rotation();
         if (p != null) {
             RbtEntry<K,V> l = p.left;
             p.left = l.right;
@@ -437,6 +884,8 @@ public class RbtMap<K,V> {
             else p.parent.left = l;
             l.right = p;
             p.parent = l;
+            l.size = p.size;
+            p.size = sizeOf(p.left) + sizeOf(p.right) + 1;
         }
     }
     //=========================左右旋转==========================
@@ -458,6 +907,8 @@ public class RbtMap<K,V> {
      */
     @SuppressWarnings("Duplicates")
     final RbtEntry<K,V> getEntry(Object key) {
+        if (keyPrefix != null)
+            return getEntryUsingPrefix(key);
         // Offload comparator-based version for sake of performance
         if (comparator != null)
             return getEntryUsingComparator(key);
@@ -467,18 +918,57 @@ public class RbtMap<K,V> {
         @SuppressWarnings("unchecked")
         Comparable<? super K> k = (Comparable<? super K>) key;
         RbtEntry<K,V> p = root;
+        int comparisons = 0;
         /**
          * 比较逻辑与@getEntryUsingComparator()逻辑一致
          */
         while (p != null) {
+            comparisons++;
             int cmp = k.compareTo(p.key);
             if (cmp < 0)
                 p = p.left;
             else if (cmp > 0)
                 p = p.right;
-            else
+            else {
+                if (TreeStats.ENABLED)
+                    TreeStats.RBT.lookup(comparisons);
+                return p;
+            }
+        }
+        if (TreeStats.ENABLED)
+            TreeStats.RBT.lookup(comparisons);
+        return null;
+    }
+    /**
+     * 先比较前缀查找
+     * 前缀不相等时前缀的大小就是key的大小，相等时才用比较器(或者Comparable)比较
+     * @param key   需要查找的key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final RbtEntry<K,V> getEntryUsingPrefix(Object key) {
+        if (key == null && comparator == null)
+            throw new NullPointerException();
+        long prefix = prefixOf(key);
+        RbtEntry<K,V> p = root;
+        int comparisons = 0;
+        while (p != null) {
+            comparisons++;
+            int cmp = Long.compareUnsigned(prefix, ((PrefixedEntry<K,V>) p).prefix);
+            if (cmp == 0)
+                cmp = compare(key, p.key);
+            if (cmp < 0)
+                p = p.left;
+            else if (cmp > 0)
+                p = p.right;
+            else {
+                if (TreeStats.ENABLED)
+                    TreeStats.RBT.lookup(comparisons);
                 return p;
+            }
         }
+        if (TreeStats.ENABLED)
+            TreeStats.RBT.lookup(comparisons);
         return null;
     }
     /**
@@ -494,6 +984,7 @@ public class RbtMap<K,V> {
         if (cpr != null) {
             //父节点指针
             RbtEntry<K,V> p = root;
+            int comparisons = 0;
             /**
              * 递归判断 需要查询的key和父节点指针所指的key大小
              * 如果小于 则把父节点指针向左子节点移动
@@ -501,17 +992,35 @@ public class RbtMap<K,V> {
              * 如果等于 则父节点指针指向的对象就是需要查询的
              */
             while (p != null) {
+                comparisons++;
                 int cmp = cpr.compare(k, p.key);
                 if (cmp < 0)
                     p = p.left;
                 else if (cmp > 0)
                     p = p.right;
-                else
+                else {
+                    if (TreeStats.ENABLED)
+                        TreeStats.RBT.lookup(comparisons);
                     return p;
+                }
             }
+            if (TreeStats.ENABLED)
+                TreeStats.RBT.lookup(comparisons);
         }
         return null;
     }
+    /**
+     * 获取树中的最小节点
+     * 解释参照BstMap#getFirstEntry
+     * @return
+     */
+    final RbtEntry<K,V> getFirstEntry() {
+        RbtEntry<K,V> p = root;
+        if (p != null)
+            while (p.left != null)
+                p = p.left;
+        return p;
+    }
     /**
      * 获取后继节点
      * @param t
@@ -560,18 +1069,668 @@ public class RbtMap<K,V> {
     }
     //=========================查找==========================
 
+    //=========================导航==========================
+    /**
+     * 最小的节点
+     * @return 树为空时返回null
+     */
+    public Map.Entry<K,V> firstEntry() {
+        return getFirstEntry();
+    }
+    /**
+     * 最大的节点
+     * @return 树为空时返回null
+     */
+    public Map.Entry<K,V> lastEntry() {
+        return getLastEntry();
+    }
+    /**
+     * 小于等于key的最大节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> floorEntry(K key) {
+        return getFloorEntry(key);
+    }
+    /**
+     * 大于等于key的最小节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> ceilingEntry(K key) {
+        return getCeilingEntry(key);
+    }
+    /**
+     * 大于key的最小节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> higherEntry(K key) {
+        return getHigherEntry(key);
+    }
+    /**
+     * 小于key的最大节点
+     * @param key
+     * @return 不存在时返回null
+     */
+    public Map.Entry<K,V> lowerEntry(K key) {
+        return getLowerEntry(key);
+    }
+    /**
+     * key在from和to之间的视图
+     * 不复制节点，只记录两端，对视图的读写直接作用在这颗树上
+     * 遍历时先找到两端的节点(O(log n))，之后顺着后继节点走到终点为止，每个元素不需要比较也不分配内存
+     * @param fromKey
+     * @param fromInclusive 是否包含fromKey
+     * @param toKey
+     * @param toInclusive   是否包含toKey
+     * @return
+     * @throws IllegalArgumentException fromKey大于toKey
+     */
+    public RbtSubMap<K,V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        if (compare(fromKey, toKey) > 0)
+            throw new IllegalArgumentException("fromKey > toKey");
+        return new RbtSubMap<>(this, fromKey, fromInclusive, toKey, toInclusive);
+    }
+    /**
+     * 获取树中的最大节点
+     * 与@getFirstEntry()同理(镜像操作)
+     * @return
+     */
+    final RbtEntry<K,V> getLastEntry() {
+        RbtEntry<K,V> p = root;
+        if (p != null)
+            while (p.right != null)
+                p = p.right;
+        return p;
+    }
+    /**
+     * 大于等于key的最小节点
+     * 参照jdk TreeMap#getCeilingEntry
+     *
+     * 和getEntry一样往下找，找到相等的直接返回
+     * key比当前节点小并且没有左子节点了，当前节点就是
+     * key比当前节点大并且没有右子节点了，向上回溯到第一个"从左边上来"的祖先(与successor()向上回溯的逻辑一致)
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final RbtEntry<K,V> getCeilingEntry(Object key) {
+        return ceilingFrom(root, key);
+    }
+    /**
+     * 从p开始往下找大于等于key的最小节点
+     * p的子树范围必须包含key(比如根节点)，找不到时会顺着父节点回溯到子树外面
+     * @param p
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final RbtEntry<K,V> ceilingFrom(RbtEntry<K,V> p, Object key) {
+        while (p != null) {
+            int cmp = compare(key, p.key);
+            if (cmp < 0) {
+                if (p.left != null)
+                    p = p.left;
+                else
+                    return p;
+            } else if (cmp > 0) {
+                if (p.right != null) {
+                    p = p.right;
+                } else {
+                    RbtEntry<K,V> parent = p.parent;
+                    RbtEntry<K,V> ch = p;
+                    while (parent != null && ch == parent.right) {
+                        ch = parent;
+                        parent = parent.parent;
+                    }
+                    return parent;
+                }
+            } else
+                return p;
+        }
+        return null;
+    }
+    /**
+     * 小于等于key的最大节点
+     * 与@getCeilingEntry()同理(镜像操作)
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final RbtEntry<K,V> getFloorEntry(Object key) {
+        RbtEntry<K,V> p = root;
+        while (p != null) {
+            int cmp = compare(key, p.key);
+            if (cmp > 0) {
+                if (p.right != null)
+                    p = p.right;
+                else
+                    return p;
+            } else if (cmp < 0) {
+                if (p.left != null) {
+                    p = p.left;
+                } else {
+                    RbtEntry<K,V> parent = p.parent;
+                    RbtEntry<K,V> ch = p;
+                    while (parent != null && ch == parent.left) {
+                        ch = parent;
+                        parent = parent.parent;
+                    }
+                    return parent;
+                }
+            } else
+                return p;
+        }
+        return null;
+    }
+    /**
+     * 大于key的最小节点
+     * 与@getCeilingEntry()一样，只是相等时继续往右找
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final RbtEntry<K,V> getHigherEntry(Object key) {
+        RbtEntry<K,V> p = root;
+        while (p != null) {
+            int cmp = compare(key, p.key);
+            if (cmp < 0) {
+                if (p.left != null)
+                    p = p.left;
+                else
+                    return p;
+            } else {
+                if (p.right != null) {
+                    p = p.right;
+                } else {
+                    RbtEntry<K,V> parent = p.parent;
+                    RbtEntry<K,V> ch = p;
+                    while (parent != null && ch == parent.right) {
+                        ch = parent;
+                        parent = parent.parent;
+                    }
+                    return parent;
+                }
+            }
+        }
+        return null;
+    }
+    /**
+     * 小于key的最大节点
+     * 与@getFloorEntry()一样，只是相等时继续往左找
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    final RbtEntry<K,V> getLowerEntry(Object key) {
+        RbtEntry<K,V> p = root;
+        while (p != null) {
+            int cmp = compare(key, p.key);
+            if (cmp > 0) {
+                if (p.right != null)
+                    p = p.right;
+                else
+                    return p;
+            } else {
+                if (p.left != null) {
+                    p = p.left;
+                } else {
+                    RbtEntry<K,V> parent = p.parent;
+                    RbtEntry<K,V> ch = p;
+                    while (parent != null && ch == parent.left) {
+                        ch = parent;
+                        parent = parent.parent;
+                    }
+                    return parent;
+                }
+            }
+        }
+        return null;
+    }
+    /**
+     * 获取前驱节点
+     * 与@successor()同理(镜像操作)
+     * @param t
+     * @param <K>
+     * @param <V>
+     * @return
+     */
+    @SuppressWarnings("Duplicates")
+    static <K,V> RbtEntry<K,V> predecessor(RbtEntry<K,V> t) {
+        if (t == null)
+            return null;
+        else if (t.left != null) {
+            RbtEntry<K,V> p = t.left;
+            while (p.right != null)
+                p = p.right;
+            return p;
+        } else {
+            RbtEntry<K,V> p = t.parent;
+            RbtEntry<K,V> ch = t;
+            while (p != null && ch == p.left) {
+                ch = p;
+                p = p.parent;
+            }
+            return p;
+        }
+    }
+    //=========================导航==========================
+
+    //=========================拆分连接==========================
+    /**
+     * 按key把树拆成两半(具体见RbtSetOps)
+     * 调用后这颗树只剩下比key小的节点，大于等于key的节点放到返回的新树里
+     * 直接复用原来的节点，子树数量一起维护，O(log n)
+     * @param key
+     * @return key及比key大的部分
+     */
+    public RbtMap<K,V> split(K key) {
+        //校验key类型(可能是null)
+        compare(key, key);
+        RbtMap<K,V> high = new RbtMap<>(comparator, keyPrefix);
+        if (root == null)
+            return high;
+        RbtSetOps<K,V> ops = new RbtSetOps<>(this);
+        ops.split(root, RbtSetOps.blackHeight(root), key);
+        RbtEntry<K,V> low = ops.left;
+        RbtEntry<K,V> right = ops.right;
+        if (ops.mid != null)
+            right = ops.join(null, 0, ops.mid, right, ops.rightBh);
+        resetRoot(low);
+        high.resetRoot(right);
+        return high;
+    }
+    /**
+     * 连接
+     * 这颗树中的key都要比key小，right中的key都要比key大
+     * 调用后这颗树包含原来的节点、key以及right中的全部节点，right变成空树
+     * O(|两棵树的黑高差|)
+     * @param key
+     * @param value
+     * @param right
+     * @throws IllegalArgumentException 比较器不同，或者key的顺序不对
+     */
+    public void join(K key, V value, RbtMap<K,V> right) {
+        checkComparator(right);
+        if (right == this)
+            throw new IllegalArgumentException("join with itself");
+        compare(key, key);
+        RbtEntry<K,V> last = getLastEntry();
+        RbtEntry<K,V> first = right.getFirstEntry();
+        if ((last != null && compare(last.key, key) >= 0) || (first != null && compare(key, first.key) >= 0))
+            throw new IllegalArgumentException("keys out of order: " + key);
+        RbtSetOps<K,V> ops = new RbtSetOps<>(this);
+        resetRoot(ops.join(root, RbtSetOps.blackHeight(root), newEntry(key, value, null),
+                right.root, RbtSetOps.blackHeight(right.root)));
+        right.resetRoot(null);
+    }
+    //=========================拆分连接==========================
+
+    //=========================集合运算==========================
+    /**
+     * 并集
+     * 调用后这颗树包含两棵树的全部节点，key相同时用other的value，other变成空树
+     * 较小的树有m个节点、较大的有n个时，O(m log(n/m + 1))
+     * @param other 比较器要相同
+     */
+    public void union(RbtMap<K,V> other) {
+        setOperation(RbtSetOps.UNION, other, false);
+    }
+    /**
+     * 交集
+     * 调用后这颗树只剩下other中也有的key(value不变)，other不变
+     * @param other 比较器要相同
+     */
+    public void intersection(RbtMap<K,V> other) {
+        setOperation(RbtSetOps.INTERSECTION, other, false);
+    }
+    /**
+     * 差集
+     * 调用后这颗树只剩下other中没有的key，other不变
+     * @param other 比较器要相同
+     */
+    public void difference(RbtMap<K,V> other) {
+        setOperation(RbtSetOps.DIFFERENCE, other, false);
+    }
+    /**
+     * 并集(fork/join并行)
+     * @see #union(RbtMap)
+     */
+    public void parallelUnion(RbtMap<K,V> other) {
+        setOperation(RbtSetOps.UNION, other, true);
+    }
+    /**
+     * 交集(fork/join并行)
+     * @see #intersection(RbtMap)
+     */
+    public void parallelIntersection(RbtMap<K,V> other) {
+        setOperation(RbtSetOps.INTERSECTION, other, true);
+    }
+    /**
+     * 差集(fork/join并行)
+     * @see #difference(RbtMap)
+     */
+    public void parallelDifference(RbtMap<K,V> other) {
+        setOperation(RbtSetOps.DIFFERENCE, other, true);
+    }
+    private void setOperation(int op, RbtMap<K,V> other, boolean parallel) {
+        checkComparator(other);
+        if (other == this) {
+            if (op == RbtSetOps.DIFFERENCE)
+                resetRoot(null);
+            return;
+        }
+        RbtSetOps<K,V> ops = new RbtSetOps<>(this);
+        int bh1 = RbtSetOps.blackHeight(root);
+        int bh2 = RbtSetOps.blackHeight(other.root);
+        resetRoot(parallel ? ops.parallelApply(op, root, bh1, other.root, bh2) : ops.apply(op, root, bh1, other.root, bh2));
+        if (op == RbtSetOps.UNION)
+            other.resetRoot(null);
+    }
+    private void checkComparator(RbtMap<K,V> other) {
+        Comparator<?> c = other.comparator;
+        if (c != comparator && (c == null || !c.equals(comparator)))
+            throw new IllegalArgumentException("comparators differ");
+        //节点是直接挪过来的，存的前缀要是同一种算法算出来的
+        if (other.keyPrefix != keyPrefix)
+            throw new IllegalArgumentException("key prefixes differ");
+    }
+    /**
+     * 换成以p为根的树，节点数量直接取p的子树数量
+     */
+    private void resetRoot(RbtEntry<K,V> p) {
+        root = p;
+        if (p != null) {
+            p.parent = null;
+            p.color = BLACK;
+        }
+        size = sizeOf(p);
+    }
+    //=========================集合运算==========================
+
+    //=========================游标==========================
+    /**
+     * 新建一个游标(还没有定位)
+     * @return
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * 游标
+     * 停在某个节点上，可以前后移动、读写当前节点的值、删除当前节点
+     * 访问相邻的key时不需要每次都从根节点开始找；定位和移动都不分配内存，游标本身可以一直重复使用
+     *
+     * 游标只记住当前节点，不是通过这个游标对树做的修改(put/remove等)之后需要重新定位
+     */
+    public final class Cursor {
+
+        /**
+         * 当前节点，null表示没有定位(或者已经移出了两端)
+         */
+        private RbtEntry<K,V> node;
+
+        private Cursor() {
+        }
+
+        /**
+         * 定位到大于等于key的最小节点
+         * 已经定位时从当前节点往上爬到子树范围包含key的节点，再从那里往下找，离当前节点越近爬得越少
+         * 没有定位时从根节点开始找
+         * @param key
+         * @return 是否存在这样的节点(不存在时游标变成没有定位)
+         */
+        public boolean seek(K key) {
+            RbtEntry<K,V> start = root;
+            RbtEntry<K,V> p = node;
+            if (p != null) {
+                int cmp = compare(key, p.key);
+                if (cmp == 0)
+                    return true;
+                start = cmp > 0 ? climbForward(p, key) : climbBackward(p, key);
+            }
+            node = ceilingFrom(start, key);
+            return node != null;
+        }
+
+        /**
+         * 定位到最小的节点
+         * @return 树是否不为空
+         */
+        public boolean first() {
+            node = getFirstEntry();
+            return node != null;
+        }
+
+        /**
+         * 定位到最大的节点
+         * @return 树是否不为空
+         */
+        public boolean last() {
+            node = getLastEntry();
+            return node != null;
+        }
+
+        /**
+         * 移到后继节点
+         * @return 是否还在树里(已经是最大的节点时移出去，游标变成没有定位)
+         */
+        public boolean next() {
+            if (node == null)
+                return false;
+            node = successor(node);
+            return node != null;
+        }
+
+        /**
+         * 移到前驱节点
+         * @return 是否还在树里(已经是最小的节点时移出去，游标变成没有定位)
+         */
+        public boolean prev() {
+            if (node == null)
+                return false;
+            node = predecessor(node);
+            return node != null;
+        }
+
+        /**
+         * 是否停在某个节点上
+         * @return
+         */
+        public boolean isValid() {
+            return node != null;
+        }
+
+        public K key() {
+            return current().key;
+        }
+
+        public V value() {
+            return current().value;
+        }
+
+        /**
+         * 修改当前节点的值
+         * @param value
+         * @return 原来的值
+         */
+        public V setValue(V value) {
+            return cursorSetValue(current(), value);
+        }
+
+        /**
+         * 删除当前节点，游标移到后继节点上
+         * @return 是否还停在某个节点上(删除的是最大的节点时为false)
+         */
+        public boolean remove() {
+            node = cursorRemove(current());
+            return node != null;
+        }
+
+        private RbtEntry<K,V> current() {
+            if (node == null)
+                throw new NoSuchElementException();
+            return node;
+        }
+    }
+
+    /**
+     * 游标修改节点的值(子类加锁的地方)
+     * @param p
+     * @param value
+     * @return 原来的值
+     */
+    V cursorSetValue(RbtEntry<K,V> p, V value) {
+        V oldValue = p.value;
+        p.value = value;
+        return oldValue;
+    }
+
+    /**
+     * 游标删除节点(子类加锁的地方)
+     * deleteEntry删除有两个子节点的节点时，是把后继节点的key和值搬到当前节点上再删后继节点，
+     * 所以这时游标不用动；否则当前节点真的被摘掉了，提前记下它的后继节点
+     * @param p
+     * @return 游标接下来停的节点
+     */
+    RbtEntry<K,V> cursorRemove(RbtEntry<K,V> p) {
+        RbtEntry<K,V> next = (p.left != null && p.right != null) ? p : successor(p);
+        deleteEntry(p);
+        return next;
+    }
+    //=========================游标==========================
+
+    //=========================排名==========================
+    /**
+     * 比key小的节点数量(key不需要存在)
+     * 也就是key插入后的下标(从0开始)
+     * @param key
+     * @return
+     */
+    public int rank(K key) {
+        return rank(key, false);
+    }
+    /**
+     * 从根往下找key
+     * 每往右走一步，说明当前节点和它的左子树都比key小，累加起来
+     * @param key
+     * @param inclusive 和key相等的节点算不算
+     * @return
+     */
+    int rank(Object key, boolean inclusive) {
+        int rank = 0;
+        RbtEntry<K,V> p = root;
+        while (p != null) {
+            int cmp = compare(key, p.key);
+            if (cmp < 0) {
+                p = p.left;
+            } else if (cmp > 0) {
+                rank += sizeOf(p.left) + 1;
+                p = p.right;
+            } else {
+                return rank + sizeOf(p.left) + (inclusive ? 1 : 0);
+            }
+        }
+        return rank;
+    }
+    /**
+     * 节点的排名(比它小的节点数量)
+     * 从节点往上走，每次从右边上来，父节点和它的左子树都比它小
+     * @param e null表示最大节点之后，返回size
+     * @return
+     */
+    final int rankOf(RbtEntry<K,V> e) {
+        if (e == null)
+            return size;
+        int rank = sizeOf(e.left);
+        for (RbtEntry<K,V> p = e; p.parent != null; p = p.parent) {
+            if (p == p.parent.right)
+                rank += sizeOf(p.parent.left) + 1;
+        }
+        return rank;
+    }
+    /**
+     * 第index小的节点(从0开始)
+     * @param index
+     * @return
+     * @throws IndexOutOfBoundsException index不在[0, size)之间
+     */
+    public Map.Entry<K,V> select(int index) {
+        return getEntryAt(index);
+    }
+    /**
+     * 第index小的节点(从0开始)
+     * @param index
+     * @return
+     */
+    final RbtEntry<K,V> getEntryAt(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        RbtEntry<K,V> p = root;
+        /**
+         * 左子树有leftSize个节点
+         * index比它小就在左子树里找，相等就是当前节点，
+         * 否则去右子树里找第(index - leftSize - 1)个
+         */
+        while (true) {
+            int leftSize = sizeOf(p.left);
+            if (index < leftSize) {
+                p = p.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                p = p.right;
+            } else {
+                return p;
+            }
+        }
+    }
+    /**
+     * key在[lo, hi]之间(两端都包含)的节点数量
+     * @param lo
+     * @param hi
+     * @return
+     * @throws IllegalArgumentException lo大于hi
+     */
+    public int countInRange(K lo, K hi) {
+        if (compare(lo, hi) > 0)
+            throw new IllegalArgumentException("lo > hi: " + lo + " > " + hi);
+        return rank(hi, true) - rank(lo, false);
+    }
+    /**
+     * 百分位数(nearest-rank)
+     * 返回第ceil(percent / 100 * size)小的节点，比如p99就是percentile(99)
+     * @param percent   [0, 100]，0返回最小的节点
+     * @return 树为空时返回null
+     * @throws IllegalArgumentException percent不在[0, 100]之间
+     */
+    public Map.Entry<K,V> percentile(double percent) {
+        if (!(percent >= 0 && percent <= 100))
+            throw new IllegalArgumentException("percent: " + percent);
+        if (size == 0)
+            return null;
+        int index = (int) Math.ceil(percent / 100 * size) - 1;
+        return getEntryAt(Math.max(index, 0));
+    }
+    //=========================排名==========================
+
     /**
      * 节点类
      * @param <K>
      * @param <V>
      */
-    static final class RbtEntry<K,V> implements Map.Entry<K,V> {
+    static class RbtEntry<K,V> implements Map.Entry<K,V> {
         K key;
         V value;
         RbtEntry<K,V> left;
         RbtEntry<K,V> right;
         RbtEntry<K,V> parent;
         boolean color = BLACK;
+        /**
+         * 以这个节点为根的子树的节点数量(包括自己)
+         */
+        int size = 1;
 
         /**
          * Make a new cell with given key, value, and parent, and with
@@ -616,6 +1775,19 @@ public class RbtMap<K,V> {
         }
     }
 
+    /**
+     * 有KeyPrefix的树的节点，多存一个key的前缀
+     * 没有KeyPrefix的树用RbtEntry，节点不多这8个字节
+     */
+    static final class PrefixedEntry<K,V> extends RbtEntry<K,V> {
+        long prefix;
+
+        PrefixedEntry(K key, V value, RbtEntry<K,V> parent, long prefix) {
+            super(key, value, parent);
+            this.prefix = prefix;
+        }
+    }
+
     //=========================一些常用方法封装==========================
     static final boolean valEquals(Object o1, Object o2) {
         return (o1==null ? o2==null : o1.equals(o2));
@@ -630,18 +1802,122 @@ public class RbtMap<K,V> {
         if (p != null)
             p.color = c;
     }
+    private static <K,V> int sizeOf(RbtEntry<K,V> p) {
+        return (p == null) ? 0 : p.size;
+    }
     private static <K,V> RbtEntry<K,V> leftOf(RbtEntry<K,V> p) {
         return (p == null) ? null: p.left;
     }
     private static <K,V> RbtEntry<K,V> rightOf(RbtEntry<K,V> p) {
         return (p == null) ? null: p.right;
     }
+    /**
+     * 新建节点，有KeyPrefix时建PrefixedEntry，顺便把前缀算好
+     */
+    private RbtEntry<K,V> newEntry(K key, V value, RbtEntry<K,V> parent) {
+        if (keyPrefix != null)
+            return new PrefixedEntry<>(key, value, parent, keyPrefix.prefix(key));
+        return new RbtEntry<>(key, value, parent);
+    }
+    @SuppressWarnings("unchecked")
+    private long prefixOf(Object key) {
+        return ((KeyPrefix<Object>) keyPrefix).prefix(key);
+    }
     final int compare(Object k1, Object k2) {
         return comparator==null ? ((Comparable<? super K>)k1).compareTo((K)k2)
                 : comparator.compare((K)k1, (K)k2);
     }
+    /**
+     * 红黑树性质校验
+     * 根节点黑色、红色节点没有红色子节点、任一节点到叶子的黑高相等、父子指针互相对应、子树数量正确
+     * @throws Exception
+     */
+    public void checkBalance() throws Exception {
+        if (colorOf(root) != BLACK)
+            throw new Exception("根节点不是黑色");
+        postOrderCheckBalance(root);
+    }
+    /**
+     * 节点校验
+     * @param p
+     * @return p的黑高
+     * @throws Exception
+     */
+    private int postOrderCheckBalance(RbtEntry<K,V> p) throws Exception {
+        if (p == null)
+            return 0;
+        if (p.left != null && p.left.parent != p || p.right != null && p.right.parent != p)
+            throw new Exception("父子指针不对应 " + p);
+        if (p.color == RED && (colorOf(p.left) == RED || colorOf(p.right) == RED))
+            throw new Exception("连续的红色节点 " + p);
+        if (p.size != sizeOf(p.left) + sizeOf(p.right) + 1)
+            throw new Exception("子树数量不对 " + p);
+        if (keyPrefix != null && ((PrefixedEntry<K,V>) p).prefix != prefixOf(p.key))
+            throw new Exception("前缀不对 " + p);
+        int bh = postOrderCheckBalance(p.left);
+        if (bh != postOrderCheckBalance(p.right))
+            throw new Exception("黑高不相等 " + p);
+        return bh + (p.color == BLACK ? 1 : 0);
+    }
     //=========================一些常用方法封装==========================
 
+    /**
+     * 按key从小到大遍历节点
+     * @return
+     */
+    @Override
+    public Iterator<RbtEntry<K, V>> iterator() {
+        return new RbtIterator<>(getFirstEntry(), null);
+    }
+
+    /**
+     * 按key从小到大遍历key
+     * @return
+     */
+    public Iterator<K> keyIterator() {
+        return new RbtIterator.KeyIterator<>(getFirstEntry());
+    }
+
+    /**
+     * 按key从小到大遍历value
+     * @return
+     */
+    public Iterator<V> valueIterator() {
+        return new RbtIterator.ValueIterator<>(getFirstEntry());
+    }
+
+    /**
+     * 生成一份只读的拷贝(见FrozenMap)，之后对这颗树的修改不会影响它
+     * @return
+     */
+    public FrozenMap<K,V> freeze() {
+        return FrozenMap.fromSorted(iterator(), size, comparator);
+    }
+
+    /**
+     * 按key从小到大遍历节点，可以拆分(见RbtSpliterator)
+     * @return
+     */
+    public Spliterator<Map.Entry<K,V>> entrySpliterator() {
+        return new RbtSpliterator<>(this, getFirstEntry(), null, 0, size);
+    }
+
+    /**
+     * 按key从小到大的节点流
+     * @return
+     */
+    public Stream<Map.Entry<K,V>> stream() {
+        return StreamSupport.stream(entrySpliterator(), false);
+    }
+
+    /**
+     * 并行的节点流，按子树的根拆分给ForkJoinPool
+     * @return
+     */
+    public Stream<Map.Entry<K,V>> parallelStream() {
+        return StreamSupport.stream(entrySpliterator(), true);
+    }
+
     public int size() {
         return this.size;
     }
@@ -0,0 +1,375 @@
+package com.lilingyan.rbt;
+
+import com.lilingyan.rbt.RbtMap.RbtEntry;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static com.lilingyan.rbt.RbtMap.BLACK;
+import static com.lilingyan.rbt.RbtMap.RED;
+
+/**
+ * RbtMap的join/split，以及基于它们的集合运算(并集/交集/差集)
+ * 参照 Blelloch, Ferizovic, Sun. Just Join for Parallel Ordered Sets
+ *
+ * join用黑高(从节点到叶子经过的黑色节点数量，包括自己，null为0)判断往哪边挂
+ * 节点里没有记录黑高，每次现算要走一遍左边，所以黑高跟着递归一起传:
+ * 子节点的黑高 = 父节点的黑高 - (父节点是黑色 ? 1 : 0)，join的结果的黑高放在bh字段里
+ * 节点的子树数量(size)在重新连接时一起算好，拆分/合并后rank/select照样能用
+ *
+ * 所有操作都直接复用两棵树原来的节点，不创建新节点
+ * 较小的树有m个节点、较大的有n个时，集合运算是O(m log(n/m + 1))
+ * 中间结果的子树根的parent不一定是null，最后剩下的根由RbtMap负责把parent置空、染黑
+ * 一个实例只给一个线程用(split的结果放在字段里)，并行版本每个子任务用自己的实例
+ * @Author: lilingyan
+ */
+final class RbtSetOps<K,V> {
+
+    static final int UNION = 0;
+    static final int INTERSECTION = 1;
+    static final int DIFFERENCE = 2;
+
+    /**
+     * 两棵子树的节点数量都不小于这个值时才拆成并行子任务，否则直接串行算
+     */
+    private static final int PARALLEL_SIZE = 1024;
+
+    private final RbtMap<K,V> map;
+
+    /**
+     * split的结果
+     * left:比key小的部分  mid:和key相等的节点(没有就是null)  right:比key大的部分
+     */
+    RbtEntry<K,V> left;
+    int leftBh;
+    RbtEntry<K,V> mid;
+    RbtEntry<K,V> right;
+    int rightBh;
+    /**
+     * 上一次join(或集合运算)返回的树的黑高
+     */
+    int bh;
+    /**
+     * 集合运算过程中两棵树都有的key的数量
+     */
+    int common;
+
+    RbtSetOps(RbtMap<K,V> map) {
+        this.map = map;
+    }
+
+    //=========================连接==========================
+    /**
+     * 连接
+     * l中的key都比m小，r中的key都比m大
+     * 先把两边的根染黑(黑高加1，不影响性质)
+     * 黑高相同时m染红作为根，否则沿着黑高大的那棵树的边往下找，
+     * 找到黑高和另一棵相同的黑色节点，用红色的m把两边接起来，
+     * 回来的路上遇到连续的红色节点就把下面那个染黑再旋转(和插入后的调整一样)
+     * O(|bh(l) - bh(r)|)
+     * @return 新的根，它的黑高放在bh
+     */
+    RbtEntry<K,V> join(RbtEntry<K,V> l, int bhl, RbtEntry<K,V> m, RbtEntry<K,V> r, int bhr) {
+        if (isRed(l)) {
+            l.color = BLACK;
+            bhl++;
+        }
+        if (isRed(r)) {
+            r.color = BLACK;
+            bhr++;
+        }
+        if (bhl > bhr) {
+            bh = bhl;
+            return joinRight(l, bhl, m, r, bhr);
+        }
+        if (bhr > bhl) {
+            bh = bhr;
+            return joinLeft(l, bhl, m, r, bhr);
+        }
+        bh = bhl;
+        m.color = RED;
+        return link(l, m, r);
+    }
+    /**
+     * t的黑高比r大，沿着t的右边往下找
+     */
+    private static <K,V> RbtEntry<K,V> joinRight(RbtEntry<K,V> t, int bht, RbtEntry<K,V> m, RbtEntry<K,V> r, int bhr) {
+        if (!isRed(t) && bht == bhr) {
+            m.color = RED;
+            return link(t, m, r);
+        }
+        RbtEntry<K,V> c = joinRight(t.right, isRed(t) ? bht : bht - 1, m, r, bhr);
+        link(t.left, t, c);
+        //连续的红色节点只可能出现在右边
+        if (!isRed(t) && isRed(c) && isRed(c.right)) {
+            c.right.color = BLACK;
+            return rotateLeft(t);
+        }
+        return t;
+    }
+    /**
+     * 与@joinRight()同理(镜像)
+     */
+    private static <K,V> RbtEntry<K,V> joinLeft(RbtEntry<K,V> l, int bhl, RbtEntry<K,V> m, RbtEntry<K,V> t, int bht) {
+        if (!isRed(t) && bht == bhl) {
+            m.color = RED;
+            return link(l, m, t);
+        }
+        RbtEntry<K,V> c = joinLeft(l, bhl, m, t.left, isRed(t) ? bht : bht - 1);
+        link(c, t, t.right);
+        if (!isRed(t) && isRed(c) && isRed(c.left)) {
+            c.left.color = BLACK;
+            return rotateRight(t);
+        }
+        return t;
+    }
+    /**
+     * 连接，但是中间没有节点(l中的key都比r小)
+     * 把l中最大的节点摘下来当作中间节点
+     * @return 新的根，它的黑高放在bh
+     */
+    RbtEntry<K,V> join2(RbtEntry<K,V> l, int bhl, RbtEntry<K,V> r, int bhr) {
+        if (l == null) {
+            bh = bhr;
+            return r;
+        }
+        if (r == null) {
+            bh = bhl;
+            return l;
+        }
+        splitLast(l, bhl);
+        return join(left, leftBh, mid, r, bhr);
+    }
+    /**
+     * 摘掉t中最大的节点
+     * 结果: left/leftBh=剩下的树 mid=最大的节点
+     */
+    private void splitLast(RbtEntry<K,V> t, int bht) {
+        int bhc = isRed(t) ? bht : bht - 1;
+        if (t.right == null) {
+            left = t.left;
+            leftBh = bhc;
+            mid = t;
+            return;
+        }
+        RbtEntry<K,V> tl = t.left;
+        splitLast(t.right, bhc);
+        left = join(tl, bhc, t, left, leftBh);
+        leftBh = bh;
+    }
+    //=========================连接==========================
+
+    //=========================拆分==========================
+    /**
+     * 按key把t拆成三部分，结果放在left/leftBh、mid、right/rightBh
+     * 沿着查找key的路径往下，回来的时候把路径上的节点和它另一边的子树join到对应的一侧
+     * O(log n)
+     * @param t
+     * @param bht   t的黑高
+     * @param key
+     */
+    void split(RbtEntry<K,V> t, int bht, Object key) {
+        if (t == null) {
+            left = mid = right = null;
+            leftBh = rightBh = 0;
+            return;
+        }
+        int bhc = isRed(t) ? bht : bht - 1;
+        RbtEntry<K,V> l = t.left;
+        RbtEntry<K,V> r = t.right;
+        int cmp = map.compare(key, t.key);
+        if (cmp < 0) {
+            split(l, bhc, key);
+            right = join(right, rightBh, t, r, bhc);
+            rightBh = bh;
+        } else if (cmp > 0) {
+            split(r, bhc, key);
+            left = join(l, bhc, t, left, leftBh);
+            leftBh = bh;
+        } else {
+            left = l;
+            leftBh = bhc;
+            mid = t;
+            right = r;
+            rightBh = bhc;
+        }
+    }
+    //=========================拆分==========================
+
+    //=========================集合运算==========================
+    /**
+     * 集合运算
+     * 用t2的根把t1拆成两半，两边分别递归，再用t2的根(并集)或t1里相同key的节点(交集)连起来
+     * 并集时key相同的以t2的节点为准，交集时以t1的节点为准
+     * t2的节点只有并集时会被复用，交集和差集不会改动t2
+     * @param op    UNION/INTERSECTION/DIFFERENCE
+     * @return 结果的根，它的黑高放在bh
+     */
+    RbtEntry<K,V> apply(int op, RbtEntry<K,V> t1, int bh1, RbtEntry<K,V> t2, int bh2) {
+        if (t1 == null) {
+            if (op == UNION) {
+                bh = bh2;
+                return t2;
+            }
+            bh = 0;
+            return null;
+        }
+        if (t2 == null) {
+            if (op == INTERSECTION) {
+                bh = 0;
+                return null;
+            }
+            bh = bh1;
+            return t1;
+        }
+        RbtEntry<K,V> l2 = t2.left;
+        RbtEntry<K,V> r2 = t2.right;
+        int bhc2 = isRed(t2) ? bh2 : bh2 - 1;
+        split(t1, bh1, t2.key);
+        RbtEntry<K,V> l1 = left;
+        int bhl1 = leftBh;
+        RbtEntry<K,V> m = mid;
+        RbtEntry<K,V> r1 = right;
+        int bhr1 = rightBh;
+        if (m != null)
+            common++;
+        RbtEntry<K,V> l = apply(op, l1, bhl1, l2, bhc2);
+        int bhl = bh;
+        RbtEntry<K,V> r = apply(op, r1, bhr1, r2, bhc2);
+        return combine(op, l, bhl, t2, m, r, bh);
+    }
+    /**
+     * 把两边的结果连起来
+     * @param t2    拆分用的t2的根
+     * @param m     t1中和t2的根key相同的节点
+     */
+    private RbtEntry<K,V> combine(int op, RbtEntry<K,V> l, int bhl, RbtEntry<K,V> t2, RbtEntry<K,V> m, RbtEntry<K,V> r, int bhr) {
+        if (op == UNION)
+            return join(l, bhl, t2, r, bhr);
+        if (op == INTERSECTION && m != null)
+            return join(l, bhl, m, r, bhr);
+        return join2(l, bhl, r, bhr);
+    }
+    /**
+     * 并行的集合运算(ForkJoinPool.commonPool)
+     * 拆分后两边的子树没有共同的节点，可以分别交给不同的线程
+     * @return 结果的根，它的黑高放在bh
+     */
+    RbtEntry<K,V> parallelApply(int op, RbtEntry<K,V> t1, int bh1, RbtEntry<K,V> t2, int bh2) {
+        SetOpTask<K,V> task = new SetOpTask<>(map, op, t1, bh1, t2, bh2);
+        RbtEntry<K,V> result = ForkJoinPool.commonPool().invoke(task);
+        common += task.common;
+        bh = task.bh;
+        return result;
+    }
+
+    private static final class SetOpTask<K,V> extends RecursiveTask<RbtEntry<K,V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RbtMap<K,V> map;
+        private final int op;
+        private final RbtEntry<K,V> t1;
+        private final int bh1;
+        private final RbtEntry<K,V> t2;
+        private final int bh2;
+        /**
+         * 结果的黑高
+         */
+        int bh;
+        /**
+         * 这个子任务里两棵树都有的key的数量
+         */
+        int common;
+
+        SetOpTask(RbtMap<K,V> map, int op, RbtEntry<K,V> t1, int bh1, RbtEntry<K,V> t2, int bh2) {
+            this.map = map;
+            this.op = op;
+            this.t1 = t1;
+            this.bh1 = bh1;
+            this.t2 = t2;
+            this.bh2 = bh2;
+        }
+
+        @Override
+        protected RbtEntry<K,V> compute() {
+            RbtSetOps<K,V> ops = new RbtSetOps<>(map);
+            RbtEntry<K,V> result;
+            if (sizeOf(t1) < PARALLEL_SIZE || sizeOf(t2) < PARALLEL_SIZE) {
+                result = ops.apply(op, t1, bh1, t2, bh2);
+            } else {
+                RbtEntry<K,V> l2 = t2.left;
+                RbtEntry<K,V> r2 = t2.right;
+                int bhc2 = isRed(t2) ? bh2 : bh2 - 1;
+                ops.split(t1, bh1, t2.key);
+                RbtEntry<K,V> m = ops.mid;
+                SetOpTask<K,V> leftTask = new SetOpTask<>(map, op, ops.left, ops.leftBh, l2, bhc2);
+                SetOpTask<K,V> rightTask = new SetOpTask<>(map, op, ops.right, ops.rightBh, r2, bhc2);
+                leftTask.fork();
+                RbtEntry<K,V> r = rightTask.compute();
+                RbtEntry<K,V> l = leftTask.join();
+                ops.common = leftTask.common + rightTask.common + (m != null ? 1 : 0);
+                result = ops.combine(op, l, leftTask.bh, t2, m, r, rightTask.bh);
+            }
+            bh = ops.bh;
+            common = ops.common;
+            return result;
+        }
+    }
+    //=========================集合运算==========================
+
+    //=========================一些常用方法封装==========================
+    /**
+     * 从t往下到叶子经过的黑色节点数量(包括t)
+     * 只在最外层调用一次，递归里的黑高都是推算出来的
+     */
+    static <K,V> int blackHeight(RbtEntry<K,V> t) {
+        int bh = 0;
+        for (; t != null; t = t.left) {
+            if (t.color == BLACK)
+                bh++;
+        }
+        return bh;
+    }
+    private static <K,V> boolean isRed(RbtEntry<K,V> p) {
+        return p != null && p.color == RED;
+    }
+    private static <K,V> int sizeOf(RbtEntry<K,V> p) {
+        return p == null ? 0 : p.size;
+    }
+    /**
+     * 把l、r挂到m下面(m的颜色不变)，重新计算m的子树数量
+     * @return m(parent置空)
+     */
+    private static <K,V> RbtEntry<K,V> link(RbtEntry<K,V> l, RbtEntry<K,V> m, RbtEntry<K,V> r) {
+        m.left = l;
+        m.right = r;
+        m.parent = null;
+        if (l != null)
+            l.parent = m;
+        if (r != null)
+            r.parent = m;
+        m.size = sizeOf(l) + sizeOf(r) + 1;
+        return m;
+    }
+    /**
+     * 子树左旋(颜色不变，不涉及RbtMap的root)
+     * @return 新的子树根
+     */
+    private static <K,V> RbtEntry<K,V> rotateLeft(RbtEntry<K,V> p) {
+        RbtEntry<K,V> r = p.right;
+        link(p.left, p, r.left);
+        return link(p, r, r.right);
+    }
+    /**
+     * 子树右旋(颜色不变，不涉及RbtMap的root)
+     * @return 新的子树根
+     */
+    private static <K,V> RbtEntry<K,V> rotateRight(RbtEntry<K,V> p) {
+        RbtEntry<K,V> l = p.left;
+        link(l.right, p, p.right);
+        return link(l.left, l, p);
+    }
+    //=========================一些常用方法封装==========================
+
+}
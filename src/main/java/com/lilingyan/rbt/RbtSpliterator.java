@@ -0,0 +1,112 @@
+package com.lilingyan.rbt;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * 可以拆分的中序遍历(给并行stream用)
+ * 参照jdk TreeMap.EntrySpliterator
+ *
+ * 负责[current, fence)之间的节点
+ * 拆分时不复制节点，只找一个中间的节点s，把[current, s)交给新的Spliterator，自己留下[s, fence)
+ * s取子树的根: 第一次拆分取整棵树的根，之后拆出来的左半边取fence的左子节点，留下的右半边取current的右子节点
+ * 红黑树是平衡的，子树的根大致在范围的中间，拆出来的两半大小差不多
+ * 每个节点记录了子树数量，两端的排名相减就是准确的节点数量(SIZED|SUBSIZED)
+ * 遍历过程中不能修改树
+ * @Author: lilingyan
+ */
+public class RbtSpliterator<K,V> implements Spliterator<Map.Entry<K,V>> {
+
+    private final RbtMap<K,V> tree;
+    /**
+     * 下一个要返回的节点
+     */
+    private RbtMap.RbtEntry<K,V> current;
+    /**
+     * 终点(不包含)，null表示一直走到最大节点
+     */
+    private final RbtMap.RbtEntry<K,V> fence;
+    /**
+     * 0:还没拆分过 -1:拆出来的左半边 1:留下的右半边
+     */
+    private int side;
+    /**
+     * 剩下的节点数量(准确值)
+     */
+    private int est;
+
+    RbtSpliterator(RbtMap<K,V> tree, RbtMap.RbtEntry<K,V> current, RbtMap.RbtEntry<K,V> fence, int side, int est) {
+        this.tree = tree;
+        this.current = current;
+        this.fence = fence;
+        this.side = side;
+        this.est = est;
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K,V>> trySplit() {
+        RbtMap.RbtEntry<K,V> e = current;
+        RbtMap.RbtEntry<K,V> f = fence;
+        RbtMap.RbtEntry<K,V> s = (e == null || e == f) ? null :
+                (side == 0) ? tree.root :
+                (side > 0) ? e.right :
+                (f != null) ? f.left : null;
+        if (s == null || s == e || s == f)
+            return null;
+        //current可能已经往后走过了s，排名比较一下
+        int prefix = tree.rankOf(s) - tree.rankOf(e);
+        if (prefix <= 0)
+            return null;
+        side = 1;
+        current = s;
+        est -= prefix;
+        return new RbtSpliterator<>(tree, e, s, -1, prefix);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<K,V>> action) {
+        Objects.requireNonNull(action);
+        RbtMap.RbtEntry<K,V> e = current;
+        if (e == null || e == fence)
+            return false;
+        current = RbtMap.successor(e);
+        est--;
+        action.accept(e);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Map.Entry<K,V>> action) {
+        Objects.requireNonNull(action);
+        RbtMap.RbtEntry<K,V> f = fence;
+        RbtMap.RbtEntry<K,V> e = current;
+        current = f;
+        est = 0;
+        for (; e != null && e != f; e = RbtMap.successor(e)) {
+            action.accept(e);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        return est;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.DISTINCT | Spliterator.SORTED | Spliterator.ORDERED | Spliterator.NONNULL
+                | Spliterator.SIZED | Spliterator.SUBSIZED;
+    }
+
+    /**
+     * 元素是节点，按key的顺序排
+     */
+    @Override
+    public Comparator<? super Map.Entry<K,V>> getComparator() {
+        return (a, b) -> tree.compare(a.getKey(), b.getKey());
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.lilingyan.wal;
+
+import com.lilingyan.avl.AvlMap;
+import com.lilingyan.rbt.RbtMap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * 带预写日志的树
+ * 每次put/remove先追加到WriteAheadLog，按日志的SyncPolicy提交之后才改内存里的树
+ * 不需要每次修改都把整棵树写一遍，崩溃后用同一个日志重新构造就能恢复
+ * <pre>
+ * WriteAheadLog&lt;Long,String&gt; log = new WriteAheadLog&lt;&gt;(path, Codecs.LONG, Codecs.STRING, SyncPolicy.ALWAYS);
+ * DurableMap&lt;Long,String&gt; map = new DurableMap&lt;&gt;(new RbtMap&lt;&gt;(), log);
+ * </pre>
+ *
+ * 线程安全: 追加日志、改树和读树都在这个对象的锁里，提交(等fsync)在锁外面，
+ * 所以ALWAYS时多个线程同时写，一次fsync能把它们的记录都带上
+ * 追加的修改先排队，提交成功后按日志里的顺序应用到树上，所以读到的都是已经提交了的(ALWAYS时就是已经fsync了的)
+ * 提交失败后树不再变化，之后的写都抛IOException
+ * 调用方要保证被包装的树不再被直接修改
+ * @Author: lilingyan
+ */
+public class DurableMap<K,V> implements Closeable {
+
+    /**
+     * 被包装的树(RbtMap和AvlMap没有公共的接口)
+     */
+    private interface Target<K,V> {
+        V put(K key, V value);
+        V remove(K key);
+        V get(K key);
+        boolean containsKey(K key);
+        int size();
+    }
+
+    /**
+     * 追加了还没应用到树上的修改
+     */
+    private static final class Op<K,V> {
+        final long lsn;
+        final K key;
+        final V value;
+        final boolean remove;
+        /**
+         * 应用时树上原来的值
+         */
+        V old;
+
+        Op(long lsn, K key, V value, boolean remove) {
+            this.lsn = lsn;
+            this.key = key;
+            this.value = value;
+            this.remove = remove;
+        }
+    }
+
+    private final Target<K,V> map;
+    private final WriteAheadLog<K,V> log;
+    /**
+     * 按lsn从小到大
+     */
+    private final ArrayDeque<Op<K,V>> pending = new ArrayDeque<>();
+    /**
+     * 提交失败的原因
+     */
+    private IOException failure;
+
+    //=========================构造器==========================
+    /**
+     * 先把日志里的记录replay进map
+     * @param map   一般是空的
+     * @param log   刚打开，还没有追加过
+     */
+    public DurableMap(RbtMap<K,V> map, WriteAheadLog<K,V> log) throws IOException {
+        this(new Target<K,V>() {
+            @Override
+            public V put(K key, V value) {
+                return map.put(key, value);
+            }
+            @Override
+            public V remove(K key) {
+                return map.remove(key);
+            }
+            @Override
+            public V get(K key) {
+                return map.get(key);
+            }
+            @Override
+            public boolean containsKey(K key) {
+                return map.containsKey(key);
+            }
+            @Override
+            public int size() {
+                return map.size();
+            }
+        }, log);
+    }
+    /**
+     * @see #DurableMap(RbtMap, WriteAheadLog)
+     */
+    public DurableMap(AvlMap<K,V> map, WriteAheadLog<K,V> log) throws IOException {
+        this(new Target<K,V>() {
+            @Override
+            public V put(K key, V value) {
+                return map.put(key, value);
+            }
+            @Override
+            public V remove(K key) {
+                return map.remove(key);
+            }
+            @Override
+            public V get(K key) {
+                return map.get(key);
+            }
+            @Override
+            public boolean containsKey(K key) {
+                return map.containsKey(key);
+            }
+            @Override
+            public int size() {
+                return map.size();
+            }
+        }, log);
+    }
+    private DurableMap(Target<K,V> map, WriteAheadLog<K,V> log) throws IOException {
+        this.map = map;
+        this.log = log;
+        log.replay(new WriteAheadLog.Handler<K,V>() {
+            @Override
+            public void put(K key, V value) {
+                map.put(key, value);
+            }
+            @Override
+            public void remove(K key) {
+                map.remove(key);
+            }
+        });
+    }
+    //=========================构造器==========================
+
+    //=========================写==========================
+    /**
+     * @param key
+     * @param value
+     * @return 原来的value
+     * @throws IOException  写日志或者提交失败(这时树没有被修改，之后的写都会失败)
+     */
+    public V put(K key, V value) throws IOException {
+        return write(key, value, false);
+    }
+    /**
+     * @param key
+     * @return 原来的value
+     * @throws IOException  写日志或者提交失败(这时树没有被修改，之后的写都会失败)
+     */
+    public V remove(K key) throws IOException {
+        return write(key, null, true);
+    }
+
+    private V write(K key, V value, boolean remove) throws IOException {
+        Op<K,V> op;
+        synchronized (this) {
+            if (failure != null)
+                throw new IOException("write-ahead log failed", failure);
+            long lsn = remove ? log.appendRemove(key) : log.appendPut(key, value);
+            op = new Op<>(lsn, key, value, remove);
+            pending.add(op);
+        }
+        try {
+            log.commit(op.lsn);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (failure == null)
+                    failure = e;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            //日志是顺序写的，lsn提交了，它前面的也都提交了；可能已经被别的线程应用过了
+            while (!pending.isEmpty() && pending.peek().lsn <= op.lsn) {
+                Op<K,V> p = pending.poll();
+                p.old = p.remove ? map.remove(p.key) : map.put(p.key, p.value);
+            }
+        }
+        return op.old;
+    }
+    //=========================写==========================
+
+    //=========================读==========================
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+    public synchronized boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+    public synchronized int size() {
+        return map.size();
+    }
+    //=========================读==========================
+
+    /**
+     * 把目前所有的修改fsync到磁盘(不管是什么SyncPolicy)
+     */
+    public void sync() throws IOException {
+        log.sync();
+    }
+
+    public WriteAheadLog<K,V> log() {
+        return log;
+    }
+
+    /**
+     * 关闭日志(剩下的修改会fsync)
+     */
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+}
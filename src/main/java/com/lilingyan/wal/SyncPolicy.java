@@ -0,0 +1,25 @@
+package com.lilingyan.wal;
+
+/**
+ * 预写日志什么时候刷盘(fsync)
+ * @Author: lilingyan
+ */
+public enum SyncPolicy {
+
+    /**
+     * 每次修改都等到刷盘之后才返回
+     * 同时在写的线程合并成一次fsync(group commit)，线程越多每次fsync带的记录越多
+     */
+    ALWAYS,
+    /**
+     * 提交时只写进文件(不fsync)，后台线程每隔一段时间刷一次盘
+     * 进程崩溃不丢，操作系统崩溃或断电时最多丢掉这段时间里的修改
+     */
+    INTERVAL,
+    /**
+     * 提交时只写进文件，不主动刷盘(close时除外)，什么时候写到磁盘由操作系统决定
+     * 进程崩溃不丢，操作系统崩溃或断电时丢多少不确定
+     */
+    NEVER
+
+}
@@ -0,0 +1,535 @@
+package com.lilingyan.wal;
+
+import com.lilingyan.io.Codec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * 预写日志
+ * 每次put/remove追加一条记录，崩溃后重新打开，按顺序replay就能恢复出内存里的树
+ *
+ * 格式(大端):
+ * 头部16字节: magic(4) 版本(4) key定长字节数(4，变长是-1) value定长字节数(4)
+ * 之后一条一条放: 长度(4) crc32(4) | 类型(1) [key长度(4)] key [[value长度(4)] value]
+ * 长度和crc32都只算后半部分，remove没有value
+ *
+ * 写:
+ * append只是在锁里把记录编码进内存里的buffer，返回这条记录的序号(lsn)
+ * commit(lsn)按SyncPolicy决定要不要等它刷盘，刷盘用的是group commit:
+ * 同一时间只有一个线程(leader)在写文件和fsync，它先把buffer整块换下来再去写，
+ * 这期间别的线程照样往新的buffer里追加，然后等着，leader做完后其中一个成为下一个leader，把攒下的记录一次写完、一次fsync
+ * 所以并发写的线程越多，每次fsync带的记录越多
+ *
+ * 恢复:
+ * 打开已有的文件时从头校验每条记录，遇到长度不对、不完整或者crc对不上(崩溃时没写完的尾巴)就停下，
+ * 后面的截掉，新记录接着最后一条完整的记录写
+ * replay(handler)把这些完整的记录按顺序交给handler
+ *
+ * 线程安全
+ * @Author: lilingyan
+ */
+public class WriteAheadLog<K,V> implements Closeable {
+
+    static final int MAGIC = 0x57414C31;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    /**
+     * 每条记录前面的长度(4)和crc32(4)
+     */
+    static final int RECORD_HEADER = 8;
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    /**
+     * INTERVAL默认的刷盘间隔
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 10;
+
+    /**
+     * replay时接收记录
+     */
+    public interface Handler<K,V> {
+        void put(K key, V value);
+        void remove(K key);
+    }
+
+    private final FileChannel channel;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final SyncPolicy policy;
+    /**
+     * 打开时最后一条完整记录的结尾，replay读到这里
+     */
+    private final long recoveredEnd;
+    private final long recoveredCount;
+    /**
+     * INTERVAL的后台刷盘线程
+     * 不能用interrupt停它，FileChannel读写时被interrupt会直接把channel关掉
+     */
+    private final Thread syncer;
+    private final Object syncerSignal = new Object();
+    private boolean syncerStopping = false;
+
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+    /**
+     * 正在追加的buffer和leader正在写的buffer，leader每次交换这两个
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    /**
+     * 已经追加/已经写进文件/已经fsync的最后一条记录的序号
+     */
+    private long appended = 0;
+    private long written = 0;
+    private long synced = 0;
+    /**
+     * 有leader正在写文件
+     */
+    private boolean busy = false;
+    private long syncCount = 0;
+    /**
+     * 写文件失败之后文件里的内容不确定了，之后的写都直接报错
+     */
+    private IOException failure;
+    private boolean closed = false;
+
+    //=========================构造器==========================
+    /**
+     * @see #WriteAheadLog(Path, Codec, Codec, SyncPolicy, long)
+     */
+    public WriteAheadLog(Path path, Codec<K> keyCodec, Codec<V> valueCodec, SyncPolicy policy) throws IOException {
+        this(path, keyCodec, valueCodec, policy, DEFAULT_INTERVAL_MILLIS);
+    }
+    /**
+     * 打开日志，不存在(或者是空文件)时新建
+     * @param path
+     * @param keyCodec
+     * @param valueCodec
+     * @param policy
+     * @param intervalMillis    INTERVAL的刷盘间隔，其他策略忽略
+     * @throws IOException      不是这种文件、编码的定长字节数对不上
+     */
+    public WriteAheadLog(Path path, Codec<K> keyCodec, Codec<V> valueCodec, SyncPolicy policy,
+                         long intervalMillis) throws IOException {
+        if (policy == SyncPolicy.INTERVAL && intervalMillis <= 0)
+            throw new IllegalArgumentException("intervalMillis: " + intervalMillis);
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.policy = policy;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(keyCodec.fixedSize());
+                header.putInt(valueCodec.fixedSize());
+                header.flip();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+                channel.force(true);
+                recoveredEnd = HEADER_SIZE;
+                recoveredCount = 0;
+            } else {
+                checkHeader(path);
+                Scanner scanner = new Scanner(channel.size());
+                long count = 0;
+                while (scanner.next(null))
+                    count++;
+                recoveredEnd = scanner.offset();
+                recoveredCount = count;
+                //截掉没写完的尾巴
+                if (channel.size() > recoveredEnd) {
+                    channel.truncate(recoveredEnd);
+                    channel.force(true);
+                }
+            }
+            channel.position(recoveredEnd);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (policy == SyncPolicy.INTERVAL) {
+            syncer = new Thread(() -> syncLoop(intervalMillis), "wal-sync-" + path.getFileName());
+            syncer.setDaemon(true);
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+    //=========================构造器==========================
+
+    private void checkHeader(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                throw new IOException("not a write-ahead log: " + path);
+        }
+        header.flip();
+        if (header.getInt() != MAGIC)
+            throw new IOException("not a write-ahead log: " + path);
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("unsupported version " + version + ": " + path);
+        int keySize = header.getInt();
+        int valueSize = header.getInt();
+        if (keySize != keyCodec.fixedSize() || valueSize != valueCodec.fixedSize())
+            throw new IOException("codec mismatch: file has key/value size " + keySize + "/" + valueSize);
+    }
+
+    //=========================追加==========================
+    /**
+     * 追加一条put(还在内存里，要再调用commit)
+     * @param key
+     * @param value
+     * @return 这条记录的序号
+     */
+    public long appendPut(K key, V value) throws IOException {
+        return append(PUT, key, value);
+    }
+    /**
+     * 追加一条remove(还在内存里，要再调用commit)
+     * @param key
+     * @return 这条记录的序号
+     */
+    public long appendRemove(K key) throws IOException {
+        return append(REMOVE, key, null);
+    }
+
+    private long append(byte type, K key, V value) throws IOException {
+        int keySize = keyCodec.sizeOf(key);
+        int valueSize = type == PUT ? valueCodec.sizeOf(value) : 0;
+        int length = 1 + keySize + (keyCodec.fixedSize() < 0 ? 4 : 0);
+        if (type == PUT)
+            length += valueSize + (valueCodec.fixedSize() < 0 ? 4 : 0);
+        synchronized (lock) {
+            checkWritable();
+            ByteBuffer b = reserve(RECORD_HEADER + length);
+            int start = b.position();
+            try {
+                b.putInt(length);
+                b.putInt(0);
+                b.put(type);
+                put(b, keyCodec, key, keySize);
+                if (type == PUT)
+                    put(b, valueCodec, value, valueSize);
+            } catch (RuntimeException e) {
+                //编码出错，丢掉写了一半的记录
+                b.position(start);
+                throw e;
+            }
+            crc.reset();
+            crc.update(b.array(), b.arrayOffset() + start + RECORD_HEADER, length);
+            b.putInt(start + 4, (int) crc.getValue());
+            return ++appended;
+        }
+    }
+
+    private static <T> void put(ByteBuffer out, Codec<T> codec, T value, int size) {
+        if (codec.fixedSize() < 0)
+            out.putInt(size);
+        codec.encode(value, out);
+    }
+
+    /**
+     * 保证pending至少还有n个字节的空间(不够时翻倍)
+     */
+    private ByteBuffer reserve(int n) {
+        if (pending.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + n));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        return pending;
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed)
+            throw new IllegalStateException("closed");
+        if (failure != null)
+            throw new IOException("write-ahead log failed", failure);
+    }
+    //=========================追加==========================
+
+    //=========================刷盘==========================
+    /**
+     * 按SyncPolicy提交到序号为lsn的记录
+     * ALWAYS: 等到这条记录fsync之后才返回
+     * INTERVAL/NEVER: 等到这条记录写进文件(交给操作系统，不fsync)后返回，进程崩溃不会丢
+     * 写文件和fsync一样走group commit，并发的线程合并成一次write
+     * @param lsn   append返回的序号
+     */
+    public void commit(long lsn) throws IOException {
+        flush(lsn, policy == SyncPolicy.ALWAYS);
+    }
+
+    /**
+     * 把目前追加的所有记录fsync到磁盘
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (lock) {
+            target = appended;
+        }
+        flush(target, true);
+    }
+
+    /**
+     * group commit
+     * 已经有leader在写时等它写完，写完之后lsn还没写进去(或者还没fsync)就自己当leader，
+     * 把pending里攒的所有记录一次写完
+     * @param lsn
+     * @param force 是否要fsync
+     */
+    private void flush(long lsn, boolean force) throws IOException {
+        ByteBuffer out;
+        long target;
+        synchronized (lock) {
+            while (true) {
+                if (failure != null)
+                    throw new IOException("write-ahead log failed", failure);
+                if ((force ? synced : written) >= lsn)
+                    return;
+                if (!busy)
+                    break;
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for the write-ahead log");
+                }
+            }
+            busy = true;
+            out = pending;
+            pending = spare;
+            spare = out;
+            target = appended;
+        }
+        boolean done = false;
+        IOException error = null;
+        try {
+            out.flip();
+            while (out.hasRemaining())
+                channel.write(out);
+            if (force)
+                channel.force(false);
+            done = true;
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            out.clear();
+            synchronized (lock) {
+                busy = false;
+                if (done) {
+                    written = target;
+                    if (force) {
+                        synced = target;
+                        syncCount++;
+                    }
+                } else {
+                    failure = error != null ? error : new IOException("write-ahead log write failed");
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void syncLoop(long intervalMillis) {
+        try {
+            while (true) {
+                synchronized (syncerSignal) {
+                    if (!syncerStopping)
+                        syncerSignal.wait(intervalMillis);
+                    if (syncerStopping)
+                        return;
+                }
+                sync();
+            }
+        } catch (InterruptedException | IOException e) {
+            //写文件失败的话failure已经记下了，之后的写会报错
+        }
+    }
+    //=========================刷盘==========================
+
+    //=========================恢复==========================
+    /**
+     * 按顺序把打开时文件里所有完整的记录交给handler(在追加新记录之前调用)
+     * @param handler
+     * @return 记录数
+     */
+    public long replay(Handler<? super K, ? super V> handler) throws IOException {
+        Scanner scanner = new Scanner(recoveredEnd);
+        long count = 0;
+        while (scanner.next(handler))
+            count++;
+        return count;
+    }
+
+    /**
+     * 顺序读记录，读到end或者第一条不完整的记录为止
+     */
+    private final class Scanner {
+
+        private final long end;
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        /**
+         * 下一次从文件的哪里开始读(buffer里还没处理的数据在它前面)
+         */
+        private long filePosition = HEADER_SIZE;
+
+        Scanner(long end) {
+            this.end = end;
+            buffer.flip();
+        }
+
+        /**
+         * 当前处理到的位置(已经读出的最后一条完整记录的结尾)
+         */
+        long offset() {
+            return filePosition - buffer.remaining();
+        }
+
+        /**
+         * 读一条记录交给handler(null时只校验)
+         * @return 没有完整的记录了返回false
+         */
+        boolean next(Handler<? super K, ? super V> handler) throws IOException {
+            if (!fill(RECORD_HEADER))
+                return false;
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            int checksum = buffer.getInt(start + 4);
+            if (length <= 0 || length > end - offset() - RECORD_HEADER)
+                return false;
+            if (!fill(RECORD_HEADER + length))
+                return false;
+            start = buffer.position();
+            crc.reset();
+            crc.update(buffer.array(), buffer.arrayOffset() + start + RECORD_HEADER, length);
+            if ((int) crc.getValue() != checksum)
+                return false;
+            if (handler != null) {
+                buffer.position(start + RECORD_HEADER);
+                byte type = buffer.get();
+                K key = get(keyCodec);
+                if (type == PUT) {
+                    handler.put(key, get(valueCodec));
+                } else if (type == REMOVE) {
+                    handler.remove(key);
+                } else {
+                    throw new IOException("corrupted record type " + type + " at " + offset());
+                }
+            }
+            buffer.position(start + RECORD_HEADER + length);
+            return true;
+        }
+
+        private <T> T get(Codec<T> codec) {
+            int length = codec.fixedSize();
+            if (length < 0)
+                length = buffer.getInt();
+            return codec.decode(buffer, length);
+        }
+
+        /**
+         * 保证buffer从当前位置起至少有n个字节，文件(到end为止)不够n个字节时返回false
+         */
+        private boolean fill(int n) throws IOException {
+            if (buffer.remaining() >= n)
+                return true;
+            if (n > buffer.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(n, buffer.capacity() * 2));
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.compact();
+            }
+            try {
+                while (buffer.position() < n) {
+                    long left = end - filePosition;
+                    if (left <= 0)
+                        return false;
+                    if (buffer.remaining() > left)
+                        buffer.limit(buffer.position() + (int) left);
+                    int read = channel.read(buffer, filePosition);
+                    if (read < 0)
+                        return false;
+                    filePosition += read;
+                }
+                return true;
+            } finally {
+                buffer.flip();
+            }
+        }
+    }
+    //=========================恢复==========================
+
+    /**
+     * @return 打开时文件里完整的记录数
+     */
+    public long recoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * @return 这次打开后追加的记录数
+     */
+    public long appendCount() {
+        synchronized (lock) {
+            return appended;
+        }
+    }
+
+    /**
+     * @return 这次打开后fsync的次数(appendCount()/syncCount()就是平均每次fsync带的记录数)
+     */
+    public long syncCount() {
+        synchronized (lock) {
+            return syncCount;
+        }
+    }
+
+    public SyncPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * 停掉后台刷盘线程，把剩下的记录写完并fsync(不管是什么SyncPolicy)，关闭文件
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        try {
+            if (syncer != null) {
+                synchronized (syncerSignal) {
+                    syncerStopping = true;
+                    syncerSignal.notifyAll();
+                }
+                try {
+                    syncer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+}
@@ -2,8 +2,21 @@ package com.lilingyan.avl;
 
 import org.junit.Assert;
 import org.junit.Test;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Spliterator;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * @Author: lilingyan
@@ -89,5 +102,524 @@ public class AvlTest {
         avlMap.checkBalance();
     }
 
+    /**
+     * 与TreeMap进行遍历校验(节点、key、value三种迭代器)
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void iterateWithTreeMapTest(){
+        AvlMap<Integer,String> avlMap = new AvlMap<>();
+        TreeMap<Integer,String> treeMap = new TreeMap<>();
+        for (int i = 0; i < 65535; i++) {
+            int key = random.nextInt(65535);
+            String value = String.valueOf(random.nextInt(65535));
+            avlMap.put(key,value);
+            treeMap.put(key,value);
+        }
+        Iterator<AvlMap.AvlEntry<Integer, String>> entryIterator = avlMap.iterator();
+        Iterator<Integer> keyIterator = avlMap.keyIterator();
+        Iterator<String> valueIterator = avlMap.valueIterator();
+        for (Map.Entry<Integer, String> entry : treeMap.entrySet()) {
+            Assert.assertTrue(entryIterator.next().equals(entry));
+            Assert.assertEquals(entry.getKey(), keyIterator.next());
+            Assert.assertEquals(entry.getValue(), valueIterator.next());
+        }
+        Assert.assertFalse(entryIterator.hasNext());
+        Assert.assertFalse(keyIterator.hasNext());
+        Assert.assertFalse(valueIterator.hasNext());
+        try {
+            entryIterator.next();
+            Assert.fail();
+        } catch (NoSuchElementException expected) {
+        }
+
+        //从根节点构造，只遍历这颗子树
+        AvlMap.AvlEntry<Integer,String> left = avlMap.root.left;
+        Iterator<AvlMap.AvlEntry<Integer,String>> subtreeIterator = new AvlIterator<>(left);
+        for (Map.Entry<Integer, String> entry : treeMap.headMap(avlMap.root.getKey()).entrySet()) {
+            Assert.assertEquals(entry, subtreeIterator.next());
+        }
+        Assert.assertFalse(subtreeIterator.hasNext());
+        Assert.assertFalse(new AvlIterator<Integer,String>(null).hasNext());
+    }
+
+    /**
+     * 用有序数据批量构建，再与TreeMap校验
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void buildFromSortedWithTreeMapTest() throws Exception {
+        for (int size : new int[]{0, 1, 2, 3, 7, 8, 1000, 65535}) {
+            TreeMap<Integer,String> treeMap = new TreeMap<>();
+            while (treeMap.size() < size) {
+                int key = random.nextInt();
+                treeMap.put(key,String.valueOf(key));
+            }
+            AvlMap<Integer,String> avlMap = new AvlMap<>();
+            avlMap.put(random.nextInt(), "会被丢弃");
+            avlMap.buildFromSorted(treeMap.entrySet().iterator(), treeMap.size(), true);
+            avlMap.checkBalance();
+            Assert.assertTrue(avlMap.size() == treeMap.size());
+            Iterator<AvlMap.AvlEntry<Integer, String>> iterator = avlMap.iterator();
+            for (Map.Entry<Integer, String> entry : treeMap.entrySet()) {
+                Assert.assertTrue(iterator.next().equals(entry));
+            }
+            Assert.assertFalse(iterator.hasNext());
+            //构建出来的树可以继续正常增删
+            for (int i = 0; i < size; i++) {
+                int key = random.nextInt();
+                Assert.assertEquals(treeMap.put(key, "x"), avlMap.put(key, "x"));
+                key = random.nextBoolean() ? key : treeMap.firstKey();
+                Assert.assertEquals(treeMap.remove(key), avlMap.remove(key));
+            }
+            avlMap.checkBalance();
+            Assert.assertTrue(avlMap.size() == treeMap.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void buildFromUnsortedTest() {
+        TreeMap<Integer,String> treeMap = new TreeMap<>();
+        treeMap.put(1, "a");
+        treeMap.put(2, "b");
+        AvlMap<Integer,String> avlMap = new AvlMap<>();
+        avlMap.buildFromSorted(treeMap.descendingMap().entrySet().iterator(), 2, true);
+    }
+
+    /**
+     * floor/ceiling/higher/lower/first/last和subMap视图与TreeMap对比
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void navigationAndSubMapWithTreeMapTest() {
+        int max = 4096;
+        AvlMap<Integer,Integer> map = new AvlMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        Assert.assertNull(map.firstEntry());
+        Assert.assertNull(map.lastEntry());
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max * 4);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        Assert.assertEquals(treeMap.firstKey(), map.firstEntry().getKey());
+        Assert.assertEquals(treeMap.lastKey(), map.lastEntry().getKey());
+        for (int key = -1; key <= max * 4; key++) {
+            Assert.assertEquals(treeMap.floorEntry(key), map.floorEntry(key));
+            Assert.assertEquals(treeMap.ceilingEntry(key), map.ceilingEntry(key));
+            Assert.assertEquals(treeMap.higherEntry(key), map.higherEntry(key));
+            Assert.assertEquals(treeMap.lowerEntry(key), map.lowerEntry(key));
+        }
+        for (int i = 0; i < 500; i++) {
+            int from = random.nextInt(max * 4 + 2) - 1;
+            int to = from + random.nextInt(max / 4);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            AvlSubMap<Integer,Integer> sub = map.subMap(from, fromInclusive, to, toInclusive);
+            NavigableMap<Integer,Integer> expect = treeMap.subMap(from, fromInclusive, to, toInclusive);
+            Assert.assertEquals(expect.size(), sub.size());
+            Assert.assertEquals(expect.isEmpty(), sub.isEmpty());
+            Assert.assertEquals(expect.firstEntry(), sub.firstEntry());
+            Assert.assertEquals(expect.lastEntry(), sub.lastEntry());
+            Iterator<Integer> keys = sub.keyIterator();
+            for (Integer key : expect.keySet()) {
+                Assert.assertEquals(key, keys.next());
+            }
+            Assert.assertFalse(keys.hasNext());
+            Assert.assertEquals(expect.get(from), sub.get(from));
+            Assert.assertEquals(expect.get(to), sub.get(to));
+        }
+        AvlSubMap<Integer,Integer> sub = map.subMap(10, true, 20, false);
+        sub.put(15, -15);
+        Assert.assertEquals(Integer.valueOf(-15), map.get(15));
+        Assert.assertNull(sub.remove(20));
+        try {
+            sub.put(20, 20);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * putAll/putAllSorted和TreeMap对比
+     * 包括递增、基本递增(偶尔回退)、和已有key重叠、空树直接构建几种情况
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void putAllSortedWithTreeMapTest() throws Exception {
+        int max = 65535;
+        AvlMap<Integer,Integer> map = new AvlMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max / 4; i++) {
+            int key = random.nextInt(max);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        //基本递增的一批，偶尔往回跳
+        List<Map.Entry<Integer,Integer>> batch = new ArrayList<>();
+        int key = 0;
+        for (int i = 0; i < max; i++) {
+            key = random.nextInt(10) == 0 ? random.nextInt(max) : key + random.nextInt(3);
+            batch.add(new AbstractMap.SimpleEntry<>(key, -i));
+            treeMap.put(key, -i);
+        }
+        map.putAllSorted(batch.iterator());
+        //比所有key都大的追加
+        TreeMap<Integer,Integer> tail = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            tail.put(max * 2 + i, i);
+        }
+        map.putAll(tail);
+        treeMap.putAll(tail);
+        map.checkBalance();
+        Assert.assertEquals(treeMap.size(), map.size());
+        Iterator<Integer> keys = map.keyIterator();
+        for (Map.Entry<Integer,Integer> e : treeMap.entrySet()) {
+            Assert.assertEquals(e.getKey(), keys.next());
+            Assert.assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        Assert.assertFalse(keys.hasNext());
+
+        //空树+比较器相同的SortedMap直接构建
+        AvlMap<Integer,Integer> built = new AvlMap<>();
+        built.putAll(treeMap);
+        built.checkBalance();
+        Assert.assertEquals(treeMap.size(), built.size());
+        Assert.assertEquals(treeMap.lastKey(), built.lastEntry().getKey());
+    }
+
+    /**
+     * 游标和TreeMap对比
+     * 随机做seek(当前key附近)/next/prev/setValue/remove，每一步游标位置都和TreeMap算出来的一致
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void cursorWithTreeMapTest() throws Exception {
+        int max = 65535;
+        AvlMap<Integer,Integer> map = new AvlMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max / 2; i++) {
+            int key = random.nextInt(max);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        AvlMap<Integer,Integer>.Cursor cursor = map.cursor();
+        Assert.assertFalse(cursor.isValid());
+        Assert.assertTrue(cursor.first());
+        Integer expect = treeMap.firstKey();
+        for (int i = 0; i < max; i++) {
+            if (expect == null) {
+                Assert.assertFalse(cursor.isValid());
+                int key = random.nextInt(max);
+                expect = treeMap.ceilingKey(key);
+                Assert.assertEquals(expect != null, cursor.seek(key));
+            } else {
+                Assert.assertEquals(expect, cursor.key());
+                Assert.assertEquals(treeMap.get(expect), cursor.value());
+                switch (random.nextInt(5)) {
+                    case 0:
+                        //当前key附近
+                        int key = expect + random.nextInt(201) - 100;
+                        expect = treeMap.ceilingKey(key);
+                        Assert.assertEquals(expect != null, cursor.seek(key));
+                        break;
+                    case 1:
+                        expect = treeMap.higherKey(expect);
+                        Assert.assertEquals(expect != null, cursor.next());
+                        break;
+                    case 2:
+                        expect = treeMap.lowerKey(expect);
+                        Assert.assertEquals(expect != null, cursor.prev());
+                        break;
+                    case 3:
+                        Assert.assertEquals(treeMap.put(expect, -i), cursor.setValue(-i));
+                        break;
+                    default:
+                        Integer next = treeMap.higherKey(expect);
+                        treeMap.remove(expect);
+                        expect = next;
+                        Assert.assertEquals(expect != null, cursor.remove());
+                }
+            }
+        }
+        map.checkBalance();
+        Assert.assertEquals(treeMap.size(), map.size());
+        Assert.assertTrue(cursor.last());
+        Assert.assertEquals(treeMap.lastKey(), cursor.key());
+        Assert.assertFalse(cursor.next());
+        try {
+            cursor.key();
+            Assert.fail();
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+    /**
+     * 多线程同时增删查，和ConcurrentSkipListMap做同样的操作对比返回值
+     * 每个写线程只操作key % 线程数 == 自己编号的key，所以两个map上的返回值一定一样
+     * 负数key一开始装好以后不再改，读线程一直校验它们能查到
+     */
+    @Test
+    public void concurrentPutAndRemoveWithSkipListTest() throws Exception {
+        final int writers = 4;
+        final int max = 1 << 14;
+        final ConcurrentAvlMap<Integer,Integer> map = new ConcurrentAvlMap<>();
+        final ConcurrentSkipListMap<Integer,Integer> skipList = new ConcurrentSkipListMap<>();
+        for (int key = 1; key <= max; key++) {
+            map.put(-key, key);
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < writers; t++) {
+            final int id = t;
+            threads.add(new Thread(() -> {
+                Random r = new Random();
+                awaitQuietly(start);
+                for (int i = 0; i < max * 8; i++) {
+                    int key = r.nextInt(max / writers) * writers + id;
+                    Integer expect, actual;
+                    switch (r.nextInt(3)) {
+                        case 0:
+                            expect = skipList.put(key, i);
+                            actual = map.put(key, i);
+                            break;
+                        case 1:
+                            expect = skipList.remove(key);
+                            actual = map.remove(key);
+                            break;
+                        default:
+                            expect = skipList.get(key);
+                            actual = map.get(key);
+                    }
+                    if (expect == null ? actual != null : !expect.equals(actual))
+                        errors.incrementAndGet();
+                }
+            }));
+        }
+        for (int t = 0; t < 2; t++) {
+            threads.add(new Thread(() -> {
+                Random r = new Random();
+                awaitQuietly(start);
+                for (int i = 0; i < max * 16; i++) {
+                    int key = r.nextInt(max) + 1;
+                    if (!Integer.valueOf(key).equals(map.get(-key)))
+                        errors.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, errors.get());
+        map.checkBalance();
+        Assert.assertEquals(skipList.size() + max, map.size());
+        for (int key = 0; key < max; key++) {
+            Assert.assertEquals(skipList.get(key), map.get(key));
+        }
+    }
+
+    /**
+     * 拆分/连接/集合运算和TreeMap对比
+     * 另一棵树分别比这颗树小很多、小一些、大一些，串行和并行各算一遍
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void setOperationsWithTreeMapTest() throws Exception {
+        int max = 1 << 16;
+        int[] otherCounts = {64, max / 8, max};
+        for (int round = 0; round < otherCounts.length * 2; round++) {
+            boolean parallel = round % 2 == 1;
+            for (int op = 0; op < 3; op++) {
+                AvlMap<Integer,Integer> map = new AvlMap<>();
+                AvlMap<Integer,Integer> other = new AvlMap<>();
+                TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+                TreeMap<Integer,Integer> otherTreeMap = new TreeMap<>();
+                for (int i = 0; i < max / 2; i++) {
+                    int key = random.nextInt(max);
+                    map.put(key, key);
+                    treeMap.put(key, key);
+                }
+                for (int i = 0; i < otherCounts[round / 2]; i++) {
+                    int key = random.nextInt(max);
+                    other.put(key, -key);
+                    otherTreeMap.put(key, -key);
+                }
+                if (op == 0) {
+                    if (parallel)
+                        map.parallelUnion(other);
+                    else
+                        map.union(other);
+                    treeMap.putAll(otherTreeMap);
+                } else if (op == 1) {
+                    if (parallel)
+                        map.parallelIntersection(other);
+                    else
+                        map.intersection(other);
+                    treeMap.keySet().retainAll(otherTreeMap.keySet());
+                } else {
+                    if (parallel)
+                        map.parallelDifference(other);
+                    else
+                        map.difference(other);
+                    treeMap.keySet().removeAll(otherTreeMap.keySet());
+                }
+                map.checkBalance();
+                assertSameEntries(treeMap, map);
+                //只有并集会拿走other的节点，交集和差集other不变
+                if (op == 0) {
+                    Assert.assertEquals(0, other.size());
+                } else {
+                    other.checkBalance();
+                    assertSameEntries(otherTreeMap, other);
+                }
+            }
+        }
+
+        //拆开再连回去
+        AvlMap<Integer,Integer> map = new AvlMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        for (int i = 0; i < 200; i++) {
+            int key = random.nextInt(max + 2) - 1;
+            AvlMap<Integer,Integer> high = map.split(key);
+            map.checkBalance();
+            high.checkBalance();
+            assertSameEntries(treeMap.headMap(key, false), map);
+            assertSameEntries(treeMap.tailMap(key, true), high);
+            if (high.size() == 0) {
+                map.union(high);
+                continue;
+            }
+            Integer middle = high.firstEntry().getKey();
+            Integer value = high.remove(middle);
+            try {
+                high.join(middle, value, map);
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                //顺序不对
+            }
+            map.join(middle, value, high);
+            map.checkBalance();
+            Assert.assertEquals(0, high.size());
+            Assert.assertEquals(treeMap.size(), map.size());
+        }
+        assertSameEntries(treeMap, map);
+    }
+
+    /**
+     * 并行构建和TreeMap对比
+     * key有大量重复，重复的value按出现顺序合并(加起来)；另外用反序的比较器、不合并(后出现的覆盖)再建一次
+     */
+    @SuppressWarnings({"unchecked", "Duplicates"})
+    @Test
+    public void parallelBuildWithTreeMapTest() throws Exception {
+        int max = 1 << 17;
+        Map.Entry<Integer,Integer>[] entries = new Map.Entry[max * 2];
+        TreeMap<Integer,Integer> summed = new TreeMap<>();
+        TreeMap<Integer,Integer> last = new TreeMap<>(Comparator.reverseOrder());
+        for (int i = 0; i < entries.length; i++) {
+            int key = random.nextInt(max);
+            entries[i] = new AbstractMap.SimpleEntry<>(key, i);
+            summed.merge(key, i, Integer::sum);
+            last.put(key, i);
+        }
+        Map.Entry<Integer,Integer> first = entries[0];
+
+        AvlMap<Integer,Integer> map = AvlMap.parallelBuild(entries, null, Integer::sum);
+        map.checkBalance();
+        assertSameEntries(summed, map);
+        //参数没有被修改
+        Assert.assertSame(first, entries[0]);
+
+        AvlMap<Integer,Integer> reversed = AvlMap.parallelBuild(entries, Comparator.reverseOrder());
+        reversed.checkBalance();
+        Assert.assertEquals(last.size(), reversed.size());
+        Iterator<Integer> keys = reversed.keyIterator();
+        for (Map.Entry<Integer,Integer> e : last.entrySet()) {
+            Assert.assertEquals(e.getKey(), keys.next());
+            Assert.assertEquals(e.getValue(), reversed.get(e.getKey()));
+        }
+        Assert.assertFalse(keys.hasNext());
+
+        AvlMap<Integer,Integer> empty = AvlMap.parallelBuild(new Map.Entry[0], null);
+        Assert.assertEquals(0, empty.size());
+        empty.put(1, 1);
+        Assert.assertEquals(1, empty.size());
+    }
+
+    private static void assertSameEntries(Map<Integer,Integer> expect, AvlMap<Integer,Integer> map) {
+        Assert.assertEquals(expect.size(), map.size());
+        Iterator<Integer> keys = map.keyIterator();
+        for (Map.Entry<Integer,Integer> e : expect.entrySet()) {
+            Assert.assertEquals(e.getKey(), keys.next());
+            Assert.assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        Assert.assertFalse(keys.hasNext());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 顺序流、并行流和TreeMap对比
+     * 先用tryAdvance走几步，再把Spliterator一直拆到不能拆为止，各段按顺序拼起来要和TreeMap一样
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void streamWithTreeMapTest() {
+        int max = 1 << 16;
+        AvlMap<Integer,Integer> map = new AvlMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        List<Integer> expect = new ArrayList<>(treeMap.keySet());
+        Assert.assertEquals(expect, map.stream().map(Map.Entry::getKey).collect(Collectors.toList()));
+        Assert.assertEquals(expect, map.parallelStream().map(Map.Entry::getKey).collect(Collectors.toList()));
+        Assert.assertEquals(treeMap.size(), map.parallelStream().count());
+        long evenSum = treeMap.values().stream().mapToLong(v -> v).filter(v -> v % 2 == 0).sum();
+        Assert.assertEquals(evenSum, map.parallelStream().mapToLong(Map.Entry::getValue).filter(v -> v % 2 == 0).sum());
+
+        Spliterator<Map.Entry<Integer,Integer>> spliterator = map.entrySpliterator();
+        Assert.assertTrue(spliterator.hasCharacteristics(Spliterator.SORTED | Spliterator.SIZED));
+        Assert.assertEquals(treeMap.size(), spliterator.getExactSizeIfKnown());
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(spliterator.tryAdvance(e -> keys.add(e.getKey())));
+        }
+        List<Spliterator<Map.Entry<Integer,Integer>>> parts = new ArrayList<>();
+        splitAll(spliterator, parts);
+        Assert.assertTrue(parts.size() > 1);
+        for (Spliterator<Map.Entry<Integer,Integer>> part : parts) {
+            part.forEachRemaining(e -> keys.add(e.getKey()));
+        }
+        Assert.assertEquals(expect, keys);
+    }
+
+    private static <T> void splitAll(Spliterator<T> spliterator, List<Spliterator<T>> parts) {
+        Spliterator<T> prefix = spliterator.trySplit();
+        if (prefix == null) {
+            parts.add(spliterator);
+            return;
+        }
+        splitAll(prefix, parts);
+        splitAll(spliterator, parts);
+    }
 
 }
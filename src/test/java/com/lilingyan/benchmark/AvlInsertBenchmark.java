@@ -0,0 +1,96 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.avl.AvlMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AvlMap插入/删除的吞吐
+ * String key有很长的公共前缀，比较一次的代价比Integer大得多，用来看调整过程中多余的比较
+ *
+ * 和修改前的代码对比时，在两个版本上分别跑一遍:
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="AvlInsertBenchmark"
+ *
+ * load:从空树开始插入全部key(随机顺序)，一次操作=插入size个key
+ * sequentialLoad:同上，key按从小到大的顺序插入(每次都会旋转)
+ * removeAndPut:在装满的树上先删再插回去，保证树的大小不变
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AvlInsertBenchmark {
+
+    public enum KeyType {
+        INTEGER,
+        STRING
+    }
+
+    @Param({"INTEGER", "STRING"})
+    public KeyType keyType;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private Comparable<?>[] keys;
+    private Comparable<?>[] sortedKeys;
+    private AvlMap<Object,Object> map;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] raw = KeyDistribution.UNIFORM.keys(size, new Random(42));
+        keys = new Comparable<?>[raw.length];
+        for (int i = 0; i < raw.length; i++) {
+            keys[i] = key(raw[i]);
+        }
+        sortedKeys = new Comparable<?>[size];
+        for (int i = 0; i < size; i++) {
+            sortedKeys[i] = key(i);
+        }
+        map = new AvlMap<>();
+        for (Comparable<?> key : keys) {
+            map.put(key, key);
+        }
+    }
+
+    private Comparable<?> key(int i) {
+        if (keyType == KeyType.INTEGER)
+            return i;
+        return String.format("tenant-0001/order-book/instrument-%010d", i);
+    }
+
+    @Benchmark
+    public int load() {
+        AvlMap<Object,Object> fresh = new AvlMap<>();
+        for (Comparable<?> key : keys) {
+            fresh.put(key, key);
+        }
+        return fresh.size();
+    }
+
+    @Benchmark
+    public int sequentialLoad() {
+        AvlMap<Object,Object> fresh = new AvlMap<>();
+        for (Comparable<?> key : sortedKeys) {
+            fresh.put(key, key);
+        }
+        return fresh.size();
+    }
+
+    @Benchmark
+    public void removeAndPut(Blackhole bh) {
+        Comparable<?> key = keys[cursor];
+        if (++cursor == keys.length)
+            cursor = 0;
+        bh.consume(map.remove(key));
+        bh.consume(map.put(key, key));
+    }
+
+}
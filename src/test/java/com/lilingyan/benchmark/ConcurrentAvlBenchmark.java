@@ -0,0 +1,94 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.avl.ConcurrentAvlMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConcurrentAvlMap(乐观读+细粒度锁)和ConcurrentSkipListMap的吞吐对比
+ * readPercent=100是只读，50是读写各半
+ *
+ * 线程数从1到64依次跑一遍:
+ * java -cp target/classes:target/test-classes:(依赖) com.lilingyan.benchmark.ConcurrentAvlBenchmark
+ * 或者用jmh命令行指定某个线程数:
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="ConcurrentAvlBenchmark -t 16"
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentAvlBenchmark {
+
+    public enum Variant {
+        AVL,
+        SKIP_LIST
+    }
+
+    @Param({"AVL", "SKIP_LIST"})
+    public Variant variant;
+
+    @Param({"1000", "1000000"})
+    public int size;
+
+    /**
+     * 读操作的百分比
+     */
+    @Param({"100", "90", "50"})
+    public int readPercent;
+
+    private ConcurrentAvlMap<Integer,Integer> avl;
+    private ConcurrentSkipListMap<Integer,Integer> skipList;
+    private Integer[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        avl = new ConcurrentAvlMap<>();
+        skipList = new ConcurrentSkipListMap<>();
+        keys = new Integer[size * 2];
+        Random random = new Random(42);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+        }
+        //只装一半，另一半留给写操作增删
+        for (int i = 0; i < size; i++) {
+            if (variant == Variant.AVL)
+                avl.put(keys[i], keys[i]);
+            else
+                skipList.put(keys[i], keys[i]);
+        }
+    }
+
+    @Benchmark
+    public Object mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer key = keys[random.nextInt(keys.length)];
+        if (random.nextInt(100) < readPercent) {
+            return variant == Variant.AVL ? avl.get(key) : skipList.get(key);
+        }
+        if (variant == Variant.AVL)
+            return random.nextBoolean() ? avl.put(key, key) : avl.remove(key);
+        return random.nextBoolean() ? skipList.put(key, key) : skipList.remove(key);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(ConcurrentAvlBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.rbt.ConcurrentRbtMap;
+import com.lilingyan.rbt.RbtMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读多写少(默认95%读)时ConcurrentRbtMap(乐观读)和synchronized包一层RbtMap的吞吐对比
+ *
+ * 线程数从1到64依次跑一遍:
+ * java -cp target/classes:target/test-classes:(依赖) com.lilingyan.benchmark.ConcurrentReadBenchmark
+ * 或者用jmh命令行指定某个线程数:
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="ConcurrentReadBenchmark -t 16"
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentReadBenchmark {
+
+    public enum Variant {
+        /**
+         * StampedLock乐观读
+         */
+        STAMPED,
+        /**
+         * 所有操作都synchronized
+         */
+        SYNCHRONIZED
+    }
+
+    @Param({"STAMPED", "SYNCHRONIZED"})
+    public Variant variant;
+
+    @Param({"1000000"})
+    public int size;
+
+    /**
+     * 读操作的百分比
+     */
+    @Param({"95"})
+    public int readPercent;
+
+    private RbtMap<Integer,Integer> map;
+    private Integer[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        map = variant == Variant.STAMPED ? new ConcurrentRbtMap<>() : new RbtMap<>();
+        keys = new Integer[size * 2];
+        Random random = new Random(42);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+        }
+        //只装一半，另一半留给写操作增删
+        for (int i = 0; i < size; i++) {
+            map.put(keys[i], keys[i]);
+        }
+    }
+
+    @Benchmark
+    public Object readMostly() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer key = keys[random.nextInt(keys.length)];
+        if (random.nextInt(100) < readPercent) {
+            if (variant == Variant.STAMPED)
+                return map.get(key);
+            synchronized (map) {
+                return map.get(key);
+            }
+        }
+        if (variant == Variant.STAMPED)
+            return random.nextBoolean() ? map.put(key, key) : map.remove(key);
+        synchronized (map) {
+            return random.nextBoolean() ? map.put(key, key) : map.remove(key);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(ConcurrentReadBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.io.Codecs;
+import com.lilingyan.rbt.RbtMap;
+import com.lilingyan.wal.DurableMap;
+import com.lilingyan.wal.SyncPolicy;
+import com.lilingyan.wal.WriteAheadLog;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DurableMap(红黑树+预写日志)写入的吞吐量
+ * ALWAYS时每次put都要等fsync，同时写的线程越多，group commit每次fsync带的记录(批大小)越多，
+ * 结束时会打印平均每次fsync带了多少条记录
+ *
+ * 线程数从1到64依次跑一遍:
+ * java -cp target/classes:target/test-classes:(依赖) com.lilingyan.benchmark.DurableWriteBenchmark
+ * 或者用jmh命令行指定某个线程数:
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="DurableWriteBenchmark -t 16"
+ * 结果和磁盘关系很大，临时目录在tmpfs上的话fsync几乎没有开销
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DurableWriteBenchmark {
+
+    @Param({"ALWAYS", "INTERVAL", "NEVER"})
+    public SyncPolicy policy;
+
+    /**
+     * key的范围
+     */
+    @Param({"1000000"})
+    public int size;
+
+    private Path path;
+    private WriteAheadLog<Long,Long> log;
+    private DurableMap<Long,Long> map;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        path = Files.createTempFile("DurableWriteBenchmark", ".wal");
+        log = new WriteAheadLog<>(path, Codecs.LONG, Codecs.LONG, policy);
+        map = new DurableMap<>(new RbtMap<>(), log);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        map.close();
+        System.out.printf("%n%s: %d records, %d fsyncs, %.1f records per fsync%n", policy,
+                log.appendCount(), log.syncCount(), (double) log.appendCount() / Math.max(1, log.syncCount()));
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public Long put() throws IOException {
+        long key = ThreadLocalRandom.current().nextInt(size);
+        return map.put(key, key);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(DurableWriteBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.avl.AvlMap;
+import com.lilingyan.bst.BstMap;
+import com.lilingyan.btree.BtreeMap;
+import com.lilingyan.rbt.ArrayRbtMap;
+import com.lilingyan.rbt.RbtMap;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * 参与比较的几种树
+ * 几个map之间没有公共接口，这里用BenchMap统一包一层
+ * @Author: lilingyan
+ */
+public enum Engine {
+
+    BST {
+        @Override
+        BenchMap create() {
+            final BstMap<Integer,Integer> map = new BstMap<>();
+            return new BenchMap() {
+                public Integer put(Integer key, Integer value) { return map.put(key, value); }
+                public Integer get(Integer key) { return map.get(key); }
+                public Integer remove(Integer key) { return map.remove(key); }
+                public boolean containsKey(Integer key) { return map.containsKey(key); }
+                public int size() { return map.size(); }
+                public long sumValues() { return sum(map); }
+                public Stream<Map.Entry<Integer,Integer>> stream(boolean parallel) { return parallel ? map.parallelStream() : map.stream(); }
+            };
+        }
+    },
+    AVL {
+        @Override
+        BenchMap create() {
+            final AvlMap<Integer,Integer> map = new AvlMap<>();
+            return new BenchMap() {
+                public Integer put(Integer key, Integer value) { return map.put(key, value); }
+                public Integer get(Integer key) { return map.get(key); }
+                public Integer remove(Integer key) { return map.remove(key); }
+                public boolean containsKey(Integer key) { return map.containsKey(key); }
+                public int size() { return map.size(); }
+                public long sumValues() { return sum(map); }
+                public Stream<Map.Entry<Integer,Integer>> stream(boolean parallel) { return parallel ? map.parallelStream() : map.stream(); }
+            };
+        }
+    },
+    RBT {
+        @Override
+        BenchMap create() {
+            final RbtMap<Integer,Integer> map = new RbtMap<>();
+            return new BenchMap() {
+                public Integer put(Integer key, Integer value) { return map.put(key, value); }
+                public Integer get(Integer key) { return map.get(key); }
+                public Integer remove(Integer key) { return map.remove(key); }
+                public boolean containsKey(Integer key) { return map.containsKey(key); }
+                public int size() { return map.size(); }
+                public long sumValues() { return sum(map); }
+                public Stream<Map.Entry<Integer,Integer>> stream(boolean parallel) { return parallel ? map.parallelStream() : map.stream(); }
+            };
+        }
+    },
+    /**
+     * ArrayRbtMap不能遍历，sumValues()只能返回0，也没有stream
+     */
+    ARRAY_RBT {
+        @Override
+        BenchMap create() {
+            final ArrayRbtMap<Integer,Integer> map = new ArrayRbtMap<>();
+            return new BenchMap() {
+                public Integer put(Integer key, Integer value) { return map.put(key, value); }
+                public Integer get(Integer key) { return map.get(key); }
+                public Integer remove(Integer key) { return map.remove(key); }
+                public boolean containsKey(Integer key) { return map.containsKey(key); }
+                public int size() { return map.size(); }
+                public long sumValues() { return 0; }
+                public Stream<Map.Entry<Integer,Integer>> stream(boolean parallel) { throw new UnsupportedOperationException(); }
+            };
+        }
+    },
+    /**
+     * B+树(默认fanout)，没有stream
+     */
+    BTREE {
+        @Override
+        BenchMap create() {
+            final BtreeMap<Integer,Integer> map = new BtreeMap<>();
+            return new BenchMap() {
+                public Integer put(Integer key, Integer value) { return map.put(key, value); }
+                public Integer get(Integer key) { return map.get(key); }
+                public Integer remove(Integer key) { return map.remove(key); }
+                public boolean containsKey(Integer key) { return map.containsKey(key); }
+                public int size() { return map.size(); }
+                public long sumValues() { return sum(map); }
+                public Stream<Map.Entry<Integer,Integer>> stream(boolean parallel) { throw new UnsupportedOperationException(); }
+            };
+        }
+    },
+    TREE_MAP {
+        @Override
+        BenchMap create() {
+            final TreeMap<Integer,Integer> map = new TreeMap<>();
+            return new BenchMap() {
+                public Integer put(Integer key, Integer value) { return map.put(key, value); }
+                public Integer get(Integer key) { return map.get(key); }
+                public Integer remove(Integer key) { return map.remove(key); }
+                public boolean containsKey(Integer key) { return map.containsKey(key); }
+                public int size() { return map.size(); }
+                public long sumValues() { return sum(map.entrySet()); }
+                public Stream<Map.Entry<Integer,Integer>> stream(boolean parallel) { return parallel ? map.entrySet().parallelStream() : map.entrySet().stream(); }
+            };
+        }
+    };
+
+    abstract BenchMap create();
+
+    /**
+     * 中序遍历一遍，把value加起来(防止被jit优化掉)
+     */
+    private static long sum(Iterable<?> entries) {
+        long sum = 0;
+        for (Object o : entries) {
+            sum += (Integer) ((Map.Entry<?,?>) o).getValue();
+        }
+        return sum;
+    }
+
+    interface BenchMap {
+        Integer put(Integer key, Integer value);
+        Integer get(Integer key);
+        Integer remove(Integer key);
+        boolean containsKey(Integer key);
+        int size();
+        long sumValues();
+        Stream<Map.Entry<Integer,Integer>> stream(boolean parallel);
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.avl.AvlMap;
+import com.lilingyan.btree.BtreeMap;
+import com.lilingyan.frozen.FrozenMap;
+import com.lilingyan.rbt.RbtMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 冻结的FrozenMap(Eytzinger数组)和正在用的树查找延迟的对比
+ * SORTED_ARRAY是排好序的数组直接二分查找(Arrays.binarySearch)，用来看Eytzinger布局本身的作用
+ * 查找的key一半存在一半不存在
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="FrozenBenchmark"
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class FrozenBenchmark {
+
+    public enum Layout {AVL, RBT, BTREE, SORTED_ARRAY, FROZEN}
+
+    @Param({"AVL", "RBT", "BTREE", "SORTED_ARRAY", "FROZEN"})
+    public Layout layout;
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private Integer[] lookups;
+    private int cursor;
+
+    private AvlMap<Integer,Integer> avl;
+    private RbtMap<Integer,Integer> rbt;
+    private BtreeMap<Integer,Integer> btree;
+    private Integer[] sorted;
+    private FrozenMap<Integer,Integer> frozen;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        int[] keys = KeyDistribution.UNIFORM.keys(size, random);
+        RbtMap<Integer,Integer> map = new RbtMap<>();
+        for (int key : keys) {
+            //只放偶数
+            map.put(key << 1, key);
+        }
+        switch (layout) {
+            case AVL:
+                avl = new AvlMap<>();
+                for (int key : keys)
+                    avl.put(key << 1, key);
+                break;
+            case RBT:
+                rbt = map;
+                break;
+            case BTREE:
+                btree = new BtreeMap<>();
+                for (int key : keys)
+                    btree.put(key << 1, key);
+                break;
+            case SORTED_ARRAY:
+                sorted = new Integer[map.size()];
+                Iterator<Integer> it = map.keyIterator();
+                for (int i = 0; i < sorted.length; i++)
+                    sorted[i] = it.next();
+                break;
+            default:
+                frozen = map.freeze();
+        }
+        lookups = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            lookups[i] = (keys[random.nextInt(size)] << 1) | random.nextInt(2);
+        }
+    }
+
+    private Integer nextKey() {
+        Integer key = lookups[cursor];
+        if (++cursor == lookups.length)
+            cursor = 0;
+        return key;
+    }
+
+    @Benchmark
+    public Object get() {
+        Integer key = nextKey();
+        switch (layout) {
+            case AVL:
+                return avl.get(key);
+            case RBT:
+                return rbt.get(key);
+            case BTREE:
+                return btree.get(key);
+            case SORTED_ARRAY:
+                return Arrays.binarySearch(sorted, key);
+            default:
+                return frozen.get(key);
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.lilingyan.benchmark;
+
+import java.util.Random;
+
+/**
+ * 基准测试用的key分布
+ * 生成的数组就是插入顺序，查询时也按这个顺序循环取key
+ * @Author: lilingyan
+ */
+public enum KeyDistribution {
+
+    /**
+     * 均匀随机(有少量重复)
+     */
+    UNIFORM {
+        @Override
+        int[] keys(int n, Random random) {
+            int[] keys = new int[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = random.nextInt();
+            }
+            return keys;
+        }
+    },
+    /**
+     * 递增(bst会退化成链表)
+     */
+    SEQUENTIAL {
+        @Override
+        int[] keys(int n, Random random) {
+            int[] keys = new int[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = i;
+            }
+            return keys;
+        }
+    },
+    /**
+     * zipf分布(theta=0.99)
+     * 少数热点key反复出现，大部分插入变成覆盖
+     */
+    ZIPFIAN {
+        @Override
+        int[] keys(int n, Random random) {
+            //热点key不能是相邻的，所以先把排名打散到随机的key上
+            int[] ranked = UNIFORM.keys(n, random);
+            Zipf zipf = new Zipf(n, 0.99);
+            int[] keys = new int[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = ranked[zipf.next(random)];
+            }
+            return keys;
+        }
+    },
+    /**
+     * 递减(与SEQUENTIAL镜像)
+     */
+    REVERSE {
+        @Override
+        int[] keys(int n, Random random) {
+            int[] keys = new int[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = n - 1 - i;
+            }
+            return keys;
+        }
+    };
+
+    abstract int[] keys(int n, Random random);
+
+    /**
+     * 参照Gray等人的"Quickly Generating Billion-Record Synthetic Databases"(YCSB也用的这个)
+     * 返回[0,n)之间的排名，0最热
+     */
+    static final class Zipf {
+
+        private final int n;
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(n, theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        int next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0)
+                return 0;
+            if (uz < 1.0 + Math.pow(0.5, theta))
+                return Math.min(1, n - 1);
+            return Math.min((int) (n * Math.pow(eta * u - eta + 1, alpha)), n - 1);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.rbt.KeyPrefix;
+import com.lilingyan.rbt.RbtMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * String/byte[]做key时，节点里存前缀(KeyPrefix)和不存的查找对比
+ * key都是"tenant-0001/region-eu/object-"开头，后面跟一个随机数
+ * NONE: 普通红黑树，每次比较都要跳过公共前缀
+ * PREFIX: 前缀取前8个字符(都一样，全靠比较器，看额外开销)
+ * AFTER: 跳过公共前缀后取8个字符(stringAfter，byte[]的也一样跳过)
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="KeyPrefixBenchmark"
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class KeyPrefixBenchmark {
+
+    private static final String COMMON = "tenant-0001/region-eu/object-";
+
+    public enum PrefixMode {NONE, PREFIX, AFTER}
+
+    @Param({"NONE", "PREFIX", "AFTER"})
+    public PrefixMode mode;
+
+    @Param({"1000000"})
+    public int size;
+
+    private RbtMap<String,Integer> strings;
+    private RbtMap<byte[],Integer> bytes;
+    private String[] stringKeys;
+    private byte[][] byteKeys;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] keys = KeyDistribution.UNIFORM.keys(size, new Random(42));
+        switch (mode) {
+            case NONE:
+                strings = new RbtMap<>();
+                bytes = new RbtMap<>(KeyPrefix.BYTES_ORDER);
+                break;
+            case PREFIX:
+                strings = new RbtMap<>(null, KeyPrefix.STRING);
+                bytes = new RbtMap<>(KeyPrefix.BYTES_ORDER, KeyPrefix.BYTES);
+                break;
+            default:
+                int offset = COMMON.length();
+                strings = new RbtMap<>(null, KeyPrefix.stringAfter(COMMON));
+                bytes = new RbtMap<>(KeyPrefix.BYTES_ORDER, key -> {
+                    long prefix = 0;
+                    for (int i = 0; i < 8 && offset + i < key.length; i++) {
+                        prefix |= (key[offset + i] & 0xFFL) << (56 - 8 * i);
+                    }
+                    return prefix;
+                });
+        }
+        stringKeys = new String[size];
+        byteKeys = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            //补齐长度，数字的字典序和大小一致
+            stringKeys[i] = COMMON + String.format("%010d", keys[i] & Integer.MAX_VALUE);
+            byteKeys[i] = stringKeys[i].getBytes(StandardCharsets.US_ASCII);
+            strings.put(stringKeys[i], i);
+            bytes.put(byteKeys[i], i);
+        }
+        //查找用的是另外的对象，不会因为引用相同提前结束比较
+        for (int i = 0; i < size; i++) {
+            stringKeys[i] = new String(stringKeys[i].toCharArray());
+            byteKeys[i] = byteKeys[i].clone();
+        }
+    }
+
+    @Benchmark
+    public Integer getString() {
+        int i = index++;
+        if (index == size)
+            index = 0;
+        return strings.get(stringKeys[i]);
+    }
+
+    @Benchmark
+    public Integer getBytes() {
+        int i = index++;
+        if (index == size)
+            index = 0;
+        return bytes.get(byteKeys[i]);
+    }
+
+}
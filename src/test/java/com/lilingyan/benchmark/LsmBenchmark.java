@@ -0,0 +1,72 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.io.Codecs;
+import com.lilingyan.lsm.LsmStore;
+import com.lilingyan.wal.SyncPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * LsmStore的写入和点查
+ * put: 随机写(日志NEVER，memtable写满后后台写段、合并)
+ * get: 预先写入size条并全部写成段，随机查(大部分要查磁盘上的段)
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="LsmBenchmark"
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LsmBenchmark {
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"4194304"})
+    public long memtableBytes;
+
+    private Path dir;
+    private LsmStore<Long,Long> store;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("LsmBenchmark");
+        store = new LsmStore<>(dir, Codecs.LONG, Codecs.LONG, null, memtableBytes, SyncPolicy.NEVER);
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            long key = random.nextInt(size);
+            store.put(key, key);
+        }
+        store.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        long key = ThreadLocalRandom.current().nextInt(size);
+        store.put(key, key);
+    }
+
+    @Benchmark
+    public Long get() throws IOException {
+        return store.get((long) ThreadLocalRandom.current().nextInt(size));
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.lilingyan.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BstMap/AvlMap/RbtMap/BtreeMap与java.util.TreeMap的对比
+ *
+ * 运行(加上-prof gc可以看到每次操作的分配量gc.alloc.rate.norm):
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="MapBenchmark -prof gc"
+ * 只跑一部分参数:
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="MapBenchmark -p size=1000,100000 -p engine=AVL,RBT -prof gc"
+ *
+ * 除了load，其他都是在装满size个key的树上做单次操作
+ * load是从空树开始插入全部key，一次操作=插入size个key
+ * removeAndPut先删再插回去，保证树的大小不变
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class MapBenchmark {
+
+    /**
+     * bst在有序key下退化成链表，超过这个大小装一次树就要跑几个小时
+     */
+    private static final int BST_DEGENERATE_LIMIT = 100_000;
+
+    @Param({"BST", "AVL", "RBT", "ARRAY_RBT", "BTREE", "TREE_MAP"})
+    public Engine engine;
+
+    @Param({"UNIFORM", "SEQUENTIAL", "ZIPFIAN", "REVERSE"})
+    public KeyDistribution distribution;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private Integer[] keys;
+    private Engine.BenchMap map;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (engine == Engine.BST && size > BST_DEGENERATE_LIMIT
+                && (distribution == KeyDistribution.SEQUENTIAL || distribution == KeyDistribution.REVERSE)) {
+            throw new IllegalStateException("bst退化成链表，跳过 " + distribution + " size=" + size);
+        }
+        int[] raw = distribution.keys(size, new Random(42));
+        //提前装箱，避免测量时把Integer.valueOf也算进去
+        keys = new Integer[raw.length];
+        for (int i = 0; i < raw.length; i++) {
+            keys[i] = raw[i];
+        }
+        map = engine.create();
+        for (Integer key : keys) {
+            map.put(key, key);
+        }
+    }
+
+    private Integer nextKey() {
+        Integer key = keys[cursor];
+        if (++cursor == keys.length)
+            cursor = 0;
+        return key;
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(nextKey());
+    }
+
+    @Benchmark
+    public boolean containsKey() {
+        return map.containsKey(nextKey());
+    }
+
+    @Benchmark
+    public void removeAndPut(Blackhole bh) {
+        Integer key = nextKey();
+        bh.consume(map.remove(key));
+        bh.consume(map.put(key, key));
+    }
+
+    @Benchmark
+    public long iterate() {
+        return map.sumValues();
+    }
+
+    @Benchmark
+    public int load() {
+        Engine.BenchMap fresh = engine.create();
+        for (Integer key : keys) {
+            fresh.put(key, key);
+        }
+        return fresh.size();
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.avl.AvlMap;
+import com.lilingyan.rbt.RbtMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从没有排序的数据建树: 逐个put和parallelBuild(并行排序+并行构建)的对比
+ * 一次操作=建一整颗树
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="ParallelBuildBenchmark"
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class ParallelBuildBenchmark {
+
+    @Param({"AVL", "RBT"})
+    public Engine engine;
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    private Map.Entry<Integer,Integer>[] entries;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] keys = KeyDistribution.UNIFORM.keys(size, new Random(42));
+        entries = new Map.Entry[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new AbstractMap.SimpleEntry<>(keys[i], i);
+        }
+    }
+
+    @Benchmark
+    public int put() {
+        if (engine == Engine.AVL) {
+            AvlMap<Integer,Integer> map = new AvlMap<>();
+            for (Map.Entry<Integer,Integer> e : entries) {
+                map.put(e.getKey(), e.getValue());
+            }
+            return map.size();
+        }
+        RbtMap<Integer,Integer> map = new RbtMap<>();
+        for (Map.Entry<Integer,Integer> e : entries) {
+            map.put(e.getKey(), e.getValue());
+        }
+        return map.size();
+    }
+
+    @Benchmark
+    public int parallelBuild() {
+        if (engine == Engine.AVL)
+            return AvlMap.parallelBuild(entries, null).size();
+        return RbtMap.parallelBuild(entries, null).size();
+    }
+
+}
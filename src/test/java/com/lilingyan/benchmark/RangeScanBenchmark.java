@@ -0,0 +1,119 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.avl.AvlMap;
+import com.lilingyan.btree.BtreeMap;
+import com.lilingyan.rbt.RbtMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 范围扫描: 定位到一个随机的key，往后读length个value加起来
+ * AVL/RBT/BTREE用游标(seek+next)，TREE_MAP用tailMap的迭代器
+ * 二叉树的next每一步都要顺着指针找后继节点，B+树在叶子节点的数组里顺着读，走完一个叶子节点才换一次
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="RangeScanBenchmark"
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class RangeScanBenchmark {
+
+    @Param({"AVL", "RBT", "BTREE", "TREE_MAP"})
+    public Engine engine;
+
+    @Param({"1000000", "10000000"})
+    public int size;
+
+    @Param({"10", "1000"})
+    public int length;
+
+    private Integer[] keys;
+    private int cursor;
+
+    private AvlMap<Integer,Integer>.Cursor avl;
+    private RbtMap<Integer,Integer>.Cursor rbt;
+    private BtreeMap<Integer,Integer>.Cursor btree;
+    private TreeMap<Integer,Integer> treeMap;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] raw = KeyDistribution.UNIFORM.keys(size, new Random(42));
+        keys = new Integer[raw.length];
+        for (int i = 0; i < raw.length; i++) {
+            keys[i] = raw[i];
+        }
+        switch (engine) {
+            case AVL: {
+                AvlMap<Integer,Integer> map = new AvlMap<>();
+                for (Integer key : keys)
+                    map.put(key, key);
+                avl = map.cursor();
+                break;
+            }
+            case RBT: {
+                RbtMap<Integer,Integer> map = new RbtMap<>();
+                for (Integer key : keys)
+                    map.put(key, key);
+                rbt = map.cursor();
+                break;
+            }
+            case BTREE: {
+                BtreeMap<Integer,Integer> map = new BtreeMap<>();
+                for (Integer key : keys)
+                    map.put(key, key);
+                btree = map.cursor();
+                break;
+            }
+            case TREE_MAP:
+                treeMap = new TreeMap<>();
+                for (Integer key : keys)
+                    treeMap.put(key, key);
+                break;
+            default:
+                throw new IllegalArgumentException("不支持 " + engine);
+        }
+    }
+
+    private Integer nextKey() {
+        Integer key = keys[cursor];
+        if (++cursor == keys.length)
+            cursor = 0;
+        return key;
+    }
+
+    @Benchmark
+    public long scan() {
+        Integer from = nextKey();
+        long sum = 0;
+        int n = length;
+        switch (engine) {
+            case AVL:
+                for (boolean valid = avl.seek(from); valid && n > 0; valid = avl.next(), n--)
+                    sum += avl.value();
+                return sum;
+            case RBT:
+                for (boolean valid = rbt.seek(from); valid && n > 0; valid = rbt.next(), n--)
+                    sum += rbt.value();
+                return sum;
+            case BTREE:
+                for (boolean valid = btree.seek(from); valid && n > 0; valid = btree.next(), n--)
+                    sum += btree.value();
+                return sum;
+            default:
+                for (Map.Entry<Integer,Integer> e : treeMap.tailMap(from, true).entrySet()) {
+                    if (n-- == 0)
+                        break;
+                    sum += e.getValue();
+                }
+                return sum;
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.lilingyan.benchmark;
+
+import com.lilingyan.io.Codec;
+import com.lilingyan.io.Codecs;
+import com.lilingyan.io.SortedMapFile;
+import com.lilingyan.rbt.RbtMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 红黑树保存到文件/从文件加载的吞吐量
+ * save: 中序遍历写文件(包括最后的force)
+ * load: 读文件+buildFromSorted
+ * loadByPut: 读文件+一个一个put(对比用)
+ * 结果里的megabytes就是MB/s(每次操作把文件大小累加进去，除以时间)
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="SortedMapFileBenchmark"
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class SortedMapFileBenchmark {
+
+    /**
+     * LONG: long->long，每条16字节
+     * STRING: 20个字符左右的key，40个字符左右的value(都是ASCII)，每条70字节左右
+     */
+    @Param({"LONG", "STRING"})
+    public String type;
+
+    @Param({"1000000"})
+    public int size;
+
+    private RbtMap<Object,Object> map;
+    private Codec<Object> keyCodec;
+    private Codec<Object> valueCodec;
+    private Path path;
+    private long fileBytes;
+
+    /**
+     * 累计处理的MB数(jmh按时间算成每秒)
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        map = new RbtMap<>();
+        for (int i = 0; i < size; i++) {
+            if (type.equals("LONG")) {
+                map.put(random.nextLong(), (long) i);
+            } else {
+                map.put("user/" + Long.toHexString(random.nextLong()),
+                        "value-" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+            }
+        }
+        Codec<?> codec = type.equals("LONG") ? Codecs.LONG : Codecs.STRING;
+        keyCodec = (Codec<Object>) codec;
+        valueCodec = (Codec<Object>) codec;
+        path = Files.createTempFile("SortedMapFileBenchmark", ".bin");
+        SortedMapFile.save(path, map, keyCodec, valueCodec);
+        fileBytes = Files.size(path);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public long save(Throughput throughput) throws IOException {
+        long count = SortedMapFile.save(path, map, keyCodec, valueCodec);
+        throughput.megabytes += fileBytes / 1e6;
+        return count;
+    }
+
+    @Benchmark
+    public int load(Throughput throughput) throws IOException {
+        RbtMap<Object,Object> loaded = new RbtMap<>();
+        try (SortedMapFile.Reader<Object,Object> reader = SortedMapFile.open(path, keyCodec, valueCodec)) {
+            loaded.buildFromSorted(reader, reader.size());
+        }
+        throughput.megabytes += fileBytes / 1e6;
+        return loaded.size();
+    }
+
+    @Benchmark
+    public int loadByPut(Throughput throughput) throws IOException {
+        RbtMap<Object,Object> loaded = new RbtMap<>();
+        try (SortedMapFile.Reader<Object,Object> reader = SortedMapFile.open(path, keyCodec, valueCodec)) {
+            while (reader.hasNext()) {
+                Map.Entry<Object,Object> e = reader.next();
+                loaded.put(e.getKey(), e.getValue());
+            }
+        }
+        throughput.megabytes += fileBytes / 1e6;
+        return loaded.size();
+    }
+
+}
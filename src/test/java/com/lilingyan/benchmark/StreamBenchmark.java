@@ -0,0 +1,70 @@
+package com.lilingyan.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 并行stream按核数的加速比
+ * 过滤+聚合: 统计value是3的倍数的节点，把它们的value加起来
+ *
+ * parallelism=1是顺序stream，其他是在parallelism个线程的ForkJoinPool里跑并行stream
+ * (在ForkJoinPool里提交的任务中调用并行stream，拆分出来的子任务会用这个pool而不是commonPool)
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="StreamBenchmark"
+ * mvn -Pbenchmark -DskipTests test -Djmh.args="StreamBenchmark -p engine=RBT -p parallelism=1,2,4,8,16"
+ * @Author: lilingyan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class StreamBenchmark {
+
+    @Param({"BST", "AVL", "RBT", "TREE_MAP"})
+    public Engine engine;
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    private Engine.BenchMap map;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] keys = KeyDistribution.UNIFORM.keys(size, new Random(42));
+        map = engine.create();
+        for (int key : keys) {
+            map.put(key, key);
+        }
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public long filterSum() throws ExecutionException, InterruptedException {
+        if (parallelism == 1)
+            return filterSum(false);
+        return pool.submit(() -> filterSum(true)).get();
+    }
+
+    private long filterSum(boolean parallel) {
+        return map.stream(parallel)
+                .mapToLong(Map.Entry::getValue)
+                .filter(v -> v % 3 == 0)
+                .sum();
+    }
+
+}
@@ -2,10 +2,15 @@ package com.lilingyan.bst;
 
 import org.junit.Assert;
 import org.junit.Test;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Spliterator;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 /**
  * @Author: lilingyan
@@ -114,4 +119,93 @@ public class BstTest {
         }
     }
 
+    /**
+     * 与TreeMap进行遍历校验(节点、key、value三种迭代器)
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void iterateWithTreeMapTest(){
+        BstMap<Integer,String> bstMap = new BstMap<>();
+        TreeMap<Integer,String> treeMap = new TreeMap<>();
+        for (int i = 0; i < 65535; i++) {
+            int key = random.nextInt(65535);
+            String value = String.valueOf(random.nextInt(65535));
+            bstMap.put(key,value);
+            treeMap.put(key,value);
+        }
+        Iterator<BstMap.BstEntry<Integer, String>> entryIterator = bstMap.iterator();
+        Iterator<Integer> keyIterator = bstMap.keyIterator();
+        Iterator<String> valueIterator = bstMap.valueIterator();
+        for (Map.Entry<Integer, String> entry : treeMap.entrySet()) {
+            Assert.assertTrue(entryIterator.next().equals(entry));
+            Assert.assertEquals(entry.getKey(), keyIterator.next());
+            Assert.assertEquals(entry.getValue(), valueIterator.next());
+        }
+        Assert.assertFalse(entryIterator.hasNext());
+        Assert.assertFalse(keyIterator.hasNext());
+        Assert.assertFalse(valueIterator.hasNext());
+        try {
+            entryIterator.next();
+            Assert.fail();
+        } catch (NoSuchElementException expected) {
+        }
+
+        //从根节点构造，只遍历这颗子树
+        BstMap.BstEntry<Integer,String> left = bstMap.root.left;
+        Iterator<BstMap.BstEntry<Integer,String>> subtreeIterator = new BstIterator<>(left);
+        for (Map.Entry<Integer, String> entry : treeMap.headMap(bstMap.root.getKey()).entrySet()) {
+            Assert.assertEquals(entry, subtreeIterator.next());
+        }
+        Assert.assertFalse(subtreeIterator.hasNext());
+        Assert.assertFalse(new BstIterator<Integer,String>(null).hasNext());
+    }
+
+    /**
+     * 顺序流、并行流和TreeMap对比
+     * 先用tryAdvance走几步，再把Spliterator一直拆到不能拆为止，各段按顺序拼起来要和TreeMap一样
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void streamWithTreeMapTest() {
+        int max = 1 << 16;
+        BstMap<Integer,Integer> map = new BstMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        List<Integer> expect = new ArrayList<>(treeMap.keySet());
+        Assert.assertEquals(expect, map.stream().map(Map.Entry::getKey).collect(Collectors.toList()));
+        Assert.assertEquals(expect, map.parallelStream().map(Map.Entry::getKey).collect(Collectors.toList()));
+        Assert.assertEquals(treeMap.size(), map.parallelStream().count());
+        long evenSum = treeMap.values().stream().mapToLong(v -> v).filter(v -> v % 2 == 0).sum();
+        Assert.assertEquals(evenSum, map.parallelStream().mapToLong(Map.Entry::getValue).filter(v -> v % 2 == 0).sum());
+
+        Spliterator<Map.Entry<Integer,Integer>> spliterator = map.entrySpliterator();
+        Assert.assertTrue(spliterator.hasCharacteristics(Spliterator.SORTED | Spliterator.SIZED));
+        Assert.assertEquals(treeMap.size(), spliterator.getExactSizeIfKnown());
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(spliterator.tryAdvance(e -> keys.add(e.getKey())));
+        }
+        List<Spliterator<Map.Entry<Integer,Integer>>> parts = new ArrayList<>();
+        splitAll(spliterator, parts);
+        Assert.assertTrue(parts.size() > 1);
+        for (Spliterator<Map.Entry<Integer,Integer>> part : parts) {
+            part.forEachRemaining(e -> keys.add(e.getKey()));
+        }
+        Assert.assertEquals(expect, keys);
+    }
+
+    private static <T> void splitAll(Spliterator<T> spliterator, List<Spliterator<T>> parts) {
+        Spliterator<T> prefix = spliterator.trySplit();
+        if (prefix == null) {
+            parts.add(spliterator);
+            return;
+        }
+        splitAll(prefix, parts);
+        splitAll(spliterator, parts);
+    }
+
 }
@@ -0,0 +1,151 @@
+package com.lilingyan.btree;
+
+import org.junit.Assert;
+import org.junit.Test;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * @Author: lilingyan
+ */
+public class BtreeTest {
+
+    private Random random = new Random();
+
+    /**
+     * 与TreeMap进行插入/删除/查询校验
+     * fanout取最小的4和几个奇数偶数，分裂/借/合并都会频繁发生
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void putAndRemoveAndGetWithTreeMapTest() throws Exception {
+        for (int fanout : new int[]{4, 5, 7, 16, 64}) {
+            int max = 1 << 14;
+            BtreeMap<Integer,Integer> map = new BtreeMap<>(null, fanout);
+            TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+            for (int i = 0; i < max * 2; i++) {
+                int key = random.nextInt(max);
+                if (random.nextInt(3) == 0)
+                    Assert.assertEquals(treeMap.remove(key), map.remove(key));
+                else
+                    Assert.assertEquals(treeMap.put(key, i), map.put(key, i));
+                if (i % 1024 == 0)
+                    map.checkBalance();
+            }
+            map.checkBalance();
+            Assert.assertEquals(treeMap.size(), map.size());
+            for (int key = -1; key <= max; key++) {
+                Assert.assertEquals(treeMap.get(key), map.get(key));
+                Assert.assertEquals(treeMap.containsKey(key), map.containsKey(key));
+            }
+            Iterator<Map.Entry<Integer,Integer>> it = map.iterator();
+            for (Map.Entry<Integer,Integer> e : treeMap.entrySet()) {
+                Assert.assertEquals(e, it.next());
+            }
+            Assert.assertFalse(it.hasNext());
+
+            //全部删掉，树缩回一个空的叶子节点
+            for (Integer key : treeMap.keySet()) {
+                map.remove(key);
+            }
+            map.checkBalance();
+            Assert.assertEquals(0, map.size());
+            Assert.assertEquals(1, map.height());
+            Assert.assertFalse(map.iterator().hasNext());
+        }
+    }
+
+    /**
+     * 顺序/倒序插入、删除(每次都在最右边/最左边分裂和合并)
+     */
+    @Test
+    public void sequentialWithTreeMapTest() throws Exception {
+        int max = 100000;
+        BtreeMap<Integer,Integer> map = new BtreeMap<>(Comparator.reverseOrder(), 8);
+        for (int i = 0; i < max; i++) {
+            map.put(i, i);
+        }
+        map.checkBalance();
+        Assert.assertEquals(max, map.size());
+        //fanout=8时每个节点至少4个子节点
+        Assert.assertTrue(map.height() <= 10);
+        Iterator<Integer> keys = map.keyIterator();
+        Iterator<Integer> values = map.valueIterator();
+        for (int i = max - 1; i >= 0; i--) {
+            Assert.assertEquals(i, keys.next().intValue());
+            Assert.assertEquals(i, values.next().intValue());
+        }
+        Assert.assertFalse(keys.hasNext());
+        for (int i = 0; i < max / 2; i++) {
+            Assert.assertEquals(i, map.remove(i).intValue());
+            Assert.assertEquals(max - 1 - i, map.remove(max - 1 - i).intValue());
+            if (i % 4096 == 0)
+                map.checkBalance();
+        }
+        map.checkBalance();
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    /**
+     * 游标范围扫描与TreeMap对比
+     */
+    @Test
+    public void cursorWithTreeMapTest() {
+        int max = 1 << 14;
+        BtreeMap<Integer,Integer> map = new BtreeMap<>(null, 6);
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        BtreeMap<Integer,Integer>.Cursor cursor = map.cursor();
+        Assert.assertFalse(cursor.first());
+        Assert.assertFalse(cursor.last());
+        Assert.assertFalse(cursor.seek(0));
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max * 4);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        for (int i = 0; i < 1000; i++) {
+            int from = random.nextInt(max * 4);
+            int to = from + random.nextInt(64);
+            Iterator<Integer> expect = treeMap.subMap(from, true, to, false).keySet().iterator();
+            for (boolean valid = cursor.seek(from); valid && cursor.key() < to; valid = cursor.next()) {
+                Assert.assertEquals(expect.next(), cursor.key());
+                Assert.assertEquals(cursor.key(), cursor.value());
+            }
+            Assert.assertFalse(expect.hasNext());
+            Integer ceiling = treeMap.ceilingKey(from);
+            Assert.assertEquals(ceiling != null, cursor.seek(from));
+            if (ceiling != null)
+                Assert.assertEquals(ceiling, cursor.key());
+        }
+        //从最后一个往前走一遍
+        Assert.assertTrue(cursor.last());
+        for (Integer key : treeMap.descendingKeySet()) {
+            Assert.assertEquals(key, cursor.key());
+            cursor.setValue(-key);
+            cursor.prev();
+        }
+        Assert.assertFalse(cursor.isValid());
+        Assert.assertFalse(cursor.next());
+        Assert.assertEquals(Integer.valueOf(-treeMap.firstKey()), map.get(treeMap.firstKey()));
+        try {
+            cursor.key();
+            Assert.fail();
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullKeyTest() {
+        new BtreeMap<Integer,Integer>().put(null, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fanoutTooSmallTest() {
+        new BtreeMap<Integer,Integer>(null, 3);
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.lilingyan.frozen;
+
+import com.lilingyan.avl.AvlMap;
+import com.lilingyan.bst.BstMap;
+import com.lilingyan.btree.BtreeMap;
+import com.lilingyan.rbt.RbtMap;
+import org.junit.Assert;
+import org.junit.Test;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * @Author: lilingyan
+ */
+public class FrozenMapTest {
+
+    private Random random = new Random();
+
+    /**
+     * 各种大小(完全二叉树最底层满和不满的情况都有)的查询、遍历与TreeMap对比
+     */
+    @Test
+    public void queryWithTreeMapTest() {
+        for (int n = 0; n <= 130; n++) {
+            TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+            RbtMap<Integer,Integer> map = new RbtMap<>();
+            for (int i = 0; i < n; i++) {
+                //只放偶数，奇数用来查不存在的key
+                treeMap.put(i * 2, i);
+                map.put(i * 2, i);
+            }
+            assertSameAs(treeMap, map.freeze(), -2, n * 2 + 1);
+        }
+        int max = 1 << 16;
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>(Comparator.reverseOrder());
+        AvlMap<Integer,Integer> map = new AvlMap<>(Comparator.reverseOrder());
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max * 2);
+            treeMap.put(key, i);
+            map.put(key, i);
+        }
+        assertSameAs(treeMap, map.freeze(), -1, max * 2);
+    }
+
+    /**
+     * 四种树的freeze结果一样，冻结之后原来的树再修改不影响冻结的
+     */
+    @Test
+    public void freezeAllEnginesTest() {
+        int max = 1 << 12;
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        BstMap<Integer,Integer> bst = new BstMap<>();
+        AvlMap<Integer,Integer> avl = new AvlMap<>();
+        RbtMap<Integer,Integer> rbt = new RbtMap<>();
+        BtreeMap<Integer,Integer> btree = new BtreeMap<>(null, 8);
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max);
+            treeMap.put(key, i);
+            bst.put(key, i);
+            avl.put(key, i);
+            rbt.put(key, i);
+            btree.put(key, i);
+        }
+        FrozenMap<Integer,Integer> frozenBst = bst.freeze();
+        FrozenMap<Integer,Integer> frozenAvl = avl.freeze();
+        FrozenMap<Integer,Integer> frozenRbt = rbt.freeze();
+        FrozenMap<Integer,Integer> frozenBtree = btree.freeze();
+        for (int i = 0; i < max; i++) {
+            bst.put(i, -1);
+            avl.remove(i);
+            rbt.put(i, -1);
+            btree.remove(i);
+        }
+        assertSameAs(treeMap, frozenBst, -1, max);
+        assertSameAs(treeMap, frozenAvl, -1, max);
+        assertSameAs(treeMap, frozenRbt, -1, max);
+        assertSameAs(treeMap, frozenBtree, -1, max);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullKeyTest() {
+        new RbtMap<Integer,Integer>().freeze().get(null);
+    }
+
+    private static void assertSameAs(TreeMap<Integer,Integer> expect, FrozenMap<Integer,Integer> map, int from, int to) {
+        Assert.assertEquals(expect.size(), map.size());
+        Assert.assertEquals(expect.isEmpty(), map.isEmpty());
+        for (int key = from; key <= to; key++) {
+            Assert.assertEquals(expect.get(key), map.get(key));
+            Assert.assertEquals(expect.containsKey(key), map.containsKey(key));
+            Assert.assertEquals(expect.floorEntry(key), map.floorEntry(key));
+            Assert.assertEquals(expect.ceilingEntry(key), map.ceilingEntry(key));
+            Assert.assertEquals(expect.higherEntry(key), map.higherEntry(key));
+            Assert.assertEquals(expect.lowerEntry(key), map.lowerEntry(key));
+            Assert.assertEquals(expect.floorKey(key), map.floorKey(key));
+            Assert.assertEquals(expect.ceilingKey(key), map.ceilingKey(key));
+        }
+        Assert.assertEquals(expect.firstEntry(), map.firstEntry());
+        Assert.assertEquals(expect.lastEntry(), map.lastEntry());
+
+        Iterator<Map.Entry<Integer,Integer>> it = map.iterator();
+        Iterator<Integer> keys = map.keyIterator();
+        Iterator<Integer> values = map.valueIterator();
+        for (Map.Entry<Integer,Integer> e : expect.entrySet()) {
+            Assert.assertEquals(e, it.next());
+            Assert.assertEquals(e.getKey(), keys.next());
+            Assert.assertEquals(e.getValue(), values.next());
+        }
+        Assert.assertFalse(it.hasNext());
+        try {
+            keys.next();
+            Assert.fail();
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.lilingyan.instrument;
+
+import com.lilingyan.avl.AvlMap;
+import com.lilingyan.bst.BstMap;
+import com.lilingyan.rbt.RbtMap;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 统计默认是关闭的，和树挂钩的测试要打开后才会跑:
+ * mvn test -Dcom.lilingyan.instrument=true -Dtest=TreeStatsTest
+ * @Author: lilingyan
+ */
+public class TreeStatsTest {
+
+    /**
+     * 计数、深度分布、快照
+     */
+    @Test
+    public void countAndSnapshotTest() {
+        TreeStats stats = new TreeStats("test");
+        for (int depth = 1; depth <= 10; depth++) {
+            stats.lookup(depth);
+        }
+        stats.lookup(1000);
+        stats.put(3);
+        stats.put(5);
+        stats.rotation();
+        stats.fixupIteration();
+        stats.fixupIteration();
+
+        TreeStats.Snapshot snapshot = stats.snapshot();
+        Assert.assertEquals(11, snapshot.getLookups());
+        Assert.assertEquals(55 + 1000, snapshot.getLookupComparisons());
+        Assert.assertEquals(2, snapshot.getPuts());
+        Assert.assertEquals(8, snapshot.getPutComparisons());
+        Assert.assertEquals(1, snapshot.getRotations());
+        Assert.assertEquals(2, snapshot.getFixupIterations());
+        long[] histogram = snapshot.getDepthHistogram();
+        Assert.assertEquals(1, histogram[5]);
+        //太深的都算在最后一格
+        Assert.assertEquals(1, histogram[TreeStats.MAX_DEPTH - 1]);
+        Assert.assertEquals(1, snapshot.depthPercentile(0));
+        //11个里的第6个
+        Assert.assertEquals(6, snapshot.depthPercentile(50));
+        Assert.assertEquals(TreeStats.MAX_DEPTH - 1, snapshot.depthPercentile(100));
+
+        stats.lookup(2);
+        TreeStats.Snapshot delta = stats.snapshot().minus(snapshot);
+        Assert.assertEquals(1, delta.getLookups());
+        Assert.assertEquals(2, delta.getLookupComparisons());
+        Assert.assertEquals(0, delta.getPuts());
+        //快照不会跟着变
+        Assert.assertEquals(11, snapshot.getLookups());
+
+        stats.reset();
+        Assert.assertEquals(0, stats.getLookups());
+        Assert.assertEquals(0, stats.getAverageLookupDepth(), 0);
+        Assert.assertEquals(0, stats.snapshot().depthPercentile(99));
+    }
+
+    /**
+     * 注册成MBean后能从MBeanServer读到属性
+     */
+    @Test
+    public void jmxTest() throws Exception {
+        TreeStats stats = new TreeStats("jmxTest");
+        stats.register();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            stats.lookup(4);
+            stats.lookup(6);
+            Assert.assertEquals(2L, server.getAttribute(stats.objectName(), "Lookups"));
+            Assert.assertEquals(5.0, (Double) server.getAttribute(stats.objectName(), "AverageLookupDepth"), 0);
+            server.invoke(stats.objectName(), "reset", null, null);
+            Assert.assertEquals(0, stats.getLookups());
+        } finally {
+            server.unregisterMBean(stats.objectName());
+        }
+    }
+
+    /**
+     * 三种树的查找/插入/旋转/调整都被统计到
+     */
+    @Test
+    public void treeHooksTest() {
+        Assume.assumeTrue(TreeStats.ENABLED);
+        int max = 1024;
+
+        TreeStats.Snapshot before = TreeStats.RBT.snapshot();
+        RbtMap<Integer,Integer> rbt = new RbtMap<>();
+        for (int i = 0; i < max; i++) {
+            rbt.put(i, i);
+        }
+        for (int i = 0; i < max; i++) {
+            rbt.get(i);
+        }
+        TreeStats.Snapshot rbtDelta = TreeStats.RBT.snapshot().minus(before);
+        //第一个put是空树，不统计
+        Assert.assertEquals(max - 1, rbtDelta.getPuts());
+        Assert.assertEquals(max, rbtDelta.getLookups());
+        Assert.assertTrue(rbtDelta.getRotations() > 0);
+        Assert.assertTrue(rbtDelta.getFixupIterations() > 0);
+        //红黑树高度不超过2log(n+1)
+        Assert.assertTrue(rbtDelta.depthPercentile(100) <= 20);
+
+        before = TreeStats.AVL.snapshot();
+        AvlMap<Integer,Integer> avl = new AvlMap<>();
+        for (int i = 0; i < max; i++) {
+            avl.put(i, i);
+        }
+        for (int i = 0; i < max; i++) {
+            avl.remove(i);
+        }
+        TreeStats.Snapshot avlDelta = TreeStats.AVL.snapshot().minus(before);
+        Assert.assertEquals(max - 1, avlDelta.getPuts());
+        //remove也是先getEntry
+        Assert.assertEquals(max, avlDelta.getLookups());
+        Assert.assertTrue(avlDelta.getRotations() > 0);
+        Assert.assertTrue(avlDelta.getFixupIterations() > 0);
+
+        before = TreeStats.BST.snapshot();
+        BstMap<Integer,Integer> bst = new BstMap<>();
+        for (int i = 0; i < 100; i++) {
+            bst.put(i, i);
+        }
+        bst.get(99);
+        TreeStats.Snapshot bstDelta = TreeStats.BST.snapshot().minus(before);
+        //按顺序插入退化成链表，最后一个要比较99次
+        Assert.assertEquals(99 * 100 / 2, bstDelta.getPutComparisons());
+        //比较了100次，超过了最后一格
+        Assert.assertEquals(TreeStats.MAX_DEPTH - 1, bstDelta.depthPercentile(100));
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.lilingyan.io;
+
+import com.lilingyan.avl.AvlMap;
+import com.lilingyan.bst.BstMap;
+import com.lilingyan.btree.BtreeMap;
+import com.lilingyan.rbt.KeyPrefix;
+import com.lilingyan.rbt.RbtMap;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * @Author: lilingyan
+ */
+public class SortedMapFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Random random = new Random();
+
+    /**
+     * 写出去再读回来建树，四种树都和TreeMap一致
+     */
+    @Test
+    public void saveAndLoadWithTreeMapTest() throws Exception {
+        int max = 1 << 16;
+        RbtMap<Long,String> rbt = new RbtMap<>();
+        TreeMap<Long,String> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            long key = random.nextLong();
+            //有多字节字符、代理对、空串
+            String value = i % 7 == 0 ? "" : i % 5 == 0 ? "值" + i + "😀" : String.valueOf(i);
+            rbt.put(key, value);
+            treeMap.put(key, value);
+        }
+        Path path = folder.newFile().toPath();
+        Assert.assertEquals(treeMap.size(), SortedMapFile.save(path, rbt, Codecs.LONG, Codecs.STRING));
+
+        RbtMap<Long,String> rbtLoaded = new RbtMap<>();
+        try (SortedMapFile.Reader<Long,String> reader = SortedMapFile.open(path, Codecs.LONG, Codecs.STRING)) {
+            Assert.assertEquals(treeMap.size(), reader.size());
+            rbtLoaded.buildFromSorted(reader, reader.size(), true);
+            Assert.assertFalse(reader.hasNext());
+        }
+        rbtLoaded.checkBalance();
+        AvlMap<Long,String> avl = new AvlMap<>();
+        try (SortedMapFile.Reader<Long,String> reader = SortedMapFile.open(path, Codecs.LONG, Codecs.STRING)) {
+            avl.buildFromSorted(reader, reader.size());
+        }
+        avl.checkBalance();
+        BstMap<Long,String> bst = new BstMap<>();
+        try (SortedMapFile.Reader<Long,String> reader = SortedMapFile.open(path, Codecs.LONG, Codecs.STRING)) {
+            bst.buildFromSorted(reader, reader.size(), true);
+        }
+        BtreeMap<Long,String> btree = new BtreeMap<>(null, 16);
+        try (SortedMapFile.Reader<Long,String> reader = SortedMapFile.open(path, Codecs.LONG, Codecs.STRING)) {
+            btree.buildFromSorted(reader, reader.size(), true);
+        }
+        btree.checkBalance();
+
+        Assert.assertEquals(treeMap.size(), rbtLoaded.size());
+        Assert.assertEquals(treeMap.size(), avl.size());
+        Assert.assertEquals(treeMap.size(), bst.size());
+        Assert.assertEquals(treeMap.size(), btree.size());
+        Iterator<Map.Entry<Long,String>> btreeIt = btree.iterator();
+        for (Map.Entry<Long,String> e : treeMap.entrySet()) {
+            Assert.assertEquals(e.getValue(), rbtLoaded.get(e.getKey()));
+            Assert.assertEquals(e.getValue(), avl.get(e.getKey()));
+            Assert.assertEquals(e.getValue(), bst.get(e.getKey()));
+            Assert.assertEquals(e, btreeIt.next());
+        }
+        //建好的树还能继续正常修改
+        for (Long key : treeMap.keySet()) {
+            if (random.nextBoolean()) {
+                btree.remove(key);
+                rbtLoaded.remove(key);
+            }
+        }
+        btree.checkBalance();
+        rbtLoaded.checkBalance();
+    }
+
+    /**
+     * buffer很小时(记录跨越buffer边界、单条比buffer还大)
+     */
+    @Test
+    public void smallBufferTest() throws Exception {
+        RbtMap<byte[],byte[]> map = new RbtMap<>(KeyPrefix.BYTES_ORDER);
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = new byte[random.nextInt(20)];
+            random.nextBytes(key);
+            byte[] value = new byte[i % 100 == 0 ? 200 : random.nextInt(30)];
+            random.nextBytes(value);
+            map.put(key, value);
+        }
+        Path path = folder.newFile().toPath();
+        try (SortedMapFile.Writer<byte[],byte[]> writer = new SortedMapFile.Writer<>(path, Codecs.BYTES, Codecs.BYTES, 32)) {
+            for (Map.Entry<byte[],byte[]> e : map) {
+                writer.append(e.getKey(), e.getValue());
+            }
+            Assert.assertEquals(map.size(), writer.count());
+        }
+        try (SortedMapFile.Reader<byte[],byte[]> reader = new SortedMapFile.Reader<>(path, Codecs.BYTES, Codecs.BYTES, 32)) {
+            Assert.assertEquals(map.size(), reader.count());
+            for (Map.Entry<byte[],byte[]> e : map) {
+                Map.Entry<byte[],byte[]> read = reader.next();
+                Assert.assertArrayEquals(e.getKey(), read.getKey());
+                Assert.assertArrayEquals(e.getValue(), read.getValue());
+            }
+            Assert.assertFalse(reader.hasNext());
+        }
+    }
+
+    /**
+     * 写的时候记下偏移，读的时候直接跳过去
+     */
+    @Test
+    public void seekTest() throws Exception {
+        int max = 1000;
+        Path path = folder.newFile().toPath();
+        long[] offsets = new long[max];
+        try (SortedMapFile.Writer<Integer,String> writer = new SortedMapFile.Writer<>(path, Codecs.INTEGER, Codecs.STRING, 64)) {
+            for (int i = 0; i < max; i++) {
+                offsets[i] = writer.position();
+                writer.append(i, i % 10 == 0 ? "" : "value" + i);
+            }
+        }
+        try (SortedMapFile.Reader<Integer,String> reader = new SortedMapFile.Reader<>(path, Codecs.INTEGER, Codecs.STRING, 64)) {
+            for (int n = 0; n < 100; n++) {
+                int i = random.nextInt(max);
+                reader.seek(offsets[i], i);
+                Assert.assertEquals(Integer.valueOf(i), reader.next().getKey());
+                if (i + 1 < max)
+                    Assert.assertEquals(Integer.valueOf(i + 1), reader.next().getKey());
+            }
+            reader.seek(offsets[max - 1], max - 1);
+            reader.next();
+            Assert.assertFalse(reader.hasNext());
+        }
+    }
+
+    @Test
+    public void codecsTest() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (String s : new String[]{"", "abc", "é", "中文", "😀", "a\uD800b", "\uDC00"}) {
+            buffer.clear();
+            Codecs.STRING.encode(s, buffer);
+            byte[] expect = s.getBytes(StandardCharsets.UTF_8);
+            Assert.assertEquals(expect.length, Codecs.STRING.sizeOf(s));
+            Assert.assertEquals(expect.length, buffer.position());
+            buffer.flip();
+            if (s.indexOf('\uD800') < 0 && s.indexOf('\uDC00') < 0)
+                Assert.assertEquals(s, Codecs.STRING.decode(buffer, expect.length));
+        }
+        buffer.clear();
+        Codecs.LONG.encode(Long.MIN_VALUE, buffer);
+        Codecs.INTEGER.encode(-1, buffer);
+        buffer.flip();
+        Assert.assertEquals(Long.MIN_VALUE, Codecs.LONG.decode(buffer, 8).longValue());
+        Assert.assertEquals(-1, Codecs.INTEGER.decode(buffer, 4).intValue());
+    }
+
+    /**
+     * 编码不一致、没写完的文件打开时报错
+     */
+    @Test
+    public void invalidFileTest() throws Exception {
+        Path path = folder.newFile().toPath();
+        SortedMapFile.Writer<Integer,Integer> writer = new SortedMapFile.Writer<>(path, Codecs.INTEGER, Codecs.INTEGER, 64);
+        for (int i = 0; i < 100; i++) {
+            writer.append(i, i);
+        }
+        assertOpenFails(path, Codecs.INTEGER, Codecs.INTEGER);
+        writer.close();
+        try (SortedMapFile.Reader<Integer,Integer> reader = SortedMapFile.open(path, Codecs.INTEGER, Codecs.INTEGER)) {
+            Assert.assertEquals(100, reader.size());
+        }
+        assertOpenFails(path, Codecs.LONG, Codecs.INTEGER);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), 0);
+        }
+        assertOpenFails(path, Codecs.INTEGER, Codecs.INTEGER);
+    }
+
+    private static <K,V> void assertOpenFails(Path path, Codec<K> keyCodec, Codec<V> valueCodec) {
+        try {
+            SortedMapFile.open(path, keyCodec, valueCodec).close();
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package com.lilingyan.lsm;
+
+import com.lilingyan.io.Codecs;
+import com.lilingyan.wal.SyncPolicy;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @Author: lilingyan
+ */
+public class LsmStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Random random = new Random();
+
+    /**
+     * memtable很小，随机增删过程中不停地写段、合并，和TreeMap一致
+     * 重新打开后(没写成段的从日志恢复)还是一致
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void putAndRemoveAndGetWithTreeMapTest() throws Exception {
+        int max = 10000;
+        Path dir = folder.newFolder().toPath();
+        TreeMap<Long,String> treeMap = new TreeMap<>();
+        LsmStore<Long,String> store = new LsmStore<>(dir, Codecs.LONG, Codecs.STRING, null, 4096, SyncPolicy.NEVER);
+        for (int i = 0; i < max * 5; i++) {
+            long key = random.nextInt(max);
+            if (random.nextInt(3) == 0) {
+                treeMap.remove(key);
+                store.remove(key);
+            } else {
+                String value = "值" + i;
+                treeMap.put(key, value);
+                store.put(key, value);
+            }
+            if (i % 1000 == 0) {
+                long k = random.nextInt(max);
+                Assert.assertEquals(treeMap.get(k), store.get(k));
+            }
+        }
+        Assert.assertTrue(store.runCount() > 0);
+        assertSame(treeMap, store, max);
+
+        store.flush();
+        store.compact();
+        Assert.assertEquals(1, store.runCount());
+        //合并了最老的段，墓碑都丢掉了
+        Assert.assertEquals(treeMap.size(), store.runEntries());
+        assertSame(treeMap, store, max);
+
+        //这些只在memtable和日志里
+        for (int i = 0; i < 100; i++) {
+            long key = random.nextInt(max);
+            treeMap.remove(key);
+            store.remove(key);
+            treeMap.put(key + max, "new");
+            store.put(key + max, "new");
+        }
+        store.close();
+        try {
+            store.get(1L);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        try (LsmStore<Long,String> reopened = new LsmStore<>(dir, Codecs.LONG, Codecs.STRING, null, 4096, SyncPolicy.NEVER)) {
+            assertSame(treeMap, reopened, max * 2);
+        }
+    }
+
+    private static void assertSame(TreeMap<Long,String> treeMap, LsmStore<Long,String> store, long max) throws Exception {
+        for (long key = 0; key < max; key++) {
+            Assert.assertEquals(treeMap.get(key), store.get(key));
+            Assert.assertEquals(treeMap.containsKey(key), store.containsKey(key));
+        }
+    }
+
+    /**
+     * 崩溃时没做完的文件(.tmp、不在MANIFEST里的段)打开时删掉；自定义顺序
+     */
+    @Test
+    public void recoverTest() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Comparator<String> reverse = Comparator.reverseOrder();
+        try (LsmStore<String,byte[]> store = new LsmStore<>(dir, Codecs.STRING, Codecs.BYTES, reverse, 1024, SyncPolicy.ALWAYS)) {
+            for (int i = 0; i < 1000; i++) {
+                store.put("k" + i, new byte[]{(byte) i});
+            }
+            store.flush();
+        }
+        Files.write(dir.resolve("run-999.sst"), new byte[]{1, 2, 3});
+        Files.write(dir.resolve("run-1000.idx.tmp"), new byte[]{1, 2, 3});
+        try (LsmStore<String,byte[]> store = new LsmStore<>(dir, Codecs.STRING, Codecs.BYTES, reverse, 1024, SyncPolicy.ALWAYS)) {
+            Assert.assertFalse(Files.exists(dir.resolve("run-999.sst")));
+            Assert.assertFalse(Files.exists(dir.resolve("run-1000.idx.tmp")));
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertArrayEquals(new byte[]{(byte) i}, store.get("k" + i));
+            }
+            Assert.assertNull(store.get("k1000"));
+        }
+    }
+
+    /**
+     * 一边写一边读，读不到不一致的值(查的段被合并掉时会重试)
+     */
+    @Test
+    public void concurrentReadWriteTest() throws Exception {
+        int max = 30000;
+        Path dir = folder.newFolder().toPath();
+        try (LsmStore<Integer,Integer> store = new LsmStore<>(dir, Codecs.INTEGER, Codecs.INTEGER, null, 2048, SyncPolicy.NEVER)) {
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            List<Thread> readers = new ArrayList<>();
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < max; i++) {
+                        store.put(i, i);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            for (int t = 0; t < 3; t++) {
+                readers.add(new Thread(() -> {
+                    Random r = new Random();
+                    try {
+                        while (writer.isAlive()) {
+                            int key = r.nextInt(max);
+                            Integer value = store.get(key);
+                            if (value != null && value != key)
+                                throw new AssertionError(key + " -> " + value);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }));
+            }
+            writer.start();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            writer.join();
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            Assert.assertNull(error.get());
+            for (int i = 0; i < max; i++) {
+                Assert.assertEquals(Integer.valueOf(i), store.get(i));
+            }
+            Assert.assertTrue(store.runCount() < LsmStore.MAX_RUNS + LsmStore.COMPACTION_RUNS);
+        }
+    }
+
+    /**
+     * 日志提交失败(写的线程被中断，日志的文件被关掉)时memtable没有被修改，之后的写都报错
+     * 重新打开后只有提交成功的
+     */
+    @Test
+    public void commitFailureTest() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        LsmStore<Long,Long> store = new LsmStore<>(dir, Codecs.LONG, Codecs.LONG, null, 1 << 20, SyncPolicy.ALWAYS);
+        for (long i = 0; i < 100; i++) {
+            store.put(i, i);
+        }
+        Thread.currentThread().interrupt();
+        try {
+            store.put(100L, 100L);
+            Assert.fail();
+        } catch (IOException expected) {
+        } finally {
+            Thread.interrupted();
+        }
+        Assert.assertNull(store.get(100L));
+        try {
+            store.put(101L, 101L);
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+        try {
+            store.flush();
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+        try {
+            store.close();
+        } catch (IOException expected) {
+        }
+        try (LsmStore<Long,Long> reopened = new LsmStore<>(dir, Codecs.LONG, Codecs.LONG, null, 1 << 20, SyncPolicy.ALWAYS)) {
+            for (long i = 0; i < 100; i++) {
+                Assert.assertEquals(Long.valueOf(i), reopened.get(i));
+            }
+            Assert.assertNull(reopened.get(100L));
+        }
+    }
+
+    /**
+     * 查段的线程被中断，只有它自己报错，之后别的读照常
+     */
+    @Test
+    public void interruptedReadTest() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        try (LsmStore<Long,Long> store = new LsmStore<>(dir, Codecs.LONG, Codecs.LONG, null, 1 << 20, SyncPolicy.NEVER)) {
+            for (long i = 0; i < 1000; i++) {
+                store.put(i, i);
+            }
+            store.flush();
+            Thread.currentThread().interrupt();
+            try {
+                store.get(1L);
+                Assert.fail();
+            } catch (ClosedByInterruptException expected) {
+            } finally {
+                Thread.interrupted();
+            }
+            for (long i = 0; i < 1000; i++) {
+                Assert.assertEquals(Long.valueOf(i), store.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void mergeIteratorTest() {
+        List<List<Map.Entry<Integer,Object>>> sources = new ArrayList<>();
+        TreeMap<Integer,Object> expect = new TreeMap<>();
+        //从老到新生成，老的先放进expect，新的覆盖
+        for (int s = 0; s < 5; s++) {
+            TreeMap<Integer,Object> source = new TreeMap<>();
+            for (int i = 0; i < 200; i++) {
+                int key = random.nextInt(300);
+                source.put(key, random.nextInt(4) == 0 ? LsmStore.TOMBSTONE : (Object) (s * 1000 + i));
+            }
+            expect.putAll(source);
+            sources.add(0, new ArrayList<>(source.entrySet()));
+        }
+        List<Iterator<Map.Entry<Integer,Object>>> iterators = new ArrayList<>();
+        for (List<Map.Entry<Integer,Object>> source : sources) {
+            iterators.add(source.iterator());
+        }
+        MergeIterator<Integer> merged = new MergeIterator<>(iterators, null, true);
+        for (Map.Entry<Integer,Object> e : expect.entrySet()) {
+            if (e.getValue() == LsmStore.TOMBSTONE)
+                continue;
+            Assert.assertEquals(e, merged.next());
+        }
+        Assert.assertFalse(merged.hasNext());
+    }
+
+}
@@ -1,9 +1,28 @@
 package com.lilingyan.rbt;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Spliterator;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * @Author: lilingyan
@@ -13,6 +32,9 @@ public class RbtTest {
 
     private Random random = new Random();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @SuppressWarnings("Duplicates")
     @Test
     public void putAndGetIncrementWithTreeMapTest(){
@@ -68,6 +90,1046 @@ public class RbtTest {
                 Assert.assertTrue(rbtMap.get(key).equals(treeMap.get(key)));
             }
         }
+        rbtMap.checkBalance();
+    }
+
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void intKeyPutAndRemoveAndGetWithTreeMapTest(){
+        int max = 65535;
+        IntRbtMap<String> intMap = new IntRbtMap<>();
+        TreeMap<Integer,String> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max) - max/2;
+            Assert.assertEquals(treeMap.put(key,String.valueOf(key)), intMap.put(key,String.valueOf(key)));
+        }
+        Assert.assertTrue(intMap.size() == treeMap.size());
+        for (int i = 0; i < max/2; i++) {
+            int key = random.nextInt(max) - max/2;
+            Assert.assertEquals(treeMap.remove(key), intMap.remove(key));
+        }
+        Assert.assertTrue(intMap.size() == treeMap.size());
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max) - max/2;
+            Assert.assertTrue(intMap.containsKey(key) == treeMap.containsKey(key));
+            Assert.assertEquals(treeMap.get(key), intMap.get(key));
+        }
+    }
+
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void longKeyPutAndRemoveAndGetWithTreeMapTest(){
+        int max = 65535;
+        LongRbtMap<String> longMap = new LongRbtMap<>();
+        TreeMap<Long,String> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            long key = ((long) random.nextInt(max) << 32) - Integer.MAX_VALUE;
+            Assert.assertEquals(treeMap.put(key,String.valueOf(key)), longMap.put(key,String.valueOf(key)));
+        }
+        Assert.assertTrue(longMap.size() == treeMap.size());
+        for (int i = 0; i < max/2; i++) {
+            long key = ((long) random.nextInt(max) << 32) - Integer.MAX_VALUE;
+            Assert.assertEquals(treeMap.remove(key), longMap.remove(key));
+        }
+        Assert.assertTrue(longMap.size() == treeMap.size());
+        for (int i = 0; i < max; i++) {
+            long key = ((long) random.nextInt(max) << 32) - Integer.MAX_VALUE;
+            Assert.assertTrue(longMap.containsKey(key) == treeMap.containsKey(key));
+            Assert.assertEquals(treeMap.get(key), longMap.get(key));
+        }
+    }
+
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void arrayPutAndRemoveAndGetWithTreeMapTest(){
+        int max = 65535;
+        ArrayRbtMap<Integer,String> arrayMap = new ArrayRbtMap<>();
+        TreeMap<Integer,String> treeMap = new TreeMap<>();
+        //插入删除交替做几轮，让空闲链表里的slot被复用
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < max; i++) {
+                int key = random.nextInt(max);
+                Assert.assertEquals(treeMap.put(key,String.valueOf(i)), arrayMap.put(key,String.valueOf(i)));
+            }
+            Assert.assertTrue(arrayMap.size() == treeMap.size());
+            for (int i = 0; i < max; i++) {
+                int key = random.nextInt(max);
+                Assert.assertEquals(treeMap.remove(key), arrayMap.remove(key));
+            }
+            Assert.assertTrue(arrayMap.size() == treeMap.size());
+            for (int i = 0; i < max; i++) {
+                int key = random.nextInt(max);
+                Assert.assertTrue(arrayMap.containsKey(key) == treeMap.containsKey(key));
+                Assert.assertEquals(treeMap.get(key), arrayMap.get(key));
+            }
+        }
+        Assert.assertTrue(arrayMap.capacity() < max * 2);
+    }
+
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void offHeapPutAndRemoveAndGetWithTreeMapTest(){
+        int max = 65535;
+        TreeMap<Long,Long> treeMap = new TreeMap<>();
+        try (OffHeapRbtMap offHeapMap = new OffHeapRbtMap()) {
+            for (int i = 0; i < max * 2; i++) {
+                long key = random.nextInt(max * 2);
+                Assert.assertEquals(treeMap.put(key, (long) i) != null, offHeapMap.put(key, i));
+            }
+            Assert.assertTrue(offHeapMap.size() == treeMap.size());
+            for (int i = 0; i < max; i++) {
+                long key = random.nextInt(max * 2);
+                Assert.assertEquals(treeMap.remove(key) != null, offHeapMap.remove(key));
+            }
+            Assert.assertTrue(offHeapMap.size() == treeMap.size());
+            Assert.assertEquals((long) treeMap.size() * 32, offHeapMap.bytesUsed());
+            for (int i = 0; i < max * 2; i++) {
+                long key = random.nextInt(max * 2);
+                Assert.assertTrue(offHeapMap.containsKey(key) == treeMap.containsKey(key));
+                Long value = treeMap.get(key);
+                Assert.assertEquals(value == null ? -1L : value, offHeapMap.get(key, -1L));
+            }
+        }
+    }
+
+    @Test
+    public void offHeapBytesValueTest(){
+        OffHeapRbtMap offHeapMap = new OffHeapRbtMap(3);
+        offHeapMap.put(2, new byte[]{1, 2, 3});
+        offHeapMap.put(1, new byte[]{4, 5, 6});
+        offHeapMap.put(2, new byte[]{7, 8, 9});
+        Assert.assertArrayEquals(new byte[]{7, 8, 9}, offHeapMap.get(2));
+        Assert.assertArrayEquals(new byte[]{4, 5, 6}, offHeapMap.get(1));
+        Assert.assertNull(offHeapMap.get(3));
+        offHeapMap.close();
+        try {
+            offHeapMap.get(1);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        //一个chunk的字节数要放得进int
+        Assert.assertTrue((long) OffHeapRbtMap.CHUNK_RECORDS * (OffHeapRbtMap.VALUE + OffHeapRbtMap.MAX_VALUE_BYTES) <= Integer.MAX_VALUE);
+        new OffHeapRbtMap(OffHeapRbtMap.MAX_VALUE_BYTES).close();
+        try {
+            new OffHeapRbtMap(OffHeapRbtMap.MAX_VALUE_BYTES + 1);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * 写入、force、关闭后重新打开，和TreeMap一致；重新打开后继续修改(用到空闲链表)
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void mappedReopenWithTreeMapTest() throws IOException {
+        int max = 100000;
+        Path path = folder.newFile().toPath();
+        TreeMap<Long,Long> treeMap = new TreeMap<>();
+        try (MappedRbtMap mappedMap = new MappedRbtMap(path)) {
+            for (int i = 0; i < max * 2; i++) {
+                long key = random.nextInt(max * 2);
+                Assert.assertEquals(treeMap.put(key, (long) i) != null, mappedMap.put(key, i));
+            }
+            for (int i = 0; i < max; i++) {
+                long key = random.nextInt(max * 2);
+                Assert.assertEquals(treeMap.remove(key) != null, mappedMap.remove(key));
+            }
+        }
+        for (int round = 0; round < 2; round++) {
+            try (MappedRbtMap mappedMap = new MappedRbtMap(path)) {
+                Assert.assertEquals(treeMap.size(), mappedMap.size());
+                for (int i = 0; i < max * 2; i++) {
+                    long key = i;
+                    Long value = treeMap.get(key);
+                    Assert.assertEquals(value == null ? -1L : value, mappedMap.get(key, -1L));
+                }
+                long allocated = mappedMap.bytesAllocated();
+                for (int i = 0; i < max; i++) {
+                    long key = random.nextInt(max * 2);
+                    if (random.nextBoolean()) {
+                        Assert.assertEquals(treeMap.remove(key) != null, mappedMap.remove(key));
+                    } else {
+                        Assert.assertEquals(treeMap.put(key, (long) -i) != null, mappedMap.put(key, -i));
+                    }
+                }
+                //删掉的节点被重新使用，没有继续往后分配
+                Assert.assertEquals(allocated, mappedMap.bytesAllocated());
+                mappedMap.force();
+            }
+        }
+    }
+
+    /**
+     * 还开着的时候再打开(文件被锁住)、valueBytes对不上时报错
+     */
+    @Test
+    public void mappedInvalidFileTest() throws IOException {
+        Path path = folder.newFile().toPath();
+        try (MappedRbtMap mappedMap = new MappedRbtMap(path, 3)) {
+            mappedMap.put(1, new byte[]{1, 2, 3});
+            assertOpenFails(path, 3);
+            mappedMap.force();
+            assertOpenFails(path, 3);
+            mappedMap.put(2, new byte[]{4, 5, 6});
+            assertOpenFails(path, 3);
+        }
+        assertOpenFails(path, 8);
+        try (MappedRbtMap mappedMap = new MappedRbtMap(path, 3)) {
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, mappedMap.get(1));
+            Assert.assertArrayEquals(new byte[]{4, 5, 6}, mappedMap.get(2));
+        }
+    }
+
+    /**
+     * force()之后继续修改，不close(模拟崩溃，改过的页都已经被操作系统写回了磁盘)，
+     * 重新打开回到上次force()时的样子，回滚之后还能接着用
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void mappedCrashRecoveryTest() throws IOException {
+        int max = 50000;
+        Path path = folder.newFile().toPath();
+        Path crashed = folder.newFolder().toPath().resolve("crashed");
+        TreeMap<Long,Long> treeMap = new TreeMap<>();
+        try (MappedRbtMap mappedMap = new MappedRbtMap(path)) {
+            for (int i = 0; i < max; i++) {
+                mappedMap.put(random.nextInt(max * 2), i);
+            }
+            //一次都没有force过
+            copyFiles(path, crashed);
+            try (MappedRbtMap recovered = new MappedRbtMap(crashed)) {
+                Assert.assertEquals(0, recovered.size());
+            }
+
+            for (int round = 0; round < 3; round++) {
+                mappedMap.force();
+                treeMap.clear();
+                for (long key = 0; key < max * 3; key++) {
+                    long value = mappedMap.get(key, Long.MIN_VALUE);
+                    if (value != Long.MIN_VALUE)
+                        treeMap.put(key, value);
+                }
+                //改已经有的节点，也分配新的
+                for (int i = 0; i < max; i++) {
+                    long key = random.nextInt(max * 3);
+                    if (random.nextInt(3) == 0) {
+                        mappedMap.remove(key);
+                    } else {
+                        mappedMap.put(key, -i);
+                    }
+                }
+                copyFiles(path, crashed);
+                try (MappedRbtMap recovered = new MappedRbtMap(crashed)) {
+                    Assert.assertEquals(treeMap.size(), recovered.size());
+                    for (long key = 0; key < max * 3; key++) {
+                        Long value = treeMap.get(key);
+                        Assert.assertEquals(value == null ? Long.MIN_VALUE : value, recovered.get(key, Long.MIN_VALUE));
+                    }
+                    for (int i = 0; i < max / 10; i++) {
+                        recovered.put(random.nextInt(max * 3), i);
+                    }
+                }
+                new MappedRbtMap(crashed).close();
+            }
+        }
+    }
+
+    /**
+     * 把文件和undo日志原样复制一份(读到的是page cache里的内容)
+     */
+    private static void copyFiles(Path path, Path to) throws IOException {
+        Files.copy(path, to, StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(path.resolveSibling(path.getFileName() + ".undo"), to.resolveSibling(to.getFileName() + ".undo"),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void assertOpenFails(Path path, int valueBytes) {
+        try {
+            new MappedRbtMap(path, valueBytes).close();
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * 与TreeMap进行遍历校验(节点、key、value三种迭代器)
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void iterateWithTreeMapTest(){
+        RbtMap<Integer,String> rbtMap = new RbtMap<>();
+        TreeMap<Integer,String> treeMap = new TreeMap<>();
+        for (int i = 0; i < 65535; i++) {
+            int key = random.nextInt(65535);
+            String value = String.valueOf(random.nextInt(65535));
+            rbtMap.put(key,value);
+            treeMap.put(key,value);
+        }
+        Iterator<RbtMap.RbtEntry<Integer, String>> entryIterator = rbtMap.iterator();
+        Iterator<Integer> keyIterator = rbtMap.keyIterator();
+        Iterator<String> valueIterator = rbtMap.valueIterator();
+        for (Map.Entry<Integer, String> entry : treeMap.entrySet()) {
+            Assert.assertTrue(entryIterator.next().equals(entry));
+            Assert.assertEquals(entry.getKey(), keyIterator.next());
+            Assert.assertEquals(entry.getValue(), valueIterator.next());
+        }
+        Assert.assertFalse(entryIterator.hasNext());
+        Assert.assertFalse(keyIterator.hasNext());
+        Assert.assertFalse(valueIterator.hasNext());
+        try {
+            entryIterator.next();
+            Assert.fail();
+        } catch (NoSuchElementException expected) {
+        }
+
+        //从根节点构造，只遍历这颗子树
+        RbtMap.RbtEntry<Integer,String> left = rbtMap.root.left;
+        Iterator<RbtMap.RbtEntry<Integer,String>> subtreeIterator = new RbtIterator<>(left);
+        for (Map.Entry<Integer, String> entry : treeMap.headMap(rbtMap.root.getKey()).entrySet()) {
+            Assert.assertEquals(entry, subtreeIterator.next());
+        }
+        Assert.assertFalse(subtreeIterator.hasNext());
+        Assert.assertFalse(new RbtIterator<Integer,String>(null).hasNext());
+    }
+
+    /**
+     * 用有序数据批量构建，再与TreeMap校验
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void buildFromSortedWithTreeMapTest() throws Exception {
+        for (int size : new int[]{0, 1, 2, 3, 7, 8, 1000, 65535}) {
+            TreeMap<Integer,String> treeMap = new TreeMap<>();
+            while (treeMap.size() < size) {
+                int key = random.nextInt();
+                treeMap.put(key,String.valueOf(key));
+            }
+            RbtMap<Integer,String> rbtMap = new RbtMap<>();
+            rbtMap.put(random.nextInt(), "会被丢弃");
+            rbtMap.buildFromSorted(treeMap.entrySet().iterator(), treeMap.size(), true);
+            rbtMap.checkBalance();
+            Assert.assertTrue(rbtMap.size() == treeMap.size());
+            Iterator<RbtMap.RbtEntry<Integer, String>> iterator = rbtMap.iterator();
+            for (Map.Entry<Integer, String> entry : treeMap.entrySet()) {
+                Assert.assertTrue(iterator.next().equals(entry));
+            }
+            Assert.assertFalse(iterator.hasNext());
+            //构建出来的树可以继续正常增删
+            for (int i = 0; i < size; i++) {
+                int key = random.nextInt();
+                Assert.assertEquals(treeMap.put(key, "x"), rbtMap.put(key, "x"));
+                key = random.nextBoolean() ? key : treeMap.firstKey();
+                Assert.assertEquals(treeMap.remove(key), rbtMap.remove(key));
+            }
+            rbtMap.checkBalance();
+            Assert.assertTrue(rbtMap.size() == treeMap.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void buildFromUnsortedTest() {
+        TreeMap<Integer,String> treeMap = new TreeMap<>();
+        treeMap.put(1, "a");
+        treeMap.put(2, "b");
+        RbtMap<Integer,String> rbtMap = new RbtMap<>();
+        rbtMap.buildFromSorted(treeMap.descendingMap().entrySet().iterator(), 2, true);
+    }
+
+    /**
+     * 写线程不停地增删奇数key(引起旋转)，读线程乐观读偶数key，偶数key必须一直能读到
+     */
+    /**
+     * 排名/第k小/区间计数/百分位数和TreeMap的headMap/subMap对比
+     */
+    @Test
+    public void rankAndSelectWithTreeMapTest() throws Exception {
+        int max = 65535;
+        RbtMap<Integer,Integer> rbtMap = new RbtMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max);
+            rbtMap.put(key, key);
+            treeMap.put(key, key);
+        }
+        for (int i = 0; i < max / 2; i++) {
+            int key = random.nextInt(max);
+            Assert.assertEquals(treeMap.remove(key), rbtMap.remove(key));
+        }
+        rbtMap.checkBalance();
+
+        int index = 0;
+        for (Integer key : treeMap.keySet()) {
+            Assert.assertEquals(key, rbtMap.select(index).getKey());
+            Assert.assertEquals(index, rbtMap.rank(key));
+            index++;
+        }
+        for (int i = 0; i < 1000; i++) {
+            int lo = random.nextInt(max + 2) - 1;
+            int hi = lo + random.nextInt(max / 8);
+            Assert.assertEquals(treeMap.headMap(lo).size(), rbtMap.rank(lo));
+            Assert.assertEquals(treeMap.subMap(lo, true, hi, true).size(), rbtMap.countInRange(lo, hi));
+        }
+        Assert.assertEquals(treeMap.firstKey(), rbtMap.percentile(0).getKey());
+        Assert.assertEquals(treeMap.lastKey(), rbtMap.percentile(100).getKey());
+        int p99 = (int) Math.ceil(0.99 * treeMap.size()) - 1;
+        Assert.assertEquals(rbtMap.select(p99), rbtMap.percentile(99));
+        try {
+            rbtMap.select(rbtMap.size());
+            Assert.fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+
+        //批量构建出来的树子树数量也要对
+        RbtMap<Integer,Integer> built = new RbtMap<>();
+        built.buildFromSorted(treeMap.entrySet().iterator(), treeMap.size());
+        built.checkBalance();
+        Assert.assertEquals(treeMap.lastKey(), built.select(treeMap.size() - 1).getKey());
+
+        //线程安全的树返回拷贝，删掉节点后拿到的还是原来的
+        ConcurrentRbtMap<Integer,Integer> concurrent = new ConcurrentRbtMap<>();
+        concurrent.putAll(treeMap);
+        Map.Entry<Integer,Integer> selected = concurrent.select(0);
+        Map.Entry<Integer,Integer> top = concurrent.percentile(100);
+        concurrent.remove(selected.getKey());
+        concurrent.put(top.getKey(), -1);
+        Assert.assertEquals(treeMap.firstEntry(), selected);
+        Assert.assertEquals(treeMap.lastEntry(), top);
+    }
+
+    /**
+     * floor/ceiling/higher/lower/first/last和subMap视图与TreeMap对比
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void navigationAndSubMapWithTreeMapTest() {
+        int max = 4096;
+        RbtMap<Integer,Integer> map = new RbtMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        Assert.assertNull(map.firstEntry());
+        Assert.assertNull(map.lastEntry());
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max * 4);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        Assert.assertEquals(treeMap.firstKey(), map.firstEntry().getKey());
+        Assert.assertEquals(treeMap.lastKey(), map.lastEntry().getKey());
+        for (int key = -1; key <= max * 4; key++) {
+            Assert.assertEquals(treeMap.floorEntry(key), map.floorEntry(key));
+            Assert.assertEquals(treeMap.ceilingEntry(key), map.ceilingEntry(key));
+            Assert.assertEquals(treeMap.higherEntry(key), map.higherEntry(key));
+            Assert.assertEquals(treeMap.lowerEntry(key), map.lowerEntry(key));
+        }
+        for (int i = 0; i < 500; i++) {
+            int from = random.nextInt(max * 4 + 2) - 1;
+            int to = from + random.nextInt(max / 4);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            RbtSubMap<Integer,Integer> sub = map.subMap(from, fromInclusive, to, toInclusive);
+            NavigableMap<Integer,Integer> expect = treeMap.subMap(from, fromInclusive, to, toInclusive);
+            Assert.assertEquals(expect.size(), sub.size());
+            Assert.assertEquals(expect.isEmpty(), sub.isEmpty());
+            Assert.assertEquals(expect.firstEntry(), sub.firstEntry());
+            Assert.assertEquals(expect.lastEntry(), sub.lastEntry());
+            Iterator<Integer> keys = sub.keyIterator();
+            for (Integer key : expect.keySet()) {
+                Assert.assertEquals(key, keys.next());
+            }
+            Assert.assertFalse(keys.hasNext());
+            Assert.assertEquals(expect.get(from), sub.get(from));
+            Assert.assertEquals(expect.get(to), sub.get(to));
+        }
+        RbtSubMap<Integer,Integer> sub = map.subMap(10, true, 20, false);
+        sub.put(15, -15);
+        Assert.assertEquals(Integer.valueOf(-15), map.get(15));
+        Assert.assertNull(sub.remove(20));
+        try {
+            sub.put(20, 20);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        //线程安全的树返回拷贝，之后的修改影响不到，也不能通过它修改
+        ConcurrentRbtMap<Integer,Integer> concurrent = new ConcurrentRbtMap<>();
+        concurrent.putAll(treeMap);
+        Map.Entry<Integer,Integer> first = concurrent.firstEntry();
+        Map.Entry<Integer,Integer> floor = concurrent.floorEntry(treeMap.lastKey());
+        concurrent.put(first.getKey(), -1);
+        concurrent.remove(floor.getKey());
+        Assert.assertEquals(treeMap.firstEntry(), first);
+        Assert.assertEquals(treeMap.lastEntry(), floor);
+        try {
+            first.setValue(0);
+            Assert.fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    /**
+     * 可持久化红黑树
+     * 每隔一段时间拍一次快照(同时复制一份TreeMap)，最后所有快照的内容都要和拍快照时一致
+     * 另外有一个线程一直遍历最早的快照，写线程同时在改
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void persistentSnapshotWithTreeMapTest() throws Exception {
+        int max = 65535;
+        PersistentRbtMap<Integer,Integer> map = new PersistentRbtMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max);
+            Assert.assertEquals(treeMap.put(key, i), map.put(key, i));
+        }
+        final PersistentRbtMap.Snapshot<Integer,Integer> first = map.snapshot();
+        final TreeMap<Integer,Integer> firstExpect = new TreeMap<>(treeMap);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            for (int round = 0; round < 20; round++) {
+                Iterator<Map.Entry<Integer,Integer>> it = first.iterator();
+                for (Map.Entry<Integer,Integer> e : firstExpect.entrySet()) {
+                    if (!it.hasNext() || !e.equals(it.next()))
+                        errors.incrementAndGet();
+                }
+                if (it.hasNext())
+                    errors.incrementAndGet();
+            }
+        });
+        reader.start();
+
+        List<PersistentRbtMap.Snapshot<Integer,Integer>> snapshots = new ArrayList<>();
+        List<TreeMap<Integer,Integer>> expects = new ArrayList<>();
+        for (int i = 0; i < max * 2; i++) {
+            int key = random.nextInt(max);
+            if (random.nextBoolean())
+                Assert.assertEquals(treeMap.put(key, -i), map.put(key, -i));
+            else
+                Assert.assertEquals(treeMap.remove(key), map.remove(key));
+            if (i % (max / 4) == 0) {
+                snapshots.add(map.snapshot());
+                expects.add(new TreeMap<>(treeMap));
+            }
+        }
+        reader.join();
+        Assert.assertEquals(0, errors.get());
+        map.checkBalance();
+        Assert.assertEquals(treeMap.size(), map.size());
+        Iterator<Map.Entry<Integer,Integer>> it = map.iterator();
+        for (Map.Entry<Integer,Integer> e : treeMap.entrySet()) {
+            Assert.assertEquals(e, it.next());
+        }
+        Assert.assertFalse(it.hasNext());
+        for (int i = 0; i < snapshots.size(); i++) {
+            PersistentRbtMap.Snapshot<Integer,Integer> snapshot = snapshots.get(i);
+            TreeMap<Integer,Integer> expect = expects.get(i);
+            Assert.assertEquals(expect.size(), snapshot.size());
+            for (int key = 0; key < max; key++) {
+                Assert.assertEquals(expect.get(key), snapshot.get(key));
+            }
+        }
+        //删空
+        for (int key = 0; key < max; key++) {
+            Assert.assertEquals(treeMap.remove(key), map.remove(key));
+        }
+        Assert.assertEquals(0, map.size());
+        Assert.assertEquals(firstExpect.size(), first.size());
+    }
+
+    /**
+     * putAll/putAllSorted和TreeMap对比
+     * 包括递增、基本递增(偶尔回退)、和已有key重叠、空树直接构建几种情况
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void putAllSortedWithTreeMapTest() throws Exception {
+        int max = 65535;
+        RbtMap<Integer,Integer> map = new RbtMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max / 4; i++) {
+            int key = random.nextInt(max);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        //基本递增的一批，偶尔往回跳
+        List<Map.Entry<Integer,Integer>> batch = new ArrayList<>();
+        int key = 0;
+        for (int i = 0; i < max; i++) {
+            key = random.nextInt(10) == 0 ? random.nextInt(max) : key + random.nextInt(3);
+            batch.add(new AbstractMap.SimpleEntry<>(key, -i));
+            treeMap.put(key, -i);
+        }
+        map.putAllSorted(batch.iterator());
+        //比所有key都大的追加
+        TreeMap<Integer,Integer> tail = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            tail.put(max * 2 + i, i);
+        }
+        map.putAll(tail);
+        treeMap.putAll(tail);
+        map.checkBalance();
+        Assert.assertEquals(treeMap.size(), map.size());
+        Iterator<Integer> keys = map.keyIterator();
+        for (Map.Entry<Integer,Integer> e : treeMap.entrySet()) {
+            Assert.assertEquals(e.getKey(), keys.next());
+            Assert.assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        Assert.assertFalse(keys.hasNext());
+
+        //空树+比较器相同的SortedMap直接构建
+        RbtMap<Integer,Integer> built = new RbtMap<>();
+        built.putAll(treeMap);
+        built.checkBalance();
+        Assert.assertEquals(treeMap.size(), built.size());
+        Assert.assertEquals(treeMap.lastKey(), built.lastEntry().getKey());
+    }
+
+    /**
+     * 游标和TreeMap对比
+     * 随机做seek(当前key附近)/next/prev/setValue/remove，每一步游标位置都和TreeMap算出来的一致
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void cursorWithTreeMapTest() throws Exception {
+        int max = 65535;
+        RbtMap<Integer,Integer> map = new RbtMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max / 2; i++) {
+            int key = random.nextInt(max);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        RbtMap<Integer,Integer>.Cursor cursor = map.cursor();
+        Assert.assertFalse(cursor.isValid());
+        Assert.assertTrue(cursor.first());
+        Integer expect = treeMap.firstKey();
+        for (int i = 0; i < max; i++) {
+            if (expect == null) {
+                Assert.assertFalse(cursor.isValid());
+                int key = random.nextInt(max);
+                expect = treeMap.ceilingKey(key);
+                Assert.assertEquals(expect != null, cursor.seek(key));
+            } else {
+                Assert.assertEquals(expect, cursor.key());
+                Assert.assertEquals(treeMap.get(expect), cursor.value());
+                switch (random.nextInt(5)) {
+                    case 0:
+                        //当前key附近
+                        int key = expect + random.nextInt(201) - 100;
+                        expect = treeMap.ceilingKey(key);
+                        Assert.assertEquals(expect != null, cursor.seek(key));
+                        break;
+                    case 1:
+                        expect = treeMap.higherKey(expect);
+                        Assert.assertEquals(expect != null, cursor.next());
+                        break;
+                    case 2:
+                        expect = treeMap.lowerKey(expect);
+                        Assert.assertEquals(expect != null, cursor.prev());
+                        break;
+                    case 3:
+                        Assert.assertEquals(treeMap.put(expect, -i), cursor.setValue(-i));
+                        break;
+                    default:
+                        Integer next = treeMap.higherKey(expect);
+                        treeMap.remove(expect);
+                        expect = next;
+                        Assert.assertEquals(expect != null, cursor.remove());
+                }
+            }
+        }
+        map.checkBalance();
+        Assert.assertEquals(treeMap.size(), map.size());
+        Assert.assertTrue(cursor.last());
+        Assert.assertEquals(treeMap.lastKey(), cursor.key());
+        Assert.assertFalse(cursor.next());
+        try {
+            cursor.key();
+            Assert.fail();
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+    @Test
+    public void concurrentReadWhileWriteTest() throws Exception {
+        final int max = 65536;
+        final ConcurrentRbtMap<Integer,Integer> map = new ConcurrentRbtMap<>();
+        for (int key = 0; key < max; key += 2) {
+            map.put(key, key);
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            threads.add(new Thread(() -> {
+                Random r = new Random();
+                awaitQuietly(start);
+                for (int i = 0; i < max * 4; i++) {
+                    int key = r.nextInt(max) | 1;
+                    if (r.nextBoolean())
+                        map.put(key, key);
+                    else
+                        map.remove(key);
+                }
+            }));
+        }
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                Random r = new Random();
+                awaitQuietly(start);
+                for (int i = 0; i < max * 8; i++) {
+                    int key = r.nextInt(max) & ~1;
+                    if (!Integer.valueOf(key).equals(map.get(key)) || !map.containsKey(key))
+                        errors.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, errors.get());
+        map.checkBalance();
+    }
+
+    /**
+     * 用游标删除/改值的同时乐观读，不能读不到一直存在的key
+     */
+    @Test
+    public void concurrentReadWhileCursorRemoveTest() throws Exception {
+        final int max = 65536;
+        final ConcurrentRbtMap<Integer,Integer> map = new ConcurrentRbtMap<>();
+        for (int key = 0; key < max; key += 2) {
+            map.put(key, key);
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(() -> {
+            awaitQuietly(start);
+            RbtMap<Integer,Integer>.Cursor cursor = map.cursor();
+            for (int round = 0; round < 8; round++) {
+                for (int key = 1; key < max; key += 2) {
+                    map.put(key, key);
+                }
+                cursor.first();
+                while (cursor.isValid()) {
+                    if ((cursor.key() & 1) == 1) {
+                        cursor.remove();
+                    } else {
+                        cursor.setValue(cursor.key());
+                        cursor.next();
+                    }
+                }
+            }
+        }));
+        for (int t = 0; t < 3; t++) {
+            threads.add(new Thread(() -> {
+                Random r = new Random();
+                awaitQuietly(start);
+                for (int i = 0; i < max * 8; i++) {
+                    int key = r.nextInt(max) & ~1;
+                    if (!Integer.valueOf(key).equals(map.get(key)) || !map.containsKey(key))
+                        errors.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(max / 2, map.size());
+        map.checkBalance();
+    }
+
+    /**
+     * 拆分/连接/集合运算和TreeMap对比
+     * 另一棵树分别比这颗树小很多、小一些、大一些，串行和并行各算一遍
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void setOperationsWithTreeMapTest() throws Exception {
+        int max = 1 << 16;
+        int[] otherCounts = {64, max / 8, max};
+        for (int round = 0; round < otherCounts.length * 2; round++) {
+            boolean parallel = round % 2 == 1;
+            for (int op = 0; op < 3; op++) {
+                RbtMap<Integer,Integer> map = new RbtMap<>();
+                RbtMap<Integer,Integer> other = new RbtMap<>();
+                TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+                TreeMap<Integer,Integer> otherTreeMap = new TreeMap<>();
+                for (int i = 0; i < max / 2; i++) {
+                    int key = random.nextInt(max);
+                    map.put(key, key);
+                    treeMap.put(key, key);
+                }
+                for (int i = 0; i < otherCounts[round / 2]; i++) {
+                    int key = random.nextInt(max);
+                    other.put(key, -key);
+                    otherTreeMap.put(key, -key);
+                }
+                if (op == 0) {
+                    if (parallel)
+                        map.parallelUnion(other);
+                    else
+                        map.union(other);
+                    treeMap.putAll(otherTreeMap);
+                } else if (op == 1) {
+                    if (parallel)
+                        map.parallelIntersection(other);
+                    else
+                        map.intersection(other);
+                    treeMap.keySet().retainAll(otherTreeMap.keySet());
+                } else {
+                    if (parallel)
+                        map.parallelDifference(other);
+                    else
+                        map.difference(other);
+                    treeMap.keySet().removeAll(otherTreeMap.keySet());
+                }
+                map.checkBalance();
+                assertSameEntries(treeMap, map);
+                //只有并集会拿走other的节点，交集和差集other不变
+                if (op == 0) {
+                    Assert.assertEquals(0, other.size());
+                } else {
+                    other.checkBalance();
+                    assertSameEntries(otherTreeMap, other);
+                }
+            }
+        }
+
+        //拆开再连回去
+        RbtMap<Integer,Integer> map = new RbtMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        for (int i = 0; i < 200; i++) {
+            int key = random.nextInt(max + 2) - 1;
+            RbtMap<Integer,Integer> high = map.split(key);
+            map.checkBalance();
+            high.checkBalance();
+            assertSameEntries(treeMap.headMap(key, false), map);
+            assertSameEntries(treeMap.tailMap(key, true), high);
+            if (high.size() == 0) {
+                map.union(high);
+                continue;
+            }
+            Integer middle = high.firstEntry().getKey();
+            Integer value = high.remove(middle);
+            try {
+                high.join(middle, value, map);
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                //顺序不对
+            }
+            map.join(middle, value, high);
+            map.checkBalance();
+            Assert.assertEquals(0, high.size());
+            Assert.assertEquals(treeMap.size(), map.size());
+        }
+        assertSameEntries(treeMap, map);
+        //子树数量也要跟着拆分/连接维护好
+        for (int i = 0; i < 100; i++) {
+            int index = random.nextInt(map.size());
+            Assert.assertEquals(index, map.rank(map.select(index).getKey()));
+        }
+    }
+
+    /**
+     * 并行构建和TreeMap对比
+     * key有大量重复，重复的value按出现顺序合并(加起来)；另外用反序的比较器、不合并(后出现的覆盖)再建一次
+     */
+    @SuppressWarnings({"unchecked", "Duplicates"})
+    @Test
+    public void parallelBuildWithTreeMapTest() throws Exception {
+        int max = 1 << 17;
+        Map.Entry<Integer,Integer>[] entries = new Map.Entry[max * 2];
+        TreeMap<Integer,Integer> summed = new TreeMap<>();
+        TreeMap<Integer,Integer> last = new TreeMap<>(Comparator.reverseOrder());
+        for (int i = 0; i < entries.length; i++) {
+            int key = random.nextInt(max);
+            entries[i] = new AbstractMap.SimpleEntry<>(key, i);
+            summed.merge(key, i, Integer::sum);
+            last.put(key, i);
+        }
+        Map.Entry<Integer,Integer> first = entries[0];
+
+        RbtMap<Integer,Integer> map = RbtMap.parallelBuild(entries, null, Integer::sum);
+        map.checkBalance();
+        assertSameEntries(summed, map);
+        //参数没有被修改
+        Assert.assertSame(first, entries[0]);
+
+        RbtMap<Integer,Integer> reversed = RbtMap.parallelBuild(entries, Comparator.reverseOrder());
+        reversed.checkBalance();
+        Assert.assertEquals(last.size(), reversed.size());
+        Iterator<Integer> keys = reversed.keyIterator();
+        for (Map.Entry<Integer,Integer> e : last.entrySet()) {
+            Assert.assertEquals(e.getKey(), keys.next());
+            Assert.assertEquals(e.getValue(), reversed.get(e.getKey()));
+        }
+        Assert.assertFalse(keys.hasNext());
+
+        RbtMap<Integer,Integer> empty = RbtMap.parallelBuild(new Map.Entry[0], null);
+        Assert.assertEquals(0, empty.size());
+        empty.put(1, 1);
+        Assert.assertEquals(1, empty.size());
+    }
+
+    private static void assertSameEntries(Map<Integer,Integer> expect, RbtMap<Integer,Integer> map) {
+        Assert.assertEquals(expect.size(), map.size());
+        Iterator<Integer> keys = map.keyIterator();
+        for (Map.Entry<Integer,Integer> e : expect.entrySet()) {
+            Assert.assertEquals(e.getKey(), keys.next());
+            Assert.assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        Assert.assertFalse(keys.hasNext());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 顺序流、并行流和TreeMap对比
+     * 先用tryAdvance走几步，再把Spliterator一直拆到不能拆为止，各段按顺序拼起来要和TreeMap一样
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void streamWithTreeMapTest() {
+        int max = 1 << 16;
+        RbtMap<Integer,Integer> map = new RbtMap<>();
+        TreeMap<Integer,Integer> treeMap = new TreeMap<>();
+        for (int i = 0; i < max; i++) {
+            int key = random.nextInt(max);
+            map.put(key, key);
+            treeMap.put(key, key);
+        }
+        List<Integer> expect = new ArrayList<>(treeMap.keySet());
+        Assert.assertEquals(expect, map.stream().map(Map.Entry::getKey).collect(Collectors.toList()));
+        Assert.assertEquals(expect, map.parallelStream().map(Map.Entry::getKey).collect(Collectors.toList()));
+        Assert.assertEquals(treeMap.size(), map.parallelStream().count());
+        long evenSum = treeMap.values().stream().mapToLong(v -> v).filter(v -> v % 2 == 0).sum();
+        Assert.assertEquals(evenSum, map.parallelStream().mapToLong(Map.Entry::getValue).filter(v -> v % 2 == 0).sum());
+
+        Spliterator<Map.Entry<Integer,Integer>> spliterator = map.entrySpliterator();
+        Assert.assertTrue(spliterator.hasCharacteristics(Spliterator.SORTED | Spliterator.SIZED));
+        Assert.assertEquals(treeMap.size(), spliterator.getExactSizeIfKnown());
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(spliterator.tryAdvance(e -> keys.add(e.getKey())));
+        }
+        //第一次在根拆分，两半不会差太多
+        Spliterator<Map.Entry<Integer,Integer>> half = map.entrySpliterator().trySplit();
+        Assert.assertTrue(half.estimateSize() > treeMap.size() / 4 && half.estimateSize() < treeMap.size() * 3 / 4);
+        List<Spliterator<Map.Entry<Integer,Integer>>> parts = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        splitAll(spliterator, parts);
+        for (Spliterator<Map.Entry<Integer,Integer>> part : parts) {
+            sizes.add(part.estimateSize());
+        }
+        Assert.assertTrue(parts.size() > 1);
+        for (Spliterator<Map.Entry<Integer,Integer>> part : parts) {
+            int before = keys.size();
+            part.forEachRemaining(e -> keys.add(e.getKey()));
+            //拆出来的每一段的数量都是准确的
+            Assert.assertTrue(part.hasCharacteristics(Spliterator.SUBSIZED));
+            Assert.assertEquals(sizes.remove(0).longValue(), keys.size() - before);
+        }
+        Assert.assertEquals(expect, keys);
+    }
+
+    /**
+     * 带前缀的String/byte[]树和TreeMap对比
+     * key有公共前缀、有超过0xFF的字符、有长度不同但前8个字符相同的
+     */
+    @Test
+    public void keyPrefixWithTreeMapTest() throws Exception {
+        int max = 1 << 14;
+        String common = "tenant/region/";
+        String[] heads = {common, common, common, "", "a", "tenant/", "tenant/region/\u4e2d", "zz"};
+        String[] tails = {"", "x", "\u4e2d\u6587", "abcdefgh", "abcdefghij"};
+        RbtMap<String,Integer> strings = new RbtMap<>(null, KeyPrefix.STRING);
+        RbtMap<String,Integer> after = new RbtMap<>(null, KeyPrefix.stringAfter(common));
+        TreeMap<String,Integer> stringTree = new TreeMap<>();
+        RbtMap<byte[],Integer> bytes = new RbtMap<>(KeyPrefix.BYTES_ORDER, KeyPrefix.BYTES);
+        TreeMap<byte[],Integer> byteTree = new TreeMap<>(KeyPrefix.BYTES_ORDER);
+        for (int i = 0; i < max; i++) {
+            String key = heads[random.nextInt(heads.length)] + random.nextInt(max / 4) + tails[random.nextInt(tails.length)];
+            byte[] bytesKey = key.getBytes(StandardCharsets.UTF_8);
+            if (random.nextInt(3) == 0) {
+                Integer expect = stringTree.remove(key);
+                Assert.assertEquals(expect, strings.remove(key));
+                Assert.assertEquals(expect, after.remove(key));
+                Assert.assertEquals(byteTree.remove(bytesKey), bytes.remove(bytesKey));
+            } else {
+                Integer expect = stringTree.put(key, i);
+                Assert.assertEquals(expect, strings.put(key, i));
+                Assert.assertEquals(expect, after.put(key, i));
+                Assert.assertEquals(byteTree.put(bytesKey, i), bytes.put(bytesKey, i));
+            }
+        }
+        strings.checkBalance();
+        after.checkBalance();
+        bytes.checkBalance();
+        Assert.assertEquals(stringTree.size(), strings.size());
+        Assert.assertEquals(stringTree.size(), after.size());
+        Assert.assertEquals(byteTree.size(), bytes.size());
+        Iterator<RbtMap.RbtEntry<String,Integer>> it = strings.iterator();
+        Iterator<RbtMap.RbtEntry<String,Integer>> afterIt = after.iterator();
+        for (Map.Entry<String,Integer> e : stringTree.entrySet()) {
+            RbtMap.RbtEntry<String,Integer> entry = it.next();
+            Assert.assertEquals(e.getKey(), entry.getKey());
+            Assert.assertEquals(e.getValue(), entry.getValue());
+            Assert.assertEquals(e.getKey(), afterIt.next().getKey());
+            Assert.assertEquals(e.getValue(), strings.get(e.getKey()));
+            Assert.assertEquals(e.getValue(), after.get(e.getKey()));
+        }
+        Iterator<RbtMap.RbtEntry<byte[],Integer>> bytesIt = bytes.iterator();
+        for (Map.Entry<byte[],Integer> e : byteTree.entrySet()) {
+            Assert.assertArrayEquals(e.getKey(), bytesIt.next().getKey());
+            Assert.assertEquals(e.getValue(), bytes.get(e.getKey().clone()));
+        }
+        Assert.assertNull(strings.get(common + "missing"));
+        Assert.assertNull(after.get("0"));
+
+        //前缀算法不同的树不能合并
+        try {
+            strings.union(after);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        RbtMap<String,Integer> high = strings.split(common);
+        strings.checkBalance();
+        high.checkBalance();
+        Assert.assertEquals(stringTree.headMap(common).size(), strings.size());
+        strings.union(high);
+        strings.checkBalance();
+        Assert.assertEquals(stringTree.size(), strings.size());
+    }
+
+    private static <T> void splitAll(Spliterator<T> spliterator, List<Spliterator<T>> parts) {
+        Spliterator<T> prefix = spliterator.trySplit();
+        if (prefix == null) {
+            parts.add(spliterator);
+            return;
+        }
+        splitAll(prefix, parts);
+        splitAll(spliterator, parts);
     }
 
 }
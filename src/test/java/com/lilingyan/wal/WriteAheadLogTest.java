@@ -0,0 +1,205 @@
+package com.lilingyan.wal;
+
+import com.lilingyan.avl.AvlMap;
+import com.lilingyan.io.Codecs;
+import com.lilingyan.rbt.RbtMap;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @Author: lilingyan
+ */
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Random random = new Random();
+
+    /**
+     * 随机增删后重新打开，replay出来的红黑树、avl树都和TreeMap一致
+     */
+    @SuppressWarnings("Duplicates")
+    @Test
+    public void replayWithTreeMapTest() throws Exception {
+        int max = 20000;
+        Path path = folder.newFile().toPath();
+        TreeMap<Long,String> treeMap = new TreeMap<>();
+        for (int round = 0; round < 3; round++) {
+            WriteAheadLog<Long,String> log = new WriteAheadLog<>(path, Codecs.LONG, Codecs.STRING, SyncPolicy.NEVER);
+            DurableMap<Long,String> map = round % 2 == 0
+                    ? new DurableMap<>(new RbtMap<>(), log)
+                    : new DurableMap<>(new AvlMap<>(), log);
+            Assert.assertEquals(treeMap.size(), map.size());
+            for (Map.Entry<Long,String> e : treeMap.entrySet()) {
+                Assert.assertEquals(e.getValue(), map.get(e.getKey()));
+            }
+            for (int i = 0; i < max; i++) {
+                long key = random.nextInt(max);
+                if (random.nextInt(3) == 0) {
+                    Assert.assertEquals(treeMap.remove(key), map.remove(key));
+                } else {
+                    String value = i % 5 == 0 ? "" : "值" + i;
+                    Assert.assertEquals(treeMap.put(key, value), map.put(key, value));
+                }
+            }
+            map.close();
+        }
+    }
+
+    /**
+     * 崩溃时没写完的尾巴(不完整、crc对不上)在打开时被截掉，之后接着写
+     */
+    @Test
+    public void tornTailTest() throws Exception {
+        Path path = folder.newFile().toPath();
+        try (WriteAheadLog<Integer,byte[]> log = new WriteAheadLog<>(path, Codecs.INTEGER, Codecs.BYTES, SyncPolicy.NEVER)) {
+            for (int i = 0; i < 100; i++) {
+                log.appendPut(i, new byte[i]);
+            }
+        }
+        long size = Files.size(path);
+        //最后一条只写了一半
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 10);
+        }
+        Assert.assertEquals(99, replay(path).size());
+        //倒数第二条(现在的最后一条)中间坏了一个字节
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xFF}), Files.size(path) - 20);
+        }
+        try (WriteAheadLog<Integer,byte[]> log = new WriteAheadLog<>(path, Codecs.INTEGER, Codecs.BYTES, SyncPolicy.NEVER)) {
+            Assert.assertEquals(98, log.recoveredCount());
+            log.appendPut(1000, new byte[]{1, 2, 3});
+            log.appendRemove(0);
+        }
+        List<Object> records = replay(path);
+        Assert.assertEquals(100, records.size());
+        Assert.assertEquals(97, records.get(97));
+        Assert.assertEquals(1000, records.get(98));
+        Assert.assertEquals("remove 0", records.get(99));
+    }
+
+    private static List<Object> replay(Path path) throws IOException {
+        List<Object> records = new ArrayList<>();
+        try (WriteAheadLog<Integer,byte[]> log = new WriteAheadLog<>(path, Codecs.INTEGER, Codecs.BYTES, SyncPolicy.NEVER)) {
+            Assert.assertEquals(log.recoveredCount(), log.replay(new WriteAheadLog.Handler<Integer,byte[]>() {
+                @Override
+                public void put(Integer key, byte[] value) {
+                    records.add(key);
+                }
+                @Override
+                public void remove(Integer key) {
+                    records.add("remove " + key);
+                }
+            }));
+        }
+        return records;
+    }
+
+    /**
+     * ALWAYS时多个线程同时写，fsync次数不超过记录数，全部都能恢复
+     */
+    @Test
+    public void groupCommitTest() throws Exception {
+        int threads = 8;
+        int perThread = 300;
+        Path path = folder.newFile().toPath();
+        WriteAheadLog<Long,Long> log = new WriteAheadLog<>(path, Codecs.LONG, Codecs.LONG, SyncPolicy.ALWAYS);
+        DurableMap<Long,Long> map = new DurableMap<>(new RbtMap<>(), log);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long base = (long) t * perThread;
+            Thread worker = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        map.put(base + i, base + i);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertNull(error.get());
+        Assert.assertEquals(threads * perThread, log.appendCount());
+        Assert.assertTrue(log.syncCount() > 0 && log.syncCount() <= log.appendCount());
+        //不close，模拟进程直接退出，ALWAYS返回的修改都已经在文件里了
+        WriteAheadLog<Long,Long> reopened = new WriteAheadLog<>(path, Codecs.LONG, Codecs.LONG, SyncPolicy.NEVER);
+        AvlMap<Long,Long> recovered = new AvlMap<>();
+        new DurableMap<>(recovered, reopened).close();
+        Assert.assertEquals(threads * perThread, recovered.size());
+        for (long i = 0; i < threads * perThread; i++) {
+            Assert.assertEquals(Long.valueOf(i), recovered.get(i));
+        }
+        log.close();
+    }
+
+    /**
+     * NEVER/INTERVAL提交后就已经写进文件了，不close(模拟进程被kill)直接重新打开也都在
+     */
+    @Test
+    public void reopenWithoutCloseTest() throws Exception {
+        for (SyncPolicy policy : new SyncPolicy[]{SyncPolicy.NEVER, SyncPolicy.INTERVAL}) {
+            Path path = folder.newFile().toPath();
+            WriteAheadLog<Long,Long> log = new WriteAheadLog<>(path, Codecs.LONG, Codecs.LONG, policy, 60000);
+            for (long i = 0; i < 100; i++) {
+                log.commit(log.appendPut(i, i));
+            }
+            log.commit(log.appendRemove(0L));
+            try (WriteAheadLog<Long,Long> reopened = new WriteAheadLog<>(path, Codecs.LONG, Codecs.LONG, SyncPolicy.NEVER)) {
+                Assert.assertEquals(101, reopened.recoveredCount());
+            }
+            log.close();
+        }
+    }
+
+    /**
+     * INTERVAL时后台线程会刷盘；编码不一致时打开报错
+     */
+    @Test
+    public void intervalAndInvalidFileTest() throws Exception {
+        Path path = folder.newFile().toPath();
+        try (WriteAheadLog<Long,Long> log = new WriteAheadLog<>(path, Codecs.LONG, Codecs.LONG, SyncPolicy.INTERVAL, 1)) {
+            log.commit(log.appendPut(1L, 1L));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (log.syncCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            Assert.assertTrue(log.syncCount() > 0);
+        }
+        try {
+            new WriteAheadLog<>(path, Codecs.INTEGER, Codecs.LONG, SyncPolicy.NEVER).close();
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), 0);
+        }
+        try {
+            new WriteAheadLog<>(path, Codecs.LONG, Codecs.LONG, SyncPolicy.NEVER).close();
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+    }
+
+}